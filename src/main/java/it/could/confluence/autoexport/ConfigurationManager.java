@@ -33,6 +33,7 @@ package it.could.confluence.autoexport;
 
 import it.could.confluence.localization.LocalizedComponent;
 import it.could.confluence.localization.LocalizedException;
+import it.could.util.location.Location;
 
 import java.io.ByteArrayOutputStream;
 import java.io.File;
@@ -41,6 +42,7 @@ import java.io.OutputStreamWriter;
 import java.io.UnsupportedEncodingException;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.StringTokenizer;
 
 import com.atlassian.config.ApplicationConfig;
 import com.atlassian.config.ConfigurationException;
@@ -70,6 +72,19 @@ public class ConfigurationManager extends LocalizedComponent {
     public static final String ROOT_PATH = PREFIX + "rootPath";
     /** <p>The name of the property identifying the export user name.</p> */
     public static final String USER_NAME = PREFIX + "userName";
+    /** <p>The name of the property identifying the exported site URL.</p> */
+    public static final String SITE_URL = PREFIX + "siteUrl";
+    /** <p>The name of the property identifying the WebDAV publishing locations.</p> */
+    public static final String PUBLISH_LOCATIONS = PREFIX + "publishLocations";
+    /** <p>The name of the property identifying how attachments are linked.</p> */
+    public static final String ATTACHMENT_LINKS = PREFIX + "attachmentLinks";
+
+    /** <p>The value linking attachments to the store with hard links.</p> */
+    public static final String LINKS_HARD = "hard";
+    /** <p>The value linking attachments to the store with symbolic links.</p> */
+    public static final String LINKS_SYMBOLIC = "symbolic";
+    /** <p>The value linking attachments to Confluence's own storage.</p> */
+    public static final String LINKS_STORAGE = "storage";
 
     /** <p>The {@link UserManager} used to validate users.</p> */
     private final UserManager userManager;
@@ -88,6 +103,14 @@ public class ConfigurationManager extends LocalizedComponent {
     private String rootPath = null;
     /** <p>The currently configured user name.</p> */
     private String userName = null;
+    /** <p>The currently configured site URL.</p> */
+    private String siteUrl = null;
+    /** <p>The currently configured WebDAV publishing locations.</p> */
+    private String publishLocations = null;
+    /** <p>The currently configured attachment links, or <b>null</b>.</p> */
+    private String attachmentLinks = null;
+    /** <p>The revision of the configuration, increased on each reload.</p> */
+    private volatile int revision = 0;
 
     /** <p>Create a new {@link ConfigurationManager} instance.</p> */
     public ConfigurationManager(UserManager userManager,
@@ -116,6 +139,18 @@ public class ConfigurationManager extends LocalizedComponent {
         this.encoding = (String) this.applicationConfig.getProperty(ENCODING);
         this.rootPath = (String) this.applicationConfig.getProperty(ROOT_PATH);
         this.userName = (String) this.applicationConfig.getProperty(USER_NAME);
+        this.siteUrl = (String) this.applicationConfig.getProperty(SITE_URL);
+        this.publishLocations = (String) this.applicationConfig.getProperty(PUBLISH_LOCATIONS);
+        this.attachmentLinks = (String) this.applicationConfig.getProperty(ATTACHMENT_LINKS);
+        this.revision ++;
+    }
+
+    /**
+     * <p>Return the revision of the configuration, a number increasing every
+     * time the configuration is saved, deleted or reloaded.</p>
+     */
+    public int getRevision() {
+        return this.revision;
     }
 
     /**
@@ -133,7 +168,16 @@ public class ConfigurationManager extends LocalizedComponent {
 
         if (this.userName == null) this.applicationConfig.removeProperty(USER_NAME);
         else this.applicationConfig.setProperty(USER_NAME, this.userName);
-        
+
+        if (this.siteUrl == null) this.applicationConfig.removeProperty(SITE_URL);
+        else this.applicationConfig.setProperty(SITE_URL, this.siteUrl);
+
+        if (this.publishLocations == null) this.applicationConfig.removeProperty(PUBLISH_LOCATIONS);
+        else this.applicationConfig.setProperty(PUBLISH_LOCATIONS, this.publishLocations);
+
+        if (this.attachmentLinks == null) this.applicationConfig.removeProperty(ATTACHMENT_LINKS);
+        else this.applicationConfig.setProperty(ATTACHMENT_LINKS, this.attachmentLinks);
+
         this.applicationConfig.setProperty(CONFIGURED, true);
 
         try {
@@ -178,6 +222,9 @@ public class ConfigurationManager extends LocalizedComponent {
             this.validateEncoding(this.getEncoding());
             this.validateRootPath(this.getRootPath());
             this.validateUserName(this.getUserName());
+            this.validateSiteUrl(this.getSiteUrl());
+            this.validatePublishLocations(this.getPublishLocations());
+            this.validateAttachmentLinks(this.getAttachmentLinks());
             return true;
         } else {
             return false;
@@ -233,6 +280,56 @@ public class ConfigurationManager extends LocalizedComponent {
         this.userName = userName;
     }
 
+    /**
+     * <p>Return the public URL (always terminated by a slash) where the
+     * exported content is published, or <b>null</b> if unknown.</p> 
+     */
+    public String getSiteUrl() {
+        return this.siteUrl;
+    }
+
+    /**
+     * <p>Set the public URL where the exported content is published in the
+     * configuration.</p> 
+     */
+    public void setSiteUrl(String siteUrl) {
+        this.siteUrl = siteUrl;
+    }
+
+    /**
+     * <p>Return the space-separated list of WebDAV collection URLs (always
+     * terminated by a slash) where exported content is published, or
+     * <b>null</b> if content is only exported to the local disk.</p> 
+     */
+    public String getPublishLocations() {
+        return this.publishLocations;
+    }
+
+    /**
+     * <p>Set the space-separated list of WebDAV collection URLs where
+     * exported content is published in the configuration.</p> 
+     */
+    public void setPublishLocations(String publishLocations) {
+        this.publishLocations = publishLocations;
+    }
+
+    /**
+     * <p>Return how exported attachments are linked to the single copy kept
+     * for each distinct content, either {@link #LINKS_HARD} or
+     * {@link #LINKS_SYMBOLIC}, or directly to Confluence's attachment storage
+     * ({@link #LINKS_STORAGE}), or <b>null</b> if attachments are copied.</p> 
+     */
+    public String getAttachmentLinks() {
+        return this.attachmentLinks;
+    }
+
+    /**
+     * <p>Set how exported attachments are linked in the configuration.</p> 
+     */
+    public void setAttachmentLinks(String attachmentLinks) {
+        this.attachmentLinks = attachmentLinks;
+    }
+
     /**
      * <p>Return the extension used for the auto-exported files.</p>
      * 
@@ -337,6 +434,93 @@ public class ConfigurationManager extends LocalizedComponent {
         }
     }
 
+    /**
+     * <p>Validate the specified {@link String} as the public URL where the
+     * exported content is published.</p> 
+     */
+    public String validateSiteUrl(String siteUrl)
+    throws LocalizedException {
+
+        /* The site URL can be null when the site is not published */
+        if ("".equals(siteUrl)) siteUrl = null;
+        if (siteUrl == null) return null;
+
+        /* Only absolute HTTP locations make sense for a published site */
+        final Location location;
+        try {
+            location = Location.parse(siteUrl);
+        } catch (RuntimeException exception) {
+            throw new LocalizedException(this, "siteUrl.invalid", siteUrl, exception);
+        }
+        if ((location == null) || (! location.isAbsolute()) ||
+            (location.getAuthority() == null) ||
+            (! ("http".equals(location.getScheme()) ||
+                "https".equals(location.getScheme()))))
+            throw new LocalizedException(this, "siteUrl.invalid", siteUrl);
+
+        /* Make sure that relative paths can be simply appended */
+        final String normalized = location.toString();
+        return normalized.endsWith("/") ? normalized : normalized + "/";
+    }
+
+    /**
+     * <p>Validate the specified {@link String} as a whitespace-separated list
+     * of WebDAV collection URLs (or <code>s3</code> bucket URLs, specifying
+     * access and secret keys) where exported content is published.</p> 
+     */
+    public String validatePublishLocations(String publishLocations)
+    throws LocalizedException {
+
+        /* No locations simply mean that we don't publish anywhere */
+        if (publishLocations == null) return null;
+        final StringTokenizer tokenizer = new StringTokenizer(publishLocations);
+        final StringBuffer buffer = new StringBuffer();
+        while (tokenizer.hasMoreTokens()) {
+            final String token = tokenizer.nextToken();
+            final Location location;
+            try {
+                location = Location.parse(token);
+            } catch (RuntimeException exception) {
+                throw new LocalizedException(this, "publishLocations.invalid", token, exception);
+            }
+            if ((location == null) || (! location.isAbsolute()) ||
+                (location.getAuthority() == null) ||
+                (! ("http".equals(location.getScheme()) ||
+                    "https".equals(location.getScheme()) ||
+                    "s3".equals(location.getScheme()))))
+                throw new LocalizedException(this, "publishLocations.invalid", token);
+
+            /* Buckets need credentials, and at least the bucket name */
+            if ("s3".equals(location.getScheme()) &&
+                ((location.getAuthority().getPass() == null) ||
+                 (location.getPath().toString().length() < 2)))
+                throw new LocalizedException(this, "publishLocations.s3", token);
+
+            /* Collections are always terminated by a slash (before any query) */
+            final String normalized = location.toString();
+            final int query = normalized.indexOf('?');
+            final String path = query < 0 ? normalized : normalized.substring(0, query);
+            if (buffer.length() > 0) buffer.append(' ');
+            buffer.append(path);
+            if (! path.endsWith("/")) buffer.append('/');
+            if (query >= 0) buffer.append(normalized.substring(query));
+        }
+        return buffer.length() == 0 ? null : buffer.toString();
+    }
+
+    /**
+     * <p>Validate the specified {@link String} as the way attachments are
+     * linked, normalizing empty values to <b>null</b>.</p> 
+     */
+    public String validateAttachmentLinks(String attachmentLinks)
+    throws LocalizedException {
+        if ((attachmentLinks == null) || "".equals(attachmentLinks)) return null;
+        if (LINKS_HARD.equals(attachmentLinks)) return attachmentLinks;
+        if (LINKS_SYMBOLIC.equals(attachmentLinks)) return attachmentLinks;
+        if (LINKS_STORAGE.equals(attachmentLinks)) return attachmentLinks;
+        throw new LocalizedException(this, "attachmentLinks.invalid", attachmentLinks);
+    }
+
     /**
      * <p>Validate the specified {@link String} as the space representing the
      * home page of the exported site.</p> 
@@ -42,30 +42,56 @@ import com.atlassian.confluence.spaces.Space;
 import com.atlassian.confluence.spaces.SpaceManager;
 import com.atlassian.confluence.util.ConfluenceRenderUtils;
 import com.atlassian.confluence.util.GeneralUtil;
-import com.atlassian.core.util.FileUtils;
 import com.atlassian.plugin.PluginAccessor;
 import com.atlassian.renderer.WikiStyleRenderer;
 import com.atlassian.spring.container.ContainerManager;
 import com.opensymphony.util.TextUtils;
 import com.opensymphony.xwork.ActionContext;
+import it.could.confluence.autoexport.engine.ArchiveSink;
+import it.could.confluence.autoexport.engine.BlobStore;
 import it.could.confluence.autoexport.engine.ExportBeautifier;
+import it.could.confluence.autoexport.engine.ExportSink;
 import it.could.confluence.autoexport.engine.ExportUtils;
 import it.could.confluence.autoexport.engine.Notifiable;
+import it.could.confluence.autoexport.engine.PageView;
+import it.could.confluence.autoexport.engine.RenderCache;
 import it.could.confluence.localization.LocalizedComponent;
+import it.could.util.StreamTools;
+import it.could.util.StringTools;
+import it.could.util.encoding.EncodingTools;
+import it.could.util.encoding.URICharacters;
 import org.apache.velocity.Template;
 import org.apache.velocity.VelocityContext;
 import org.apache.velocity.exception.MethodInvocationException;
 
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStreamWriter;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.io.StringWriter;
-import java.text.SimpleDateFormat;
+import java.security.MessageDigest;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.ImageIO;
 
 /**
  * <p>The {@link ExportManager} class represents the core object exporting
@@ -76,6 +102,20 @@ public class ExportManager extends LocalizedComponent {
     /** <p>The key for the request in the current {@link ActionContext}.</p> */ 
     private static final String AC_REQUEST_KEY =
                         "com.opensymphony.xwork.dispatcher.HttpServletRequest";
+    /** <p>The directory in Confluence's home where attachments are stored.</p> */
+    private static final String ATTACHMENTS_DIR = "attachments" + File.separatorChar;
+    /** <p>The number of threads generating and exporting thumbnails.</p> */
+    private static final int THUMBNAIL_THREADS = 2;
+    /** <p>The maximum number of thumbnails waiting to be exported.</p> */
+    private static final int MAX_THUMBNAILS = 1000;
+    /** <p>The directory in Confluence's home where rendered pages spill.</p> */
+    private static final String RENDER_CACHE_DIR = "temp" + File.separatorChar + "autoexport-render";
+    /** <p>The maximum number of rendered characters kept in memory.</p> */
+    private static final long RENDER_CACHE_MEMORY = 4L * 1024 * 1024;
+    /** <p>The maximum number of rendered bytes spilled to disk.</p> */
+    private static final long RENDER_CACHE_SPILL = 64L * 1024 * 1024;
+    /** <p>The time after which rendered pages are rendered again.</p> */
+    private static final long RENDER_CACHE_AGE = 15L * 60 * 1000;
 
     /** <p>The {@link TemplatesManager} used by this instance.</p> */
     private final TemplatesManager templatesManager;
@@ -93,6 +133,28 @@ public class ExportManager extends LocalizedComponent {
     private final WikiStyleRenderer wikiStyleRenderer;
     /** <p>The {@link PluginAccessor} gathering plugin details.</p> */
     private final PluginAccessor pluginAccessor;
+    /** <p>The {@link SitemapManager} tracking exported pages.</p> */
+    private final SitemapManager sitemapManager;
+    /** <p>The {@link SearchIndexManager} indexing exported pages.</p> */
+    private final SearchIndexManager searchIndexManager;
+    /** <p>The {@link PublishManager} publishing the export root.</p> */
+    private final PublishManager publishManager;
+    /** <p>The default {@link ExportSink} writing to the export root.</p> */
+    private final ExportSink sink;
+    /** <p>The {@link ThreadPoolExecutor} exporting thumbnails.</p> */
+    private final ThreadPoolExecutor executor;
+    /** <p>The {@link Set} of thumbnails scheduled for export.</p> */
+    private final Set thumbnails = new HashSet();
+    /** <p>The {@link RenderCache} of rendered pages, created lazily.</p> */
+    private RenderCache renderCache = null;
+    /** <p>The {@link Map} memoizing links and breadcrumbs during a run.</p> */
+    private final Map memo = new ConcurrentHashMap();
+    /** <p>The {@link VelocityContext} shared by all pages, created lazily.</p> */
+    private VelocityContext siteContext = null;
+    /** <p>The configuration revision the site context was created for.</p> */
+    private int siteRevision = 0;
+    /** <p>Whether parsed templates can use a {@link PageView} as action.</p> */
+    private final Map pageViews = new WeakHashMap();
 
     /** <p>Create a new {@link ExportManager} instance.</p> */
     public ExportManager(TemplatesManager templatesManager,
@@ -102,7 +164,10 @@ public class ExportManager extends LocalizedComponent {
                   PageManager pageManager,
                   ThumbnailManager thumbnailManager,
                   WikiStyleRenderer wikiStyleRenderer,
-                  PluginAccessor pluginAccessor) {
+                  PluginAccessor pluginAccessor,
+                  SitemapManager sitemapManager,
+                  SearchIndexManager searchIndexManager,
+                  PublishManager publishManager) {
 
         this.templatesManager = templatesManager;
         this.locationManager = locationManager;
@@ -112,6 +177,23 @@ public class ExportManager extends LocalizedComponent {
         this.thumbnailManager = thumbnailManager;
         this.wikiStyleRenderer = wikiStyleRenderer;
         this.pluginAccessor = pluginAccessor;
+        this.sitemapManager = sitemapManager;
+        this.searchIndexManager = searchIndexManager;
+        this.publishManager = publishManager;
+        this.sink = new FileExportSink(configurationManager, locationManager,
+                                       publishManager);
+
+        /* When too many thumbnails are queued, the exporting thread helps */
+        this.executor = new ThreadPoolExecutor(THUMBNAIL_THREADS, THUMBNAIL_THREADS,
+                                    0, TimeUnit.MILLISECONDS,
+                                    new LinkedBlockingQueue(MAX_THUMBNAILS),
+                                    new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                final Thread thread = new Thread(runnable, "AutoExport Thumbnails");
+                thread.setDaemon(true);
+                return thread;
+            }
+        }, new ThreadPoolExecutor.CallerRunsPolicy());
 
         this.log.info("Instance created");
 
@@ -123,14 +205,24 @@ public class ExportManager extends LocalizedComponent {
 
     /**
      * <p>Export all the content from all specified spaces.</p>
+     * 
+     * <p>When pages are exported (rebuilding the spaces), the sink is
+     * {@link ExportSink#sweep() swept} afterwards, removing attachments and
+     * stylesheets no longer linked from anywhere in the export root, and
+     * the export root is {@link PublishManager#mirror() mirrored} to all
+     * publishing locations.</p>
      */
     public void export(String spaceKeys[],
                        Notifiable notifiable,
                        boolean exportPages) {
         if (spaceKeys == null) return;
+        this.resetSiteContext();
         for (int x = 0; x < spaceKeys.length; x ++) {
             this.export(spaceKeys[x], notifiable, exportPages);
         }
+        if (! exportPages) return;
+        this.sink.sweep();
+        this.publishManager.mirror();
     }
 
     /**
@@ -150,6 +242,20 @@ public class ExportManager extends LocalizedComponent {
     public void export(Space space,
                        Notifiable notifiable,
                        boolean exportPages) {
+        this.export(space, notifiable, exportPages, this.sink);
+    }
+
+    /**
+     * <p>Export all the content from the specified space to the specified
+     * {@link ExportSink}.</p>
+     * 
+     * <p>Committing the sink is left to the caller, and sitemaps and search
+     * indexes are only updated when exporting to the export root.</p>
+     */
+    public void export(Space space,
+                       Notifiable notifiable,
+                       boolean exportPages,
+                       ExportSink sink) {
 
         /* If the user does not have permission to export the space, do nothing */
         if (space == null) return;
@@ -158,38 +264,23 @@ public class ExportManager extends LocalizedComponent {
             return;
         }
 
-        /* Start exporting the space: pages resources and all */
+        /* Start exporting the space: resources (linked by pages) first */
         this.debug("msg.exporting-space", space, null, null);
+        this.exportStylesheet(space, notifiable, sink);
 
         if (exportPages) {
             final List pagesList = this.pageManager.getPages(space, true);
             final Iterator pages = pagesList.iterator();
             while (pages.hasNext()) {
-                this.export((Page) pages.next(), notifiable);
+                this.export((Page) pages.next(), notifiable, sink);
             }
             final List postsList = this.pageManager.getBlogPosts(space, true);
             final Iterator posts = postsList.iterator();
             while (posts.hasNext()) {
-                this.export((BlogPost) posts.next(), notifiable);
+                this.export((BlogPost) posts.next(), notifiable, sink);
             }
         }
 
-        /* Export the resources associated with the space */
-        final String styleData = ConfluenceRenderUtils.renderSpaceStylesheet(space);
-        final File styleFile = this.locationManager.getFile(space, "space.css");
-        try {
-            final File resourcesDir = styleFile.getParentFile();
-            if (! resourcesDir.isDirectory()) resourcesDir.mkdirs();
-            FileOutputStream stream = new FileOutputStream(styleFile);
-            OutputStreamWriter writer = new OutputStreamWriter(stream, "UTF-8");
-            writer.write(styleData);
-            writer.flush();
-            stream.flush();
-            writer.close();
-            stream.close();
-        } catch (IOException exception) {
-            this.error(notifiable, exception, "err.stylesheet", space, null, styleFile);
-        }
 
         this.message(notifiable, "msg.exported-space", space, null, null);
     }
@@ -198,6 +289,20 @@ public class ExportManager extends LocalizedComponent {
      * <p>Export the specified page.</p>
      */
     public void export(AbstractPage page, Notifiable notifiable) {
+        this.export(page, notifiable, this.sink);
+    }
+
+    /**
+     * <p>Export the specified page to the specified {@link ExportSink}.</p>
+     * 
+     * <p>Committing the sink is left to the caller, and sitemaps and search
+     * indexes are only updated when exporting to the export root.</p>
+     * 
+     * <p>Thumbnails of attachments are generated and written in background
+     * after this method returns, on a bounded number of threads.</p>
+     */
+    public void export(AbstractPage page, Notifiable notifiable,
+                       ExportSink sink) {
         /* If the user does not have permission to export the page, do nothing */
         if (page == null) return;
         if (! this.locationManager.exportable(page)) {
@@ -208,30 +313,24 @@ public class ExportManager extends LocalizedComponent {
         this.debug("msg.exporting-page", null, page, null);
 
         try {
-            final VelocityContext context = new VelocityContext();
+            final VelocityContext site = this.getSiteContext();
+            final VelocityContext context = new VelocityContext(site);
             final Template template = this.templatesManager.getTemplate(page.getSpaceKey());
-            final String body = this.wikiStyleRenderer.convertWikiToXHtml(page.toPageContext(), page.getContent());
-            final String styleUri = this.locationManager.getLocation(page.getSpace(), "space.css").toString();
-            final String confluenceUrl = this.configurationManager.getConfluenceUrl();
-            final ViewPageAction action = new ViewPageAction();
-            ContainerManager.autowireComponent(action);
-            action.setPage(page);
-
-            context.put("generalUtil", new GeneralUtil());
-            context.put("webwork", new TextUtils());
-            context.put("autoexport", new ExportUtils(this.configurationManager,
-                                                      this.wikiStyleRenderer,
-                                                      this.pluginAccessor));
-            context.put("pageManager", this.pageManager);
-            context.put("confluenceUri", confluenceUrl);
+            final ExportUtils autoexport = (ExportUtils) site.get("autoexport");
+            final String body = autoexport.render(page);
+            final Space space = page.getSpace();
+            if (this.locationManager.getStylesheet(space.getKey()) == null) {
+                this.exportStylesheet(space, notifiable, sink);
+            }
+            final String styleUri = this.locationManager.getLocation(space, LocationManager.STYLESHEET).toString();
+            final Object action = this.createAction(template, page);
+
             context.put("stylesheet", styleUri);
-            context.put("action", action);
+            context.put(PageView.NAME, action);
             context.put("page", page);
             context.put("body", body);
             context.put("req", ActionContext.getContext().get(AC_REQUEST_KEY));
-            final File pageFile = this.locationManager.getFile(page);
-            final File spaceDir = pageFile.getParentFile();
-            if (! spaceDir.isDirectory()) spaceDir.mkdirs();
+            final String pagePath = this.locationManager.getPath(page);
             try {
                 final StringWriter writer = new StringWriter();
                 template.merge(context, writer);
@@ -241,7 +340,17 @@ public class ExportManager extends LocalizedComponent {
                                         this.configurationManager,
                                         this.pageManager, this.spaceManager,
                                         this.locationManager);
-                beautifier.beautify(writer.toString(), pageFile);
+                final OutputStream output = sink.open(pagePath);
+                try {
+                    beautifier.beautify(writer.toString(), output);
+                    output.close();
+                } finally {
+                    sink.discard(output);
+                }
+                if (sink == this.sink) {
+                    this.sitemapManager.update(page);
+                    this.searchIndexManager.update(page, body);
+                }
             } catch (MethodInvocationException exception) {
                 Throwable throwable = exception.getWrappedThrowable();
                 if (throwable != null)
@@ -252,45 +361,47 @@ public class ExportManager extends LocalizedComponent {
                 this.error(notifiable, exception, "err.exporting-page", null, page, null);
             }
             final Iterator iterator = page.getAttachments().iterator();
+            final boolean linkStorage = ConfigurationManager.LINKS_STORAGE.equals(
+                                   this.configurationManager.getAttachmentLinks());
 
             while (iterator.hasNext()) {
                 final Attachment attachment = (Attachment) iterator.next();
 
-                final File aFile = this.locationManager.getFile(attachment, false);
-
-                final File aDir = aFile.getParentFile();
-                if (! aDir.isDirectory()) aDir.mkdirs();
+                final String aName = attachment.getFileName();
+                final String aPath = this.locationManager.getPath(attachment, false);
+                final File aStored = this.getStorageFile(attachment);
+                final File aFile = linkStorage ? aStored : null;
+                final Date aDate = attachment.getLastModificationDate();
+                final long aModified = aFile != null ? aFile.lastModified() :
+                                       aDate == null ? Long.MAX_VALUE : aDate.getTime();
 
-                try {
-                    final InputStream aInput = attachment.getContentsAsStream();
-                    FileUtils.copyFile(aInput, aFile, true);
-                    aInput.close();
-                    this.debug("msg.exported-attachment", null, page, aFile.getName());
+                /*
+                 * Attachments already exported since they changed are skipped,
+                 * and so are older copies with the same content (stored blobs
+                 * keep the time they were first written, whatever links them)
+                 */
+                if ((sink.length(aPath) != attachment.getFileSize())
+                    || ((sink.lastModified(aPath) < aModified)
+                        && (! unchanged(sink, aPath, attachment, aFile)))) try {
+                    if (aFile != null) sink.write(aPath, aFile);
+                    else copy(attachment.getContentsAsStream(), sink, aPath);
+                    this.debug("msg.exported-attachment", null, page, aName);
 
                 } catch (IOException exception) {
                     this.error(notifiable, exception, "err.exporting-attachment",
-                               null, page, aFile.getName());
+                               null, page, aName);
                 }
 
-                /* We need to verify if the thumbnail exists or not */
-                if (! this.thumbnailManager.isThumbnailable(attachment)) continue;
-
-                /* This will create the thumbnail on disk, if it doesn't exist */
-                this.thumbnailManager.getThumbnail(attachment);
-
-                /* Now export the thumbnail normally */
-                final File sFile = this.thumbnailManager.getThumbnailFile(attachment);
-                if (sFile.exists()) try {
-                    final File tFile = this.locationManager.getFile(attachment, true);
-                    final File tDir = tFile.getParentFile();
-                    if (! tDir.isDirectory()) tDir.mkdirs();
-                    if (tFile.exists()) tFile.delete();
-                    FileUtils.copyFile(sFile, tFile);
-                    this.debug("msg.exported-thumbnail", null, page, tFile.getName());
-
-                } catch (IOException exception) {
-                    this.error(notifiable, exception, "err.exporting-thumbnail",
-                               null, page, aFile.getName());
+                /* Thumbnails are generated and exported in background */
+                if (this.thumbnailManager.isThumbnailable(attachment)) {
+                    final Object params[] = this.getParams(null, page, aName);
+                    try {
+                        this.schedule(new Thumbnail(attachment, aStored, aModified,
+                                                    sink, notifiable, params),
+                                      attachment);
+                    } catch (IOException exception) {
+                        this.error(notifiable, exception, "err.exporting-thumbnail", params);
+                    }
                 }
             }
 
@@ -301,6 +412,579 @@ public class ExportManager extends LocalizedComponent {
         this.message(notifiable, "msg.exported-page", null, page, null);
     }
 
+    /**
+     * <p>Remove the exported copy of a page (or blog post, if the posting date
+     * is not <b>null</b>) which might not exist in Confluence anymore,
+     * alongside with all its attachments and thumbnails.</p>
+     */
+    public void remove(String spaceKey, String pageTitle, Date postingDate,
+                       long id, Notifiable notifiable) {
+        if ((spaceKey == null) || (pageTitle == null)) return;
+
+        final String path = this.locationManager.getRelativeLocation(spaceKey,
+                                          pageTitle, postingDate, id).toString();
+        final String dataPath = this.locationManager.getDataPath(spaceKey,
+                                          pageTitle, postingDate, id);
+
+        this.locationManager.invalidate(id);
+
+        final Object params[] = new Object[] { pageTitle, spaceKey, path };
+        final String message = this.localizeMessage("msg.removing-page", params);
+        if (notifiable != null) notifiable.notify(message);
+        this.log.info(message);
+
+        try {
+            this.sink.delete(path);
+            this.sink.delete(dataPath);
+        } catch (IOException exception) {
+            this.log.warn(message, exception);
+        }
+
+        this.sitemapManager.remove(spaceKey, path);
+        this.searchIndexManager.remove(spaceKey, path);
+    }
+
+    /**
+     * <p>Remove the exported copy of a page which was renamed (or moved to
+     * another space), after relocating its attachments and thumbnails to
+     * where they will be exported for the specified {@link AbstractPage},
+     * locally and on all publishing locations.</p>
+     * 
+     * <p>Relocating the attachments avoids transferring them again when the
+     * page is exported with its new title.</p>
+     */
+    public void move(String spaceKey, String pageTitle, long id,
+                     AbstractPage page, Notifiable notifiable) {
+        if ((spaceKey == null) || (pageTitle == null) || (page == null)) return;
+
+        final String source = this.locationManager.getDataPath(spaceKey,
+                                          pageTitle, null, id);
+        final String target = this.locationManager.getDataPath(
+                                          page.getSpaceKey(), page.getTitle(),
+                                          null, page.getId());
+        try {
+            this.sink.move(source, target);
+        } catch (IOException exception) {
+            this.log.warn("Unable to move " + source + " to " + target, exception);
+        }
+
+        this.remove(spaceKey, pageTitle, null, id, notifiable);
+    }
+
+    /**
+     * <p>Export the stylesheet of the specified space.</p>
+     * 
+     * <p>Stylesheets are stored under a name derived from the digest of their
+     * contents, so that identical ones are stored (and cached by browsers)
+     * only once, and rewritten only when they change (or were truncated).
+     * Replaced stylesheets are deleted when the {@link ExportSink#sweep()
+     * sink is swept}, once no exported page links to them anymore.</p>
+     */
+    private void exportStylesheet(Space space, Notifiable notifiable,
+                                  ExportSink sink) {
+        String stylePath = null;
+        try {
+            final String styleData = ConfluenceRenderUtils.renderSpaceStylesheet(space);
+            final byte bytes[] = styleData.getBytes("UTF-8");
+            final String digest = StringTools.toHex(BlobStore.digest().digest(bytes));
+            stylePath = this.locationManager.getStylesheetPath(digest);
+
+            if (sink.length(stylePath) != bytes.length) {
+                final OutputStream stream = sink.open(stylePath);
+                try {
+                    stream.write(bytes);
+                    stream.close();
+                } finally {
+                    sink.discard(stream);
+                }
+            }
+            this.locationManager.setStylesheet(space.getKey(), digest);
+        } catch (IOException exception) {
+            this.error(notifiable, exception, "err.stylesheet", space, null, stylePath);
+        }
+    }
+
+    /**
+     * <p>Create the object exposed as <code>$action</code> when merging the
+     * specified {@link Template} for the specified page.</p>
+     * 
+     * <p>A lightweight {@link PageView} is used unless the template needs
+     * something only an autowired {@link ViewPageAction} provides.</p>
+     */
+    private Object createAction(Template template, AbstractPage page) {
+        Boolean supported;
+        synchronized (this.pageViews) {
+            supported = (Boolean) this.pageViews.get(template);
+            if (supported == null) {
+                supported = Boolean.valueOf(PageView.supports(template));
+                this.pageViews.put(template, supported);
+                if (! supported.booleanValue()) this.log.debug("Template "
+                        + template.getName() + " requires a full action");
+            }
+        }
+        if (supported.booleanValue()) return new PageView(page);
+
+        final ViewPageAction action = new ViewPageAction();
+        ContainerManager.autowireComponent(action);
+        action.setPage(page);
+        return action;
+    }
+
+    /**
+     * <p>Return the {@link VelocityContext} holding the values shared by all
+     * exported pages, to be used as the parent of each page's context.</p>
+     * 
+     * <p>The context is created again (and links memoized for the previous
+     * one forgotten) at the beginning of each export run, and when the
+     * configuration changes.</p>
+     */
+    private synchronized VelocityContext getSiteContext() {
+        final int revision = this.configurationManager.getRevision();
+        if ((this.siteContext != null) && (this.siteRevision == revision)) {
+            return this.siteContext;
+        }
+
+        this.memo.clear();
+        final RenderCache cache = this.getRenderCache();
+        if (this.siteContext != null) cache.clear();
+
+        final VelocityContext context = new VelocityContext();
+        context.put("generalUtil", new GeneralUtil());
+        context.put("webwork", new TextUtils());
+        context.put("autoexport", new ExportUtils(this.configurationManager,
+                                                  this.wikiStyleRenderer,
+                                                  this.pluginAccessor,
+                                                  cache, this.memo));
+        context.put("pageManager", this.pageManager);
+        context.put("confluenceUri", this.configurationManager.getConfluenceUrl());
+        this.siteContext = context;
+        this.siteRevision = revision;
+        return context;
+    }
+
+    /**
+     * <p>Forget the {@link VelocityContext} shared by all exported pages at
+     * the beginning of an export run, along with all memoized links and all
+     * rendered pages, whose macros might produce different content now.</p>
+     */
+    private synchronized void resetSiteContext() {
+        this.siteContext = null;
+        this.memo.clear();
+        if (this.renderCache != null) this.renderCache.clear();
+    }
+
+    /**
+     * <p>Return the {@link RenderCache} shared by all exports, spilling
+     * under Confluence's home directory when this is known.</p>
+     */
+    private synchronized RenderCache getRenderCache() {
+        if (this.renderCache != null) return this.renderCache;
+        final String home = this.configurationManager.getConfluenceHome();
+        final File directory = home == null ? null : new File(home, RENDER_CACHE_DIR);
+        this.renderCache = new RenderCache(RENDER_CACHE_MEMORY, directory,
+                                           RENDER_CACHE_SPILL, RENDER_CACHE_AGE);
+        return this.renderCache;
+    }
+
+    /**
+     * <p>Return the {@link File} where Confluence stores the current version
+     * of the specified attachment, if it can be found, or <b>null</b>.</p>
+     * 
+     * <p>Exported attachments are only linked to it when configured to
+     * {@link ConfigurationManager#LINKS_STORAGE do so}, but thumbnails are
+     * always generated reading it.</p>
+     */
+    private File getStorageFile(Attachment attachment) {
+        final String home = this.configurationManager.getConfluenceHome();
+        if ((home == null) || (attachment.getContent() == null)) return null;
+
+        /* Confluence's file system layout: "content/attachment/version" */
+        final StringBuffer buffer = new StringBuffer(ATTACHMENTS_DIR);
+        buffer.append(attachment.getContent().getId()).append(File.separatorChar);
+        buffer.append(attachment.getId()).append(File.separatorChar);
+        buffer.append(attachment.getAttachmentVersion());
+        final File file = new File(home, buffer.toString());
+
+        /* Attachments stored in the database (or elsewhere) are copied */
+        if (file.isFile() && (file.length() == attachment.getFileSize())) return file;
+        this.log.debug("Attachment storage " + file + " not found");
+        return null;
+    }
+
+    /**
+     * <p>Check whether the content exported at the specified path of an
+     * {@link ExportSink} is the same as the one of an {@link Attachment}
+     * (read from its storage {@link File}, if known).</p>
+     */
+    private static boolean unchanged(ExportSink sink, String path,
+                                     Attachment attachment, File file) {
+        final byte exported[] = sink.digest(path);
+        if (exported == null) return false;
+        try {
+            final InputStream input = file != null ? new FileInputStream(file) :
+                                      attachment.getContentsAsStream();
+            if (input == null) return false;
+            return MessageDigest.isEqual(exported, BlobStore.digest(input));
+        } catch (IOException exception) {
+            return false;
+        }
+    }
+
+    /**
+     * <p>Copy the specified {@link InputStream} to the specified path of an
+     * {@link ExportSink}, closing the input and discarding whatever was
+     * written if the copy fails.</p>
+     */
+    private static void copy(InputStream input, ExportSink sink, String path)
+    throws IOException {
+        OutputStream output = null;
+        try {
+            output = sink.open(path);
+            final byte buffer[] = new byte[65536];
+            int read = -1;
+            while ((read = input.read(buffer)) >= 0) {
+                output.write(buffer, 0, read);
+            }
+            output.close();
+        } finally {
+            try {
+                input.close();
+            } finally {
+                if (output != null) sink.discard(output);
+            }
+        }
+    }
+
+    /* ====================================================================== */
+    /* THUMBNAIL METHODS                                                      */
+    /* ====================================================================== */
+
+    /**
+     * <p>Schedule the export of a {@link Thumbnail}, unless the same one is
+     * already being exported to the same {@link ExportSink}.</p>
+     * 
+     * <p>Only once scheduled, and only when the thumbnail has to be generated
+     * from an attachment not stored in a file, its content is spooled to a
+     * temporary file, as it can only be read in the exporting thread.</p>
+     * 
+     * @throws IOException if the content of the attachment could not be read.
+     */
+    private void schedule(Thumbnail thumbnail, Attachment attachment)
+    throws IOException {
+        synchronized (this.thumbnails) {
+            if (this.thumbnails.contains(thumbnail)) return;
+            this.thumbnails.add(thumbnail);
+        }
+        boolean scheduled = false;
+        try {
+            thumbnail.spool(attachment);
+            this.executor.execute(thumbnail);
+            scheduled = true;
+        } finally {
+            if (! scheduled) thumbnail.done();
+        }
+    }
+
+    /**
+     * <p>Wait until all thumbnails scheduled for export to the specified
+     * {@link ExportSink} are written.</p>
+     */
+    private void await(ExportSink sink)
+    throws InterruptedIOException {
+        synchronized (this.thumbnails) {
+            while (true) {
+                boolean pending = false;
+                final Iterator iterator = this.thumbnails.iterator();
+                while (iterator.hasNext() && (! pending)) {
+                    pending = ((Thumbnail) iterator.next()).sink == sink;
+                }
+                if (! pending) return;
+                try {
+                    this.thumbnails.wait();
+                } catch (InterruptedException exception) {
+                    throw new InterruptedIOException("Interrupted waiting for thumbnails");
+                }
+            }
+        }
+    }
+
+    /**
+     * <p>Scale the image read from the specified {@link File} to fit the
+     * specified size, writing it as a JPEG image (transparent areas are
+     * rendered white) to a new temporary {@link File}.</p>
+     * 
+     * @return the temporary {@link File} holding the thumbnail.
+     * @throws IOException if the image could not be read or written.
+     */
+    private static File scale(File source, int maxWidth, int maxHeight)
+    throws IOException {
+        final BufferedImage image = ImageIO.read(source);
+        if (image == null) throw new IOException("Unsupported image " + source);
+
+        final double ratio = Math.min(1.0, Math.min(
+                             (double) maxWidth / image.getWidth(),
+                             (double) maxHeight / image.getHeight()));
+        final int width = Math.max(1, (int) Math.round(image.getWidth() * ratio));
+        final int height = Math.max(1, (int) Math.round(image.getHeight() * ratio));
+
+        final BufferedImage thumbnail = new BufferedImage(width, height,
+                                                          BufferedImage.TYPE_INT_RGB);
+        final Graphics2D graphics = thumbnail.createGraphics();
+        try {
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+                                      RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            graphics.drawImage(image, 0, 0, width, height, Color.WHITE, null);
+        } finally {
+            graphics.dispose();
+        }
+
+        final File file = File.createTempFile("autoexport-", ".tmp");
+        try {
+            if (ImageIO.write(thumbnail, "jpeg", file)) return file;
+            throw new IOException("Unable to write thumbnail of " + source);
+        } catch (IOException exception) {
+            file.delete();
+            throw exception;
+        }
+    }
+
+    /**
+     * <p>The export of the thumbnail of a specific version of an
+     * {@link Attachment} to an {@link ExportSink}.</p>
+     * 
+     * <p>Only plain values are handed to the background thread, and no I/O
+     * happens when the instance is created: thumbnails already generated by
+     * Confluence are simply copied, while missing or outdated ones are
+     * generated from the file storing the attachment (or a temporary copy of
+     * its content, {@link #spool(Attachment) spooled} when scheduled).</p>
+     */
+    private final class Thumbnail implements Runnable {
+
+        /** <p>The id of the {@link Attachment}.</p> */
+        private final long id;
+        /** <p>The version of the {@link Attachment}.</p> */
+        private final int version;
+        /** <p>The path where the thumbnail will be written.</p> */
+        private final String path;
+        /** <p>The last modification time of the {@link Attachment}.</p> */
+        private final long modified;
+        /** <p>The thumbnail generated by Confluence, if any.</p> */
+        private final File generated;
+        /** <p>The {@link File} storing the attachment, if any.</p> */
+        private final File source;
+        /** <p>The maximum width of generated thumbnails.</p> */
+        private final int maxWidth;
+        /** <p>The maximum height of generated thumbnails.</p> */
+        private final int maxHeight;
+        /** <p>The {@link ExportSink} where the thumbnail will be written.</p> */
+        private final ExportSink sink;
+        /** <p>The {@link Notifiable} receiving errors.</p> */
+        private final Notifiable notifiable;
+        /** <p>The parameters of notification messages.</p> */
+        private final Object params[];
+        /** <p>The temporary copy of the attachment's content, if any.</p> */
+        private File spooled = null;
+
+        private Thumbnail(Attachment attachment, File source, long modified,
+                          ExportSink sink, Notifiable notifiable, Object params[]) {
+            final ThumbnailManager manager = ExportManager.this.thumbnailManager;
+            this.id = attachment.getId();
+            this.version = attachment.getAttachmentVersion();
+            this.path = ExportManager.this.locationManager.getPath(attachment, true);
+            this.modified = modified;
+            this.generated = manager.getThumbnailFile(attachment);
+            this.source = source;
+            this.sink = sink;
+            this.notifiable = notifiable;
+            this.params = params;
+            this.maxWidth = manager.getMaxWidth();
+            this.maxHeight = manager.getMaxHeight();
+        }
+
+        /**
+         * <p>Check whether Confluence's own thumbnail is up to date.</p>
+         */
+        private boolean isGenerated() {
+            return (this.generated != null) && this.generated.isFile()
+                   && (this.generated.lastModified() >= this.modified);
+        }
+
+        /**
+         * <p>Copy the content of the specified {@link Attachment} to a
+         * temporary file, if it is not stored in one and the thumbnail has
+         * to be generated again.</p>
+         */
+        private void spool(Attachment attachment)
+        throws IOException {
+            if ((this.source != null) || this.isGenerated()) return;
+            if (this.sink.lastModified(this.path) >= this.modified) return;
+
+            final InputStream input = attachment.getContentsAsStream();
+            if (input == null) return;
+            final File file = File.createTempFile("autoexport-", ".tmp");
+            OutputStream output = null;
+            try {
+                output = new FileOutputStream(file);
+                StreamTools.copy(input, output, false);
+                output.close();
+                this.spooled = file;
+            } finally {
+                input.close();
+                if (this.spooled == null) {
+                    if (output != null) output.close();
+                    file.delete();
+                }
+            }
+        }
+
+        /**
+         * <p>Delete the temporary copy of the attachment, if any, and remove
+         * this instance from the scheduled ones.</p>
+         */
+        private void done() {
+            if (this.spooled != null) this.spooled.delete();
+            synchronized (ExportManager.this.thumbnails) {
+                ExportManager.this.thumbnails.remove(this);
+                ExportManager.this.thumbnails.notifyAll();
+            }
+        }
+
+        public void run() {
+            try {
+                if (this.isGenerated()) {
+                    /* Copy Confluence's own thumbnail, if changed */
+                    if ((this.sink.length(this.path) == this.generated.length())
+                        && (this.sink.lastModified(this.path) >= this.generated.lastModified()))
+                        return;
+                    copy(new FileInputStream(this.generated), this.sink, this.path);
+
+                } else {
+                    /* Generate the thumbnail, unless exported since changed */
+                    if (this.sink.lastModified(this.path) >= this.modified) return;
+                    final File input = this.source != null ? this.source : this.spooled;
+                    if (input == null) return;
+                    final File file = scale(input, this.maxWidth, this.maxHeight);
+                    try {
+                        this.sink.write(this.path, file);
+                    } finally {
+                        file.delete();
+                    }
+                }
+                ExportManager.this.debug("msg.exported-thumbnail", this.params);
+
+            } catch (Throwable throwable) {
+                ExportManager.this.error(this.notifiable, throwable,
+                                         "err.exporting-thumbnail", this.params);
+            } finally {
+                this.done();
+            }
+        }
+
+        public boolean equals(Object object) {
+            if (! (object instanceof Thumbnail)) return false;
+            final Thumbnail thumbnail = (Thumbnail) object;
+            return (thumbnail.sink == this.sink) && (thumbnail.id == this.id)
+                   && (thumbnail.version == this.version);
+        }
+
+        public int hashCode() {
+            return (int) (this.id ^ (this.id >>> 32)) ^ this.version;
+        }
+    }
+
+    /* ====================================================================== */
+    /* SNAPSHOT METHODS                                                       */
+    /* ====================================================================== */
+
+    /**
+     * <p>Render all the content from all specified spaces into a single
+     * archive in the specified format (either {@link ArchiveSink#ZIP} or
+     * {@link ArchiveSink#TAR}), without touching the export root.</p>
+     * 
+     * <p>The archive is created next to the export root, and alongside the
+     * rendered content it includes the sitemaps and search indexes of the
+     * spaces as currently found in the export root.</p>
+     * 
+     * @return the {@link File} of the archive created.
+     * @throws IOException if an I/O error occurred writing the archive.
+     */
+    public File snapshot(String spaceKeys[], String format,
+                         Notifiable notifiable)
+    throws IOException {
+        final String rootPath = this.configurationManager.getRootPath();
+        if (rootPath == null) throw new IOException("Export root not configured");
+        final File root = new File(rootPath).getAbsoluteFile();
+        final String date = StringTools.appendTimestamp(new StringBuffer(15),
+                                                        new Date()).toString();
+        final File file = new File(root.getParentFile(), root.getName() + "-"
+                                   + date + "." + format);
+
+        this.resetSiteContext();
+        final OutputStream output = new FileOutputStream(file);
+        final ArchiveSink sink = new ArchiveSink(new BufferedOutputStream(output, 65536),
+                                                 format);
+        boolean committed = false;
+        try {
+            for (int x = 0; x < spaceKeys.length; x ++) {
+                final Space space = this.spaceManager.getSpace(spaceKeys[x]);
+                if (space == null) continue;
+                this.export(space, notifiable, true, sink);
+                if (! this.locationManager.exportable(space)) continue;
+
+                final File spaceDir = new File(root, space.getKey());
+                final File files[] = spaceDir.listFiles();
+                for (int y = 0; (files != null) && (y < files.length); y ++) {
+                    final String name = files[y].getName();
+                    if (name.startsWith("sitemap") && name.endsWith(".xml"))
+                        include(files[y], encode(space.getKey()) + "/" + encode(name), sink);
+                }
+                final String search = this.locationManager.getPath(space,
+                                                SearchIndexManager.INDEX_DIR);
+                include(this.locationManager.getFile(search), search, sink);
+            }
+            final File sitemap = new File(root, SitemapManager.SITEMAP);
+            if (sitemap.isFile()) include(sitemap, SitemapManager.SITEMAP, sink);
+            this.await(sink);
+            sink.commit();
+            committed = true;
+        } finally {
+            if (! committed) {
+                sink.abort();
+                file.delete();
+            }
+        }
+
+        this.message(notifiable, "msg.snapshot", null, null, file);
+        return file;
+    }
+
+    /**
+     * <p>Copy the specified {@link File} or directory from the export root
+     * into the specified {@link ExportSink} at the specified path.</p>
+     */
+    private static void include(File file, String path, ExportSink sink)
+    throws IOException {
+        final File children[] = file.listFiles();
+        if (children == null) {
+            if (! file.isFile()) return;
+            if (file.getName().endsWith(".tmp")) return;
+            copy(new FileInputStream(file), sink, path);
+        } else {
+            final String prefix = path.endsWith("/") ? path : path + "/";
+            for (int x = 0; x < children.length; x ++) {
+                final String name = encode(children[x].getName());
+                include(children[x], prefix + name, sink);
+            }
+        }
+    }
+
+    /**
+     * <p>URL-encode the specified name of a file.</p>
+     */
+    private static String encode(String name) {
+        return EncodingTools.uriEncode(name, URICharacters.CLASS_UNRESERVED);
+    }
+
     /* ====================================================================== */
     /* PRIVATE METHODS FOR ERROR AND MESSAGES NOTIFICATION                    */
     /* ====================================================================== */
@@ -314,7 +998,7 @@ public class ExportManager extends LocalizedComponent {
             final String sname = sinst == null ? null : sinst.getName();
             final Date date = page.getCreationDate();
             final StringBuffer buffer = new StringBuffer();
-            buffer.append(new SimpleDateFormat("yyyy/MM/dd: ").format(date));
+            StringTools.appendPathDate(buffer, date, "/").append(": ");
             buffer.append(page.getTitle());
             return new Object[] { buffer.toString(), sname, arg };
         } else {
@@ -326,7 +1010,11 @@ public class ExportManager extends LocalizedComponent {
 
     private void error(Notifiable notifiable, Throwable exception, String key,
                        Space space, AbstractPage page, Object arg) {
-        final Object params[] = this.getParams(space, page, arg);
+        this.error(notifiable, exception, key, this.getParams(space, page, arg));
+    }
+
+    private void error(Notifiable notifiable, Throwable exception, String key,
+                       Object params[]) {
         final String message = this.localizeMessage(key, params);
         if (notifiable != null) {
             notifiable.notify(message);
@@ -344,7 +1032,10 @@ public class ExportManager extends LocalizedComponent {
     }
 
     private void debug(String key, Space space, AbstractPage page, Object arg) {
-        final Object params[] = this.getParams(space, page, arg);
+        this.debug(key, this.getParams(space, page, arg));
+    }
+
+    private void debug(String key, Object params[]) {
         final String message = this.localizeMessage(key, params);
         this.log.debug(message);
     }
@@ -0,0 +1,378 @@
+/* ========================================================================== *
+ *   Copyright (c) 2006, Pier Paolo Fumagalli <mailto:pier@betaversion.org>   *
+ *                            All rights reserved.                            *
+ * ========================================================================== *
+ *                                                                            * 
+ * Redistribution and use in source and binary forms, with or without modifi- *
+ * cation, are permitted provided that the following conditions are met:      *
+ *                                                                            * 
+ *  - Redistributions of source code must retain the  above copyright notice, *
+ *    this list of conditions and the following disclaimer.                   *
+ *                                                                            * 
+ *  - Redistributions  in binary  form  must  reproduce the  above  copyright *
+ *    notice,  this list of conditions  and the following  disclaimer  in the *
+ *    documentation and/or other materials provided with the distribution.    *
+ *                                                                            * 
+ *  - Neither the name of Pier Fumagalli, nor the names of other contributors *
+ *    may be used to endorse  or promote products derived  from this software *
+ *    without specific prior written permission.                              *
+ *                                                                            * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS "AS IS" *
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES,  INCLUDING, BUT NOT LIMITED TO, THE *
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE *
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER  OR CONTRIBUTORS BE *
+ * LIABLE  FOR ANY  DIRECT,  INDIRECT,  INCIDENTAL,  SPECIAL,  EXEMPLARY,  OR *
+ * CONSEQUENTIAL  DAMAGES  (INCLUDING,  BUT  NOT LIMITED  TO,  PROCUREMENT OF *
+ * SUBSTITUTE GOODS OR SERVICES;  LOSS OF USE, DATA, OR PROFITS;  OR BUSINESS *
+ * INTERRUPTION)  HOWEVER CAUSED AND ON  ANY THEORY OF LIABILITY,  WHETHER IN *
+ * CONTRACT,  STRICT LIABILITY,  OR TORT  (INCLUDING NEGLIGENCE OR OTHERWISE) *
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE *
+ * POSSIBILITY OF SUCH DAMAGE.                                                *
+ * ========================================================================== */
+package it.could.confluence.autoexport;
+
+import it.could.confluence.autoexport.engine.BlobStore;
+import it.could.confluence.autoexport.engine.ExportSink;
+import it.could.util.FileTools;
+import it.could.util.StreamTools;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * <p>The default {@link ExportSink} writing content underneath the export
+ * root on the local disk and {@link PublishManager publishing} it to all
+ * configured locations.</p>
+ * 
+ * <p>Content is written to a temporary file next to its final destination
+ * and moved in place when its stream is closed, so that readers (and
+ * publishers) never see partially written files. Discarded streams simply
+ * delete their temporary file.</p>
+ * 
+ * <p>When {@link ConfigurationManager#getAttachmentLinks() configured},
+ * attachments and thumbnails are moved into a {@link BlobStore} instead, and
+ * linked from their final destination.</p>
+ */
+public class FileExportSink implements ExportSink {
+
+    /** <p>The {@link Pattern} matching names of shared stylesheets.</p> */
+    private static final Pattern STYLESHEET =
+                            Pattern.compile("space-([0-9a-f]{40})\\.css");
+
+    /** <p>The {@link ConfigurationManager} configuring attachment links.</p> */
+    private final ConfigurationManager configurationManager;
+    /** <p>The {@link LocationManager} resolving paths to files.</p> */
+    private final LocationManager locationManager;
+    /** <p>The {@link PublishManager} uploading written files.</p> */
+    private final PublishManager publishManager;
+
+    /** <p>The configuration the current {@link #store} was created for.</p> */
+    private String storeConfiguration = null;
+    /** <p>The {@link BlobStore} attachments are linked to, if any.</p> */
+    private BlobStore store = null;
+
+    /** <p>Create a new {@link FileExportSink} instance.</p> */
+    public FileExportSink(ConfigurationManager configurationManager,
+                          LocationManager locationManager,
+                          PublishManager publishManager) {
+        this.configurationManager = configurationManager;
+        this.locationManager = locationManager;
+        this.publishManager = publishManager;
+    }
+
+    /* ====================================================================== */
+    /* SINK METHODS                                                           */
+    /* ====================================================================== */
+
+    public OutputStream open(String path)
+    throws IOException {
+        final File file = this.locationManager.getFile(path);
+        final File directory = file.getParentFile();
+        this.locationManager.mkdirs(directory);
+        final File temp = new File(directory, file.getName() + ".tmp");
+        if (! this.locationManager.isAttachmentPath(path))
+            return new Output(temp, file, null);
+        return new Output(temp, file, this.getStore());
+    }
+
+    /**
+     * <p>Link the specified {@link File} in place, either with a hard link
+     * or a copy-on-write clone, copying it when neither is possible (for
+     * example when it lives on another file system).</p>
+     */
+    public void write(String path, File source)
+    throws IOException {
+        final File file = this.locationManager.getFile(path);
+        final File directory = file.getParentFile();
+        this.locationManager.mkdirs(directory);
+        final File temp = new File(directory, file.getName() + ".tmp");
+        if (temp.exists()) temp.delete();
+
+        if (FileTools.link(source, temp) || FileTools.clone(source, temp)) {
+            if (file.exists()) file.delete();
+            if (! temp.renameTo(file)) {
+                temp.delete();
+                throw new IOException("Can't rename " + temp + " to " + file);
+            }
+            this.publishManager.publish(file);
+        } else {
+            temp.delete();
+            final InputStream input = new FileInputStream(source);
+            try {
+                final OutputStream output = this.open(path);
+                try {
+                    StreamTools.copy(input, output, false);
+                    output.close();
+                } finally {
+                    this.discard(output);
+                }
+            } finally {
+                input.close();
+            }
+        }
+    }
+
+    public void discard(OutputStream stream) {
+        if (stream instanceof Output) ((Output) stream).discard();
+    }
+
+    public void delete(String path) {
+        final File file = this.locationManager.getFile(path);
+        if (! file.exists()) return;
+        this.publishManager.remove(file);
+        delete(file);
+        if (path.endsWith("/")) this.locationManager.invalidateDirectories();
+    }
+
+    public boolean move(String source, String target) {
+        final File sourceDir = this.locationManager.getFile(source);
+        final File targetDir = this.locationManager.getFile(target);
+        if ((! sourceDir.isDirectory()) || targetDir.exists()) return false;
+        if (sourceDir.equals(targetDir)) return false;
+
+        targetDir.getParentFile().mkdirs();
+        if (! sourceDir.renameTo(targetDir)) return false;
+        this.locationManager.invalidateDirectories();
+        this.publishManager.move(sourceDir, targetDir);
+        return true;
+    }
+
+    public boolean exists(String path) {
+        return this.locationManager.getFile(path).exists();
+    }
+
+    public long length(String path) {
+        final File file = this.locationManager.getFile(path);
+        return file.isFile() ? file.length() : -1;
+    }
+
+    public long lastModified(String path) {
+        final File file = this.locationManager.getFile(path);
+        return file.exists() ? file.lastModified() : -1;
+    }
+
+    public byte[] digest(String path) {
+        final File file = this.locationManager.getFile(path);
+        if (! file.isFile()) return null;
+        try {
+            return BlobStore.digest(new FileInputStream(file));
+        } catch (IOException exception) {
+            return null;
+        }
+    }
+
+    /**
+     * <p>Files are committed as soon as their streams are closed, therefore
+     * this method does nothing.</p>
+     */
+    public void commit() {
+        /* Nothing to do */
+    }
+
+    /**
+     * <p>Remove all the attachments and thumbnails no longer linked from the
+     * export root from the {@link BlobStore}, if one is used, and all the
+     * shared stylesheets no exported page links to anymore.</p>
+     * 
+     * <p>Stylesheets are shared by spaces and survive restarts, therefore
+     * the exported pages themselves are scanned for links to them: only the
+     * ones neither linked nor last exported for a space are deleted.</p>
+     */
+    public void sweep() {
+        final BlobStore store = this.getStore();
+        if (store != null) store.sweep();
+
+        final File directory = this.locationManager.getFile(
+                this.locationManager.getStylesheetPath("")).getParentFile();
+        final String names[] = directory.list();
+        if (names == null) return;
+        final Set stylesheets = new HashSet();
+        for (int x = 0; x < names.length; x ++) {
+            final Matcher matcher = STYLESHEET.matcher(names[x]);
+            if (matcher.matches()) stylesheets.add(matcher.group(1));
+        }
+        if (stylesheets.isEmpty()) return;
+
+        final String root = this.configurationManager.getRootPath();
+        if (root == null) return;
+        final String extension = this.configurationManager.getExtension();
+        try {
+            mark(new File(root), extension, stylesheets);
+        } catch (IOException exception) {
+            return;
+        }
+
+        for (Iterator iterator = stylesheets.iterator(); iterator.hasNext(); ) {
+            final String digest = (String) iterator.next();
+            if (this.locationManager.isStylesheetUsed(digest)) continue;
+            this.delete(this.locationManager.getStylesheetPath(digest));
+        }
+    }
+
+    /* ====================================================================== */
+    /* PRIVATE METHODS AND CLASSES                                            */
+    /* ====================================================================== */
+
+    /**
+     * <p>Return the {@link BlobStore} attachments are linked to, re-creating
+     * it when the configuration changes, or <b>null</b> if attachments are
+     * not stored there.</p>
+     */
+    private synchronized BlobStore getStore() {
+        final String links = this.configurationManager.getAttachmentLinks();
+        final String root = this.configurationManager.getRootPath();
+        final boolean symbolic = ConfigurationManager.LINKS_SYMBOLIC.equals(links);
+        if (! (symbolic || ConfigurationManager.LINKS_HARD.equals(links))) return null;
+        if (root == null) return null;
+
+        final String configuration = links + ":" + root;
+        if (! configuration.equals(this.storeConfiguration)) {
+            this.store = new BlobStore(new File(root), symbolic);
+            this.storeConfiguration = configuration;
+        }
+        return this.store;
+    }
+
+    /**
+     * <p>Recursively scan the exported pages (files with the specified
+     * extension) in the specified directory, removing the digests of all
+     * the stylesheets they link to from the specified {@link Set}.</p>
+     * 
+     * @throws IOException if a page could not be read, in which case no
+     *                     stylesheet should be considered unused.
+     */
+    private static void mark(File directory, String extension, Set stylesheets)
+    throws IOException {
+        final File children[] = directory.listFiles();
+        for (int x = 0; (children != null) && (x < children.length); x ++) {
+            if (stylesheets.isEmpty()) return;
+            final File child = children[x];
+            if (child.getName().startsWith(".")) continue;
+            if (child.isDirectory()) {
+                mark(child, extension, stylesheets);
+            } else if (child.getName().endsWith(extension)) {
+                final InputStream input = new FileInputStream(child);
+                final ByteArrayOutputStream output = new ByteArrayOutputStream();
+                StreamTools.copy(input, output, true);
+                final Matcher matcher = STYLESHEET.matcher(output.toString("ISO-8859-1"));
+                while (matcher.find()) stylesheets.remove(matcher.group(1));
+            }
+        }
+    }
+
+    /**
+     * <p>Recursively delete the specified {@link File} or directory.</p>
+     */
+    private static void delete(File file) {
+        final File children[] = file.listFiles();
+        if (children != null) {
+            for (int x = 0; x < children.length; x ++) delete(children[x]);
+        }
+        if (file.exists()) file.delete();
+    }
+
+    /**
+     * <p>An {@link OutputStream} writing a temporary file and moving it in
+     * place of the target one (or into a {@link BlobStore}) when closed.</p>
+     */
+    private final class Output extends FilterOutputStream {
+
+        /** <p>The temporary {@link File} being written.</p> */
+        private final File temp;
+        /** <p>The {@link File} replaced when this stream is closed.</p> */
+        private final File file;
+        /** <p>The {@link BlobStore} receiving the content, if any.</p> */
+        private final BlobStore store;
+        /** <p>The {@link MessageDigest} keying the content, if stored.</p> */
+        private final MessageDigest digest;
+        /** <p>Whether this stream was closed or not.</p> */
+        private boolean closed = false;
+
+        private Output(File temp, File file, BlobStore store)
+        throws IOException {
+            super(new FileOutputStream(temp));
+            this.temp = temp;
+            this.file = file;
+            this.store = store;
+            if (store == null) {
+                this.digest = null;
+            } else {
+                this.digest = BlobStore.digest();
+                this.out = new DigestOutputStream(this.out, this.digest);
+            }
+        }
+
+        public void write(byte buffer[], int offset, int length)
+        throws IOException {
+            this.out.write(buffer, offset, length);
+        }
+
+        public void close()
+        throws IOException {
+            if (this.closed) return;
+            this.closed = true;
+            try {
+                this.out.close();
+                if (this.store != null) {
+                    this.store.store(this.temp, this.digest.digest(), this.file);
+                } else {
+                    if (this.file.exists()) this.file.delete();
+                    if (! this.temp.renameTo(this.file))
+                        throw new IOException("Can't rename " + this.temp + " to " + this.file);
+                }
+            } catch (IOException exception) {
+                this.temp.delete();
+                throw exception;
+            }
+            FileExportSink.this.publishManager.publish(this.file);
+        }
+
+        /**
+         * <p>Close the temporary file and delete it, unless this stream was
+         * already closed.</p>
+         */
+        private void discard() {
+            if (this.closed) return;
+            this.closed = true;
+            try {
+                this.out.close();
+            } catch (IOException exception) {
+                /* Ignore, the file is deleted anyway */
+            }
+            this.temp.delete();
+        }
+    }
+}
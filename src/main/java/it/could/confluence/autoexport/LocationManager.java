@@ -32,11 +32,16 @@
 package it.could.confluence.autoexport;
 
 import it.could.confluence.localization.LocalizedComponent;
+import it.could.util.StringTools;
+import it.could.util.encoding.EncodingTools;
+import it.could.util.encoding.URICharacters;
 import it.could.util.location.Location;
 
 import java.io.File;
-import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import com.atlassian.confluence.pages.AbstractPage;
 import com.atlassian.confluence.pages.Attachment;
@@ -53,6 +58,10 @@ public class LocationManager extends LocalizedComponent {
     private static final String SPACE_RESOURCES_DIR = "resources/";
     private static final String ATTACHMENTS_DIR_EXT = ".data/";
     private static final String THUMBNAILS_FILE_EXT = ".jpeg";
+    /** <p>The name of the stylesheet resource of each space.</p> */
+    public static final String STYLESHEET = "space.css";
+    /** <p>The directory of resources shared by all spaces.</p> */
+    private static final String SHARED_RESOURCES_DIR = "_resources/";
     private static final Location AUTOEXPORT_LOCATION = Location.parse("autoexport:///.");
 
     /** <p>The {@link ConfigurationManager} used by this instance.</p> */
@@ -61,6 +70,10 @@ public class LocationManager extends LocalizedComponent {
     private final PermissionManager permissionManager;
     /** <p>The {@link UserManager} used by this instance.</p> */
     private final UserManager userManager;
+    /** <p>The {@link Map} of space keys to their stylesheet digests.</p> */
+    private final Map stylesheets = new ConcurrentHashMap();
+    /** <p>The {@link Registry} of paths for the current configuration.</p> */
+    private volatile Registry registry = null;
 
     /** <p>Create a new {@link LocationManager} instance.</p> */
     public LocationManager(ConfigurationManager configurationManager,
@@ -78,42 +91,117 @@ public class LocationManager extends LocalizedComponent {
     /* PRIVATE METHODS                                                        */
     /* ====================================================================== */
 
-    private String getMangledTitle(AbstractPage page) {
-        StringBuffer buffer = new StringBuffer();
-        char array[] = page.getTitle().toLowerCase().toCharArray();
+    /**
+     * <p>Return the {@link Registry} of paths, creating a new one when the
+     * configuration changed.</p>
+     */
+    private Registry getRegistry() {
+        final int revision = this.configurationManager.getRevision();
+        final Registry current = this.registry;
+        if ((current != null) && (current.revision == revision)) return current;
+        final Registry created = new Registry(revision,
+                                         this.configurationManager.getRootPath(),
+                                         this.configurationManager.getExtension());
+        this.registry = created;
+        return created;
+    }
+
+    private String getMangledTitle(String title, long id) {
+        StringBuffer buffer = new StringBuffer(title.length());
+        char array[] = title.toLowerCase().toCharArray();
         boolean separated = true;
         for (int x = 0; x < array.length; x++) {
-            if ("abcdefghijklmnopqrstuvwxyz0123456789".indexOf(array[x]) >= 0) {
-                buffer.append(Character.toLowerCase(array[x]));
+            final char c = array[x];
+            if (((c >= 'a') && (c <= 'z')) || ((c >= '0') && (c <= '9'))) {
+                buffer.append(c);
                 separated = false;
-            } else if ("\r\n\t -".indexOf(array[x]) >= 0) {
+            } else if ((c == '\r') || (c == '\n') || (c == '\t') || (c == ' ') || (c == '-')) {
                 if (separated) continue;
                 buffer.append('-');
                 separated = true;
             }
         }
-        if (buffer.length() == 0) return Long.toString(page.getId());
+        if (buffer.length() == 0) return Long.toString(id);
         return buffer.toString();
     }
 
     private Location getRelativeLocation(Space space, String extension) {
-        final StringBuffer buffer = new StringBuffer(space.getKey());
+        return this.getRelativeLocation(space.getKey(), extension);
+    }
+
+    private Location getRelativeLocation(String spaceKey, String extension) {
+        final StringBuffer buffer = new StringBuffer(spaceKey);
         buffer.append('/');
         if (extension != null) buffer.append(extension);
         return Location.parse(buffer.toString());
     }
 
     private Location getRelativeLocation(AbstractPage page, String extension) {
-        StringBuffer buffer = new StringBuffer();
-        if (page instanceof BlogPost) {
-            final Date date = page.getCreationDate();
-            buffer.append(new SimpleDateFormat("yyyy/MM/dd/").format(date));
-        }
+        final Registry registry = this.getRegistry();
+        final Entry entry = this.getEntry(registry, page);
+        if (extension == null) return Location.parse(entry.prefix);
+        if (extension.equals(registry.extension)) return entry.location;
+        return Location.parse(entry.prefix + extension);
+    }
 
-        buffer.append(this.getMangledTitle(page));
+    private Location getRelativeLocation(String spaceKey, String title,
+                                         Date postingDate, long id,
+                                         String extension) {
+        final StringBuffer buffer = new StringBuffer();
+        buffer.append(this.getPrefix(spaceKey, title, postingDate, id));
         if (extension != null) buffer.append(extension);
-        
-        return this.getRelativeLocation(page.getSpace(), buffer.toString());
+        return Location.parse(buffer.toString());
+    }
+
+    /**
+     * <p>Return the path of a page relative to the export root, before the
+     * extension is appended.</p>
+     */
+    private String getPrefix(String spaceKey, String title, Date postingDate,
+                             long id) {
+        final StringBuffer buffer = new StringBuffer(spaceKey);
+        buffer.append('/');
+        if (postingDate != null) {
+            StringTools.appendPathDate(buffer, postingDate, "/").append('/');
+        }
+        return buffer.append(this.getMangledTitle(title, id)).toString();
+    }
+
+    /**
+     * <p>Return the {@link Entry} registered for the current version of the
+     * specified page, registering a new one if needed.</p>
+     * 
+     * <p>Two different pages registering the same path (because their titles
+     * mangle to the same string) would overwrite each other, and a warning
+     * is logged when this happens.</p>
+     */
+    private Entry getEntry(Registry registry, AbstractPage page) {
+        final Long id = new Long(page.getId());
+        final Entry current = (Entry) registry.entries.get(id);
+        if ((current != null) && current.matches(page)) return current;
+
+        final Date date = page instanceof BlogPost ? page.getCreationDate() : null;
+        final String prefix = this.getPrefix(page.getSpaceKey(), page.getTitle(),
+                                             date, page.getId());
+        final Location location = Location.parse(registry.extension == null ?
+                                      prefix : prefix + registry.extension);
+        final Entry entry = new Entry(page, prefix, location);
+        registry.entries.put(id, entry);
+
+        /* Track who owns what path, and complain about collisions */
+        if (current != null) registry.owners.remove(current.prefix, id);
+        final Long owner = (Long) registry.owners.putIfAbsent(prefix, id);
+        if ((owner != null) && (! owner.equals(id))) {
+            final Object args[] = new Object[] { page.getTitle(), id.toString(),
+                                                 owner.toString(), prefix };
+            this.log.warn(this.localizeMessage("err.collision", args));
+        }
+        return entry;
+    }
+
+    private File getFile(Location relative) {
+        final Location resolved = this.getRegistry().root.resolve(relative);
+        return resolved.getPath().toFile();
     }
 
     /* ====================================================================== */
@@ -144,36 +232,207 @@ public class LocationManager extends LocalizedComponent {
 
     public File getFile(AbstractPage page) {
         final String extension = this.configurationManager.getExtension();
-        final String rootPath = this.configurationManager.getRootPath();
-
-        final Location relative = this.getRelativeLocation(page, extension);
-        final Location root = Location.parse("file://" + rootPath + "/");
-        final Location resolved = root.resolve(relative);
-        return resolved.getPath().toFile();
+        return this.getFile(this.getRelativeLocation(page, extension));
     }
 
     public File getFile(Space space, String resource) {
-        final String extension = SPACE_RESOURCES_DIR + resource;
-        final String rootPath = this.configurationManager.getRootPath();
+        return this.getResourceFile(space.getKey(), resource);
+    }
 
-        final Location relative = this.getRelativeLocation(space, extension);
-        final Location root = Location.parse("file://" + rootPath + "/");
-        final Location resolved = root.resolve(relative);
-        return resolved.getPath().toFile();
+    /**
+     * <p>Return the {@link File} of a resource associated with the space
+     * identified by the specified key.</p>
+     */
+    public File getResourceFile(String spaceKey, String resource) {
+        final String extension = SPACE_RESOURCES_DIR + resource;
+        return this.getFile(this.getRelativeLocation(spaceKey, extension));
     }
 
     public File getFile(Attachment attachment, boolean thumbnail) {
-        final String rootPath = this.configurationManager.getRootPath();
         final StringBuffer buffer = new StringBuffer(ATTACHMENTS_DIR_EXT);
         buffer.append(attachment.getFileName());
         if (thumbnail) buffer.append(THUMBNAILS_FILE_EXT);
         final String extension = buffer.toString();
         final AbstractPage page = (AbstractPage) attachment.getContent();
+        return this.getFile(this.getRelativeLocation(page, extension));
+    }
 
-        final Location relative = this.getRelativeLocation(page, extension);
-        final Location root = Location.parse("file://" + rootPath + "/");
-        final Location resolved = root.resolve(relative);
-        return resolved.getPath().toFile();
+    /**
+     * <p>Return the {@link File} of a page (or blog post, if the posting date
+     * is not <b>null</b>) which might not exist in Confluence anymore.</p>
+     */
+    public File getFile(String spaceKey, String title, Date postingDate,
+                        long id) {
+        final String extension = this.configurationManager.getExtension();
+        return this.getFile(this.getRelativeLocation(spaceKey, title,
+                                                     postingDate, id,
+                                                     extension));
+    }
+
+    /**
+     * <p>Return the directory holding attachments and thumbnails of a page
+     * (or blog post, if the posting date is not <b>null</b>) which might not
+     * exist in Confluence anymore.</p>
+     */
+    public File getDataDirectory(String spaceKey, String title,
+                                 Date postingDate, long id) {
+        return this.getFile(this.getRelativeLocation(spaceKey, title,
+                                                     postingDate, id,
+                                                     ATTACHMENTS_DIR_EXT));
+    }
+
+    /**
+     * <p>Return the {@link File} associated with a path relative to the
+     * root of the exported content.</p>
+     */
+    public File getFile(String path) {
+        return this.getFile(Location.parse(path));
+    }
+
+    /**
+     * <p>Return the URL-encoded path of the specified {@link File} relative
+     * to the root of the exported content, or <b>null</b> if the file does
+     * not live underneath the export root.</p>
+     */
+    public String getRelativePath(File file) {
+        final File root = this.getRegistry().rootFile;
+        if ((file == null) || (root == null)) return null;
+
+        final StringBuffer buffer = new StringBuffer();
+        for (File current = file.getAbsoluteFile(); current != null;
+             current = current.getParentFile()) {
+            if (current.equals(root)) return buffer.toString();
+            final String name = EncodingTools.uriEncode(current.getName(),
+                                             URICharacters.CLASS_UNRESERVED);
+            if (buffer.length() > 0) buffer.insert(0, '/');
+            buffer.insert(0, name);
+        }
+        return null;
+    }
+
+    /**
+     * <p>Make sure the specified directory exists, remembering directories
+     * already created to avoid checking them again.</p>
+     */
+    public void mkdirs(File directory) {
+        final ConcurrentMap directories = this.getRegistry().directories;
+        if (directories.containsKey(directory)) return;
+        if (directory.isDirectory() || directory.mkdirs()) {
+            directories.put(directory, Boolean.TRUE);
+        }
+    }
+
+    /**
+     * <p>Forget all directories remembered by {@link #mkdirs(File)}, as some
+     * of them might have been removed or moved.</p>
+     */
+    public void invalidateDirectories() {
+        this.getRegistry().directories.clear();
+    }
+
+    /**
+     * <p>Forget the path registered for the page with the specified id, for
+     * example because it was renamed, moved or removed.</p>
+     */
+    public void invalidate(long id) {
+        final Registry registry = this.getRegistry();
+        final Long key = new Long(id);
+        final Entry entry = (Entry) registry.entries.remove(key);
+        if (entry != null) registry.owners.remove(entry.prefix, key);
+    }
+
+    /* ====================================================================== */
+    /* PATH METHODS                                                           */
+    /* ====================================================================== */
+
+    /**
+     * <p>Return the URL-encoded path of the specified page relative to the
+     * root of the exported content.</p>
+     */
+    public String getPath(AbstractPage page) {
+        final String extension = this.configurationManager.getExtension();
+        return this.getRelativeLocation(page, extension).toString();
+    }
+
+    /**
+     * <p>Return the URL-encoded path of a resource associated with the
+     * specified space relative to the root of the exported content.</p>
+     */
+    public String getPath(Space space, String resource) {
+        final String extension = SPACE_RESOURCES_DIR + resource;
+        return this.getRelativeLocation(space, extension).toString();
+    }
+
+    /**
+     * <p>Return the URL-encoded path of the specified attachment (or its
+     * thumbnail) relative to the root of the exported content.</p>
+     */
+    public String getPath(Attachment attachment, boolean thumbnail) {
+        final StringBuffer buffer = new StringBuffer(ATTACHMENTS_DIR_EXT);
+        buffer.append(attachment.getFileName());
+        if (thumbnail) buffer.append(THUMBNAILS_FILE_EXT);
+        final String extension = buffer.toString();
+        final AbstractPage page = (AbstractPage) attachment.getContent();
+        return this.getRelativeLocation(page, extension).toString();
+    }
+
+    /**
+     * <p>Return the URL-encoded path (ending with a slash) of the directory
+     * holding attachments and thumbnails of a page (or blog post, if the
+     * posting date is not <b>null</b>) which might not exist in Confluence
+     * anymore.</p>
+     */
+    public String getDataPath(String spaceKey, String title,
+                              Date postingDate, long id) {
+        return this.getRelativeLocation(spaceKey, title, postingDate, id,
+                                        ATTACHMENTS_DIR_EXT).toString();
+    }
+
+    /**
+     * <p>Check whether the specified path (as returned by the methods above)
+     * is the path of an attachment or thumbnail.</p>
+     */
+    public boolean isAttachmentPath(String path) {
+        return path.indexOf(ATTACHMENTS_DIR_EXT) >= 0;
+    }
+
+    /**
+     * <p>Return the URL-encoded path of the stylesheet with the specified
+     * digest, shared by all spaces with the same stylesheet.</p>
+     */
+    public String getStylesheetPath(String digest) {
+        return SHARED_RESOURCES_DIR + "space-" + digest + ".css";
+    }
+
+    /* ====================================================================== */
+    /* STYLESHEET METHODS                                                     */
+    /* ====================================================================== */
+
+    /**
+     * <p>Return the digest of the stylesheet last exported for the space
+     * identified by the specified key, or <b>null</b>.</p>
+     */
+    public String getStylesheet(String spaceKey) {
+        return (String) this.stylesheets.get(spaceKey);
+    }
+
+    /**
+     * <p>Record the digest of the stylesheet exported for the space
+     * identified by the specified key.</p>
+     * 
+     * <p>From now on the {@link #getLocation(Space, String) location} of
+     * the space's {@link #STYLESHEET} will point to the shared copy.</p>
+     */
+    public void setStylesheet(String spaceKey, String digest) {
+        this.stylesheets.put(spaceKey, digest);
+    }
+
+    /**
+     * <p>Check whether the stylesheet with the specified digest is the one
+     * last exported for any space.</p>
+     */
+    public boolean isStylesheetUsed(String digest) {
+        return this.stylesheets.containsValue(digest);
     }
 
     /* ====================================================================== */
@@ -192,7 +451,37 @@ public class LocationManager extends LocalizedComponent {
         return AUTOEXPORT_LOCATION.resolve(relative);
     }
 
+    /**
+     * <p>Return the {@link Location} of the specified page relative to the
+     * root of the exported content, regardless of permissions.</p>
+     */
+    public Location getRelativeLocation(AbstractPage page) {
+        final String extension = this.configurationManager.getExtension();
+        return this.getRelativeLocation(page, extension);
+    }
+
+    /**
+     * <p>Return the {@link Location} relative to the root of the exported
+     * content of a page (or blog post, if the posting date is not
+     * <b>null</b>) which might not exist in Confluence anymore.</p>
+     */
+    public Location getRelativeLocation(String spaceKey, String title,
+                                        Date postingDate, long id) {
+        final String extension = this.configurationManager.getExtension();
+        return this.getRelativeLocation(spaceKey, title, postingDate, id,
+                                        extension);
+    }
+
     public Location getLocation(Space space, String resource) {
+        /* Stylesheets are shared by all spaces where identical */
+        if (STYLESHEET.equals(resource)) {
+            final String digest = this.getStylesheet(space.getKey());
+            if (digest != null) {
+                final String path = this.getStylesheetPath(digest);
+                return AUTOEXPORT_LOCATION.resolve(Location.parse(path));
+            }
+        }
+
         /* Resources are only valid when exporting, don't check permissions */
         final String extension = SPACE_RESOURCES_DIR + resource;
         final Location relative = this.getRelativeLocation(space, extension);
@@ -214,4 +503,68 @@ public class LocationManager extends LocalizedComponent {
         final Location relative = this.getRelativeLocation(page, extension);
         return AUTOEXPORT_LOCATION.resolve(relative);
     }
+
+    /* ====================================================================== */
+    /* INNER CLASSES                                                          */
+    /* ====================================================================== */
+
+    /**
+     * <p>The paths computed for a revision of the configuration.</p>
+     */
+    private static final class Registry {
+
+        /** <p>The configuration revision this registry was created for.</p> */
+        private final int revision;
+        /** <p>The {@link Location} of the export root.</p> */
+        private final Location root;
+        /** <p>The {@link File} of the export root, or <b>null</b>.</p> */
+        private final File rootFile;
+        /** <p>The extension of exported pages.</p> */
+        private final String extension;
+        /** <p>The {@link Map} of page ids to their {@link Entry}.</p> */
+        private final ConcurrentMap entries = new ConcurrentHashMap();
+        /** <p>The {@link Map} of page path prefixes to the owning page id.</p> */
+        private final ConcurrentMap owners = new ConcurrentHashMap();
+        /** <p>The {@link Map} of directories known to exist.</p> */
+        private final ConcurrentMap directories = new ConcurrentHashMap();
+
+        private Registry(int revision, String rootPath, String extension) {
+            this.revision = revision;
+            this.root = Location.parse("file://" + rootPath + "/");
+            this.rootFile = rootPath == null ? null : new File(rootPath).getAbsoluteFile();
+            this.extension = extension;
+        }
+    }
+
+    /**
+     * <p>The path registered for a version of a page.</p>
+     */
+    private static final class Entry {
+
+        /** <p>The version of the page.</p> */
+        private final int version;
+        /** <p>The key of the space of the page.</p> */
+        private final String spaceKey;
+        /** <p>The title of the page.</p> */
+        private final String title;
+        /** <p>The path of the page without extension.</p> */
+        private final String prefix;
+        /** <p>The relative {@link Location} of the page.</p> */
+        private final Location location;
+
+        private Entry(AbstractPage page, String prefix, Location location) {
+            this.version = page.getVersion();
+            this.spaceKey = page.getSpaceKey();
+            this.title = page.getTitle();
+            this.prefix = prefix;
+            this.location = location;
+        }
+
+        /** <p>Check if this entry is still valid for the specified page.</p> */
+        private boolean matches(AbstractPage page) {
+            return (this.version == page.getVersion())
+                   && this.spaceKey.equals(page.getSpaceKey())
+                   && this.title.equals(page.getTitle());
+        }
+    }
 }
@@ -0,0 +1,208 @@
+/* ========================================================================== *
+ *   Copyright (c) 2006, Pier Paolo Fumagalli <mailto:pier@betaversion.org>   *
+ *                            All rights reserved.                            *
+ * ========================================================================== *
+ *                                                                            * 
+ * Redistribution and use in source and binary forms, with or without modifi- *
+ * cation, are permitted provided that the following conditions are met:      *
+ *                                                                            * 
+ *  - Redistributions of source code must retain the  above copyright notice, *
+ *    this list of conditions and the following disclaimer.                   *
+ *                                                                            * 
+ *  - Redistributions  in binary  form  must  reproduce the  above  copyright *
+ *    notice,  this list of conditions  and the following  disclaimer  in the *
+ *    documentation and/or other materials provided with the distribution.    *
+ *                                                                            * 
+ *  - Neither the name of Pier Fumagalli, nor the names of other contributors *
+ *    may be used to endorse  or promote products derived  from this software *
+ *    without specific prior written permission.                              *
+ *                                                                            * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS "AS IS" *
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES,  INCLUDING, BUT NOT LIMITED TO, THE *
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE *
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER  OR CONTRIBUTORS BE *
+ * LIABLE  FOR ANY  DIRECT,  INDIRECT,  INCIDENTAL,  SPECIAL,  EXEMPLARY,  OR *
+ * CONSEQUENTIAL  DAMAGES  (INCLUDING,  BUT  NOT LIMITED  TO,  PROCUREMENT OF *
+ * SUBSTITUTE GOODS OR SERVICES;  LOSS OF USE, DATA, OR PROFITS;  OR BUSINESS *
+ * INTERRUPTION)  HOWEVER CAUSED AND ON  ANY THEORY OF LIABILITY,  WHETHER IN *
+ * CONTRACT,  STRICT LIABILITY,  OR TORT  (INCLUDING NEGLIGENCE OR OTHERWISE) *
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE *
+ * POSSIBILITY OF SUCH DAMAGE.                                                *
+ * ========================================================================== */
+package it.could.confluence.autoexport;
+
+import it.could.confluence.autoexport.engine.Publisher;
+import it.could.confluence.autoexport.engine.S3Publisher;
+import it.could.confluence.autoexport.engine.WebDavPublisher;
+import it.could.confluence.localization.LocalizedComponent;
+import it.could.util.location.Location;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.StringTokenizer;
+
+/**
+ * <p>The {@link PublishManager} pushes every file written underneath the
+ * export root to the WebDAV servers (or, for <code>s3</code> locations, the
+ * object storage buckets) listed in the
+ * {@link ConfigurationManager#getPublishLocations() configuration}, so that
+ * exported content goes live without any external synchronization.</p>
+ * 
+ * <p>Whenever publishers are (re)created, they upload whatever changed in
+ * the export root, but remote resources missing locally are only deleted
+ * when {@link #mirror() mirroring} the export root explicitly.</p>
+ */
+public class PublishManager extends LocalizedComponent {
+
+    /** <p>The number of concurrent operations for each location.</p> */
+    private static final int THREADS = 4;
+
+    /** <p>The {@link ConfigurationManager} used by this instance.</p> */
+    private final ConfigurationManager configurationManager;
+    /** <p>The {@link LocationManager} used by this instance.</p> */
+    private final LocationManager locationManager;
+
+    /** <p>The locations the current {@link #publishers} were created for.</p> */
+    private String locations = null;
+    /** <p>The {@link Publisher}s for all configured locations.</p> */
+    private Publisher publishers[] = new Publisher[0];
+
+    /** <p>Create a new {@link PublishManager} instance.</p> */
+    public PublishManager(ConfigurationManager configurationManager,
+                          LocationManager locationManager) {
+        this.configurationManager = configurationManager;
+        this.locationManager = locationManager;
+
+        this.log.info("Instance created");
+    }
+
+    /* ====================================================================== */
+    /* PUBLIC METHODS                                                         */
+    /* ====================================================================== */
+
+    /**
+     * <p>Publish the specified {@link File} (which must live underneath the
+     * export root) to all configured locations.</p>
+     */
+    public void publish(File file) {
+        final Publisher publishers[] = this.getPublishers();
+        if (publishers.length == 0) return;
+        final String path = this.locationManager.getRelativePath(file);
+        if (path == null) return;
+        for (int x = 0; x < publishers.length; x ++) {
+            publishers[x].publish(path, file);
+        }
+    }
+
+    /**
+     * <p>Remove the specified {@link File} or directory (which must live
+     * underneath the export root) from all configured locations.</p>
+     * 
+     * <p>This method must be called <i>before</i> the file is deleted from
+     * the local disk, in order to tell apart files and directories.</p>
+     */
+    public void remove(File file) {
+        final Publisher publishers[] = this.getPublishers();
+        if (publishers.length == 0) return;
+        String path = this.locationManager.getRelativePath(file);
+        if ((path == null) || (path.length() == 0)) return;
+        if (file.isDirectory()) path += "/";
+        for (int x = 0; x < publishers.length; x ++) {
+            publishers[x].remove(path);
+        }
+    }
+
+    /**
+     * <p>Move the remote copies of the specified {@link File} or directory
+     * to the location of another one (both underneath the export root) on
+     * all configured locations, without uploading them again.</p>
+     * 
+     * <p>This method must be called <i>after</i> the file was moved on the
+     * local disk. Locations where the move fails will receive the file in
+     * the next publication of the destination.</p>
+     */
+    public void move(File source, File destination) {
+        final Publisher publishers[] = this.getPublishers();
+        if (publishers.length == 0) return;
+        String from = this.locationManager.getRelativePath(source);
+        String to = this.locationManager.getRelativePath(destination);
+        if ((from == null) || (to == null)) return;
+        if ((from.length() == 0) || (to.length() == 0)) return;
+        if (destination.isDirectory()) {
+            from += "/";
+            to += "/";
+        }
+        for (int x = 0; x < publishers.length; x ++) {
+            publishers[x].move(from, to);
+        }
+    }
+
+    /**
+     * <p>Bring all configured locations in line with the export root,
+     * deleting all remote resources which do not exist locally.</p>
+     * 
+     * <p>This is only meant to be invoked when explicitly requested, as it
+     * wipes whatever else is stored remotely; nothing is deleted anyway when
+     * the export root is empty.</p>
+     */
+    public void mirror() {
+        final Publisher publishers[] = this.getPublishers();
+        if (publishers.length == 0) return;
+        final String root = this.configurationManager.getRootPath();
+        if (root == null) return;
+        for (int x = 0; x < publishers.length; x ++) {
+            publishers[x].synchronize(new File(root), true);
+        }
+    }
+
+    /* ====================================================================== */
+    /* PRIVATE METHODS                                                        */
+    /* ====================================================================== */
+
+    /**
+     * <p>Return the {@link Publisher}s for all configured locations,
+     * re-creating them when the configuration changes.</p>
+     * 
+     * <p>Locations for which no {@link Publisher} can be created are logged
+     * and skipped, without preventing publication to the other ones.</p>
+     */
+    private synchronized Publisher[] getPublishers() {
+        final String locations = this.configurationManager.getPublishLocations();
+        if (locations == null ? this.locations == null : locations.equals(this.locations))
+            return this.publishers;
+
+        for (int x = 0; x < this.publishers.length; x ++) {
+            this.publishers[x].shutdown();
+        }
+
+        /* New publishers catch up with whatever was exported before */
+        final String root = this.configurationManager.getRootPath();
+        final List list = new ArrayList();
+        if (locations != null) {
+            final StringTokenizer tokenizer = new StringTokenizer(locations);
+            while (tokenizer.hasMoreTokens()) {
+                final String token = tokenizer.nextToken();
+                final Publisher publisher;
+                try {
+                    final Location location = Location.parse(token);
+                    publisher = "s3".equals(location.getScheme()) ?
+                                (Publisher) new S3Publisher(location, THREADS) :
+                                new WebDavPublisher(location, THREADS);
+                } catch (RuntimeException exception) {
+                    final Object args[] = new Object[] { token, exception.getMessage() };
+                    this.log.warn(this.localizeMessage("err.publishing", args), exception);
+                    continue;
+                }
+                if (root != null) publisher.synchronize(new File(root), false);
+                list.add(publisher);
+                final Object args[] = new Object[] { publisher.getLocation() };
+                this.log.info(this.localizeMessage("msg.publishing", args));
+            }
+        }
+
+        this.locations = locations;
+        this.publishers = (Publisher []) list.toArray(new Publisher[list.size()]);
+        return this.publishers;
+    }
+}
@@ -0,0 +1,727 @@
+/* ========================================================================== *
+ *   Copyright (c) 2006, Pier Paolo Fumagalli <mailto:pier@betaversion.org>   *
+ *                            All rights reserved.                            *
+ * ========================================================================== *
+ *                                                                            * 
+ * Redistribution and use in source and binary forms, with or without modifi- *
+ * cation, are permitted provided that the following conditions are met:      *
+ *                                                                            * 
+ *  - Redistributions of source code must retain the  above copyright notice, *
+ *    this list of conditions and the following disclaimer.                   *
+ *                                                                            * 
+ *  - Redistributions  in binary  form  must  reproduce the  above  copyright *
+ *    notice,  this list of conditions  and the following  disclaimer  in the *
+ *    documentation and/or other materials provided with the distribution.    *
+ *                                                                            * 
+ *  - Neither the name of Pier Fumagalli, nor the names of other contributors *
+ *    may be used to endorse  or promote products derived  from this software *
+ *    without specific prior written permission.                              *
+ *                                                                            * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS "AS IS" *
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES,  INCLUDING, BUT NOT LIMITED TO, THE *
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE *
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER  OR CONTRIBUTORS BE *
+ * LIABLE  FOR ANY  DIRECT,  INDIRECT,  INCIDENTAL,  SPECIAL,  EXEMPLARY,  OR *
+ * CONSEQUENTIAL  DAMAGES  (INCLUDING,  BUT  NOT LIMITED  TO,  PROCUREMENT OF *
+ * SUBSTITUTE GOODS OR SERVICES;  LOSS OF USE, DATA, OR PROFITS;  OR BUSINESS *
+ * INTERRUPTION)  HOWEVER CAUSED AND ON  ANY THEORY OF LIABILITY,  WHETHER IN *
+ * CONTRACT,  STRICT LIABILITY,  OR TORT  (INCLUDING NEGLIGENCE OR OTHERWISE) *
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE *
+ * POSSIBILITY OF SUCH DAMAGE.                                                *
+ * ========================================================================== */
+package it.could.confluence.autoexport;
+
+import it.could.confluence.autoexport.engine.DeferredTask;
+import it.could.confluence.localization.LocalizedComponent;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.atlassian.confluence.pages.AbstractPage;
+
+/**
+ * <p>The {@link SearchIndexManager} maintains a static full-text index of
+ * every exported space, which can be downloaded and searched by client-side
+ * scripts in the exported site.</p>
+ * 
+ * <p>The index of a space lives in the <code>resources/search/</code>
+ * directory of the space and is made of a <code>docs.json</code> file and a
+ * number of <code>shard-N.json</code> files:</p>
+ * 
+ * <ul>
+ *   <li><code>docs.json</code> contains the number of shards, the path of
+ *       the export root relative to the index directory and an array of
+ *       documents (each one an array of path and title) indexed by document
+ *       number (removed documents are <code>null</code>).</li>
+ *   <li><code>shard-N.json</code> maps every term whose {@link #shard(String,
+ *       int) hash} falls in shard <code>N</code> to an array of alternating
+ *       document numbers and term frequencies.</li>
+ * </ul>
+ * 
+ * <p>The index is updated incrementally: the postings of a space are loaded
+ * once from the existing files and kept in memory, and only modified shards
+ * are written in batches a few seconds after the last change. The number of
+ * shards of a space is doubled whenever shards grow bigger than
+ * {@link #MAX_SHARD_SIZE} bytes, so that each one stays quick to
+ * download.</p>
+ */
+public class SearchIndexManager extends LocalizedComponent {
+
+    /** <p>The directory (in space resources) holding the index.</p> */
+    public static final String INDEX_DIR = "search/";
+
+    /** <p>The initial number of shards (must be a power of two).</p> */
+    private static final int MIN_SHARDS = 8;
+    /** <p>The maximum number of shards (must be a power of two).</p> */
+    private static final int MAX_SHARDS = 4096;
+    /** <p>The approximate maximum size of a shard in bytes.</p> */
+    private static final int MAX_SHARD_SIZE = 65536;
+    /** <p>The minimum length of an indexed term.</p> */
+    private static final int MIN_TERM_LENGTH = 2;
+    /** <p>The maximum length of an indexed term.</p> */
+    private static final int MAX_TERM_LENGTH = 32;
+    /** <p>The delay in milliseconds before writing modified shards.</p> */
+    private static final long FLUSH_DELAY = 10000;
+    /** <p>The encoding used to read and write the index.</p> */
+    private static final String ENCODING = "UTF-8";
+    /** <p>Common english words not worth indexing.</p> */
+    private static final Set STOP_WORDS = new HashSet(Arrays.asList(new String[] {
+        "an", "and", "are", "as", "at", "be", "but", "by", "for", "if", "in",
+        "into", "is", "it", "no", "not", "of", "on", "or", "such", "that",
+        "the", "their", "then", "there", "these", "they", "this", "to", "was",
+        "will", "with" }));
+
+    /** <p>The {@link LocationManager} used by this instance.</p> */
+    private final LocationManager locationManager;
+    /** <p>The {@link PublishManager} uploading written shards.</p> */
+    private final PublishManager publishManager;
+    /** <p>The {@link DeferredTask} batching writes of modified shards.</p> */
+    private final DeferredTask flusher;
+    /** <p>A {@link Map} of space keys to {@link Index} instances.</p> */
+    private final Map indexes = new HashMap();
+    /** <p>The lock serializing writes of shards to disk.</p> */
+    private final Object flushLock = new Object();
+
+    /** <p>Create a new {@link SearchIndexManager} instance.</p> */
+    public SearchIndexManager(LocationManager locationManager,
+                              PublishManager publishManager) {
+        this.locationManager = locationManager;
+        this.publishManager = publishManager;
+        this.flusher = new DeferredTask(new Runnable() {
+            public void run() {
+                SearchIndexManager.this.flush();
+            }
+        }, FLUSH_DELAY);
+
+        this.log.info("Instance created");
+    }
+
+    /* ====================================================================== */
+    /* PUBLIC METHODS                                                         */
+    /* ====================================================================== */
+
+    /**
+     * <p>Index the specified page given its rendered XHTML body.</p>
+     */
+    public void update(AbstractPage page, String body) {
+        if (page == null) return;
+        final String path = this.locationManager.getRelativeLocation(page).toString();
+        final String title = page.getTitle();
+
+        /* Tokenize outside of the lock, this is where time is spent */
+        final Map terms = new HashMap();
+        tokenize(title, false, terms);
+        tokenize(body, true, terms);
+
+        synchronized (this) {
+            this.getIndex(page.getSpaceKey()).update(path, title, terms);
+        }
+        this.flusher.schedule();
+    }
+
+    /**
+     * <p>Remove the page identified by the specified path (relative to the
+     * root of the exported content) from the index.</p>
+     */
+    public void remove(String spaceKey, String path) {
+        synchronized (this) {
+            if (! this.getIndex(spaceKey).remove(path)) return;
+        }
+        this.flusher.schedule();
+    }
+
+    /**
+     * <p>Immediately write all modified shards of all indexes.</p>
+     * 
+     * <p>The contents of modified shards are collected while holding the
+     * lock guarding the indexes, but written to disk (and published) after
+     * releasing it, so that pages can be indexed in the meantime.</p>
+     */
+    public void flush() {
+        synchronized (this.flushLock) {
+            final Map snapshots = new HashMap();
+            synchronized (this) {
+                final Iterator iterator = this.indexes.values().iterator();
+                while (iterator.hasNext()) {
+                    final Index index = (Index) iterator.next();
+                    snapshots.put(index, index.snapshot());
+                }
+            }
+
+            final Iterator iterator = snapshots.entrySet().iterator();
+            while (iterator.hasNext()) {
+                final Map.Entry entry = (Map.Entry) iterator.next();
+                final Index index = (Index) entry.getKey();
+                try {
+                    final Iterator files = ((Map) entry.getValue()).entrySet().iterator();
+                    while (files.hasNext()) {
+                        final Map.Entry file = (Map.Entry) files.next();
+                        this.write((File) file.getKey(), format(file.getValue()));
+                    }
+                } catch (IOException exception) {
+                    final Object args[] = new Object[] { index.spaceKey };
+                    final String message = this.localizeMessage("err.writing", args);
+                    this.log.warn(message, exception);
+                    synchronized (this) {
+                        index.invalidate();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * <p>Return the number of the shard holding the specified term.</p>
+     * 
+     * <p>Client-side code must compute the same value, that is the lowest
+     * bits of the term's {@link String#hashCode() Java hash code}
+     * (<code>h = 31 * h + c</code> over all UTF-16 characters of the term,
+     * using 32 bits integer arithmetics).</p>
+     */
+    public static int shard(String term, int shards) {
+        return term.hashCode() & (shards - 1);
+    }
+
+    /* ====================================================================== */
+    /* PRIVATE METHODS                                                        */
+    /* ====================================================================== */
+
+    /**
+     * <p>Return the {@link Index} of the specified space, loading it from
+     * disk if this is the first time the space is accessed.</p>
+     */
+    private Index getIndex(String spaceKey) {
+        Index index = (Index) this.indexes.get(spaceKey);
+        if (index == null) {
+            index = new Index(spaceKey);
+            try {
+                index.read();
+            } catch (Exception exception) {
+                final Object args[] = new Object[] { spaceKey };
+                final String message = this.localizeMessage("err.reading", args);
+                this.log.warn(message, exception);
+                index = new Index(spaceKey);
+                index.modifiedDocs = true;
+            }
+            this.indexes.put(spaceKey, index);
+        }
+        return index;
+    }
+
+    /**
+     * <p>Extract all terms from the specified text (skipping markup if the
+     * text is XHTML) counting their occurrences in a {@link Map}.</p>
+     */
+    private static void tokenize(String text, boolean markup, Map terms) {
+        if (text == null) return;
+        final int length = text.length();
+        final char buffer[] = new char[MAX_TERM_LENGTH];
+        int size = 0;
+        boolean overflow = false;
+
+        for (int x = 0; x <= length; x ++) {
+            final char c = x < length ? text.charAt(x) : ' ';
+
+            if (Character.isLetterOrDigit(c)) {
+                if (size < MAX_TERM_LENGTH) buffer[size ++] = Character.toLowerCase(c);
+                else overflow = true;
+                continue;
+            }
+
+            /* Any other character terminates the current term */
+            if ((size >= MIN_TERM_LENGTH) && (! overflow)) {
+                final String term = new String(buffer, 0, size);
+                if (! STOP_WORDS.contains(term)) {
+                    final int count[] = (int []) terms.get(term);
+                    if (count == null) terms.put(term, new int[] { 1 });
+                    else count[0] ++;
+                }
+            }
+            size = 0;
+            overflow = false;
+
+            /* Skip over tags and entities entirely */
+            if (! markup) continue;
+            if (c == '<') {
+                final int end = text.indexOf('>', x);
+                if (end < 0) break;
+                x = end;
+            } else if (c == '&') {
+                int end = x + 1;
+                while ((end < length) && (end - x < 10) &&
+                       Character.isLetterOrDigit(text.charAt(end))) end ++;
+                if ((end < length) && (text.charAt(end) == ';')) x = end;
+            }
+        }
+    }
+
+    /**
+     * <p>Write the specified {@link String} as a JSON string.</p>
+     */
+    private static void quote(StringBuffer buffer, String string) {
+        buffer.append('"');
+        for (int x = 0; x < string.length(); x ++) {
+            final char c = string.charAt(x);
+            switch (c) {
+                case '"':  buffer.append("\\\""); break;
+                case '\\': buffer.append("\\\\"); break;
+                case '<':  buffer.append("\\u003c"); break;
+                default:
+                    if (c >= 0x20) {
+                        buffer.append(c);
+                    } else {
+                        final String hex = Integer.toHexString(c);
+                        buffer.append("\\u00");
+                        if (hex.length() < 2) buffer.append('0');
+                        buffer.append(hex);
+                    }
+            }
+        }
+        buffer.append('"');
+    }
+
+    /**
+     * <p>Write the contents of a {@link StringBuffer} to the specified
+     * {@link File} through a temporary file, then publish it.</p>
+     */
+    private void write(File file, StringBuffer buffer)
+    throws IOException {
+        final File directory = file.getParentFile();
+        if (! directory.isDirectory()) directory.mkdirs();
+        final File temp = new File(directory, file.getName() + ".tmp");
+        final Writer writer = new OutputStreamWriter(new FileOutputStream(temp), ENCODING);
+        try {
+            writer.write(buffer.toString());
+        } finally {
+            writer.close();
+        }
+        if (file.exists()) file.delete();
+        if (! temp.renameTo(file))
+            throw new IOException("Can't rename " + temp + " to " + file);
+        this.publishManager.publish(file);
+    }
+
+    /**
+     * <p>Format the contents copied by an index snapshot as JSON: a
+     * {@link Map} of terms to postings for shards, or an array holding the
+     * number of shards and the {@link List} of documents.</p>
+     */
+    private static StringBuffer format(Object contents) {
+        final StringBuffer buffer = new StringBuffer();
+        if (contents instanceof Map) {
+            buffer.append('{');
+            final Iterator terms = ((Map) contents).entrySet().iterator();
+            for (boolean first = true; terms.hasNext(); first = false) {
+                final Map.Entry term = (Map.Entry) terms.next();
+                if (! first) buffer.append(",\n");
+                quote(buffer, (String) term.getKey());
+                buffer.append(":[");
+                final Iterator documents = ((Map) term.getValue()).entrySet().iterator();
+                for (boolean next = false; documents.hasNext(); next = true) {
+                    final Map.Entry document = (Map.Entry) documents.next();
+                    if (next) buffer.append(',');
+                    buffer.append(document.getKey()).append(',').append(document.getValue());
+                }
+                buffer.append(']');
+            }
+            return buffer.append("}\n");
+        }
+
+        /* Documents list */
+        final Object array[] = (Object []) contents;
+        final List docs = (List) array[1];
+        buffer.append("{\"shards\":").append(array[0]);
+        buffer.append(",\n\"base\":\"../../../\",\n\"docs\":[");
+        for (int x = 0; x < docs.size(); x ++) {
+            final String doc[] = (String []) docs.get(x);
+            if (x > 0) buffer.append(",\n");
+            if (doc == null) {
+                buffer.append("null");
+            } else {
+                buffer.append('[');
+                quote(buffer, doc[0]);
+                buffer.append(',');
+                quote(buffer, doc[1]);
+                buffer.append(']');
+            }
+        }
+        return buffer.append("]}\n");
+    }
+
+    /**
+     * <p>Read the contents of the specified {@link File} as a JSON value or
+     * return <b>null</b> if the file does not exist.</p>
+     */
+    private static Object read(File file)
+    throws IOException {
+        if (! file.isFile()) return null;
+        final Reader reader = new InputStreamReader(new FileInputStream(file), ENCODING);
+        try {
+            final StringBuffer buffer = new StringBuffer((int) file.length());
+            final char chars[] = new char[4096];
+            int length = -1;
+            while ((length = reader.read(chars)) >= 0) buffer.append(chars, 0, length);
+            return new Parser(buffer.toString()).parse();
+        } finally {
+            reader.close();
+        }
+    }
+
+    /* ====================================================================== */
+    /* INTERNAL CLASSES                                                       */
+    /* ====================================================================== */
+
+    /**
+     * <p>The in-memory representation of the index of a single space.</p>
+     */
+    private final class Index {
+
+        /** <p>The key of the space indexed by this instance.</p> */
+        private final String spaceKey;
+        /** <p>The {@link List} of documents as <code>String[2]</code>.</p> */
+        private final List docs = new ArrayList();
+        /** <p>A {@link Map} of paths to document numbers.</p> */
+        private final Map numbers = new HashMap();
+        /** <p>A {@link Map} of document numbers to arrays of terms.</p> */
+        private final Map documentTerms = new HashMap();
+        /** <p>A {@link Map} of terms to maps of document numbers/counts.</p> */
+        private final Map postings = new HashMap();
+        /** <p>The {@link Set} of numbers of shards to be written.</p> */
+        private final Set modifiedShards = new HashSet();
+        /** <p>Whether the documents list must be written.</p> */
+        private boolean modifiedDocs = false;
+        /** <p>The current number of shards.</p> */
+        private int shards = MIN_SHARDS;
+        /** <p>The approximate size of all shards in bytes.</p> */
+        private long size = 0;
+
+        private Index(String spaceKey) {
+            this.spaceKey = spaceKey;
+        }
+
+        private File getFile(String name) {
+            return SearchIndexManager.this.locationManager.getResourceFile(
+                                               this.spaceKey, INDEX_DIR + name);
+        }
+
+        private File getShardFile(int shard) {
+            return this.getFile("shard-" + shard + ".json");
+        }
+
+        /** <p>Replace all postings associated with the specified path.</p> */
+        private void update(String path, String title, Map terms) {
+            final Integer number = this.remove(path, false);
+            this.docs.set(number.intValue(), new String[] { path, title });
+            this.modifiedDocs = true;
+
+            final String array[] = new String[terms.size()];
+            final Iterator iterator = terms.entrySet().iterator();
+            for (int x = 0; iterator.hasNext(); x ++) {
+                final Map.Entry entry = (Map.Entry) iterator.next();
+                final String term = (String) entry.getKey();
+                final int count = ((int []) entry.getValue())[0];
+                this.addPosting(term, number, count);
+                array[x] = term;
+            }
+            this.documentTerms.put(number, array);
+        }
+
+        /** <p>Remove all postings associated with the specified path.</p> */
+        private boolean remove(String path) {
+            if (! this.numbers.containsKey(path)) return false;
+            this.remove(path, true);
+            return true;
+        }
+
+        /**
+         * <p>Remove all postings associated with the specified path and
+         * return its document number (allocating one if needed).</p>
+         */
+        private Integer remove(String path, boolean forget) {
+            Integer number = (Integer) this.numbers.get(path);
+            if (number == null) {
+                /* Reuse the number of a removed document if possible */
+                final int free = this.docs.indexOf(null);
+                if (free >= 0) {
+                    number = new Integer(free);
+                } else {
+                    number = new Integer(this.docs.size());
+                    this.docs.add(null);
+                }
+                this.numbers.put(path, number);
+                return number;
+            }
+
+            final String terms[] = (String []) this.documentTerms.remove(number);
+            if (terms != null) for (int x = 0; x < terms.length; x ++) {
+                final Map documents = (Map) this.postings.get(terms[x]);
+                if ((documents == null) || (documents.remove(number) == null)) continue;
+                this.size -= 8;
+                if (documents.isEmpty()) {
+                    this.postings.remove(terms[x]);
+                    this.size -= terms[x].length() + 6;
+                }
+                this.modifiedShards.add(new Integer(shard(terms[x], this.shards)));
+            }
+
+            if (forget) {
+                this.numbers.remove(path);
+                this.docs.set(number.intValue(), null);
+                this.modifiedDocs = true;
+            }
+            return number;
+        }
+
+        /** <p>Add a single posting for the specified term.</p> */
+        private void addPosting(String term, Integer number, int count) {
+            Map documents = (Map) this.postings.get(term);
+            if (documents == null) {
+                documents = new HashMap();
+                this.postings.put(term, documents);
+                this.size += term.length() + 6;
+            }
+            documents.put(number, new Integer(count));
+            this.size += 8;
+            this.modifiedShards.add(new Integer(shard(term, this.shards)));
+        }
+
+        /** <p>Load the index from disk.</p> */
+        private void read()
+        throws IOException {
+            final Map root = (Map) SearchIndexManager.read(this.getFile("docs.json"));
+            if (root == null) return;
+            this.shards = ((Long) root.get("shards")).intValue();
+
+            final List list = (List) root.get("docs");
+            for (int x = 0; x < list.size(); x ++) {
+                final List doc = (List) list.get(x);
+                if (doc == null) {
+                    this.docs.add(null);
+                } else {
+                    final String path = (String) doc.get(0);
+                    this.docs.add(new String[] { path, (String) doc.get(1) });
+                    this.numbers.put(path, new Integer(x));
+                }
+            }
+
+            /* Rebuild the postings and the terms of each document */
+            final Map terms = new HashMap();
+            for (int x = 0; x < this.shards; x ++) {
+                final Map shard = (Map) SearchIndexManager.read(this.getShardFile(x));
+                if (shard == null) continue;
+                final Iterator iterator = shard.entrySet().iterator();
+                while (iterator.hasNext()) {
+                    final Map.Entry entry = (Map.Entry) iterator.next();
+                    final String term = (String) entry.getKey();
+                    final List values = (List) entry.getValue();
+                    for (int y = 0; y + 1 < values.size(); y += 2) {
+                        final Integer number = new Integer(((Long) values.get(y)).intValue());
+                        final int count = ((Long) values.get(y + 1)).intValue();
+                        this.addPosting(term, number, count);
+                        List list2 = (List) terms.get(number);
+                        if (list2 == null) terms.put(number, list2 = new ArrayList());
+                        list2.add(term);
+                    }
+                }
+            }
+            final Iterator iterator = terms.entrySet().iterator();
+            while (iterator.hasNext()) {
+                final Map.Entry entry = (Map.Entry) iterator.next();
+                final List list2 = (List) entry.getValue();
+                this.documentTerms.put(entry.getKey(),
+                              list2.toArray(new String[list2.size()]));
+            }
+            this.modifiedShards.clear();
+        }
+
+        /** <p>Mark all shards and documents as modified.</p> */
+        private void invalidate() {
+            for (int x = 0; x < this.shards; x ++) this.modifiedShards.add(new Integer(x));
+            this.modifiedDocs = true;
+        }
+
+        /**
+         * <p>Return copies of the contents of all modified shards and
+         * documents as a {@link Map} of {@link File}s to contents to be
+         * {@link SearchIndexManager#format(Object) formatted} and written in
+         * iteration order, and forget about modifications.</p>
+         */
+        private Map snapshot() {
+            final Map files = new LinkedHashMap();
+            /* Split shards if they are growing too big */
+            int shards = this.shards;
+            while ((this.size / shards > MAX_SHARD_SIZE) && (shards < MAX_SHARDS))
+                shards *= 2;
+            if (shards != this.shards) {
+                this.shards = shards;
+                this.modifiedDocs = true;
+                for (int x = 0; x < shards; x ++) this.modifiedShards.add(new Integer(x));
+            }
+            if (this.modifiedShards.isEmpty() && (! this.modifiedDocs)) return files;
+
+            /* Collect the terms of all shards to be written */
+            final Map contents = new HashMap();
+            final Iterator shardsIterator = this.modifiedShards.iterator();
+            while (shardsIterator.hasNext()) contents.put(shardsIterator.next(), new ArrayList());
+            final Iterator terms = this.postings.keySet().iterator();
+            while (terms.hasNext()) {
+                final String term = (String) terms.next();
+                final List list = (List) contents.get(new Integer(shard(term, shards)));
+                if (list != null) list.add(term);
+            }
+
+            /* Copy the postings of each shard, formatted later */
+            final Iterator iterator = contents.entrySet().iterator();
+            while (iterator.hasNext()) {
+                final Map.Entry entry = (Map.Entry) iterator.next();
+                final int shard = ((Integer) entry.getKey()).intValue();
+                final List list = (List) entry.getValue();
+                final Map copy = new LinkedHashMap();
+                for (int x = 0; x < list.size(); x ++) {
+                    final String term = (String) list.get(x);
+                    copy.put(term, new LinkedHashMap((Map) this.postings.get(term)));
+                }
+                files.put(this.getShardFile(shard), copy);
+            }
+            this.modifiedShards.clear();
+
+            /* Write the documents list last, as it holds the shards count */
+            if (! this.modifiedDocs) return files;
+            files.put(this.getFile("docs.json"), new Object[] {
+                          new Integer(shards), new ArrayList(this.docs) });
+            this.modifiedDocs = false;
+            return files;
+        }
+    }
+
+    /**
+     * <p>A minimal JSON parser, only used to read back the index files
+     * written by this class.</p>
+     */
+    private static final class Parser {
+
+        private final String text;
+        private int position = 0;
+
+        private Parser(String text) {
+            this.text = text;
+        }
+
+        private Object parse()
+        throws IOException {
+            final char c = this.next();
+            switch (c) {
+                case '{': {
+                    final Map map = new HashMap();
+                    if (this.peek() == '}') { this.position ++; return map; }
+                    do {
+                        if (this.next() != '"') throw this.error();
+                        final String key = this.string();
+                        if (this.next() != ':') throw this.error();
+                        map.put(key, this.parse());
+                    } while (this.next() == ',');
+                    if (this.text.charAt(this.position - 1) != '}') throw this.error();
+                    return map;
+                }
+                case '[': {
+                    final List list = new ArrayList();
+                    if (this.peek() == ']') { this.position ++; return list; }
+                    do {
+                        list.add(this.parse());
+                    } while (this.next() == ',');
+                    if (this.text.charAt(this.position - 1) != ']') throw this.error();
+                    return list;
+                }
+                case '"':
+                    return this.string();
+                case 'n':
+                    if (! this.text.startsWith("ull", this.position)) throw this.error();
+                    this.position += 3;
+                    return null;
+                default:
+                    if ((c != '-') && ((c < '0') || (c > '9'))) throw this.error();
+                    final int start = this.position - 1;
+                    while ((this.position < this.text.length()) &&
+                           Character.isDigit(this.text.charAt(this.position)))
+                        this.position ++;
+                    return new Long(this.text.substring(start, this.position));
+            }
+        }
+
+        private String string()
+        throws IOException {
+            final StringBuffer buffer = new StringBuffer();
+            while (true) {
+                if (this.position >= this.text.length()) throw this.error();
+                final char c = this.text.charAt(this.position ++);
+                if (c == '"') return buffer.toString();
+                if (c != '\\') {
+                    buffer.append(c);
+                    continue;
+                }
+                final char e = this.text.charAt(this.position ++);
+                if (e == 'u') {
+                    final String hex = this.text.substring(this.position, this.position + 4);
+                    buffer.append((char) Integer.parseInt(hex, 16));
+                    this.position += 4;
+                } else {
+                    buffer.append(e);
+                }
+            }
+        }
+
+        private char peek() {
+            while ((this.position < this.text.length()) &&
+                   Character.isWhitespace(this.text.charAt(this.position)))
+                this.position ++;
+            return this.position < this.text.length() ? this.text.charAt(this.position) : 0;
+        }
+
+        private char next()
+        throws IOException {
+            final char c = this.peek();
+            if (c == 0) throw this.error();
+            this.position ++;
+            return c;
+        }
+
+        private IOException error() {
+            return new IOException("Invalid index data at offset " + this.position);
+        }
+    }
+}
@@ -0,0 +1,430 @@
+/* ========================================================================== *
+ *   Copyright (c) 2006, Pier Paolo Fumagalli <mailto:pier@betaversion.org>   *
+ *                            All rights reserved.                            *
+ * ========================================================================== *
+ *                                                                            * 
+ * Redistribution and use in source and binary forms, with or without modifi- *
+ * cation, are permitted provided that the following conditions are met:      *
+ *                                                                            * 
+ *  - Redistributions of source code must retain the  above copyright notice, *
+ *    this list of conditions and the following disclaimer.                   *
+ *                                                                            * 
+ *  - Redistributions  in binary  form  must  reproduce the  above  copyright *
+ *    notice,  this list of conditions  and the following  disclaimer  in the *
+ *    documentation and/or other materials provided with the distribution.    *
+ *                                                                            * 
+ *  - Neither the name of Pier Fumagalli, nor the names of other contributors *
+ *    may be used to endorse  or promote products derived  from this software *
+ *    without specific prior written permission.                              *
+ *                                                                            * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS "AS IS" *
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES,  INCLUDING, BUT NOT LIMITED TO, THE *
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE *
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER  OR CONTRIBUTORS BE *
+ * LIABLE  FOR ANY  DIRECT,  INDIRECT,  INCIDENTAL,  SPECIAL,  EXEMPLARY,  OR *
+ * CONSEQUENTIAL  DAMAGES  (INCLUDING,  BUT  NOT LIMITED  TO,  PROCUREMENT OF *
+ * SUBSTITUTE GOODS OR SERVICES;  LOSS OF USE, DATA, OR PROFITS;  OR BUSINESS *
+ * INTERRUPTION)  HOWEVER CAUSED AND ON  ANY THEORY OF LIABILITY,  WHETHER IN *
+ * CONTRACT,  STRICT LIABILITY,  OR TORT  (INCLUDING NEGLIGENCE OR OTHERWISE) *
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE *
+ * POSSIBILITY OF SUCH DAMAGE.                                                *
+ * ========================================================================== */
+package it.could.confluence.autoexport;
+
+import it.could.confluence.autoexport.engine.DeferredTask;
+import it.could.confluence.localization.LocalizedComponent;
+import it.could.util.StringTools;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.helpers.DefaultHandler;
+
+import com.atlassian.confluence.pages.AbstractPage;
+
+/**
+ * <p>The {@link SitemapManager} maintains a <code>sitemap.xml</code> file for
+ * each exported space and a sitemap index at the root of the exported
+ * content, as described by the <a href="http://www.sitemaps.org/">Sitemaps
+ * protocol</a>.</p>
+ * 
+ * <p>Sitemaps are updated incrementally: the entries of a space are loaded
+ * once from the existing files and kept in memory, and modified files are
+ * written in batches a few seconds after the last change.</p>
+ * 
+ * <p>As the Sitemaps protocol requires absolute URLs, nothing is written
+ * unless the {@link ConfigurationManager#getSiteUrl() site URL} has been
+ * configured.</p>
+ */
+public class SitemapManager extends LocalizedComponent {
+
+    /** <p>The name of each space's sitemap and of the sitemap index.</p> */
+    public static final String SITEMAP = "sitemap.xml";
+
+    /** <p>The namespace of all sitemap elements.</p> */
+    private static final String NAMESPACE = "http://www.sitemaps.org/schemas/sitemap/0.9";
+    /** <p>The maximum number of URLs allowed in a single sitemap file.</p> */
+    private static final int MAX_ENTRIES = 50000;
+    /** <p>The delay in milliseconds before writing modified sitemaps.</p> */
+    private static final long FLUSH_DELAY = 10000;
+    /** <p>The encoding used to write sitemaps.</p> */
+    private static final String ENCODING = "UTF-8";
+
+    /** <p>The {@link ConfigurationManager} used by this instance.</p> */
+    private final ConfigurationManager configurationManager;
+    /** <p>The {@link LocationManager} used by this instance.</p> */
+    private final LocationManager locationManager;
+    /** <p>The {@link PublishManager} uploading written sitemaps.</p> */
+    private final PublishManager publishManager;
+    /** <p>The {@link DeferredTask} batching writes of modified sitemaps.</p> */
+    private final DeferredTask flusher;
+
+    /** <p>A {@link Map} of space keys to sorted maps of paths and dates.</p> */
+    private final Map sitemaps = new HashMap();
+    /** <p>The {@link Set} of keys of spaces whose sitemap was modified.</p> */
+    private final Set modified = new HashSet();
+    /** <p>The lock serializing writes of sitemaps to disk.</p> */
+    private final Object flushLock = new Object();
+    /** <p>The site URL the entries in {@link #sitemaps} were loaded for.</p> */
+    private String siteUrl = null;
+
+    /** <p>Create a new {@link SitemapManager} instance.</p> */
+    public SitemapManager(ConfigurationManager configurationManager,
+                          LocationManager locationManager,
+                          PublishManager publishManager) {
+        this.configurationManager = configurationManager;
+        this.locationManager = locationManager;
+        this.publishManager = publishManager;
+        this.flusher = new DeferredTask(new Runnable() {
+            public void run() {
+                SitemapManager.this.flush();
+            }
+        }, FLUSH_DELAY);
+
+        this.log.info("Instance created");
+    }
+
+    /* ====================================================================== */
+    /* PUBLIC METHODS                                                         */
+    /* ====================================================================== */
+
+    /**
+     * <p>Record that the specified page was exported.</p>
+     */
+    public void update(AbstractPage page) {
+        if (page == null) return;
+        final String path = this.locationManager.getRelativeLocation(page).toString();
+        Date lastModified = page.getLastModificationDate();
+        if (lastModified == null) lastModified = page.getCreationDate();
+        this.update(page.getSpaceKey(), path, lastModified);
+    }
+
+    /**
+     * <p>Record that the page identified by the specified path (relative to
+     * the root of the exported content) was exported.</p>
+     */
+    public synchronized void update(String spaceKey, String path, Date lastModified) {
+        final Map entries = this.getEntries(spaceKey);
+        if (entries == null) return;
+        if (lastModified == null) lastModified = new Date();
+        entries.put(path, lastModified);
+        this.modified.add(spaceKey);
+        this.flusher.schedule();
+    }
+
+    /**
+     * <p>Record that the page identified by the specified path (relative to
+     * the root of the exported content) was removed.</p>
+     */
+    public synchronized void remove(String spaceKey, String path) {
+        final Map entries = this.getEntries(spaceKey);
+        if (entries == null) return;
+        if (entries.remove(path) == null) return;
+        this.modified.add(spaceKey);
+        this.flusher.schedule();
+    }
+
+    /**
+     * <p>Immediately write all modified sitemaps and the sitemap index.</p>
+     * 
+     * <p>Only copies of the modified entries are taken while holding this
+     * instance's monitor: files are written (and published) without it, so
+     * that exports recording their pages never wait for the disk.</p>
+     */
+    public void flush() {
+        synchronized (this.flushLock) {
+            final Map snapshots = new HashMap();
+            final String siteUrl;
+            synchronized (this) {
+                if (this.modified.isEmpty()) return;
+                if (this.siteUrl == null) return;
+                siteUrl = this.siteUrl;
+
+                final Iterator iterator = this.modified.iterator();
+                while (iterator.hasNext()) {
+                    final String spaceKey = (String) iterator.next();
+                    final Map entries = (Map) this.sitemaps.get(spaceKey);
+                    snapshots.put(spaceKey, new TreeMap(entries));
+                }
+                this.modified.clear();
+            }
+
+            final Iterator iterator = snapshots.entrySet().iterator();
+            while (iterator.hasNext()) {
+                final Map.Entry entry = (Map.Entry) iterator.next();
+                final String spaceKey = (String) entry.getKey();
+                try {
+                    this.writeSitemap(siteUrl, spaceKey, (Map) entry.getValue());
+                } catch (IOException exception) {
+                    final Object args[] = new Object[] { spaceKey };
+                    final String message = this.localizeMessage("err.writing", args);
+                    this.log.warn(message, exception);
+
+                    /* Try again with the next flush, unless the URL changed */
+                    synchronized (this) {
+                        if (siteUrl.equals(this.siteUrl)) this.modified.add(spaceKey);
+                    }
+                }
+            }
+
+            try {
+                this.writeIndex(siteUrl);
+            } catch (IOException exception) {
+                final String message = this.localizeMessage("err.writing-index");
+                this.log.warn(message, exception);
+            }
+        }
+    }
+
+    /* ====================================================================== */
+    /* PRIVATE METHODS                                                        */
+    /* ====================================================================== */
+
+    /**
+     * <p>Return the entries of the sitemap for the specified space, loading
+     * them if required, or <b>null</b> if no site URL was configured.</p>
+     */
+    private Map getEntries(String spaceKey) {
+        final String siteUrl = this.configurationManager.getSiteUrl();
+        if (siteUrl == null) return null;
+
+        /* If the site URL changed, all our entries are now invalid */
+        if (! siteUrl.equals(this.siteUrl)) {
+            this.sitemaps.clear();
+            this.modified.clear();
+            this.siteUrl = siteUrl;
+        }
+
+        Map entries = (Map) this.sitemaps.get(spaceKey);
+        if (entries == null) {
+            entries = new TreeMap();
+            for (int x = 1; ; x ++) {
+                final File file = this.getSitemapFile(spaceKey, x);
+                if (! file.isFile()) break;
+                this.readSitemap(file, entries);
+            }
+            this.sitemaps.put(spaceKey, entries);
+        }
+        return entries;
+    }
+
+    /**
+     * <p>Return the {@link File} of the n-th sitemap for a space.</p>
+     */
+    private File getSitemapFile(String spaceKey, int number) {
+        final String name = number == 1 ? SITEMAP : "sitemap-" + number + ".xml";
+        return this.locationManager.getFile(spaceKey + "/" + name);
+    }
+
+    /**
+     * <p>Read the entries of an existing sitemap in the specified
+     * {@link Map}, ignoring any URL not under the current site URL.</p>
+     */
+    private void readSitemap(File file, final Map entries) {
+        final String siteUrl = this.siteUrl;
+        try {
+            final SAXParserFactory factory = SAXParserFactory.newInstance();
+            factory.setValidating(false);
+            factory.setNamespaceAware(true);
+            final SAXParser parser = factory.newSAXParser();
+            parser.parse(file, new DefaultHandler() {
+                private final StringBuffer buffer = new StringBuffer();
+                private String loc = null;
+                private Date lastmod = null;
+
+                public void startElement(String uri, String l, String q, Attributes a) {
+                    this.buffer.setLength(0);
+                    if ("url".equals(l)) {
+                        this.loc = null;
+                        this.lastmod = null;
+                    }
+                }
+
+                public void endElement(String uri, String l, String q) {
+                    final String data = this.buffer.toString().trim();
+                    this.buffer.setLength(0);
+                    if ("loc".equals(l)) {
+                        this.loc = data;
+                    } else if ("lastmod".equals(l)) {
+                        this.lastmod = StringTools.parseIsoDate(data);
+                    } else if ("url".equals(l)) {
+                        if ((this.loc == null) || (! this.loc.startsWith(siteUrl))) return;
+                        final String path = this.loc.substring(siteUrl.length());
+                        entries.put(path, this.lastmod == null ? new Date() : this.lastmod);
+                    }
+                }
+
+                public void characters(char chars[], int offset, int length) {
+                    this.buffer.append(chars, offset, length);
+                }
+            });
+        } catch (Exception exception) {
+            final Object args[] = new Object[] { file };
+            final String message = this.localizeMessage("err.reading", args);
+            this.log.warn(message, exception);
+        }
+    }
+
+    /**
+     * <p>Write the sitemap(s) of the specified space with URLs under the
+     * specified site URL, splitting them in multiple files when more than
+     * {@link #MAX_ENTRIES} are present.</p>
+     */
+    private void writeSitemap(String siteUrl, String spaceKey, Map entries)
+    throws IOException {
+        final Iterator iterator = entries.entrySet().iterator();
+        int number = 0;
+        while (iterator.hasNext() || (number == 0)) {
+            final File file = this.getSitemapFile(spaceKey, ++ number);
+            final Writer writer = this.open(file);
+            try {
+                writer.write("<urlset xmlns=\"" + NAMESPACE + "\">\n");
+                for (int x = 0; (x < MAX_ENTRIES) && iterator.hasNext(); x ++) {
+                    final Map.Entry entry = (Map.Entry) iterator.next();
+                    writer.write("  <url><loc>");
+                    writer.write(escape(siteUrl + entry.getKey()));
+                    writer.write("</loc><lastmod>");
+                    writer.write(StringTools.formatIsoDate((Date) entry.getValue()));
+                    writer.write("</lastmod></url>\n");
+                }
+                writer.write("</urlset>\n");
+            } finally {
+                this.close(writer, file);
+            }
+        }
+
+        /* Remove any leftover sitemap from previous (bigger) runs */
+        while (true) {
+            final File file = this.getSitemapFile(spaceKey, ++ number);
+            if (! file.isFile()) break;
+            this.publishManager.remove(file);
+            file.delete();
+        }
+    }
+
+    /**
+     * <p>Write the sitemap index listing the sitemaps of all spaces under the
+     * specified site URL.</p>
+     */
+    private void writeIndex(String siteUrl)
+    throws IOException {
+        final File root = this.locationManager.getFile(SITEMAP);
+        final File directories[] = root.getParentFile().listFiles();
+        if (directories == null) return;
+
+        /* Find out all the sitemaps available for all spaces */
+        final List sitemaps = new ArrayList();
+        for (int x = 0; x < directories.length; x ++) {
+            if (! directories[x].isDirectory()) continue;
+            final String spaceKey = directories[x].getName();
+            for (int y = 1; ; y ++) {
+                final File file = this.getSitemapFile(spaceKey, y);
+                if (! file.isFile()) break;
+                sitemaps.add(spaceKey + "/" + file.getName());
+                sitemaps.add(new Date(file.lastModified()));
+            }
+        }
+
+        final Writer writer = this.open(root);
+        try {
+            writer.write("<sitemapindex xmlns=\"" + NAMESPACE + "\">\n");
+            for (Iterator iterator = sitemaps.iterator(); iterator.hasNext(); ) {
+                final String path = (String) iterator.next();
+                final Date lastModified = (Date) iterator.next();
+                writer.write("  <sitemap><loc>");
+                writer.write(escape(siteUrl + path));
+                writer.write("</loc><lastmod>");
+                writer.write(StringTools.formatIsoDate(lastModified));
+                writer.write("</lastmod></sitemap>\n");
+            }
+            writer.write("</sitemapindex>\n");
+        } finally {
+            this.close(writer, root);
+        }
+    }
+
+    /**
+     * <p>Open a {@link Writer} to a temporary file next to the specified
+     * one and write the XML declaration.</p>
+     */
+    private Writer open(File file)
+    throws IOException {
+        final File directory = file.getParentFile();
+        if (! directory.isDirectory()) directory.mkdirs();
+        final File temp = new File(directory, file.getName() + ".tmp");
+        final FileOutputStream stream = new FileOutputStream(temp);
+        final Writer writer = new OutputStreamWriter(stream, ENCODING);
+        writer.write("<?xml version=\"1.0\" encoding=\"" + ENCODING + "\"?>\n");
+        return writer;
+    }
+
+    /**
+     * <p>Close the {@link Writer} returned by {@link #open(File)} and move
+     * the temporary file in place, so that readers never see partial
+     * sitemaps.</p>
+     */
+    private void close(Writer writer, File file)
+    throws IOException {
+        writer.close();
+        final File temp = new File(file.getParentFile(), file.getName() + ".tmp");
+        if (file.exists()) file.delete();
+        if (! temp.renameTo(file))
+            throw new IOException("Can't rename " + temp + " to " + file);
+        this.publishManager.publish(file);
+    }
+
+    /**
+     * <p>Escape the XML special characters in the specified {@link String}.</p>
+     */
+    private static String escape(String string) {
+        final StringBuffer buffer = new StringBuffer(string.length() + 16);
+        for (int x = 0; x < string.length(); x ++) {
+            final char character = string.charAt(x);
+            switch (character) {
+                case '&':  buffer.append("&amp;"); break;
+                case '<':  buffer.append("&lt;"); break;
+                case '>':  buffer.append("&gt;"); break;
+                case '"':  buffer.append("&quot;"); break;
+                case '\'': buffer.append("&apos;"); break;
+                default:   buffer.append(character);
+            }
+        }
+        return buffer.toString();
+    }
+}
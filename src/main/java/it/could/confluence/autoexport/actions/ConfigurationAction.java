@@ -33,12 +33,15 @@ package it.could.confluence.autoexport.actions;
 
 import it.could.confluence.autoexport.ConfigurationManager;
 import it.could.confluence.autoexport.TemplatesManager;
+import it.could.confluence.autoexport.engine.ArchiveSink;
 import it.could.confluence.localization.LocalizedAction;
 import it.could.confluence.localization.LocalizedException;
 
 import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import com.atlassian.confluence.core.Administrative;
 import com.atlassian.confluence.spaces.SpaceManager;
@@ -63,6 +66,12 @@ implements Administrative {
     private String rootPath = null;
     /** <p>The currently configured user name.</p> */
     private String userName = null;
+    /** <p>The currently configured site URL.</p> */
+    private String siteUrl = null;
+    /** <p>The currently configured WebDAV publishing locations.</p> */
+    private String publishLocations = null;
+    /** <p>The currently configured attachment links.</p> */
+    private String attachmentLinks = null;
 
     private static final Log log = LogFactory.getLog(ConfigurationAction.class);
 
@@ -82,6 +91,9 @@ implements Administrative {
         this.encoding = this.configurationManager.getEncoding();
         this.rootPath = this.configurationManager.getRootPath();
         this.userName = this.configurationManager.getUserName();
+        this.siteUrl = this.configurationManager.getSiteUrl();
+        this.publishLocations = this.configurationManager.getPublishLocations();
+        this.attachmentLinks = this.configurationManager.getAttachmentLinks();
         try {
             if (this.configurationManager.isConfigured()) return SUCCESS;
             this.addActionError(this.getText("err.unconfigured"));
@@ -101,11 +113,20 @@ implements Administrative {
             this.configurationManager.validateEncoding(this.encoding);
             this.configurationManager.validateRootPath(this.rootPath);
             this.configurationManager.validateUserName(this.userName);
+            final String siteUrl =
+                this.configurationManager.validateSiteUrl(this.siteUrl);
+            final String publishLocations = this.configurationManager
+                    .validatePublishLocations(this.publishLocations);
+            final String attachmentLinks = this.configurationManager
+                    .validateAttachmentLinks(this.attachmentLinks);
 
             /* Store the current values in the configuration */
             this.configurationManager.setEncoding(this.encoding);
             this.configurationManager.setRootPath(this.rootPath);
             this.configurationManager.setUserName(this.userName);
+            this.configurationManager.setSiteUrl(siteUrl);
+            this.configurationManager.setPublishLocations(publishLocations);
+            this.configurationManager.setAttachmentLinks(attachmentLinks);
 
             /* Save the configuration for when confluence restarts */
             this.configurationManager.save();
@@ -193,6 +214,63 @@ implements Administrative {
         this.userName = userName;
     }
 
+    /**
+     * <p>Parameter value getter.</p>
+     */
+    public String getSiteUrl() {
+        try {
+            return this.configurationManager.validateSiteUrl(this.siteUrl);
+        } catch (LocalizedException exception) {
+            this.addFieldError("siteUrl", exception.getMessage());
+        }
+        return this.siteUrl;
+    }
+
+    /**
+     * <p>Parameter value setter.</p>
+     */
+    public void setSiteUrl(String siteUrl) {
+        this.siteUrl = siteUrl;
+    }
+
+    /**
+     * <p>Parameter value getter.</p>
+     */
+    public String getPublishLocations() {
+        try {
+            return this.configurationManager.validatePublishLocations(this.publishLocations);
+        } catch (LocalizedException exception) {
+            this.addFieldError("publishLocations", exception.getMessage());
+        }
+        return this.publishLocations;
+    }
+
+    /**
+     * <p>Parameter value setter.</p>
+     */
+    public void setPublishLocations(String publishLocations) {
+        this.publishLocations = publishLocations;
+    }
+
+    /**
+     * <p>Parameter value getter.</p>
+     */
+    public String getAttachmentLinks() {
+        try {
+            return this.configurationManager.validateAttachmentLinks(this.attachmentLinks);
+        } catch (LocalizedException exception) {
+            this.addFieldError("attachmentLinks", exception.getMessage());
+        }
+        return this.attachmentLinks;
+    }
+
+    /**
+     * <p>Parameter value setter.</p>
+     */
+    public void setAttachmentLinks(String attachmentLinks) {
+        this.attachmentLinks = attachmentLinks;
+    }
+
     /* ====================================================================== */
     /* OTHER TEMPLATE METHODS                                                 */
     /* ====================================================================== */
@@ -221,6 +299,31 @@ implements Administrative {
         return new ArrayList(Charset.availableCharsets().keySet());
     }
 
+    /**
+     * <p>Return a {@link Map} of ways of linking attachments to their
+     * descriptions, including plain copies.</p>
+     */
+    public Map getLinkModes() {
+        final Map map = new LinkedHashMap();
+        map.put("", this.getText("fld.links-none"));
+        map.put(ConfigurationManager.LINKS_HARD, this.getText("fld.links-hard"));
+        map.put(ConfigurationManager.LINKS_SYMBOLIC, this.getText("fld.links-symbolic"));
+        map.put(ConfigurationManager.LINKS_STORAGE, this.getText("fld.links-storage"));
+        return map;
+    }
+
+    /**
+     * <p>Return a {@link Map} of snapshot archive formats to their
+     * descriptions, including the plain export to the export root.</p>
+     */
+    public Map getSnapshots() {
+        final Map map = new LinkedHashMap();
+        map.put("", this.getText("fld.snapshot-none"));
+        map.put(ArchiveSink.ZIP, this.getText("fld.snapshot-zip"));
+        map.put(ArchiveSink.TAR, this.getText("fld.snapshot-tar"));
+        return map;
+    }
+
     public void setSpaceManager(SpaceManager spaceManager)
     {
         this.spaceManager = spaceManager;
@@ -32,6 +32,7 @@
 package it.could.confluence.autoexport.actions;
 
 import it.could.confluence.autoexport.ExportManager;
+import it.could.confluence.autoexport.engine.ArchiveSink;
 import it.could.confluence.localization.LocalizedAction;
 
 import java.util.ArrayList;
@@ -61,6 +62,8 @@ public class RebuildAction extends LocalizedAction implements Administrative {
 
     /** <p>The array of {@link Space}s to export manually.</p> */
     private String spaces[] = null;
+    /** <p>The format of the snapshot archive, if one was requested.</p> */
+    private String snapshot = null;
     /** <p>The current logging data to show in the template.</p> */
     private String data = null;
     private static final Log log = LogFactory.getLog(RebuildAction.class);
@@ -131,6 +134,7 @@ public class RebuildAction extends LocalizedAction implements Administrative {
                 if (space != null) names[x] = space.getName();
             }
             TASK_INSTANCE = this.executor = new RebuildTask(this.spaces, names,
+                                                     this.snapshot,
                                                      this.exportManager);
             this.executor.getCurrentLog();
         }
@@ -179,6 +183,17 @@ public class RebuildAction extends LocalizedAction implements Administrative {
         this.spaces = spaces;
     }
 
+    /**
+     * <p>Parameter value setter.</p>
+     */
+    public void setSnapshot(String snapshot) {
+        if (ArchiveSink.ZIP.equals(snapshot) || ArchiveSink.TAR.equals(snapshot)) {
+            this.snapshot = snapshot;
+        } else {
+            this.snapshot = null;
+        }
+    }
+
     /* ====================================================================== */
     /* OTHER TEMPLATE METHODS                                                 */
     /* ====================================================================== */
@@ -24,6 +24,8 @@ public  final class RebuildTask implements Runnable, Notifiable
         private final String spaceKeys[];
         /** <p>The names of the {@link com.atlassian.confluence.spaces.Space}s to export.</p> */
         private final String spaceNames[];
+        /** <p>The format of the snapshot archive, or <b>null</b> to export normally.</p> */
+        private final String snapshot;
         /** <p>A flag indicating whether this task is running or not.</p> */
         private boolean started = false;
         /** <p>A flag indicating whether this task is running or not.</p> */
@@ -34,9 +36,20 @@ public  final class RebuildTask implements Runnable, Notifiable
          */
         RebuildTask(String spaceKeys[], String spaceNames[],
                      ExportManager exportManager) {
+            this(spaceKeys, spaceNames, null, exportManager);
+        }
+
+        /**
+         * <p>Create a new {@link RebuildTask} instance rendering the spaces
+         * into a snapshot archive in the specified format, unless it is
+         * <b>null</b>.</p>
+         */
+        RebuildTask(String spaceKeys[], String spaceNames[], String snapshot,
+                     ExportManager exportManager) {
             this.notify("Starting export task for the following spaces:");
             this.spaceKeys = spaceKeys;
             this.spaceNames = spaceNames;
+            this.snapshot = snapshot;
             this.exportManager = exportManager;
 
             /* TODO: This will throw a Hibernate Exception */
@@ -76,7 +89,11 @@ public  final class RebuildTask implements Runnable, Notifiable
                     this.notify(" - " + this.spaceNames[x] +  " [key=" +
                                 this.spaceKeys[x] + "]");
                 }
-                this.exportManager.export(this.spaceKeys, this, true);
+                if (this.snapshot == null) {
+                    this.exportManager.export(this.spaceKeys, this, true);
+                } else {
+                    this.exportManager.snapshot(this.spaceKeys, this.snapshot, this);
+                }
 
             } catch (Throwable throwable) {
                 this.notify(throwable);
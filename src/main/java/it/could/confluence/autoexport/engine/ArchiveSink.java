@@ -0,0 +1,692 @@
+/* ========================================================================== *
+ *   Copyright (c) 2006, Pier Paolo Fumagalli <mailto:pier@betaversion.org>   *
+ *                            All rights reserved.                            *
+ * ========================================================================== *
+ *                                                                            * 
+ * Redistribution and use in source and binary forms, with or without modifi- *
+ * cation, are permitted provided that the following conditions are met:      *
+ *                                                                            * 
+ *  - Redistributions of source code must retain the  above copyright notice, *
+ *    this list of conditions and the following disclaimer.                   *
+ *                                                                            * 
+ *  - Redistributions  in binary  form  must  reproduce the  above  copyright *
+ *    notice,  this list of conditions  and the following  disclaimer  in the *
+ *    documentation and/or other materials provided with the distribution.    *
+ *                                                                            * 
+ *  - Neither the name of Pier Fumagalli, nor the names of other contributors *
+ *    may be used to endorse  or promote products derived  from this software *
+ *    without specific prior written permission.                              *
+ *                                                                            * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS "AS IS" *
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES,  INCLUDING, BUT NOT LIMITED TO, THE *
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE *
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER  OR CONTRIBUTORS BE *
+ * LIABLE  FOR ANY  DIRECT,  INDIRECT,  INCIDENTAL,  SPECIAL,  EXEMPLARY,  OR *
+ * CONSEQUENTIAL  DAMAGES  (INCLUDING,  BUT  NOT LIMITED  TO,  PROCUREMENT OF *
+ * SUBSTITUTE GOODS OR SERVICES;  LOSS OF USE, DATA, OR PROFITS;  OR BUSINESS *
+ * INTERRUPTION)  HOWEVER CAUSED AND ON  ANY THEORY OF LIABILITY,  WHETHER IN *
+ * CONTRACT,  STRICT LIABILITY,  OR TORT  (INCLUDING NEGLIGENCE OR OTHERWISE) *
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE *
+ * POSSIBILITY OF SUCH DAMAGE.                                                *
+ * ========================================================================== */
+package it.could.confluence.autoexport.engine;
+
+import it.could.util.StreamTools;
+import it.could.util.encoding.EncodingTools;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.log4j.Logger;
+
+/**
+ * <p>An {@link ExportSink} streaming all exported content into a single
+ * <code>zip</code> or <code>tar</code> archive, without writing any
+ * intermediate file to the export root.</p>
+ * 
+ * <p>Content is collected in memory (or in a temporary file, when large)
+ * until its stream is closed, and then handed over to a dedicated writer
+ * thread appending entries to the archive in the same order their streams
+ * were closed. Rendering and archiving therefore proceed in parallel, and
+ * the archive itself is written sequentially. Instances are thread safe.</p>
+ * 
+ * <p>Archives are append-only: content can not be deleted or moved once
+ * written, and writing the same path twice produces two entries. Archives
+ * holding more than 65535 entries should use the <code>tar</code> format,
+ * as <code>zip</code> archives might not be readable by all tools.</p>
+ */
+public class ArchiveSink implements ExportSink {
+
+    /** <p>The format of <code>zip</code> archives.</p> */
+    public static final String ZIP = "zip";
+    /** <p>The format of <code>tar</code> archives.</p> */
+    public static final String TAR = "tar";
+
+    /** <p>The Log4J {@link Logger} used by all instances.</p> */
+    private static final Logger LOGGER = Logger.getLogger(ArchiveSink.class);
+    /** <p>The size above which content is buffered in a temporary file.</p> */
+    private static final int MAX_BUFFERED = 256 * 1024;
+    /** <p>The maximum number of entries waiting to be archived.</p> */
+    private static final int MAX_QUEUED = 64;
+    /** <p>The size of <code>tar</code> blocks and records.</p> */
+    private static final int TAR_BLOCK = 512, TAR_RECORD = 20 * TAR_BLOCK;
+    /** <p>The largest size representable in a <code>tar</code> header.</p> */
+    private static final long TAR_MAX_SIZE = 077777777777L;
+    /** <p>Extensions of files stored without compression in a zip.</p> */
+    private static final String COMPRESSED[] = new String[] {
+        ".jpeg", ".jpg", ".png", ".gif", ".zip", ".gz", ".tgz", ".bz2",
+        ".jar", ".mp3", ".mp4", ".avi", ".mov", ".docx", ".xlsx", ".pptx" };
+    /** <p>The marker queued when the archive must be finished.</p> */
+    private static final Entry FINISH = new Entry(null, 0, null, null, 0);
+
+    /** <p>The format of the archive, either {@link #ZIP} or {@link #TAR}.</p> */
+    private final String format;
+    /** <p>The {@link OutputStream} the archive is written to.</p> */
+    private final OutputStream output;
+    /** <p>The {@link ZipOutputStream} writing <code>zip</code> archives.</p> */
+    private final ZipOutputStream zip;
+    /** <p>The {@link BlockingQueue} of entries waiting to be archived.</p> */
+    private final BlockingQueue queue = new LinkedBlockingQueue(MAX_QUEUED);
+    /** <p>A {@link Map} of paths to lengths and times of entries.</p> */
+    private final Map entries = new HashMap();
+    /** <p>The {@link Thread} writing the archive.</p> */
+    private final Thread writer;
+
+    /** <p>The number of bytes written to a <code>tar</code> archive.</p> */
+    private long written = 0;
+    /** <p>The first {@link IOException} thrown writing the archive.</p> */
+    private volatile IOException failure = null;
+    /** <p>Whether this sink was committed or aborted.</p> */
+    private volatile boolean closed = false;
+
+    /**
+     * <p>Create a new {@link ArchiveSink} writing an archive in the specified
+     * format (either {@link #ZIP} or {@link #TAR}) to the specified
+     * {@link OutputStream}.</p>
+     */
+    public ArchiveSink(OutputStream output, String format) {
+        if (output == null) throw new NullPointerException("Null output");
+        if (ZIP.equals(format)) {
+            this.zip = new ZipOutputStream(output);
+            this.zip.setLevel(Deflater.BEST_SPEED);
+        } else if (TAR.equals(format)) {
+            this.zip = null;
+        } else {
+            throw new IllegalArgumentException("Invalid format " + format);
+        }
+
+        this.format = format;
+        this.output = output;
+        this.writer = new Thread(new Runnable() {
+            public void run() {
+                ArchiveSink.this.write();
+            }
+        }, "AutoExport Archive Writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /* ====================================================================== */
+    /* SINK METHODS                                                           */
+    /* ====================================================================== */
+
+    public OutputStream open(String path)
+    throws IOException {
+        if (this.closed) throw new IOException("Archive already closed");
+        return new Output(path);
+    }
+
+    /**
+     * <p>Archive a copy of the specified {@link File}.</p>
+     */
+    public void write(String path, File file)
+    throws IOException {
+        final InputStream input = new FileInputStream(file);
+        final OutputStream output;
+        try {
+            output = this.open(path);
+        } catch (IOException exception) {
+            input.close();
+            throw exception;
+        }
+        try {
+            StreamTools.copy(input, output, false);
+            output.close();
+        } finally {
+            try {
+                input.close();
+            } finally {
+                this.discard(output);
+            }
+        }
+    }
+
+    /**
+     * <p>Discard the content collected by the specified stream, which will
+     * never be archived.</p>
+     */
+    public void discard(OutputStream stream) {
+        if (stream instanceof Output) ((Output) stream).discard();
+    }
+
+    /**
+     * <p>Delete the content at the specified path, failing if it was already
+     * archived.</p>
+     */
+    public void delete(String path)
+    throws IOException {
+        if (this.exists(path))
+            throw new IOException("Can't delete archived content " + path);
+    }
+
+    /**
+     * <p>Archived content can not be moved, therefore this method always
+     * returns <b>false</b>.</p>
+     */
+    public boolean move(String source, String target) {
+        return false;
+    }
+
+    public boolean exists(String path) {
+        synchronized (this.entries) {
+            return this.entries.containsKey(path);
+        }
+    }
+
+    public long length(String path) {
+        synchronized (this.entries) {
+            final long entry[] = (long []) this.entries.get(path);
+            return entry == null ? -1 : entry[0];
+        }
+    }
+
+    public long lastModified(String path) {
+        synchronized (this.entries) {
+            final long entry[] = (long []) this.entries.get(path);
+            return entry == null ? -1 : entry[1];
+        }
+    }
+
+    /**
+     * <p>Entries can not be read back once written, therefore this method
+     * always returns <b>null</b>.</p>
+     */
+    public byte[] digest(String path) {
+        return null;
+    }
+
+    /**
+     * <p>Wait for all pending entries to be written, finish the archive and
+     * close the underlying {@link OutputStream}.</p>
+     */
+    public void commit()
+    throws IOException {
+        if (this.closed) throw new IOException("Archive already closed");
+        this.closed = true;
+        this.enqueue(FINISH);
+        try {
+            this.writer.join();
+        } catch (InterruptedException exception) {
+            throw new InterruptedIOException("Interrupted finishing archive");
+        }
+        if (this.failure != null) throw this.failure;
+    }
+
+    /**
+     * <p>Archives only contain what was written to them, therefore this
+     * method does nothing.</p>
+     */
+    public void sweep() {
+        /* Nothing to do */
+    }
+
+    /**
+     * <p>Discard all pending entries, stop writing the archive and close the
+     * underlying {@link OutputStream}, leaving an incomplete archive.</p>
+     */
+    public void abort() {
+        if (this.closed) return;
+        this.closed = true;
+        if (this.failure == null)
+            this.failure = new IOException("Archive aborted");
+        try {
+            this.enqueue(FINISH);
+        } catch (InterruptedIOException exception) {
+            this.writer.interrupt();
+        }
+    }
+
+    /**
+     * <p>Return the format of the archive written by this instance.</p>
+     */
+    public String getFormat() {
+        return this.format;
+    }
+
+    /* ====================================================================== */
+    /* ARCHIVE WRITING                                                        */
+    /* ====================================================================== */
+
+    /**
+     * <p>Queue the specified {@link Entry} for writing, waiting if too many
+     * entries are already queued.</p>
+     */
+    private void enqueue(Entry entry)
+    throws InterruptedIOException {
+        try {
+            this.queue.put(entry);
+        } catch (InterruptedException exception) {
+            entry.discard();
+            throw new InterruptedIOException("Interrupted queuing " + entry.name);
+        }
+    }
+
+    /**
+     * <p>Write all queued entries until the archive is finished.</p>
+     * 
+     * <p>Once an entry fails to be written, all the following ones are simply
+     * discarded, so that threads exporting content never block forever.</p>
+     */
+    private void write() {
+        try {
+            while (true) {
+                final Entry entry = (Entry) this.queue.take();
+                if (entry == FINISH) break;
+                if (this.failure == null) try {
+                    if (this.zip != null) this.writeZip(entry);
+                    else this.writeTar(entry);
+                } catch (IOException exception) {
+                    LOGGER.warn("Unable to archive " + entry.name, exception);
+                    this.failure = exception;
+                }
+                entry.discard();
+            }
+            if (this.failure == null) {
+                if (this.zip != null) this.zip.finish();
+                else this.finishTar();
+            }
+        } catch (InterruptedException exception) {
+            if (this.failure == null)
+                this.failure = new InterruptedIOException("Archive interrupted");
+        } catch (IOException exception) {
+            LOGGER.warn("Unable to finish archive", exception);
+            if (this.failure == null) this.failure = exception;
+        } finally {
+            try {
+                this.output.close();
+            } catch (IOException exception) {
+                if (this.failure == null) this.failure = exception;
+            }
+            Entry entry = null;
+            while ((entry = (Entry) this.queue.poll()) != null) entry.discard();
+        }
+    }
+
+    /**
+     * <p>Write the specified {@link Entry} to the <code>zip</code> archive,
+     * storing already compressed files as they are.</p>
+     */
+    private void writeZip(Entry entry)
+    throws IOException {
+        final ZipEntry zipEntry = new ZipEntry(entry.name);
+        zipEntry.setTime(entry.time);
+        if (compressed(entry.name)) {
+            final CRC32 crc = new CRC32();
+            if (entry.file == null) {
+                crc.update(entry.data, 0, (int) entry.size);
+            } else {
+                final byte buffer[] = new byte[65536];
+                final InputStream input = new FileInputStream(entry.file);
+                try {
+                    int read = -1;
+                    while ((read = input.read(buffer)) >= 0) {
+                        crc.update(buffer, 0, read);
+                    }
+                } finally {
+                    input.close();
+                }
+            }
+            zipEntry.setMethod(ZipEntry.STORED);
+            zipEntry.setSize(entry.size);
+            zipEntry.setCompressedSize(entry.size);
+            zipEntry.setCrc(crc.getValue());
+        }
+        this.zip.putNextEntry(zipEntry);
+        entry.writeTo(this.zip);
+        this.zip.closeEntry();
+    }
+
+    /**
+     * <p>Write the specified {@link Entry} to the <code>tar</code> archive,
+     * preceding it with a POSIX extended header when its name or size do not
+     * fit in a plain <code>ustar</code> header.</p>
+     */
+    private void writeTar(Entry entry)
+    throws IOException {
+        final byte name[] = entry.name.getBytes("UTF-8");
+        int split = -1;
+        boolean ascii = name.length == entry.name.length();
+        if (ascii && (name.length > 100)) {
+            /* Look for a slash splitting the name into prefix and name */
+            split = entry.name.lastIndexOf('/', 155);
+            if (name.length - split - 1 > 100) split = -1;
+        }
+
+        final boolean plain = ascii && ((name.length <= 100) || (split > 0));
+        if ((! plain) || (entry.size > TAR_MAX_SIZE)) {
+            final StringBuffer records = new StringBuffer();
+            if (! plain) records.append(record("path", entry.name));
+            if (entry.size > TAR_MAX_SIZE)
+                records.append(record("size", Long.toString(entry.size)));
+            final byte data[] = records.toString().getBytes("UTF-8");
+            final String paxName = "PaxHeaders/" + Math.abs(entry.name.hashCode());
+            this.writeTarHeader(paxName.getBytes("US-ASCII"), null, 'x',
+                                data.length, entry.time);
+            this.writeTarData(data, 0, data.length);
+            this.padTar();
+        }
+
+        if (plain && (split > 0)) {
+            final byte prefix[] = new byte[split];
+            final byte suffix[] = new byte[name.length - split - 1];
+            System.arraycopy(name, 0, prefix, 0, prefix.length);
+            System.arraycopy(name, split + 1, suffix, 0, suffix.length);
+            this.writeTarHeader(suffix, prefix, '0', entry.size, entry.time);
+        } else if (plain) {
+            this.writeTarHeader(name, null, '0', entry.size, entry.time);
+        } else {
+            /* The real name is in the extended header, write a short one */
+            final int length = Math.min(name.length, 100);
+            final byte truncated[] = new byte[length];
+            for (int x = 0; x < length; x ++) {
+                final byte value = name[name.length - length + x];
+                truncated[x] = value < 0 ? (byte) '_' : value;
+            }
+            this.writeTarHeader(truncated, null, '0', entry.size, entry.time);
+        }
+
+        entry.writeTo(new OutputStream() {
+            public void write(int value)
+            throws IOException {
+                ArchiveSink.this.writeTarData(new byte[] { (byte) value }, 0, 1);
+            }
+            public void write(byte buffer[], int offset, int length)
+            throws IOException {
+                ArchiveSink.this.writeTarData(buffer, offset, length);
+            }
+        });
+        this.padTar();
+    }
+
+    /**
+     * <p>Write a <code>ustar</code> header block.</p>
+     */
+    private void writeTarHeader(byte name[], byte prefix[], char type,
+                                long size, long time)
+    throws IOException {
+        final byte header[] = new byte[TAR_BLOCK];
+        System.arraycopy(name, 0, header, 0, name.length);
+        octal(header, 100, 8, 0644);
+        octal(header, 108, 8, 0);
+        octal(header, 116, 8, 0);
+        octal(header, 124, 12, size > TAR_MAX_SIZE ? 0 : size);
+        octal(header, 136, 12, time / 1000);
+        header[156] = (byte) type;
+        System.arraycopy("ustar\00000".getBytes("US-ASCII"), 0, header, 257, 8);
+        if (prefix != null)
+            System.arraycopy(prefix, 0, header, 345, prefix.length);
+
+        /* The checksum is calculated with its own field filled by spaces */
+        for (int x = 148; x < 156; x ++) header[x] = ' ';
+        long checksum = 0;
+        for (int x = 0; x < TAR_BLOCK; x ++) checksum += header[x] & 0x0ff;
+        octal(header, 148, 7, checksum);
+        this.writeTarData(header, 0, TAR_BLOCK);
+    }
+
+    /**
+     * <p>Write data to the <code>tar</code> archive.</p>
+     */
+    private void writeTarData(byte buffer[], int offset, int length)
+    throws IOException {
+        this.output.write(buffer, offset, length);
+        this.written += length;
+    }
+
+    /**
+     * <p>Pad the <code>tar</code> archive up to the next block.</p>
+     */
+    private void padTar()
+    throws IOException {
+        final int padding = (int) (this.written % TAR_BLOCK);
+        if (padding == 0) return;
+        this.writeTarData(new byte[TAR_BLOCK - padding], 0, TAR_BLOCK - padding);
+    }
+
+    /**
+     * <p>Write the two empty blocks ending a <code>tar</code> archive and pad
+     * it up to the next record.</p>
+     */
+    private void finishTar()
+    throws IOException {
+        this.writeTarData(new byte[2 * TAR_BLOCK], 0, 2 * TAR_BLOCK);
+        final int padding = (int) (this.written % TAR_RECORD);
+        if (padding != 0)
+            this.writeTarData(new byte[TAR_RECORD - padding], 0, TAR_RECORD - padding);
+        this.output.flush();
+    }
+
+    /* ====================================================================== */
+    /* HELPER METHODS                                                         */
+    /* ====================================================================== */
+
+    /**
+     * <p>Write the specified value as a zero-padded, NUL-terminated octal
+     * number in a field of a <code>tar</code> header.</p>
+     */
+    private static void octal(byte header[], int offset, int length, long value) {
+        final String string = Long.toOctalString(value);
+        final int digits = length - 1;
+        for (int x = 0; x < digits; x ++) {
+            final int index = x - (digits - string.length());
+            header[offset + x] = (byte) (index < 0 ? '0' : string.charAt(index));
+        }
+        header[offset + digits] = 0;
+    }
+
+    /**
+     * <p>Return a POSIX extended header record, prefixed by its own length
+     * in bytes.</p>
+     */
+    private static String record(String key, String value)
+    throws UnsupportedEncodingException {
+        final String record = " " + key + "=" + value + "\n";
+        final int length = record.getBytes("UTF-8").length;
+        int total = length + Integer.toString(length).length();
+        if (Integer.toString(total).length() != Integer.toString(length).length())
+            total = length + Integer.toString(total).length();
+        return total + record;
+    }
+
+    /**
+     * <p>Check whether the file with the specified name is likely to be
+     * compressed already.</p>
+     */
+    private static boolean compressed(String name) {
+        final String lower = name.toLowerCase();
+        for (int x = 0; x < COMPRESSED.length; x ++) {
+            if (lower.endsWith(COMPRESSED[x])) return true;
+        }
+        return false;
+    }
+
+    /* ====================================================================== */
+    /* INNER CLASSES                                                          */
+    /* ====================================================================== */
+
+    /**
+     * <p>The content of an entry waiting to be archived.</p>
+     */
+    private static final class Entry {
+
+        /** <p>The decoded name of this entry in the archive.</p> */
+        private final String name;
+        /** <p>The size in bytes of the content of this entry.</p> */
+        private final long size;
+        /** <p>The content of this entry, if kept in memory.</p> */
+        private final byte data[];
+        /** <p>The temporary {@link File} holding the content, if any.</p> */
+        private final File file;
+        /** <p>The modification time of this entry.</p> */
+        private final long time;
+
+        private Entry(String name, long size, byte data[], File file, long time) {
+            this.name = name;
+            this.size = size;
+            this.data = data;
+            this.file = file;
+            this.time = time;
+        }
+
+        /**
+         * <p>Write the content of this entry to the specified stream.</p>
+         */
+        private void writeTo(OutputStream output)
+        throws IOException {
+            if (this.file == null) {
+                output.write(this.data, 0, (int) this.size);
+                return;
+            }
+
+            final byte buffer[] = new byte[65536];
+            final InputStream input = new FileInputStream(this.file);
+            try {
+                int read = -1;
+                while ((read = input.read(buffer)) >= 0) {
+                    output.write(buffer, 0, read);
+                }
+            } finally {
+                input.close();
+            }
+        }
+
+        /**
+         * <p>Discard the temporary file holding the content, if any.</p>
+         */
+        private void discard() {
+            if (this.file != null) this.file.delete();
+        }
+    }
+
+    /**
+     * <p>A {@link ByteArrayOutputStream} exposing its buffer.</p>
+     */
+    private static final class Buffer extends ByteArrayOutputStream {
+
+        private Buffer() {
+            super(8192);
+        }
+
+        private byte[] getBuffer() {
+            return this.buf;
+        }
+    }
+
+    /**
+     * <p>An {@link OutputStream} collecting the content of an entry and
+     * queuing it when closed.</p>
+     */
+    private final class Output extends OutputStream {
+
+        /** <p>The path of the entry being written.</p> */
+        private final String path;
+        /** <p>The {@link Buffer} holding small contents in memory.</p> */
+        private Buffer buffer = new Buffer();
+        /** <p>The temporary {@link File} holding larger contents.</p> */
+        private File file = null;
+        /** <p>The {@link OutputStream} writing to the temporary file.</p> */
+        private OutputStream stream = null;
+        /** <p>The number of bytes written so far.</p> */
+        private long size = 0;
+        /** <p>Whether this stream was closed or not.</p> */
+        private boolean closed = false;
+
+        private Output(String path) {
+            this.path = path;
+        }
+
+        public void write(int value)
+        throws IOException {
+            this.write(new byte[] { (byte) value }, 0, 1);
+        }
+
+        public void write(byte data[], int offset, int length)
+        throws IOException {
+            if (this.closed) throw new IOException("Stream closed");
+            if ((this.stream == null) && (this.size + length > MAX_BUFFERED)) {
+                this.file = File.createTempFile("autoexport-", ".tmp");
+                this.stream = new FileOutputStream(this.file);
+                this.stream.write(this.buffer.getBuffer(), 0, (int) this.size);
+                this.buffer = null;
+            }
+            if (this.stream != null) this.stream.write(data, offset, length);
+            else this.buffer.write(data, offset, length);
+            this.size += length;
+        }
+
+        public void close()
+        throws IOException {
+            if (this.closed) return;
+            this.closed = true;
+            if (this.stream != null) this.stream.close();
+
+            IOException failure = ArchiveSink.this.failure;
+            if ((failure == null) && ArchiveSink.this.closed)
+                failure = new IOException("Archive already closed");
+            if (failure != null) {
+                if (this.file != null) this.file.delete();
+                throw (IOException) new IOException("Unable to archive "
+                                           + this.path).initCause(failure);
+            }
+
+            final long time = System.currentTimeMillis();
+            final String name = EncodingTools.urlDecode(this.path);
+            final byte data[] = this.buffer == null ? null : this.buffer.getBuffer();
+            ArchiveSink.this.enqueue(new Entry(name, this.size, data, this.file, time));
+            synchronized (ArchiveSink.this.entries) {
+                ArchiveSink.this.entries.put(this.path, new long[] { this.size, time });
+            }
+        }
+
+        /**
+         * <p>Drop the collected content, unless this stream was already
+         * closed (and its entry queued).</p>
+         */
+        private void discard() {
+            if (this.closed) return;
+            this.closed = true;
+            this.buffer = null;
+            if (this.stream != null) try {
+                this.stream.close();
+            } catch (IOException exception) {
+                /* Ignore, the file is deleted anyway */
+            }
+            if (this.file != null) this.file.delete();
+        }
+    }
+}
@@ -0,0 +1,242 @@
+/* ========================================================================== *
+ *   Copyright (c) 2006, Pier Paolo Fumagalli <mailto:pier@betaversion.org>   *
+ *                            All rights reserved.                            *
+ * ========================================================================== *
+ *                                                                            * 
+ * Redistribution and use in source and binary forms, with or without modifi- *
+ * cation, are permitted provided that the following conditions are met:      *
+ *                                                                            * 
+ *  - Redistributions of source code must retain the  above copyright notice, *
+ *    this list of conditions and the following disclaimer.                   *
+ *                                                                            * 
+ *  - Redistributions  in binary  form  must  reproduce the  above  copyright *
+ *    notice,  this list of conditions  and the following  disclaimer  in the *
+ *    documentation and/or other materials provided with the distribution.    *
+ *                                                                            * 
+ *  - Neither the name of Pier Fumagalli, nor the names of other contributors *
+ *    may be used to endorse  or promote products derived  from this software *
+ *    without specific prior written permission.                              *
+ *                                                                            * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS "AS IS" *
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES,  INCLUDING, BUT NOT LIMITED TO, THE *
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE *
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER  OR CONTRIBUTORS BE *
+ * LIABLE  FOR ANY  DIRECT,  INDIRECT,  INCIDENTAL,  SPECIAL,  EXEMPLARY,  OR *
+ * CONSEQUENTIAL  DAMAGES  (INCLUDING,  BUT  NOT LIMITED  TO,  PROCUREMENT OF *
+ * SUBSTITUTE GOODS OR SERVICES;  LOSS OF USE, DATA, OR PROFITS;  OR BUSINESS *
+ * INTERRUPTION)  HOWEVER CAUSED AND ON  ANY THEORY OF LIABILITY,  WHETHER IN *
+ * CONTRACT,  STRICT LIABILITY,  OR TORT  (INCLUDING NEGLIGENCE OR OTHERWISE) *
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE *
+ * POSSIBILITY OF SUCH DAMAGE.                                                *
+ * ========================================================================== */
+package it.could.confluence.autoexport.engine;
+
+import it.could.util.FileTools;
+import it.could.util.StringTools;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashSet;
+import java.util.Set;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.apache.log4j.Logger;
+
+/**
+ * <p>A content-addressed store keeping a single copy of each distinct file
+ * written underneath the export root, linked from all the places where it
+ * is exported.</p>
+ * 
+ * <p>Files are stored in the {@link #DIRECTORY} directory of the export root
+ * keyed by the SHA-1 digest of their content, and are either hard-linked or
+ * linked through relative symbolic links. When links can not be created,
+ * content is simply copied.</p>
+ * 
+ * <p>Storing content already in the store leaves the stored file untouched,
+ * so that all its links keep their modification time and are not published
+ * again. Files no longer linked from anywhere are removed by
+ * {@link #sweep()}.</p>
+ */
+public class BlobStore {
+
+    /** <p>The name of the directory holding the store.</p> */
+    public static final String DIRECTORY = ".blobs";
+    /** <p>The name of the digest algorithm keying stored files.</p> */
+    public static final String ALGORITHM = "SHA-1";
+
+    /** <p>The Log4J {@link Logger} used by all instances.</p> */
+    private static final Logger LOGGER = Logger.getLogger(BlobStore.class);
+
+    /** <p>The directory holding the store.</p> */
+    private final File directory;
+    /** <p>Whether files are linked symbolically or not.</p> */
+    private final boolean symbolic;
+
+    /**
+     * <p>Create a new {@link BlobStore} instance for the specified export
+     * root, creating either hard or symbolic links.</p>
+     */
+    public BlobStore(File root, boolean symbolic) {
+        if (root == null) throw new NullPointerException("Null root");
+        this.directory = new File(root, DIRECTORY);
+        this.symbolic = symbolic;
+    }
+
+    /**
+     * <p>Return a new {@link MessageDigest} calculating the keys of this
+     * store.</p>
+     */
+    public static MessageDigest digest() {
+        try {
+            return MessageDigest.getInstance(ALGORITHM);
+        } catch (NoSuchAlgorithmException exception) {
+            throw (IllegalStateException) new IllegalStateException(
+                    "Digest " + ALGORITHM + " not available").initCause(exception);
+        }
+    }
+
+    /**
+     * <p>Return the digest keying the content read from the specified
+     * {@link InputStream}, which is closed afterwards.</p>
+     * 
+     * @throws IOException if an I/O error occurred reading the content.
+     */
+    public static byte[] digest(InputStream input)
+    throws IOException {
+        final MessageDigest digest = digest();
+        try {
+            final byte buffer[] = new byte[8192];
+            for (int read; (read = input.read(buffer)) >= 0; )
+                digest.update(buffer, 0, read);
+        } finally {
+            input.close();
+        }
+        return digest.digest();
+    }
+
+    /**
+     * <p>Store the content of a temporary {@link File} under the specified
+     * digest and link it in place of the target {@link File}.</p>
+     * 
+     * <p>The temporary file is consumed by this method: it is either moved
+     * into the store, or deleted when the same content is already stored.</p>
+     * 
+     * @throws IOException if an I/O error occurred storing the content.
+     */
+    public synchronized void store(File temp, byte digest[], File target)
+    throws IOException {
+        final String key = StringTools.toHex(digest);
+        final File blob = new File(new File(this.directory, key.substring(0, 2)), key);
+
+        /* Keep the stored copy, which is shared by all its links */
+        if (blob.isFile() && (blob.length() == temp.length())) {
+            temp.delete();
+        } else {
+            final File parent = blob.getParentFile();
+            if (! parent.isDirectory()) parent.mkdirs();
+            if (blob.exists()) blob.delete();
+            if (! temp.renameTo(blob)) {
+                temp.delete();
+                throw new IOException("Can't rename " + temp + " to " + blob);
+            }
+        }
+
+        /* Replace the target with a link, or copy it as a last resort */
+        if (target.exists()) target.delete();
+        final boolean linked = this.symbolic ? FileTools.symlink(blob, target)
+                                             : FileTools.link(blob, target);
+        if (linked) return;
+
+        LOGGER.debug("Unable to link " + target + " to " + blob + ", copying");
+        final File copy = new File(target.getParentFile(), target.getName() + ".tmp");
+        FileTools.copy(blob, copy);
+        if (! copy.renameTo(target)) {
+            copy.delete();
+            throw new IOException("Can't rename " + copy + " to " + target);
+        }
+    }
+
+    /**
+     * <p>Remove all stored files no longer linked from anywhere in the
+     * export root.</p>
+     * 
+     * <p>Hard-linked files are removed when their link count drops to one
+     * (files are kept when it can not be determined), while for symbolic
+     * links the whole export root is scanned for links into the store.</p>
+     * 
+     * @return the number of stored files removed.
+     */
+    public synchronized int sweep() {
+        final File blobs[] = this.list();
+        if (blobs.length == 0) return 0;
+
+        final Set referenced = new HashSet();
+        if (this.symbolic) {
+            final File root = this.directory.getParentFile();
+            final File children[] = root.listFiles();
+            for (int x = 0; (children != null) && (x < children.length); x ++) {
+                if (DIRECTORY.equals(children[x].getName())) continue;
+                this.mark(children[x], referenced);
+            }
+        }
+
+        int removed = 0;
+        for (int x = 0; x < blobs.length; x ++) {
+            final boolean unlinked = this.symbolic ?
+                                     (! referenced.contains(canonical(blobs[x]))) :
+                                     (FileTools.links(blobs[x]) == 1);
+            if (unlinked && blobs[x].delete()) removed ++;
+        }
+        if (removed > 0) LOGGER.info("Removed " + removed + " unreferenced files from "
+                                     + this.directory);
+        return removed;
+    }
+
+    /* ====================================================================== */
+    /* PRIVATE METHODS                                                        */
+    /* ====================================================================== */
+
+    /**
+     * <p>List all the files held in the store.</p>
+     */
+    private File[] list() {
+        final Set files = new HashSet();
+        final File parents[] = this.directory.listFiles();
+        for (int x = 0; (parents != null) && (x < parents.length); x ++) {
+            final File children[] = parents[x].listFiles();
+            for (int y = 0; (children != null) && (y < children.length); y ++) {
+                if (children[y].isFile()) files.add(children[y]);
+            }
+        }
+        return (File []) files.toArray(new File[files.size()]);
+    }
+
+    /**
+     * <p>Recursively add the canonical {@link File}s pointed to by the
+     * specified file (or by all files in the specified directory) to the
+     * specified {@link Set}.</p>
+     */
+    private void mark(File file, Set referenced) {
+        final File children[] = file.listFiles();
+        if (children == null) {
+            final File target = canonical(file);
+            if (target != null) referenced.add(target);
+        } else {
+            for (int x = 0; x < children.length; x ++) mark(children[x], referenced);
+        }
+    }
+
+    /**
+     * <p>Return the canonical {@link File} of the specified one, resolving
+     * symbolic links, or <b>null</b> if it can not be resolved.</p>
+     */
+    private static File canonical(File file) {
+        try {
+            return file.getCanonicalFile();
+        } catch (IOException exception) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,101 @@
+/* ========================================================================== *
+ *   Copyright (c) 2006, Pier Paolo Fumagalli <mailto:pier@betaversion.org>   *
+ *                            All rights reserved.                            *
+ * ========================================================================== *
+ *                                                                            * 
+ * Redistribution and use in source and binary forms, with or without modifi- *
+ * cation, are permitted provided that the following conditions are met:      *
+ *                                                                            * 
+ *  - Redistributions of source code must retain the  above copyright notice, *
+ *    this list of conditions and the following disclaimer.                   *
+ *                                                                            * 
+ *  - Redistributions  in binary  form  must  reproduce the  above  copyright *
+ *    notice,  this list of conditions  and the following  disclaimer  in the *
+ *    documentation and/or other materials provided with the distribution.    *
+ *                                                                            * 
+ *  - Neither the name of Pier Fumagalli, nor the names of other contributors *
+ *    may be used to endorse  or promote products derived  from this software *
+ *    without specific prior written permission.                              *
+ *                                                                            * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS "AS IS" *
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES,  INCLUDING, BUT NOT LIMITED TO, THE *
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE *
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER  OR CONTRIBUTORS BE *
+ * LIABLE  FOR ANY  DIRECT,  INDIRECT,  INCIDENTAL,  SPECIAL,  EXEMPLARY,  OR *
+ * CONSEQUENTIAL  DAMAGES  (INCLUDING,  BUT  NOT LIMITED  TO,  PROCUREMENT OF *
+ * SUBSTITUTE GOODS OR SERVICES;  LOSS OF USE, DATA, OR PROFITS;  OR BUSINESS *
+ * INTERRUPTION)  HOWEVER CAUSED AND ON  ANY THEORY OF LIABILITY,  WHETHER IN *
+ * CONTRACT,  STRICT LIABILITY,  OR TORT  (INCLUDING NEGLIGENCE OR OTHERWISE) *
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE *
+ * POSSIBILITY OF SUCH DAMAGE.                                                *
+ * ========================================================================== */
+package it.could.confluence.autoexport.engine;
+
+import java.util.Timer;
+import java.util.TimerTask;
+
+import org.apache.log4j.Logger;
+
+/**
+ * <p>A {@link DeferredTask} coalesces repeated requests to run a
+ * {@link Runnable} into a single execution happening after a fixed delay.</p>
+ * 
+ * <p>This is used to batch writes of files aggregating data from many pages
+ * (like sitemaps) so that a burst of edits doesn't rewrite them once for each
+ * and every page being exported.</p>
+ */
+public final class DeferredTask {
+
+    /** <p>The {@link Timer} shared by all {@link DeferredTask}s.</p> */
+    private static final Timer TIMER = new Timer("AutoExport Deferred Tasks", true);
+    /** <p>The Log4J {@link Logger} used by all instances.</p> */
+    private static final Logger LOGGER = Logger.getLogger(DeferredTask.class);
+
+    /** <p>The {@link Runnable} to execute.</p> */
+    private final Runnable runnable;
+    /** <p>The delay in milliseconds before executing the task.</p> */
+    private final long delay;
+    /** <p>The currently scheduled {@link TimerTask} or <b>null</b>.</p> */
+    private TimerTask pending = null;
+
+    /**
+     * <p>Create a new {@link DeferredTask} executing the specified
+     * {@link Runnable} the given number of milliseconds after scheduling.</p>
+     */
+    public DeferredTask(Runnable runnable, long delay) {
+        if (runnable == null) throw new NullPointerException("Null runnable");
+        if (delay < 0) throw new IllegalArgumentException("Negative delay");
+        this.runnable = runnable;
+        this.delay = delay;
+    }
+
+    /**
+     * <p>Schedule the execution of the task, unless it is already pending.</p>
+     */
+    public synchronized void schedule() {
+        if (this.pending != null) return;
+        this.pending = new TimerTask() {
+            public void run() {
+                DeferredTask.this.run();
+            }
+        };
+        TIMER.schedule(this.pending, this.delay);
+    }
+
+    /**
+     * <p>Cancel any pending execution and execute the task immediately in
+     * the current thread.</p>
+     */
+    public void run() {
+        synchronized (this) {
+            if (this.pending != null) this.pending.cancel();
+            this.pending = null;
+        }
+        try {
+            this.runnable.run();
+        } catch (Throwable throwable) {
+            /* Never let exceptions kill the shared timer thread */
+            LOGGER.error("Exception running deferred task", throwable);
+        }
+    }
+}
@@ -34,6 +34,7 @@ package it.could.confluence.autoexport.engine;
 import it.could.confluence.autoexport.ConfigurationManager;
 import it.could.confluence.autoexport.ExportManager;
 import it.could.confluence.autoexport.LocationManager;
+import it.could.util.StringTools;
 import it.could.util.encoding.EncodingTools;
 import it.could.util.location.Location;
 import it.could.util.location.Parameters;
@@ -41,15 +42,12 @@ import it.could.util.location.Path;
 import it.could.util.location.PathElement;
 
 import java.io.ByteArrayOutputStream;
-import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.io.Reader;
 import java.io.StringReader;
-import java.text.SimpleDateFormat;
 import java.util.Calendar;
 import java.util.Date;
 
@@ -179,52 +177,45 @@ public class ExportBeautifier extends Writer {
 
     /**
      * <p>Beautify and fixup the links in the specified HTML content and write
-     * it to the specified {@link File}.</p>
+     * it to the specified {@link OutputStream}, leaving it open.</p>
      * 
      * @param content the HTML content to beautify, fixup and write.
-     * @param file the {@link File} where the content will be written to.
+     * @param output the {@link OutputStream} the content will be written to.
      * @throws SAXException if an exception occurred parsing the content.
-     * @throws IOException if an I/O error occurred writing to the file.
+     * @throws IOException if an I/O error occurred writing to the stream.
      */
-    public void beautify(String content, File file)
+    public void beautify(String content, OutputStream output)
     throws SAXException, IOException {
-        final OutputStream output = new FileOutputStream(file);
-        try {
-            /* Initialize the output writer */
-            final OutputStreamWriter writer = new OutputStreamWriter(output, this.encoding);
-            super.fPrinter = new PrintWriter(writer);
-
-            /* Create a way to read the page from the specified string */
-            final Reader reader = new StringReader(content);
-            final InputSource input = new InputSource(reader);
-            final SAXParser parser = new SAXParser();
-
-            /* Set all the required parser features */
-            parser.setFeature("http://xml.org/sax/features/namespaces",                              false);
-            parser.setFeature("http://cyberneko.org/html/features/balance-tags",                     false);
-            parser.setFeature("http://cyberneko.org/html/features/scanner/cdata-sections",           true);
-            parser.setFeature("http://apache.org/xml/features/scanner/notify-char-refs",             true);
-            parser.setFeature("http://apache.org/xml/features/scanner/notify-builtin-refs",          true);
-            parser.setFeature("http://cyberneko.org/html/features/scanner/notify-builtin-refs",      true);
-            parser.setFeature("http://cyberneko.org/html/features/scanner/fix-mswindows-refs",       true);
-            parser.setFeature("http://cyberneko.org/html/features/scanner/ignore-specified-charset", true);
-            parser.setFeature("http://cyberneko.org/html/features/report-errors",                    false);
-
-            /* Setup the CyberNeko filter chain (including ourselves writing) */
-            parser.setProperty("http://cyberneko.org/html/properties/filters",
-                               new XMLDocumentFilter[] { new Purifier(), this });
-            /* Parse the input (this will write to the file */
-            parser.parse(input);
-            
-            /* Flush everything that was written */
-            super.fPrinter.flush();
-            writer.flush();
-            output.flush();
-
-        } finally {
-            /* No matter what happens, always close the file */
-            output.close();
-        }
+        /* Initialize the output writer */
+        final OutputStreamWriter writer = new OutputStreamWriter(output, this.encoding);
+        super.fPrinter = new PrintWriter(writer);
+
+        /* Create a way to read the page from the specified string */
+        final Reader reader = new StringReader(content);
+        final InputSource input = new InputSource(reader);
+        final SAXParser parser = new SAXParser();
+
+        /* Set all the required parser features */
+        parser.setFeature("http://xml.org/sax/features/namespaces",                              false);
+        parser.setFeature("http://cyberneko.org/html/features/balance-tags",                     false);
+        parser.setFeature("http://cyberneko.org/html/features/scanner/cdata-sections",           true);
+        parser.setFeature("http://apache.org/xml/features/scanner/notify-char-refs",             true);
+        parser.setFeature("http://apache.org/xml/features/scanner/notify-builtin-refs",          true);
+        parser.setFeature("http://cyberneko.org/html/features/scanner/notify-builtin-refs",      true);
+        parser.setFeature("http://cyberneko.org/html/features/scanner/fix-mswindows-refs",       true);
+        parser.setFeature("http://cyberneko.org/html/features/scanner/ignore-specified-charset", true);
+        parser.setFeature("http://cyberneko.org/html/features/report-errors",                    false);
+
+        /* Setup the CyberNeko filter chain (including ourselves writing) */
+        parser.setProperty("http://cyberneko.org/html/properties/filters",
+                           new XMLDocumentFilter[] { new Purifier(), this });
+        /* Parse the input (this will write to the stream) */
+        parser.parse(input);
+        
+        /* Flush everything that was written */
+        super.fPrinter.flush();
+        writer.flush();
+        output.flush();
     }
 
     /**
@@ -356,10 +347,14 @@ public class ExportBeautifier extends Writer {
                     final String space = (String) parameters.getValue("spaceKey");
                     final String title = (String) parameters.getValue("title");
                     final String day = (String) parameters.getValue("postingDay");
-                    final Date date = new SimpleDateFormat("yyyy/MM/dd").parse(day);
-                    final Calendar cal = Calendar.getInstance();
-                    cal.setTime(date);
-                    target = this.pageManager.getBlogPost(space, title, cal);
+                    final Date date = StringTools.parsePathDate(day);
+                    if (date == null) {
+                        target = null;
+                    } else {
+                        final Calendar cal = Calendar.getInstance();
+                        cal.setTime(date);
+                        target = this.pageManager.getBlogPost(space, title, cal);
+                    }
                 } else if (parameters.hasParameter("title")) {
                     final String space = (String) parameters.getValue("spaceKey");
                     final String title = (String) parameters.getValue("title");
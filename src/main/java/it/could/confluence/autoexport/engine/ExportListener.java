@@ -120,8 +120,15 @@ public class ExportListener extends LocalizedComponent implements EventListener
                 this.hack.remove(new Long(previous.getId()));
                 this.hack.put(new Long(page.getId()), page.getSpaceKey());
                 
-                /* Remove the previous page */
-                this.remove(spaceKey, pageTitle, null);
+                /*
+                 * Remove the previous page, if it was renamed or moved: the
+                 * original is a historical version with its own id, while
+                 * exports are always made under the id of the current page
+                 */
+                if (! (spaceKey.equals(page.getSpaceKey()) &&
+                       pageTitle.equals(page.getTitle()))) {
+                    this.move(spaceKey, pageTitle, page.getId(), page);
+                }
 
             } else {
                 /*
@@ -135,7 +142,9 @@ public class ExportListener extends LocalizedComponent implements EventListener
                 final String spaceKey = spaceHack != null ?
                                         spaceHack : page.getSpaceKey();
                 final String pageTitle = page.getTitle();
-                this.remove(spaceKey, pageTitle, null);
+                if (! spaceKey.equals(page.getSpaceKey())) {
+                    this.move(spaceKey, pageTitle, page.getId(), page);
+                }
             }
 
             /* In any case, an update event means that we have to regenerate */
@@ -200,7 +209,7 @@ public class ExportListener extends LocalizedComponent implements EventListener
             parent = parent.getParent();
         }
 
-        this.remove(page.getSpaceKey(), page.getTitle(), null);
+        this.remove(page.getSpaceKey(), page.getTitle(), null, page.getId());
         this.exportManager.export(page.getSpace(), NULL_NOTIFIABLE, false);
     }
 
@@ -210,12 +219,28 @@ public class ExportListener extends LocalizedComponent implements EventListener
      */
     private void remove(BlogPost post) {
         if (post == null) return;
-        this.remove(post.getSpaceKey(), post.getTitle(), post.getCreationDate());
+        this.remove(post.getSpaceKey(), post.getTitle(),
+                    post.getCreationDate(), post.getId());
         this.exportManager.export(post.getSpace(), NULL_NOTIFIABLE, false);
     }
 
-    private void remove(String spaceKey, String pageTitle, Date postingDate) {
-        // TODO: implements removal
+    /**
+     * <p>Remove the exported copy of a page (or blog post, if the posting date
+     * is not <b>null</b>) from the {@link ExportManager}.</p>
+     */
+    private void remove(String spaceKey, String pageTitle, Date postingDate,
+                        long id) {
+        this.exportManager.remove(spaceKey, pageTitle, postingDate, id,
+                                  NULL_NOTIFIABLE);
+    }
+
+    /**
+     * <p>Remove the exported copy of a page which was renamed or moved,
+     * relocating its attachments for its new export in the
+     * {@link ExportManager}.</p>
+     */
+    private void move(String spaceKey, String pageTitle, long id, Page page) {
+        this.exportManager.move(spaceKey, pageTitle, id, page, NULL_NOTIFIABLE);
     }
 
     /**
@@ -0,0 +1,147 @@
+/* ========================================================================== *
+ *   Copyright (c) 2006, Pier Paolo Fumagalli <mailto:pier@betaversion.org>   *
+ *                            All rights reserved.                            *
+ * ========================================================================== *
+ *                                                                            * 
+ * Redistribution and use in source and binary forms, with or without modifi- *
+ * cation, are permitted provided that the following conditions are met:      *
+ *                                                                            * 
+ *  - Redistributions of source code must retain the  above copyright notice, *
+ *    this list of conditions and the following disclaimer.                   *
+ *                                                                            * 
+ *  - Redistributions  in binary  form  must  reproduce the  above  copyright *
+ *    notice,  this list of conditions  and the following  disclaimer  in the *
+ *    documentation and/or other materials provided with the distribution.    *
+ *                                                                            * 
+ *  - Neither the name of Pier Fumagalli, nor the names of other contributors *
+ *    may be used to endorse  or promote products derived  from this software *
+ *    without specific prior written permission.                              *
+ *                                                                            * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS "AS IS" *
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES,  INCLUDING, BUT NOT LIMITED TO, THE *
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE *
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER  OR CONTRIBUTORS BE *
+ * LIABLE  FOR ANY  DIRECT,  INDIRECT,  INCIDENTAL,  SPECIAL,  EXEMPLARY,  OR *
+ * CONSEQUENTIAL  DAMAGES  (INCLUDING,  BUT  NOT LIMITED  TO,  PROCUREMENT OF *
+ * SUBSTITUTE GOODS OR SERVICES;  LOSS OF USE, DATA, OR PROFITS;  OR BUSINESS *
+ * INTERRUPTION)  HOWEVER CAUSED AND ON  ANY THEORY OF LIABILITY,  WHETHER IN *
+ * CONTRACT,  STRICT LIABILITY,  OR TORT  (INCLUDING NEGLIGENCE OR OTHERWISE) *
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE *
+ * POSSIBILITY OF SUCH DAMAGE.                                                *
+ * ========================================================================== */
+package it.could.confluence.autoexport.engine;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * <p>An {@link ExportSink} describes the destination where exported content
+ * is written to.</p>
+ * 
+ * <p>Paths are always URL-encoded and relative to the root of the exported
+ * content, and paths of directories end with a slash. Sinks must be thread
+ * safe, as thumbnails are written in background while pages are exported,
+ * but the same path is never written concurrently.</p>
+ * 
+ * <p>The default sink writes to the configured export root on the local
+ * disk, but content can be equally streamed to archives, remote servers or
+ * kept in memory.</p>
+ */
+public interface ExportSink {
+
+    /**
+     * <p>Open an {@link OutputStream} writing the content at the specified
+     * path.</p>
+     * 
+     * <p>The content is only made available when the stream is closed, and
+     * replaces whatever was previously stored at the same path. Streams whose
+     * content could not be written completely must be
+     * {@link #discard(OutputStream) discarded} rather than closed.</p>
+     * 
+     * @throws IOException if an I/O error occurred opening the stream.
+     */
+    public OutputStream open(String path)
+    throws IOException;
+
+    /**
+     * <p>Discard whatever was written to the specified {@link OutputStream},
+     * {@link #open(String) opened} by this sink, leaving the content
+     * previously stored at its path untouched.</p>
+     * 
+     * <p>Streams already closed are left as they are.</p>
+     */
+    public void discard(OutputStream stream);
+
+    /**
+     * <p>Write the content of the specified local {@link File} at the
+     * specified path.</p>
+     * 
+     * <p>Sinks may link to the file rather than copying it, therefore the
+     * file must never be modified afterwards.</p>
+     * 
+     * @throws IOException if an I/O error occurred writing the content.
+     */
+    public void write(String path, File file)
+    throws IOException;
+
+    /**
+     * <p>Delete the content (or, if the path ends with a slash, the whole
+     * directory) at the specified path, if it exists.</p>
+     * 
+     * @throws IOException if an I/O error occurred deleting the content.
+     */
+    public void delete(String path)
+    throws IOException;
+
+    /**
+     * <p>Relocate the directory at the specified source path to the target
+     * path, if this sink is able to do so without writing it again.</p>
+     * 
+     * @return <b>true</b> if the directory was moved, <b>false</b> otherwise.
+     * @throws IOException if an I/O error occurred moving the directory.
+     */
+    public boolean move(String source, String target)
+    throws IOException;
+
+    /**
+     * <p>Check whether any content exists at the specified path.</p>
+     */
+    public boolean exists(String path);
+
+    /**
+     * <p>Return the length in bytes of the content at the specified path, or
+     * <b>-1</b> if it does not exist or its length is unknown.</p>
+     */
+    public long length(String path);
+
+    /**
+     * <p>Return the last modification time (in milliseconds since the epoch)
+     * of the content at the specified path, or <b>-1</b> if it does not exist
+     * or its modification time is unknown.</p>
+     */
+    public long lastModified(String path);
+
+    /**
+     * <p>Return the {@link BlobStore#ALGORITHM SHA-1} digest of the content
+     * at the specified path, or <b>null</b> if it does not exist or its
+     * content can not be read back.</p>
+     */
+    public byte[] digest(String path);
+
+    /**
+     * <p>Commit all the content written to this sink, once the export is
+     * complete.</p>
+     * 
+     * @throws IOException if an I/O error occurred committing the content.
+     */
+    public void commit()
+    throws IOException;
+
+    /**
+     * <p>Remove whatever content is no longer referenced by the exported
+     * pages, once all of them were written again.</p>
+     */
+    public void sweep();
+
+}
@@ -32,9 +32,10 @@
 package it.could.confluence.autoexport.engine;
 
 import it.could.confluence.autoexport.ConfigurationManager;
+import it.could.util.StringTools;
 
-import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.Map;
 
 import org.apache.log4j.Logger;
 
@@ -56,6 +57,8 @@ import com.opensymphony.util.TextUtils;
 public final class ExportUtils {
 
     private static final Logger LOGGER = Logger.getLogger(ExportBeautifier.class);
+    /** <p>The maximum number of memoized strings, before starting over.</p> */
+    private static final int MAX_MEMO = 50000;
 
     /** <p>The {@link ConfigurationManager} accessing settings.</p> */
     private final ConfigurationManager configurationManager;
@@ -63,33 +66,74 @@ public final class ExportUtils {
     private final WikiStyleRenderer wikiStyleRenderer;
     /** <p>The {@link PluginAccessor} gathering plugin details.</p> */
     private final PluginAccessor pluginAccessor;
+    /** <p>The {@link RenderCache} caching rendered content, or <b>null</b>.</p> */
+    private final RenderCache renderCache;
+    /** <p>The {@link Map} memoizing links and breadcrumbs, or <b>null</b>.</p> */
+    private final Map memo;
+    /** <p>The HTML describing Confluence, created lazily.</p> */
+    private String confluenceInfo = null;
+    /** <p>The HTML describing this plugin, created lazily.</p> */
+    private String autoexportInfo = null;
 
     /** <p>Constructor to give instances to Velocity.</p> */
     public ExportUtils(ConfigurationManager config,
                        WikiStyleRenderer renderer,
                        PluginAccessor accessor) {
+        this(config, renderer, accessor, null, null);
+    }
+
+    /**
+     * <p>Constructor to give instances to Velocity sharing a cache of
+     * rendered pages and a {@link Map} memoizing links and breadcrumbs.</p>
+     * 
+     * <p>The memo is meant to be shared for the duration of an export run by
+     * all threads, and must therefore be safe for concurrent use.</p>
+     */
+    public ExportUtils(ConfigurationManager config,
+                       WikiStyleRenderer renderer,
+                       PluginAccessor accessor,
+                       RenderCache cache,
+                       Map memo) {
         this.configurationManager = config;
         this.wikiStyleRenderer = renderer;
         this.pluginAccessor = accessor;
+        this.renderCache = cache;
+        this.memo = memo;
     }
 
     /**
      * <p>Render a simple page and return its HTML representation as a
      * {@link String}.</p>
+     *
+     * <p>Unchanged versions of pages already rendered are returned from the
+     * {@link RenderCache} (if any) without being rendered again.</p>
      */
     public String render(AbstractPage page) {
         if (page == null) return null;
+        if (this.renderCache != null) {
+            final String cached = this.renderCache.get(page.getId(), page.getVersion());
+            if (cached != null) return cached;
+        }
+
         final RenderContext context = page.toPageContext();
         final String content = page.getContent();
-        return this.wikiStyleRenderer.convertWikiToXHtml(context, content); 
+        final String xhtml = this.wikiStyleRenderer.convertWikiToXHtml(context, content);
+        if (this.renderCache != null) {
+            this.renderCache.put(page.getId(), page.getVersion(), xhtml);
+        }
+        return xhtml;
     }
 
     /**
      * <p>Return a simple link to the specified {@link AbstractPage}.</p>
      */
     public String link(AbstractPage page) {
+        final String key = "link:" + page.getId() + ":" + page.getVersion();
+        final String cached = this.recall(key);
+        if (cached != null) return cached;
+
         final String title = TextUtils.htmlEncode(page.getTitle()); 
-        return new StringBuffer("<a href=\"")
+        final String link = new StringBuffer("<a href=\"")
             .append(this.configurationManager.getConfluenceUrl())
             .append(page.getUrlPath())
             .append("\" title=\"")
@@ -98,16 +142,25 @@ public final class ExportUtils {
             .append(title)
             .append("</a>")
             .toString();
+        return this.memoize(key, link);
     }
 
     /**
      * <p>Return a simple link for the specified {@link Space}.</p>
+     * 
+     * <p>Links are memoized by space key and modification date for the
+     * duration of an export run, and the space's home page is only looked
+     * up when building them.</p>
      */
     public String link(Space space) {
+        final String key = key(space);
+        final String cached = this.recall(key);
+        if (cached != null) return cached;
+
         final Page home = space.getHomePage();
         final String name = TextUtils.htmlEncode(space.getName()); 
-        if (home == null) return name;
-        return new StringBuffer("<a href=\"")
+        if (home == null) return this.memoize(key, name);
+        final String link = new StringBuffer("<a href=\"")
             .append(this.configurationManager.getConfluenceUrl())
             .append(home.getUrlPath())
             .append("\" title=\"")
@@ -116,6 +169,7 @@ public final class ExportUtils {
             .append(name)
             .append("</a>")
             .toString();
+        return this.memoize(key, link);
     }
 
     /**
@@ -132,17 +186,32 @@ public final class ExportUtils {
     /**
      * <p>Return all the breadcrumbs for the specified {@link Page} separated
      * by the specified {@link String}.</p>
+     * 
+     * <p>Breadcrumbs are memoized by the id and version of the page and of
+     * all its ancestors (and by the space's link), so that exporting a whole
+     * tree of pages only builds each prefix once, while renaming or moving
+     * any ancestor produces new breadcrumbs.</p>
      */
     public String breadcrumbs(Page page, String separator) {
         try {
+            final Page parent = page.getParent();
+            final StringBuffer chain = new StringBuffer("crumbs:");
+            for (Page ancestor = page; ancestor != null; ancestor = ancestor.getParent()) {
+                chain.append(ancestor.getId()).append(':')
+                     .append(ancestor.getVersion()).append('/');
+            }
+            if (parent == null) chain.append(key(page.getSpace()));
+            final String key = chain.append(':').append(separator).toString();
+            final String cached = this.recall(key);
+            if (cached != null) return cached;
+
             final String s = "&nbsp;" + TextUtils.htmlEncode(separator) + "&nbsp;";
     
             final StringBuffer buffer = new StringBuffer();
-            final Page parent = page.getParent();
             if (parent != null) buffer.append(breadcrumbs(parent, separator));
             else buffer.append(link(page.getSpace()));
     
-            return buffer.append(s).append(link(page)).toString();
+            return this.memoize(key, buffer.append(s).append(link(page)).toString());
         } catch (Throwable throwable) {
             LOGGER.error("Error processing breadcrumbs for post", throwable);
             return "";
@@ -163,18 +232,22 @@ public final class ExportUtils {
     /**
      * <p>Return all the breadcrumbs for the specified {@link BlogPost}
      * separated by the specified {@link String}.</p>
+     * 
+     * <p>Breadcrumbs are memoized by the id and version of the post and by
+     * the space's link.</p>
      */
     public String breadcrumbs(BlogPost post, String separator) {
         try {
+            final String key = "crumbs:" + post.getId() + ":" + post.getVersion()
+                               + "/" + key(post.getSpace()) + ":" + separator;
+            final String cached = this.recall(key);
+            if (cached != null) return cached;
+
             final String s = "&nbsp;" + TextUtils.htmlEncode(separator) + "&nbsp;";
 
-            final Date date = post.getCreationDate();
-            return new StringBuffer(link(post.getSpace()))
-                .append(s).append(new SimpleDateFormat("yyyy").format(date))
-                .append(s).append(new SimpleDateFormat("MM").format(date))
-                .append(s).append(new SimpleDateFormat("dd").format(date))
-                .append(s).append(link(post))
-                .toString();
+            final StringBuffer buffer = new StringBuffer(link(post.getSpace()));
+            StringTools.appendPathDate(buffer.append(s), post.getCreationDate(), s);
+            return this.memoize(key, buffer.append(s).append(link(post)).toString());
         } catch (Throwable throwable) {
             LOGGER.error("Error processing breadcrumbs for post", throwable);
             return "";
@@ -186,7 +259,8 @@ public final class ExportUtils {
      * version details.</p>
      */
     public String getConfluenceInfo() {
-        return new StringBuffer()
+        if (this.confluenceInfo != null) return this.confluenceInfo;
+        this.confluenceInfo = new StringBuffer()
             .append("<a href=\"http://www.atlassian.com/confluence/\">")
             .append("Atlassian Confluence</a> (Version: ")
             .append(GeneralUtil.getVersionNumber())
@@ -195,6 +269,7 @@ public final class ExportUtils {
             .append(" ")
             .append(GeneralUtil.getBuildDateString())
             .append(")").toString();
+        return this.confluenceInfo;
     }
     
     /**
@@ -202,6 +277,7 @@ public final class ExportUtils {
      * version details.</p>
      */
     public String getAutoexportInfo() {
+        if (this.autoexportInfo != null) return this.autoexportInfo;
         String pluginName = "AutoExport Plugin";
         String pluginVersion = "(unknown)";
         String pluginUrl = "http://could.it/autoexport/";
@@ -213,12 +289,45 @@ public final class ExportUtils {
             pluginUrl = plugin.getPluginInformation().getVendorUrl();
         }
 
-        return new StringBuffer("<a href=\"")
+        this.autoexportInfo = new StringBuffer("<a href=\"")
             .append(pluginUrl)
             .append("\">")
             .append(pluginName)
             .append("</a> (Version: ")
             .append(pluginVersion)
             .append(")").toString();
+        return this.autoexportInfo;
+    }
+
+    /* ====================================================================== */
+    /* PRIVATE METHODS                                                        */
+    /* ====================================================================== */
+
+    /**
+     * <p>Return the key memoizing the link to the specified {@link Space}
+     * during an export run.</p>
+     */
+    private static String key(Space space) {
+        final Date modified = space.getLastModificationDate();
+        return "space:" + space.getKey() + ":"
+               + (modified == null ? 0 : modified.getTime());
+    }
+
+    /**
+     * <p>Return the memoized {@link String} for the specified key, or
+     * <b>null</b>.</p>
+     */
+    private String recall(String key) {
+        return this.memo == null ? null : (String) this.memo.get(key);
+    }
+
+    /**
+     * <p>Memoize and return the specified {@link String}.</p>
+     */
+    private String memoize(String key, String value) {
+        if (this.memo == null) return value;
+        if (this.memo.size() > MAX_MEMO) this.memo.clear();
+        this.memo.put(key, value);
+        return value;
     }
 }
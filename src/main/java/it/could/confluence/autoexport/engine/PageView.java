@@ -0,0 +1,175 @@
+/* ========================================================================== *
+ *   Copyright (c) 2006, Pier Paolo Fumagalli <mailto:pier@betaversion.org>   *
+ *                            All rights reserved.                            *
+ * ========================================================================== *
+ *                                                                            * 
+ * Redistribution and use in source and binary forms, with or without modifi- *
+ * cation, are permitted provided that the following conditions are met:      *
+ *                                                                            * 
+ *  - Redistributions of source code must retain the  above copyright notice, *
+ *    this list of conditions and the following disclaimer.                   *
+ *                                                                            * 
+ *  - Redistributions  in binary  form  must  reproduce the  above  copyright *
+ *    notice,  this list of conditions  and the following  disclaimer  in the *
+ *    documentation and/or other materials provided with the distribution.    *
+ *                                                                            * 
+ *  - Neither the name of Pier Fumagalli, nor the names of other contributors *
+ *    may be used to endorse  or promote products derived  from this software *
+ *    without specific prior written permission.                              *
+ *                                                                            * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS "AS IS" *
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES,  INCLUDING, BUT NOT LIMITED TO, THE *
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE *
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER  OR CONTRIBUTORS BE *
+ * LIABLE  FOR ANY  DIRECT,  INDIRECT,  INCIDENTAL,  SPECIAL,  EXEMPLARY,  OR *
+ * CONSEQUENTIAL  DAMAGES  (INCLUDING,  BUT  NOT LIMITED  TO,  PROCUREMENT OF *
+ * SUBSTITUTE GOODS OR SERVICES;  LOSS OF USE, DATA, OR PROFITS;  OR BUSINESS *
+ * INTERRUPTION)  HOWEVER CAUSED AND ON  ANY THEORY OF LIABILITY,  WHETHER IN *
+ * CONTRACT,  STRICT LIABILITY,  OR TORT  (INCLUDING NEGLIGENCE OR OTHERWISE) *
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE *
+ * POSSIBILITY OF SUCH DAMAGE.                                                *
+ * ========================================================================== */
+package it.could.confluence.autoexport.engine;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.velocity.Template;
+import org.apache.velocity.runtime.parser.node.ASTDirective;
+import org.apache.velocity.runtime.parser.node.ASTReference;
+import org.apache.velocity.runtime.parser.node.ASTStringLiteral;
+import org.apache.velocity.runtime.parser.node.Node;
+
+import com.atlassian.confluence.pages.AbstractPage;
+import com.atlassian.confluence.spaces.Space;
+
+/**
+ * <p>A lightweight replacement for Confluence's <code>ViewPageAction</code>
+ * exposed to templates as <code>$action</code>.</p>
+ * 
+ * <p>Creating and autowiring a full action for each exported page is
+ * expensive, so templates only referencing the members of this class get
+ * an instance of it instead: use {@link #supports(Template)} to check.</p>
+ */
+public final class PageView {
+
+    /** <p>The name of the action in Velocity contexts.</p> */
+    public static final String NAME = "action";
+
+    /** <p>The directives whose content is entirely in the template.</p> */
+    private static final Set DIRECTIVES = new HashSet(Arrays.asList(new String[] {
+            "foreach", "macro", "define", "literal", "include", "break", "stop" }));
+
+    /** <p>The {@link AbstractPage} being viewed.</p> */
+    private final AbstractPage page;
+
+    /** <p>Create a new {@link PageView} for the specified page.</p> */
+    public PageView(AbstractPage page) {
+        this.page = page;
+    }
+
+    /* ====================================================================== */
+    /* METHODS AVAILABLE TO TEMPLATES                                         */
+    /* ====================================================================== */
+
+    /**
+     * <p>Return the {@link AbstractPage} being viewed.</p>
+     */
+    public AbstractPage getPage() {
+        return this.page;
+    }
+
+    /**
+     * <p>Return the {@link Space} of the page being viewed.</p>
+     */
+    public Space getSpace() {
+        return this.page.getSpace();
+    }
+
+    /**
+     * <p>Return the key of the space of the page being viewed.</p>
+     */
+    public String getSpaceKey() {
+        return this.page.getSpaceKey();
+    }
+
+    /* ====================================================================== */
+    /* TEMPLATE INSPECTION                                                    */
+    /* ====================================================================== */
+
+    /**
+     * <p>Check whether all the references to <code>$action</code> in the
+     * specified {@link Template} can be satisfied by a {@link PageView}.</p>
+     * 
+     * <p>Templates passing the action around as a whole (or that can not be
+     * inspected) are assumed to require a full <code>ViewPageAction</code>.
+     * So are templates invoking macros or parsing other templates, whose
+     * content is not known here, and templates mentioning the action in
+     * string literals, which Velocity only parses when interpolating.</p>
+     */
+    public static boolean supports(Template template) {
+        final Object data = template.getData();
+        if (! (data instanceof Node)) return false;
+        return supports((Node) data);
+    }
+
+    /**
+     * <p>Recursively check the references in the specified {@link Node}.</p>
+     */
+    private static boolean supports(Node node) {
+        if (node instanceof ASTDirective) {
+            final String name = ((ASTDirective) node).getDirectiveName();
+            if (! DIRECTIVES.contains(name)) return false;
+        } else if (node instanceof ASTStringLiteral) {
+            final String literal = node.literal();
+            if ((literal == null) || (literal.indexOf(NAME) >= 0)) return false;
+        } else if (node instanceof ASTReference) {
+            final ASTReference reference = (ASTReference) node;
+            if (NAME.equals(reference.getRootString())) {
+                if (! supports(member(reference.literal()))) return false;
+            }
+        }
+        for (int x = 0; x < node.jjtGetNumChildren(); x ++) {
+            if (! supports(node.jjtGetChild(x))) return false;
+        }
+        return true;
+    }
+
+    /**
+     * <p>Return the name of the first member referenced in the literal
+     * of a reference like <code>$!{action.member(...)}</code>, or
+     * <b>null</b>.</p>
+     */
+    private static String member(String literal) {
+        if (literal == null) return null;
+        final int start = literal.indexOf(NAME + ".");
+        if (start < 0) return null;
+        final int offset = start + NAME.length() + 1;
+        int end = offset;
+        while ((end < literal.length())
+               && Character.isJavaIdentifierPart(literal.charAt(end))) end ++;
+        return end > offset ? literal.substring(offset, end) : null;
+    }
+
+    /**
+     * <p>Check whether a member can be resolved by Velocity against this
+     * class, either as a method or as a property.</p>
+     */
+    private static boolean supports(String member) {
+        if (member == null) return false;
+        final String property = Character.toUpperCase(member.charAt(0))
+                                + member.substring(1);
+        final Method methods[] = PageView.class.getMethods();
+        for (int x = 0; x < methods.length; x ++) {
+            if (Modifier.isStatic(methods[x].getModifiers())) continue;
+            if (methods[x].getDeclaringClass() != PageView.class) continue;
+            final String name = methods[x].getName();
+            if (name.equals(member) || name.equals("get" + property)
+                || name.equals("is" + property)) return true;
+        }
+        return false;
+    }
+}
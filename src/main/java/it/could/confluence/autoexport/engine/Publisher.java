@@ -0,0 +1,314 @@
+/* ========================================================================== *
+ *   Copyright (c) 2006, Pier Paolo Fumagalli <mailto:pier@betaversion.org>   *
+ *                            All rights reserved.                            *
+ * ========================================================================== *
+ *                                                                            * 
+ * Redistribution and use in source and binary forms, with or without modifi- *
+ * cation, are permitted provided that the following conditions are met:      *
+ *                                                                            * 
+ *  - Redistributions of source code must retain the  above copyright notice, *
+ *    this list of conditions and the following disclaimer.                   *
+ *                                                                            * 
+ *  - Redistributions  in binary  form  must  reproduce the  above  copyright *
+ *    notice,  this list of conditions  and the following  disclaimer  in the *
+ *    documentation and/or other materials provided with the distribution.    *
+ *                                                                            * 
+ *  - Neither the name of Pier Fumagalli, nor the names of other contributors *
+ *    may be used to endorse  or promote products derived  from this software *
+ *    without specific prior written permission.                              *
+ *                                                                            * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS "AS IS" *
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES,  INCLUDING, BUT NOT LIMITED TO, THE *
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE *
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER  OR CONTRIBUTORS BE *
+ * LIABLE  FOR ANY  DIRECT,  INDIRECT,  INCIDENTAL,  SPECIAL,  EXEMPLARY,  OR *
+ * CONSEQUENTIAL  DAMAGES  (INCLUDING,  BUT  NOT LIMITED  TO,  PROCUREMENT OF *
+ * SUBSTITUTE GOODS OR SERVICES;  LOSS OF USE, DATA, OR PROFITS;  OR BUSINESS *
+ * INTERRUPTION)  HOWEVER CAUSED AND ON  ANY THEORY OF LIABILITY,  WHETHER IN *
+ * CONTRACT,  STRICT LIABILITY,  OR TORT  (INCLUDING NEGLIGENCE OR OTHERWISE) *
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE *
+ * POSSIBILITY OF SUCH DAMAGE.                                                *
+ * ========================================================================== */
+package it.could.confluence.autoexport.engine;
+
+import it.could.util.encoding.EncodingTools;
+import it.could.util.encoding.URICharacters;
+import it.could.util.location.Location;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+/**
+ * <p>A {@link Publisher} pushes exported files to a remote location as soon
+ * as they are written to disk.</p>
+ * 
+ * <p>Uploads and deletions happen in background on a bounded number of
+ * threads; when too many operations are queued, the thread requesting a new
+ * one performs it directly, slowing down the export rather than exhausting
+ * memory. Operations queued for the same path are coalesced, so that only
+ * the latest version of a file is ever transmitted, and failed operations
+ * are retried a few times before being given up.</p>
+ * 
+ * <p>Paths are always URL-encoded and relative to the remote location, and
+ * paths of directories end with a slash.</p>
+ */
+public abstract class Publisher {
+
+    /** <p>The Log4J {@link Logger} used by all instances.</p> */
+    private static final Logger LOGGER = Logger.getLogger(Publisher.class);
+    /** <p>The maximum number of operations waiting to be executed.</p> */
+    private static final int MAX_QUEUED = 1000;
+    /** <p>The number of times an operation is attempted.</p> */
+    private static final int MAX_ATTEMPTS = 3;
+    /** <p>The delay in milliseconds before the first retry.</p> */
+    private static final long RETRY_DELAY = 1000;
+
+    /** <p>The {@link Location} where content is published.</p> */
+    private final Location location;
+    /** <p>The {@link ThreadPoolExecutor} running all operations.</p> */
+    private final ThreadPoolExecutor executor;
+    /** <p>A {@link Map} of paths to operations not yet started.</p> */
+    private final Map pending = new HashMap();
+
+    /**
+     * <p>Create a new {@link Publisher} publishing content to the specified
+     * {@link Location} with at most the given number of concurrent
+     * operations.</p>
+     */
+    protected Publisher(Location location, int threads) {
+        if (location == null) throw new NullPointerException("Null location");
+        if (threads < 1) throw new IllegalArgumentException("Invalid threads");
+        this.location = location;
+
+        final String name = "AutoExport Publisher [" + location + "]";
+        this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                                   new LinkedBlockingQueue(MAX_QUEUED),
+                                   new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                final Thread thread = new Thread(runnable, name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        }, new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    /* ====================================================================== */
+    /* PUBLIC METHODS                                                         */
+    /* ====================================================================== */
+
+    /**
+     * <p>Return the {@link Location} where content is published.</p>
+     */
+    public Location getLocation() {
+        return this.location;
+    }
+
+    /**
+     * <p>Upload the specified {@link File} to the specified path relative to
+     * the remote location.</p>
+     */
+    public void publish(String path, File file) {
+        if (path == null) throw new NullPointerException("Null path");
+        if (file == null) throw new NullPointerException("Null file");
+        this.submit(path, file);
+    }
+
+    /**
+     * <p>Delete the resource (or directory, if the path ends with a slash)
+     * at the specified path relative to the remote location.</p>
+     */
+    public void remove(String path) {
+        if (path == null) throw new NullPointerException("Null path");
+        this.submit(path, null);
+    }
+
+    /**
+     * <p>Move the resource (or directory, if the paths end with a slash)
+     * at the specified source path to the specified destination path on the
+     * remote location, without transferring its contents again.</p>
+     * 
+     * <p>Unlike other operations, this happens immediately in the calling
+     * thread, as subsequent uploads to the destination must not overtake
+     * it. If it fails, <b>false</b> is returned and the destination will
+     * simply be uploaded from scratch.</p>
+     */
+    public abstract boolean move(String source, String destination);
+
+    /**
+     * <p>Bring the remote location in line with the specified local
+     * directory in background, uploading all files missing remotely (or whose
+     * length or modification date differ) and, if requested, deleting all
+     * remote resources not existing locally.</p>
+     * 
+     * <p>Nothing is deleted when the local directory is empty (or missing),
+     * as this far more likely means it is misconfigured than that the whole
+     * remote location should be wiped.</p>
+     */
+    public void synchronize(final File root, final boolean delete) {
+        if (root == null) throw new NullPointerException("Null root");
+        this.executor.execute(new Runnable() {
+            public void run() {
+                try {
+                    Publisher.this.compare(root, delete);
+                } catch (Throwable throwable) {
+                    LOGGER.warn("Unable to synchronize \"" + root + "\" with "
+                                + Publisher.this.location, throwable);
+                }
+            }
+        });
+    }
+
+    /**
+     * <p>Stop accepting new operations, letting queued ones complete.</p>
+     */
+    public void shutdown() {
+        this.executor.shutdown();
+    }
+
+    /* ====================================================================== */
+    /* METHODS IMPLEMENTED BY SUBCLASSES                                      */
+    /* ====================================================================== */
+
+    /**
+     * <p>Compare the specified local directory with the remote location,
+     * transferring (or queuing) all uploads (and, if requested, deletions)
+     * required to bring the two in line.</p>
+     */
+    protected abstract void compare(File root, boolean delete)
+    throws IOException;
+
+    /**
+     * <p>Perform a single upload or deletion (if the {@link File} is
+     * <b>null</b>).</p>
+     */
+    protected abstract void execute(String path, File file)
+    throws IOException;
+
+    /**
+     * <p>Invoked before an operation on the specified path is retried,
+     * to discard any cached state which might have caused the failure.</p>
+     */
+    protected void failed(String path) {
+        /* Nothing is cached by default */
+    }
+
+    /**
+     * <p>Recursively list all files and directories in the specified
+     * directory, mapping their encoded relative paths to {@link File}s.</p>
+     * 
+     * <p>Temporary files and the {@link BlobStore} are never listed.</p>
+     */
+    protected static void list(File directory, String prefix, Map files) {
+        final File children[] = directory.listFiles();
+        if (children == null) return;
+        for (int x = 0; x < children.length; x ++) {
+            final File child = children[x];
+            final String name = child.getName();
+            if (name.endsWith(".tmp")) continue;
+            if ((prefix.length() == 0) && BlobStore.DIRECTORY.equals(name)) continue;
+            final String path = prefix + EncodingTools.uriEncode(name,
+                                             URICharacters.CLASS_UNRESERVED);
+            if (child.isDirectory()) {
+                files.put(path + "/", child);
+                list(child, path + "/", files);
+            } else {
+                files.put(path, child);
+            }
+        }
+    }
+
+    /**
+     * <p>Check whether remote resources missing from the specified local
+     * files (as {@link #list(File, String, Map) listed}) can be deleted,
+     * logging why they are kept when the listing is empty.</p>
+     */
+    protected boolean deletable(File root, Map files, boolean delete) {
+        if (! delete) return false;
+        if (! files.isEmpty()) return true;
+        LOGGER.warn("Not deleting anything from " + this.location + ", \""
+                    + root + "\" is empty");
+        return false;
+    }
+
+    /* ====================================================================== */
+    /* PRIVATE METHODS                                                        */
+    /* ====================================================================== */
+
+    /**
+     * <p>Queue an operation, coalescing it with any queued for the same
+     * path (a <b>null</b> {@link File} indicates a deletion).</p>
+     */
+    private void submit(String path, File file) {
+        final Operation operation;
+        synchronized (this.pending) {
+            final Operation queued = (Operation) this.pending.get(path);
+            if (queued != null) {
+                queued.file = file;
+                return;
+            }
+            operation = new Operation(path, file);
+            this.pending.put(path, operation);
+        }
+        this.executor.execute(operation);
+    }
+
+    /* ====================================================================== */
+    /* INTERNAL CLASSES                                                       */
+    /* ====================================================================== */
+
+    /**
+     * <p>A single operation on a remote path.</p>
+     */
+    private final class Operation implements Runnable {
+
+        /** <p>The path relative to the remote location.</p> */
+        private final String path;
+        /** <p>The {@link File} to upload or <b>null</b> to delete.</p> */
+        private File file;
+
+        private Operation(String path, File file) {
+            this.path = path;
+            this.file = file;
+        }
+
+        public void run() {
+            final File file;
+            synchronized (Publisher.this.pending) {
+                Publisher.this.pending.remove(this.path);
+                file = this.file;
+            }
+
+            for (int attempt = 1; attempt <= MAX_ATTEMPTS; attempt ++) try {
+                Publisher.this.execute(this.path, file);
+                return;
+            } catch (Throwable throwable) {
+                final String action = file == null ? "delete \"" : "upload \"";
+                final String message = "Unable to " + action + this.path
+                                       + "\" to " + Publisher.this.location
+                                       + " (attempt " + attempt + " of "
+                                       + MAX_ATTEMPTS + ")";
+                if (attempt == MAX_ATTEMPTS) {
+                    LOGGER.warn(message, throwable);
+                    return;
+                }
+                LOGGER.debug(message, throwable);
+
+                /* Cached state may be stale, start afresh */
+                Publisher.this.failed(this.path);
+                try {
+                    Thread.sleep(RETRY_DELAY * attempt);
+                } catch (InterruptedException exception) {
+                    return;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,294 @@
+/* ========================================================================== *
+ *   Copyright (c) 2006, Pier Paolo Fumagalli <mailto:pier@betaversion.org>   *
+ *                            All rights reserved.                            *
+ * ========================================================================== *
+ *                                                                            * 
+ * Redistribution and use in source and binary forms, with or without modifi- *
+ * cation, are permitted provided that the following conditions are met:      *
+ *                                                                            * 
+ *  - Redistributions of source code must retain the  above copyright notice, *
+ *    this list of conditions and the following disclaimer.                   *
+ *                                                                            * 
+ *  - Redistributions  in binary  form  must  reproduce the  above  copyright *
+ *    notice,  this list of conditions  and the following  disclaimer  in the *
+ *    documentation and/or other materials provided with the distribution.    *
+ *                                                                            * 
+ *  - Neither the name of Pier Fumagalli, nor the names of other contributors *
+ *    may be used to endorse  or promote products derived  from this software *
+ *    without specific prior written permission.                              *
+ *                                                                            * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS "AS IS" *
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES,  INCLUDING, BUT NOT LIMITED TO, THE *
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE *
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER  OR CONTRIBUTORS BE *
+ * LIABLE  FOR ANY  DIRECT,  INDIRECT,  INCIDENTAL,  SPECIAL,  EXEMPLARY,  OR *
+ * CONSEQUENTIAL  DAMAGES  (INCLUDING,  BUT  NOT LIMITED  TO,  PROCUREMENT OF *
+ * SUBSTITUTE GOODS OR SERVICES;  LOSS OF USE, DATA, OR PROFITS;  OR BUSINESS *
+ * INTERRUPTION)  HOWEVER CAUSED AND ON  ANY THEORY OF LIABILITY,  WHETHER IN *
+ * CONTRACT,  STRICT LIABILITY,  OR TORT  (INCLUDING NEGLIGENCE OR OTHERWISE) *
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE *
+ * POSSIBILITY OF SUCH DAMAGE.                                                *
+ * ========================================================================== */
+package it.could.confluence.autoexport.engine;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+/**
+ * <p>A memory-bounded cache of the XHTML rendered from the wiki content of
+ * pages, keyed by page id and version.</p>
+ * 
+ * <p>The least recently used entries are evicted when the total size of the
+ * cached content exceeds a limit, and (if a spill directory is specified)
+ * written to disk until the size of the spilled content exceeds a second
+ * limit. As the rendered content can depend on other pages (think of macros
+ * listing children or including content), entries also expire after a fixed
+ * amount of time.</p>
+ */
+public class RenderCache {
+
+    /** <p>The Log4J {@link Logger} used by all instances.</p> */
+    private static final Logger LOGGER = Logger.getLogger(RenderCache.class);
+    /** <p>The encoding of spilled files.</p> */
+    private static final String ENCODING = "UTF-8";
+    /** <p>The extension of spilled files.</p> */
+    private static final String EXTENSION = ".xhtml";
+
+    /** <p>The maximum number of characters kept in memory.</p> */
+    private final long maxMemory;
+    /** <p>The maximum number of bytes spilled to disk.</p> */
+    private final long maxSpill;
+    /** <p>The time in milliseconds after which entries expire.</p> */
+    private final long maxAge;
+    /** <p>The directory where entries are spilled, or <b>null</b>.</p> */
+    private final File directory;
+
+    /** <p>The {@link Map} of keys to in-memory entries, in access order.</p> */
+    private final Map memory = new LinkedHashMap(256, 0.75f, true);
+    /** <p>The {@link Map} of keys to spilled entries, in access order.</p> */
+    private final Map spilled = new LinkedHashMap(256, 0.75f, true);
+    /** <p>The number of characters currently kept in memory.</p> */
+    private long memorySize = 0;
+    /** <p>The number of bytes currently spilled to disk.</p> */
+    private long spilledSize = 0;
+    /** <p>The number of lookups and hits, for statistics.</p> */
+    private long lookups = 0, hits = 0;
+
+    /**
+     * <p>Create a new {@link RenderCache} keeping at most the specified
+     * number of characters in memory, and spilling at most the specified
+     * number of bytes in the given directory (or nothing if <b>null</b>).</p>
+     */
+    public RenderCache(long maxMemory, File directory, long maxSpill,
+                       long maxAge) {
+        if (maxMemory < 0) throw new IllegalArgumentException("Negative memory");
+        if (maxSpill < 0) throw new IllegalArgumentException("Negative spill");
+        this.maxMemory = maxMemory;
+        this.maxSpill = directory == null ? 0 : maxSpill;
+        this.maxAge = maxAge;
+        this.directory = directory;
+
+        /* Entries spilled by a previous instance are useless */
+        final File files[] = directory == null ? null : directory.listFiles();
+        for (int x = 0; (files != null) && (x < files.length); x ++) {
+            if (files[x].getName().endsWith(EXTENSION)) files[x].delete();
+        }
+    }
+
+    /* ====================================================================== */
+    /* PUBLIC METHODS                                                         */
+    /* ====================================================================== */
+
+    /**
+     * <p>Return the XHTML cached for the specified version of a page, or
+     * <b>null</b> if it was never cached (or was evicted, or expired).</p>
+     */
+    public synchronized String get(long id, int version) {
+        final String key = id + "-" + version;
+        this.lookups ++;
+
+        final Entry entry = (Entry) this.memory.get(key);
+        if (entry != null) {
+            if (this.expired(entry)) {
+                this.memory.remove(key);
+                this.memorySize -= entry.size;
+                return null;
+            }
+            this.hits ++;
+            return entry.content;
+        }
+
+        final Entry spill = (Entry) this.spilled.remove(key);
+        if (spill == null) return null;
+        this.spilledSize -= spill.size;
+        try {
+            if (this.expired(spill)) return null;
+            final String content = read(spill.file);
+            this.store(key, content, spill.time);
+            this.hits ++;
+            return content;
+        } catch (IOException exception) {
+            LOGGER.warn("Unable to read spilled content " + spill.file, exception);
+            return null;
+        } finally {
+            spill.file.delete();
+        }
+    }
+
+    /**
+     * <p>Cache the XHTML rendered for the specified version of a page.</p>
+     */
+    public synchronized void put(long id, int version, String content) {
+        if (content == null) return;
+        final String key = id + "-" + version;
+        final Entry spill = (Entry) this.spilled.remove(key);
+        if (spill != null) {
+            this.spilledSize -= spill.size;
+            spill.file.delete();
+        }
+        this.store(key, content, System.currentTimeMillis());
+    }
+
+    /**
+     * <p>Remove all entries from this cache.</p>
+     */
+    public synchronized void clear() {
+        for (Iterator iterator = this.spilled.values().iterator(); iterator.hasNext(); ) {
+            ((Entry) iterator.next()).file.delete();
+        }
+        this.memory.clear();
+        this.spilled.clear();
+        this.memorySize = 0;
+        this.spilledSize = 0;
+    }
+
+    /**
+     * <p>Return a short description of the usage of this cache.</p>
+     */
+    public synchronized String toString() {
+        return "RenderCache[entries=" + this.memory.size() + "+"
+               + this.spilled.size() + ",chars=" + this.memorySize
+               + ",spilled=" + this.spilledSize + ",hits=" + this.hits
+               + "/" + this.lookups + "]";
+    }
+
+    /* ====================================================================== */
+    /* PRIVATE METHODS                                                        */
+    /* ====================================================================== */
+
+    /**
+     * <p>Check whether the specified entry has expired.</p>
+     */
+    private boolean expired(Entry entry) {
+        return System.currentTimeMillis() - entry.time > this.maxAge;
+    }
+
+    /**
+     * <p>Store content in memory, evicting (and spilling) least recently
+     * used entries as required.</p>
+     */
+    private void store(String key, String content, long time) {
+        final Entry previous = (Entry) this.memory.remove(key);
+        if (previous != null) this.memorySize -= previous.size;
+        if (content.length() > this.maxMemory) return;
+
+        this.memory.put(key, new Entry(content, null, content.length(), time));
+        this.memorySize += content.length();
+
+        final Iterator iterator = this.memory.entrySet().iterator();
+        while ((this.memorySize > this.maxMemory) && iterator.hasNext()) {
+            final Map.Entry eldest = (Map.Entry) iterator.next();
+            final Entry entry = (Entry) eldest.getValue();
+            iterator.remove();
+            this.memorySize -= entry.size;
+            if (! this.expired(entry)) this.spill((String) eldest.getKey(), entry);
+        }
+    }
+
+    /**
+     * <p>Spill an entry evicted from memory to disk, evicting least recently
+     * used spilled entries as required.</p>
+     */
+    private void spill(String key, Entry entry) {
+        if (this.maxSpill == 0) return;
+        final File file = new File(this.directory, key + EXTENSION);
+        try {
+            if (! this.directory.isDirectory()) this.directory.mkdirs();
+            final Writer writer = new OutputStreamWriter(new FileOutputStream(file), ENCODING);
+            try {
+                writer.write(entry.content);
+            } finally {
+                writer.close();
+            }
+        } catch (IOException exception) {
+            LOGGER.warn("Unable to spill rendered content to " + file, exception);
+            file.delete();
+            return;
+        }
+
+        this.spilled.put(key, new Entry(null, file, file.length(), entry.time));
+        this.spilledSize += file.length();
+
+        final Iterator iterator = this.spilled.values().iterator();
+        while ((this.spilledSize > this.maxSpill) && iterator.hasNext()) {
+            final Entry eldest = (Entry) iterator.next();
+            iterator.remove();
+            this.spilledSize -= eldest.size;
+            eldest.file.delete();
+        }
+    }
+
+    /**
+     * <p>Read the content of a spilled {@link File}.</p>
+     */
+    private static String read(File file)
+    throws IOException {
+        final Reader reader = new InputStreamReader(new FileInputStream(file), ENCODING);
+        try {
+            final StringBuffer buffer = new StringBuffer((int) file.length());
+            final char chars[] = new char[8192];
+            int read = -1;
+            while ((read = reader.read(chars)) >= 0) buffer.append(chars, 0, read);
+            return buffer.toString();
+        } finally {
+            reader.close();
+        }
+    }
+
+    /* ====================================================================== */
+    /* INNER CLASSES                                                          */
+    /* ====================================================================== */
+
+    /**
+     * <p>A cached entry, either in memory or spilled to disk.</p>
+     */
+    private static final class Entry {
+
+        /** <p>The content, when kept in memory.</p> */
+        private final String content;
+        /** <p>The {@link File} holding the content, when spilled.</p> */
+        private final File file;
+        /** <p>The size in characters (in memory) or bytes (spilled).</p> */
+        private final long size;
+        /** <p>The time when the content was rendered.</p> */
+        private final long time;
+
+        private Entry(String content, File file, long size, long time) {
+            this.content = content;
+            this.file = file;
+            this.size = size;
+            this.time = time;
+        }
+    }
+}
@@ -0,0 +1,472 @@
+/* ========================================================================== *
+ *   Copyright (c) 2006, Pier Paolo Fumagalli <mailto:pier@betaversion.org>   *
+ *                            All rights reserved.                            *
+ * ========================================================================== *
+ *                                                                            * 
+ * Redistribution and use in source and binary forms, with or without modifi- *
+ * cation, are permitted provided that the following conditions are met:      *
+ *                                                                            * 
+ *  - Redistributions of source code must retain the  above copyright notice, *
+ *    this list of conditions and the following disclaimer.                   *
+ *                                                                            * 
+ *  - Redistributions  in binary  form  must  reproduce the  above  copyright *
+ *    notice,  this list of conditions  and the following  disclaimer  in the *
+ *    documentation and/or other materials provided with the distribution.    *
+ *                                                                            * 
+ *  - Neither the name of Pier Fumagalli, nor the names of other contributors *
+ *    may be used to endorse  or promote products derived  from this software *
+ *    without specific prior written permission.                              *
+ *                                                                            * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS "AS IS" *
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES,  INCLUDING, BUT NOT LIMITED TO, THE *
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE *
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER  OR CONTRIBUTORS BE *
+ * LIABLE  FOR ANY  DIRECT,  INDIRECT,  INCIDENTAL,  SPECIAL,  EXEMPLARY,  OR *
+ * CONSEQUENTIAL  DAMAGES  (INCLUDING,  BUT  NOT LIMITED  TO,  PROCUREMENT OF *
+ * SUBSTITUTE GOODS OR SERVICES;  LOSS OF USE, DATA, OR PROFITS;  OR BUSINESS *
+ * INTERRUPTION)  HOWEVER CAUSED AND ON  ANY THEORY OF LIABILITY,  WHETHER IN *
+ * CONTRACT,  STRICT LIABILITY,  OR TORT  (INCLUDING NEGLIGENCE OR OTHERWISE) *
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE *
+ * POSSIBILITY OF SUCH DAMAGE.                                                *
+ * ========================================================================== */
+package it.could.confluence.autoexport.engine;
+
+import it.could.util.encoding.EncodingTools;
+import it.could.util.http.ConnectionPool;
+import it.could.util.http.S3Client;
+import it.could.util.location.Authority;
+import it.could.util.location.Location;
+import it.could.util.location.Parameters;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.log4j.Logger;
+
+/**
+ * <p>An {@link S3Publisher} pushes exported files to a bucket of an object
+ * storage service compatible with Amazon S3 as soon as they are written to
+ * disk.</p>
+ * 
+ * <p>Locations have the form
+ * <code>s3://accessKey:secretKey@host[:port]/bucket/[prefix/][?region=name][&amp;secure=true]</code>
+ * (the secret key must be URL-encoded) and requests are sent to the
+ * specified host, addressing the bucket by path, over HTTPS when the
+ * <code>secure</code> parameter is <code>true</code> or over plain HTTP
+ * otherwise.</p>
+ * 
+ * <p>Small files are uploaded with a single request, on as many threads as
+ * the publisher has. Larger files are uploaded in parts, themselves
+ * uploaded in parallel, with at most one part per thread held in memory at
+ * any time. Removed directories are deleted by listing all objects with
+ * their prefix and deleting them in bulk, and moves are performed by
+ * copying objects on the server.</p>
+ */
+public final class S3Publisher extends Publisher {
+
+    /** <p>The Log4J {@link Logger} used by all instances.</p> */
+    private static final Logger LOGGER = Logger.getLogger(S3Publisher.class);
+    /** <p>The size of files uploaded in parts, and of each part.</p> */
+    private static final int PART_SIZE = 8 * 1024 * 1024;
+    /** <p>The content type of files with unknown extensions.</p> */
+    private static final String DEFAULT_TYPE = "application/octet-stream";
+    /** <p>A {@link Map} of file extensions to content types.</p> */
+    private static final Map TYPES = new HashMap();
+    static {
+        TYPES.put("html", "text/html");
+        TYPES.put("htm",  "text/html");
+        TYPES.put("css",  "text/css");
+        TYPES.put("js",   "application/javascript");
+        TYPES.put("json", "application/json");
+        TYPES.put("xml",  "application/xml");
+        TYPES.put("txt",  "text/plain");
+        TYPES.put("png",  "image/png");
+        TYPES.put("gif",  "image/gif");
+        TYPES.put("jpg",  "image/jpeg");
+        TYPES.put("jpeg", "image/jpeg");
+        TYPES.put("svg",  "image/svg+xml");
+        TYPES.put("ico",  "image/x-icon");
+        TYPES.put("pdf",  "application/pdf");
+        TYPES.put("zip",  "application/zip");
+    }
+
+    /** <p>The {@link S3Client} connected to the bucket.</p> */
+    private final S3Client client;
+    /** <p>The {@link ThreadPoolExecutor} uploading parts of large files.</p> */
+    private final ThreadPoolExecutor parts;
+    /** <p>The {@link Semaphore} bounding the parts held in memory.</p> */
+    private final Semaphore buffers;
+
+    /**
+     * <p>Create a new {@link S3Publisher} publishing content to the bucket at
+     * the specified <code>s3</code> {@link Location} with at most the given
+     * number of concurrent operations (and parts of large files).</p>
+     * 
+     * @throws IllegalArgumentException if the location did not specify the
+     *                                  keys, host or bucket.
+     */
+    public S3Publisher(Location location, int threads) {
+        super(anonymous(location), threads);
+        final Authority authority = location.getAuthority();
+        if ((authority.getUser() == null) || (authority.getPass() == null))
+            throw new IllegalArgumentException("No access or secret key");
+
+        final Parameters parameters = location.getParameters();
+        final String region = parameters == null ? null :
+                              parameters.getValue("region");
+        final boolean secure = parameters != null &&
+                               "true".equalsIgnoreCase(parameters.getValue("secure"));
+        final String port = authority.getPort() == Authority.UNSPECIFIED_PORT ?
+                            "" : ":" + authority.getPort();
+        final Location bucket = Location.parse((secure ? "https://" : "http://")
+                                               + authority.getHost() + port
+                                               + location.getPath());
+        this.client = new S3Client(bucket, authority.getUser(),
+                                   authority.getPass(), region,
+                                   new ConnectionPool(threads * 2,
+                                   ConnectionPool.DEFAULT_IDLE_TIMEOUT));
+
+        final String name = "AutoExport S3 Publisher [" + this.getLocation() + "]";
+        this.parts = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                                            new LinkedBlockingQueue(),
+                                            new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                final Thread thread = new Thread(runnable, name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.buffers = new Semaphore(threads);
+    }
+
+    /* ====================================================================== */
+    /* PUBLIC METHODS                                                         */
+    /* ====================================================================== */
+
+    /**
+     * <p>Move the object (or all objects, if the paths end with a slash) at
+     * the specified source path to the specified destination path, copying
+     * them on the server and deleting the originals.</p>
+     * 
+     * <p>Objects are copied in parallel on the threads uploading parts of
+     * large files, and the calling thread only waits for all of them to be
+     * copied.</p>
+     */
+    public boolean move(String source, String destination) {
+        if (source == null) throw new NullPointerException("Null source");
+        if (destination == null) throw new NullPointerException("Null destination");
+        final String from = key(source);
+        final String to = key(destination);
+        try {
+            if (! from.endsWith("/")) {
+                this.client.copyObject(from, to);
+                this.client.deleteObject(from);
+                return true;
+            }
+
+            /* Copy all objects in parallel, waiting for all of them */
+            final List keys = new ArrayList(this.client.listObjects(from).keySet());
+            final List futures = new ArrayList();
+            for (Iterator iterator = keys.iterator(); iterator.hasNext(); ) {
+                final String key = (String) iterator.next();
+                futures.add(this.parts.submit(new Copy(key,
+                                    to + key.substring(from.length()))));
+            }
+            Throwable failure = null;
+            for (Iterator iterator = futures.iterator(); iterator.hasNext(); ) try {
+                ((Future) iterator.next()).get();
+            } catch (ExecutionException exception) {
+                if (failure == null) failure = exception.getCause();
+            }
+            if (failure != null) throw failure;
+
+            this.client.deleteObjects(keys);
+            return true;
+        } catch (Throwable throwable) {
+            LOGGER.debug("Unable to move \"" + source + "\" to \"" + destination
+                         + "\" on " + this.getLocation(), throwable);
+            return false;
+        }
+    }
+
+    /**
+     * <p>Stop accepting new operations, letting queued ones complete.</p>
+     */
+    public void shutdown() {
+        super.shutdown();
+        this.parts.shutdown();
+    }
+
+    /* ====================================================================== */
+    /* PUBLISHER METHODS                                                      */
+    /* ====================================================================== */
+
+    /**
+     * <p>Compare the specified local directory with a listing of all objects
+     * in the bucket, deleting what is not local in bulk (if requested) and
+     * queuing the upload of all files missing remotely or changed.</p>
+     */
+    protected void compare(File root, boolean delete)
+    throws IOException {
+        final SortedMap objects = this.client.listObjects("");
+        final Map files = new TreeMap();
+        list(root, "", files);
+        final boolean deletable = this.deletable(root, files, delete);
+
+        /* Keys of files (directories are not objects) */
+        final Map keys = new HashMap();
+        for (Iterator iterator = files.entrySet().iterator(); iterator.hasNext(); ) {
+            final Map.Entry entry = (Map.Entry) iterator.next();
+            final File file = (File) entry.getValue();
+            if (! file.isDirectory()) keys.put(key((String) entry.getKey()), entry);
+        }
+
+        /* Delete all objects which are not local, if asked to */
+        final List deletions = new ArrayList();
+        for (Iterator iterator = objects.keySet().iterator(); iterator.hasNext(); ) {
+            final String key = (String) iterator.next();
+            if (deletable && (! keys.containsKey(key))) deletions.add(key);
+        }
+        if (! deletions.isEmpty()) this.client.deleteObjects(deletions);
+
+        /* Upload whatever is missing or changed */
+        int uploads = 0;
+        for (Iterator iterator = keys.entrySet().iterator(); iterator.hasNext(); ) {
+            final Map.Entry entry = (Map.Entry) iterator.next();
+            final Map.Entry local = (Map.Entry) entry.getValue();
+            final File file = (File) local.getValue();
+            final S3Client.Entry object = (S3Client.Entry) objects.get(entry.getKey());
+            if ((object != null) && (object.getSize() == file.length()) &&
+                (object.getLastModified().getTime() >= file.lastModified()))
+                continue;
+            this.publish((String) local.getKey(), file);
+            uploads ++;
+        }
+
+        LOGGER.info("Synchronizing " + keys.size() + " local files with "
+                    + objects.size() + " objects at " + this.getLocation()
+                    + " (" + uploads + " uploads, " + deletions.size()
+                    + " deletions)");
+    }
+
+    /**
+     * <p>Perform a single upload or deletion.</p>
+     */
+    protected void execute(String path, File file)
+    throws IOException {
+        final String key = key(path);
+        if (file == null) {
+            if (! key.endsWith("/")) this.client.deleteObject(key);
+            else this.client.deleteObjects(new ArrayList(
+                                           this.client.listObjects(key).keySet()));
+            return;
+        }
+
+        /* The file might have been removed after publication was requested */
+        if (! file.isFile()) return;
+        if (file.length() > PART_SIZE) {
+            this.upload(key, file);
+            return;
+        }
+
+        final InputStream input = new FileInputStream(file);
+        try {
+            final byte data[] = read(input, (int) file.length());
+            this.client.putObject(key, data, 0, data.length, type(key));
+        } finally {
+            input.close();
+        }
+    }
+
+    /* ====================================================================== */
+    /* PRIVATE METHODS                                                        */
+    /* ====================================================================== */
+
+    /**
+     * <p>Upload a large file in parts, uploaded in parallel, aborting the
+     * upload if any part fails.</p>
+     */
+    private void upload(String key, File file)
+    throws IOException {
+        final String upload = this.client.createMultipartUpload(key, type(key));
+        final List futures = new ArrayList();
+        final AtomicBoolean aborted = new AtomicBoolean(false);
+        boolean completed = false;
+        final InputStream input = new FileInputStream(file);
+        try {
+            for (int number = 1; ; number ++) {
+                final byte data[] = read(input, PART_SIZE);
+                if (data.length == 0) break;
+                this.buffers.acquire();
+                try {
+                    futures.add(this.parts.submit(new Part(key, upload, number, data,
+                                                           aborted)));
+                } catch (RuntimeException exception) {
+                    this.buffers.release();
+                    throw exception;
+                }
+            }
+
+            final List etags = new ArrayList();
+            for (Iterator iterator = futures.iterator(); iterator.hasNext(); )
+                etags.add(((Future) iterator.next()).get());
+            this.client.completeMultipartUpload(key, upload, etags);
+            completed = true;
+
+        } catch (InterruptedException exception) {
+            throw new InterruptedIOException("Interrupted uploading \"" + key + "\"");
+        } catch (ExecutionException exception) {
+            final Throwable cause = exception.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            final Exception throwable = new IOException("Unable to upload \""
+                                                        + key + "\"");
+            throw (IOException) throwable.initCause(cause);
+        } finally {
+            input.close();
+            if (! completed) {
+                /* Skip parts not yet started, and wait for the others */
+                aborted.set(true);
+                for (Iterator iterator = futures.iterator(); iterator.hasNext(); ) try {
+                    ((Future) iterator.next()).get();
+                } catch (Exception exception) {
+                    /* Ignore, we're already failing */
+                }
+                try {
+                    this.client.abortMultipartUpload(key, upload);
+                } catch (IOException exception) {
+                    LOGGER.debug("Unable to abort upload of \"" + key + "\"",
+                                 exception);
+                }
+            }
+        }
+    }
+
+    /**
+     * <p>Read up to the specified number of bytes from an
+     * {@link InputStream}, returning a possibly shorter (or empty) array at
+     * the end of the stream.</p>
+     */
+    private static byte[] read(InputStream input, int length)
+    throws IOException {
+        final byte data[] = new byte[length];
+        int offset = 0;
+        while (offset < length) {
+            final int read = input.read(data, offset, length - offset);
+            if (read < 0) break;
+            offset += read;
+        }
+        if (offset == length) return data;
+        final byte shorter[] = new byte[offset];
+        System.arraycopy(data, 0, shorter, 0, offset);
+        return shorter;
+    }
+
+    /**
+     * <p>Return the (decoded) key for an encoded path.</p>
+     */
+    private static String key(String path) {
+        return EncodingTools.urlDecode(path);
+    }
+
+    /**
+     * <p>Return the content type of an object from the extension of its
+     * key.</p>
+     */
+    private static String type(String key) {
+        final int dot = key.lastIndexOf('.');
+        if ((dot < 0) || (dot < key.lastIndexOf('/'))) return DEFAULT_TYPE;
+        final String type = (String) TYPES.get(key.substring(dot + 1).toLowerCase());
+        return type == null ? DEFAULT_TYPE : type;
+    }
+
+    /**
+     * <p>Return the specified {@link Location} without the access and secret
+     * keys, so that it can be safely logged.</p>
+     */
+    private static Location anonymous(Location location) {
+        if (location == null) throw new NullPointerException("Null location");
+        final Authority authority = location.getAuthority();
+        if (authority == null) throw new IllegalArgumentException("No host");
+        final String port = authority.getPort() == Authority.UNSPECIFIED_PORT ?
+                            "" : ":" + authority.getPort();
+        return Location.parse(location.getScheme() + "://" + authority.getHost()
+                              + port + location.getPath());
+    }
+
+    /* ====================================================================== */
+    /* INTERNAL CLASSES                                                       */
+    /* ====================================================================== */
+
+    /**
+     * <p>The upload of a single part of a large file, releasing its buffer
+     * when done.</p>
+     */
+    private final class Part implements Callable {
+
+        private final String key;
+        private final String upload;
+        private final int number;
+        private final byte data[];
+        private final AtomicBoolean aborted;
+
+        private Part(String key, String upload, int number, byte data[],
+                     AtomicBoolean aborted) {
+            this.key = key;
+            this.upload = upload;
+            this.number = number;
+            this.data = data;
+            this.aborted = aborted;
+        }
+
+        public Object call()
+        throws IOException {
+            try {
+                if (this.aborted.get()) return null;
+                return S3Publisher.this.client.uploadPart(this.key, this.upload,
+                                                          this.number, this.data,
+                                                          0, this.data.length);
+            } finally {
+                S3Publisher.this.buffers.release();
+            }
+        }
+    }
+
+    /**
+     * <p>The copy of a single object moved with its directory.</p>
+     */
+    private final class Copy implements Callable {
+
+        private final String source;
+        private final String destination;
+
+        private Copy(String source, String destination) {
+            this.source = source;
+            this.destination = destination;
+        }
+
+        public Object call()
+        throws IOException {
+            S3Publisher.this.client.copyObject(this.source, this.destination);
+            return null;
+        }
+    }
+}
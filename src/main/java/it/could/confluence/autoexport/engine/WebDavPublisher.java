@@ -0,0 +1,420 @@
+/* ========================================================================== *
+ *   Copyright (c) 2006, Pier Paolo Fumagalli <mailto:pier@betaversion.org>   *
+ *                            All rights reserved.                            *
+ * ========================================================================== *
+ *                                                                            * 
+ * Redistribution and use in source and binary forms, with or without modifi- *
+ * cation, are permitted provided that the following conditions are met:      *
+ *                                                                            * 
+ *  - Redistributions of source code must retain the  above copyright notice, *
+ *    this list of conditions and the following disclaimer.                   *
+ *                                                                            * 
+ *  - Redistributions  in binary  form  must  reproduce the  above  copyright *
+ *    notice,  this list of conditions  and the following  disclaimer  in the *
+ *    documentation and/or other materials provided with the distribution.    *
+ *                                                                            * 
+ *  - Neither the name of Pier Fumagalli, nor the names of other contributors *
+ *    may be used to endorse  or promote products derived  from this software *
+ *    without specific prior written permission.                              *
+ *                                                                            * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS "AS IS" *
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES,  INCLUDING, BUT NOT LIMITED TO, THE *
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE *
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER  OR CONTRIBUTORS BE *
+ * LIABLE  FOR ANY  DIRECT,  INDIRECT,  INCIDENTAL,  SPECIAL,  EXEMPLARY,  OR *
+ * CONSEQUENTIAL  DAMAGES  (INCLUDING,  BUT  NOT LIMITED  TO,  PROCUREMENT OF *
+ * SUBSTITUTE GOODS OR SERVICES;  LOSS OF USE, DATA, OR PROFITS;  OR BUSINESS *
+ * INTERRUPTION)  HOWEVER CAUSED AND ON  ANY THEORY OF LIABILITY,  WHETHER IN *
+ * CONTRACT,  STRICT LIABILITY,  OR TORT  (INCLUDING NEGLIGENCE OR OTHERWISE) *
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE *
+ * POSSIBILITY OF SUCH DAMAGE.                                                *
+ * ========================================================================== */
+package it.could.confluence.autoexport.engine;
+
+import it.could.util.StringTools;
+import it.could.util.http.TransferManager;
+import it.could.util.http.WebDavClient;
+import it.could.util.http.WebDavTree;
+import it.could.util.location.Location;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.apache.log4j.Logger;
+
+/**
+ * <p>A {@link WebDavPublisher} pushes exported files to a remote WebDAV
+ * collection as soon as they are written to disk.</p>
+ * 
+ * <p>Collections known to exist on the remote server are cached, so that
+ * each one is created at most once, and are created again when a failed
+ * operation is retried.</p>
+ * 
+ * <p>A whole local directory can also be {@link #synchronize(File, boolean)
+ * synchronized} with the remote collection, comparing it with the cached
+ * {@link WebDavTree} of the remote collection rather than visiting each
+ * remote collection separately. The differences are then transferred as a
+ * single batch by a {@link TransferManager}, and whatever fails is queued
+ * again as a normal operation.</p>
+ * 
+ * <p>The digest of each uploaded file is remembered together with the
+ * entity tag returned by the server: files re-exported with identical
+ * contents are not transmitted again, unless the remote resource was changed
+ * (its entity tag differs) in the meantime.</p>
+ */
+public final class WebDavPublisher extends Publisher {
+
+    /** <p>The Log4J {@link Logger} used by all instances.</p> */
+    private static final Logger LOGGER = Logger.getLogger(WebDavPublisher.class);
+
+    /** <p>The maximum number of concurrent operations.</p> */
+    private final int threads;
+    /** <p>The {@link Set} of collection paths known to exist remotely.</p> */
+    private final Set collections = new HashSet();
+    /** <p>A {@link Map} of paths to the {@link Upload}s last performed.</p> */
+    private final Map uploads = new HashMap();
+    /** <p>The {@link WebDavClient} connected to the remote collection.</p> */
+    private WebDavClient client = null;
+    /** <p>The {@link TransferManager} synchronizing whole directories.</p> */
+    private TransferManager transfers = null;
+
+    /**
+     * <p>Create a new {@link WebDavPublisher} publishing content to the
+     * WebDAV collection at the specified {@link Location} with at most the
+     * given number of concurrent operations.</p>
+     */
+    public WebDavPublisher(Location location, int threads) {
+        super(location, threads);
+        this.threads = threads;
+    }
+
+    /* ====================================================================== */
+    /* PUBLIC METHODS                                                         */
+    /* ====================================================================== */
+
+    /**
+     * <p>Move the resource (or collection) at the specified source path to
+     * the specified destination path with a single <code>MOVE</code>
+     * request.</p>
+     */
+    public boolean move(String source, String destination) {
+        if (source == null) throw new NullPointerException("Null source");
+        if (destination == null) throw new NullPointerException("Null destination");
+        try {
+            final WebDavClient client = this.getClient();
+            this.createParents(client, destination);
+            if (! client.movePath(source, destination, true)) return false;
+        } catch (Throwable throwable) {
+            LOGGER.debug("Unable to move \"" + source + "\" to \"" + destination
+                         + "\" on " + this.getLocation(), throwable);
+            return false;
+        }
+
+        /* Uploaded contents now live at the destination */
+        this.forgetCollections(source);
+        synchronized (this.uploads) {
+            final Map moved = new HashMap();
+            final Iterator iterator = this.uploads.entrySet().iterator();
+            while (iterator.hasNext()) {
+                final Map.Entry entry = (Map.Entry) iterator.next();
+                final String path = (String) entry.getKey();
+                if (! (path.equals(source) || (source.endsWith("/")
+                                               && path.startsWith(source))))
+                    continue;
+                final Upload upload = (Upload) entry.getValue();
+                moved.put(destination + path.substring(source.length()),
+                          new Upload(upload.digest, null));
+                iterator.remove();
+            }
+            this.uploads.putAll(moved);
+        }
+        return true;
+    }
+
+    /**
+     * <p>Stop accepting new operations, letting queued ones complete.</p>
+     */
+    public void shutdown() {
+        super.shutdown();
+        synchronized (this) {
+            if (this.transfers != null) this.transfers.shutdown();
+        }
+    }
+
+    /* ====================================================================== */
+    /* PRIVATE METHODS                                                        */
+    /* ====================================================================== */
+
+    /**
+     * <p>Return the {@link WebDavClient} connected to the remote collection,
+     * connecting to it if required.</p>
+     */
+    private synchronized WebDavClient getClient()
+    throws IOException {
+        if (this.client == null) {
+            /* Exported pages are mostly text, compress them when possible */
+            this.client = new WebDavClient(this.getLocation()).setCompression(true);
+        }
+        return this.client;
+    }
+
+    /**
+     * <p>Return the {@link TransferManager} executing batches of transfers
+     * with the {@link WebDavClient}, creating it if required.</p>
+     */
+    private synchronized TransferManager getTransferManager()
+    throws IOException {
+        if (this.transfers == null)
+            this.transfers = new TransferManager(this.getClient(), this.threads);
+        return this.transfers;
+    }
+
+    /**
+     * <p>Make sure that all collections containing the specified path exist
+     * on the remote server, creating them if necessary.</p>
+     */
+    private void createParents(WebDavClient client, String path)
+    throws IOException {
+        for (int index = path.indexOf('/'); index > 0;
+             index = path.indexOf('/', index + 1)) {
+            if (index == path.length() - 1) break;
+            final String collection = path.substring(0, index + 1);
+            synchronized (this.collections) {
+                if (this.collections.contains(collection)) continue;
+            }
+            client.mkcolPath(collection);
+            synchronized (this.collections) {
+                this.collections.add(collection);
+            }
+        }
+    }
+
+    /**
+     * <p>Parent collections may have vanished, forget them.</p>
+     */
+    protected void failed(String path) {
+        this.forgetCollections(path);
+    }
+
+    /**
+     * <p>Forget all cached collections containing (or contained by) the
+     * specified path, as they might not exist remotely anymore.</p>
+     */
+    private void forgetCollections(String path) {
+        synchronized (this.collections) {
+            final Iterator iterator = this.collections.iterator();
+            while (iterator.hasNext()) {
+                final String collection = (String) iterator.next();
+                if (path.startsWith(collection) || collection.startsWith(path))
+                    iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * <p>Compare the specified local directory with the {@link WebDavTree} of
+     * the remote collection, transferring all uploads (and deletions, if
+     * requested) required to bring the two in line as a single batch.</p>
+     */
+    protected void compare(File root, boolean delete)
+    throws IOException {
+        final WebDavTree tree = this.getClient().getTree();
+        final TransferManager.Batch batch = this.getTransferManager().createBatch();
+        final Map files = new TreeMap();
+        list(root, "", files);
+        final boolean deletable = this.deletable(root, files, delete);
+
+        /* Remember remote collections, and delete what's not local if asked */
+        String deleted = null;
+        for (Iterator iterator = tree.getPaths().iterator(); iterator.hasNext(); ) {
+            final String path = (String) iterator.next();
+            if (path.length() == 0) continue;
+            if ((deleted != null) && path.startsWith(deleted)) continue;
+            if (files.containsKey(path)) {
+                if (! tree.isCollection(path)) continue;
+                synchronized (this.collections) {
+                    this.collections.add(path);
+                }
+            } else if (deletable) {
+                batch.delete(path);
+                if (path.endsWith("/")) deleted = path;
+            }
+        }
+
+        /* Create missing collections (sorted before their contents) */
+        for (Iterator iterator = files.entrySet().iterator(); iterator.hasNext(); ) {
+            final Map.Entry entry = (Map.Entry) iterator.next();
+            final String path = (String) entry.getKey();
+            final File file = (File) entry.getValue();
+            if (file.isDirectory()) {
+                if (! tree.isCollection(path)) batch.mkcol(path);
+                continue;
+            }
+
+            /* Upload whatever is missing or changed */
+            if (tree.contains(path) && (! tree.isCollection(path))
+                && (tree.getContentLength(path) == file.length())) {
+                final Date modified = tree.getLastModified(path);
+                if ((modified == null) || (modified.getTime() >= file.lastModified()))
+                    continue;
+            }
+            batch.put(path, file);
+        }
+
+        LOGGER.info("Synchronizing " + files.size() + " local files with "
+                    + tree.size() + " remote resources at " + this.getLocation()
+                    + " (" + batch.getTransfers().size() + " transfers)");
+        try {
+            batch.execute();
+        } finally {
+            this.completed(batch);
+        }
+        LOGGER.info("Synchronized " + root + " with " + this.getLocation() + ": "
+                    + batch);
+    }
+
+    /**
+     * <p>Update the cached state of the remote collection after the
+     * completed transfers of a {@link TransferManager.Batch}, queuing failed
+     * ones again as normal operations (which will be retried).</p>
+     */
+    private void completed(TransferManager.Batch batch) {
+        for (Iterator iterator = batch.getTransfers().iterator(); iterator.hasNext(); ) {
+            final TransferManager.Transfer transfer =
+                                  (TransferManager.Transfer) iterator.next();
+            if (! transfer.isComplete()) continue;
+            final String path = transfer.getPath();
+            final String method = transfer.getMethod();
+
+            if (transfer.getFailure() != null) {
+                LOGGER.debug("Unable to " + method + " \"" + path + "\" on "
+                             + this.getLocation(), transfer.getFailure());
+                if ("PUT".equals(method)) this.publish(path, transfer.getFile());
+                else if ("DELETE".equals(method)) this.remove(path);
+            } else if ("MKCOL".equals(method)) {
+                synchronized (this.collections) {
+                    this.collections.add(path);
+                }
+            } else if ("DELETE".equals(method)) {
+                if (path.endsWith("/")) this.forgetCollections(path);
+                this.forgetUploads(path);
+            } else if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug("Transferred " + transfer + " at "
+                             + transfer.getThroughput() + " bytes/second");
+            }
+        }
+    }
+
+    /**
+     * <p>Perform a single upload or deletion, creating parent collections
+     * and skipping files whose contents were already uploaded.</p>
+     */
+    protected void execute(String path, File file)
+    throws IOException {
+        final WebDavClient client = this.getClient();
+        if (file == null) {
+            client.deletePath(path);
+            if (path.endsWith("/")) this.forgetCollections(path);
+            this.forgetUploads(path);
+            return;
+        }
+
+        /* The file might have been removed after publication was requested */
+        if (! file.isFile()) return;
+
+        /* Skip files whose contents were already uploaded and not changed */
+        final String digest = digest(file);
+        synchronized (this.uploads) {
+            final Upload upload = (Upload) this.uploads.get(path);
+            if ((upload != null) && upload.digest.equals(digest)) {
+                final String etag = client.getETag(path);
+                if ((upload.etag == null) || upload.etag.equals(etag)) return;
+            }
+        }
+
+        this.createParents(client, path);
+        final InputStream input = new FileInputStream(file);
+        try {
+            client.putPath(path, input, file.length());
+        } finally {
+            input.close();
+        }
+
+        synchronized (this.uploads) {
+            this.uploads.put(path, new Upload(digest, client.getETag(path)));
+        }
+    }
+
+    /**
+     * <p>Forget all uploads of the specified path (or, if it ends with a
+     * slash, of all paths it contains).</p>
+     */
+    private void forgetUploads(String path) {
+        synchronized (this.uploads) {
+            if (! path.endsWith("/")) {
+                this.uploads.remove(path);
+                return;
+            }
+            final Iterator iterator = this.uploads.keySet().iterator();
+            while (iterator.hasNext()) {
+                if (((String) iterator.next()).startsWith(path))
+                    iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * <p>Calculate the hexadecimal MD5 digest of the contents of the
+     * specified {@link File}.</p>
+     */
+    private static String digest(File file)
+    throws IOException {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException exception) {
+            final Exception throwable = new IOException("MD5 not available");
+            throw (IOException) throwable.initCause(exception);
+        }
+
+        final InputStream input = new FileInputStream(file);
+        try {
+            final byte buffer[] = new byte[8192];
+            for (int read = input.read(buffer); read >= 0; read = input.read(buffer))
+                digest.update(buffer, 0, read);
+        } finally {
+            input.close();
+        }
+
+        return StringTools.toHex(digest.digest());
+    }
+
+    /* ====================================================================== */
+    /* INTERNAL CLASSES                                                       */
+    /* ====================================================================== */
+
+    /**
+     * <p>A simple immutable class recording the digest of an uploaded file
+     * and the entity tag the server returned for it.</p>
+     */
+    private static final class Upload {
+        private final String digest;
+        private final String etag;
+
+        private Upload(String digest, String etag) {
+            this.digest = digest;
+            this.etag = etag;
+        }
+    }
+}
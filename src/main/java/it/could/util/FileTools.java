@@ -0,0 +1,326 @@
+/* ========================================================================== *
+ *   Copyright (c) 2006, Pier Paolo Fumagalli <mailto:pier@betaversion.org>   *
+ *                            All rights reserved.                            *
+ * ========================================================================== *
+ *                                                                            * 
+ * Redistribution and use in source and binary forms, with or without modifi- *
+ * cation, are permitted provided that the following conditions are met:      *
+ *                                                                            * 
+ *  - Redistributions of source code must retain the  above copyright notice, *
+ *    this list of conditions and the following disclaimer.                   *
+ *                                                                            * 
+ *  - Redistributions  in binary  form  must  reproduce the  above  copyright *
+ *    notice,  this list of conditions  and the following  disclaimer  in the *
+ *    documentation and/or other materials provided with the distribution.    *
+ *                                                                            * 
+ *  - Neither the name of Pier Fumagalli, nor the names of other contributors *
+ *    may be used to endorse  or promote products derived  from this software *
+ *    without specific prior written permission.                              *
+ *                                                                            * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS "AS IS" *
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES,  INCLUDING, BUT NOT LIMITED TO, THE *
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE *
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER  OR CONTRIBUTORS BE *
+ * LIABLE  FOR ANY  DIRECT,  INDIRECT,  INCIDENTAL,  SPECIAL,  EXEMPLARY,  OR *
+ * CONSEQUENTIAL  DAMAGES  (INCLUDING,  BUT  NOT LIMITED  TO,  PROCUREMENT OF *
+ * SUBSTITUTE GOODS OR SERVICES;  LOSS OF USE, DATA, OR PROFITS;  OR BUSINESS *
+ * INTERRUPTION)  HOWEVER CAUSED AND ON  ANY THEORY OF LIABILITY,  WHETHER IN *
+ * CONTRACT,  STRICT LIABILITY,  OR TORT  (INCLUDING NEGLIGENCE OR OTHERWISE) *
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE *
+ * POSSIBILITY OF SUCH DAMAGE.                                                *
+ * ========================================================================== */
+package it.could.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * <p>An utility class providing various static methods operating on
+ * {@link File}s, and in particular creating hard and symbolic links.</p>
+ * 
+ * <p>Links are created through the <code>java.nio.file</code> API when the
+ * running JVM provides it, or by invoking the <code>ln</code> command on
+ * UNIX-like systems otherwise. Copy-on-write clones (reflinks) are created
+ * by invoking the <code>cp</code> command, where supported.</p>
+ *
+ * @author <a href="http://could.it/">Pier Fumagalli</a>
+ */
+public final class FileTools {
+
+    /** <p>The <code>File.toPath()</code> method, if available.</p> */
+    private static final Method TO_PATH;
+    /** <p>The <code>Files.createLink(...)</code> method, if available.</p> */
+    private static final Method CREATE_LINK;
+    /** <p>The <code>Files.createSymbolicLink(...)</code> method, if available.</p> */
+    private static final Method CREATE_SYMBOLIC_LINK;
+    /** <p>The <code>Files.getAttribute(...)</code> method, if available.</p> */
+    private static final Method GET_ATTRIBUTE;
+    /** <p>The <code>Files.getFileStore(...)</code> method, if available.</p> */
+    private static final Method GET_FILE_STORE;
+    /** <p>The pairs of file stores where clones could not be created.</p> */
+    private static final Set UNCLONEABLE = new HashSet();
+    /** <p>An empty array of <code>FileAttribute</code>s, if available.</p> */
+    private static final Object NO_ATTRIBUTES;
+    /** <p>An empty array of <code>LinkOption</code>s, if available.</p> */
+    private static final Object NO_OPTIONS;
+
+    static {
+        Method toPath = null, createLink = null, createSymbolicLink = null;
+        Method getAttribute = null, getFileStore = null;
+        Object attributes = null, options = null;
+        try {
+            final Class path = Class.forName("java.nio.file.Path");
+            final Class files = Class.forName("java.nio.file.Files");
+            final Class attribute = Class.forName("java.nio.file.attribute.FileAttribute");
+            attributes = Array.newInstance(attribute, 0);
+            toPath = File.class.getMethod("toPath", new Class[0]);
+            createLink = files.getMethod("createLink", new Class[] { path, path });
+            createSymbolicLink = files.getMethod("createSymbolicLink", new Class[] {
+                                               path, path, attributes.getClass() });
+            final Class option = Class.forName("java.nio.file.LinkOption");
+            options = Array.newInstance(option, 0);
+            getAttribute = files.getMethod("getAttribute", new Class[] {
+                                           path, String.class, options.getClass() });
+            getFileStore = files.getMethod("getFileStore", new Class[] { path });
+        } catch (Exception exception) {
+            toPath = createLink = createSymbolicLink = null;
+            getAttribute = getFileStore = null;
+        }
+        TO_PATH = toPath;
+        CREATE_LINK = createLink;
+        CREATE_SYMBOLIC_LINK = createSymbolicLink;
+        GET_ATTRIBUTE = getAttribute;
+        GET_FILE_STORE = getFileStore;
+        NO_ATTRIBUTES = attributes;
+        NO_OPTIONS = options;
+    }
+
+    /** <p>Deny construction.</p> */
+    private FileTools() { }
+
+    /* ====================================================================== */
+    /* LINKS                                                                  */
+    /* ====================================================================== */
+
+    /**
+     * <p>Create a hard link to an existing {@link File}.</p>
+     * 
+     * @param existing the existing {@link File} to link to.
+     * @param link the {@link File} of the link to create (must not exist).
+     * @return <b>true</b> if the link was created, <b>false</b> if links are
+     *         not supported (or the two files live on different devices).
+     */
+    public static boolean link(File existing, File link) {
+        if (CREATE_LINK != null) {
+            return invoke(CREATE_LINK, new Object[] { path(link), path(existing) });
+        }
+        return exec(new String[] { "ln", existing.getAbsolutePath(),
+                                   link.getAbsolutePath() });
+    }
+
+    /**
+     * <p>Create a symbolic link to the specified {@link File}, relative to
+     * the directory where the link is created.</p>
+     * 
+     * @param target the {@link File} the link will point to.
+     * @param link the {@link File} of the link to create (must not exist).
+     * @return <b>true</b> if the link was created, <b>false</b> if symbolic
+     *         links are not supported.
+     */
+    public static boolean symlink(File target, File link) {
+        final String relative = relativize(link.getAbsoluteFile().getParentFile(),
+                                           target.getAbsoluteFile());
+        if (CREATE_SYMBOLIC_LINK != null) {
+            final Object arguments[] = new Object[] {
+                    path(link), path(new File(relative)), NO_ATTRIBUTES };
+            return invoke(CREATE_SYMBOLIC_LINK, arguments);
+        }
+        return exec(new String[] { "ln", "-s", relative,
+                                   link.getAbsolutePath() });
+    }
+
+    /**
+     * <p>Return the number of hard links to the specified {@link File}.</p>
+     * 
+     * @return the number of links, or <b>-1</b> if it can not be determined
+     *         (for example when the JVM or the file system do not tell).
+     */
+    public static int links(File file) {
+        if (GET_ATTRIBUTE == null) return -1;
+        try {
+            final Object count = GET_ATTRIBUTE.invoke(null, new Object[] {
+                                 path(file), "unix:nlink", NO_OPTIONS });
+            return count instanceof Number ? ((Number) count).intValue() : -1;
+        } catch (Exception exception) {
+            return -1;
+        }
+    }
+
+    /**
+     * <p>Create a copy-on-write clone (or reflink) of an existing
+     * {@link File}, sharing its data blocks until either one is modified.</p>
+     * 
+     * <p>Once a clone fails, no further clones are attempted between the
+     * same two file stores (or at all, when the JVM can not tell file stores
+     * apart), so that callers can fall back to copies without invoking
+     * <code>cp</code> every time.</p>
+     * 
+     * @param existing the existing {@link File} to clone.
+     * @param clone the {@link File} of the clone to create (must not exist).
+     * @return <b>true</b> if the clone was created, <b>false</b> if the file
+     *         system (or the operating system) does not support clones.
+     */
+    public static boolean clone(File existing, File clone) {
+        final String system = System.getProperty("os.name", "");
+        final String option;
+        if (system.startsWith("Linux")) option = "--reflink=always";
+        else if (system.startsWith("Mac OS X")) option = "-c";
+        else return false;
+        if (! existing.isFile()) return false;
+
+        final List stores = Arrays.asList(new Object[] {
+                store(existing.getAbsoluteFile().getParentFile()),
+                store(clone.getAbsoluteFile().getParentFile()) });
+        synchronized (UNCLONEABLE) {
+            if (UNCLONEABLE.contains(stores)) return false;
+        }
+        if (exec(new String[] { "cp", option, existing.getAbsolutePath(),
+                                clone.getAbsolutePath() })) return true;
+
+        /* A failed "cp" might leave an empty file behind */
+        clone.delete();
+        synchronized (UNCLONEABLE) {
+            UNCLONEABLE.add(stores);
+        }
+        return false;
+    }
+
+    /**
+     * <p>Return the path of the specified {@link File} relative to the
+     * specified directory, using <code>..</code> elements as required.</p>
+     */
+    public static String relativize(File directory, File file) {
+        final String from[] = directory.getAbsolutePath().split("\\" + File.separator);
+        final String to[] = file.getAbsolutePath().split("\\" + File.separator);
+
+        int common = 0;
+        while ((common < from.length) && (common < to.length)
+               && from[common].equals(to[common])) common ++;
+
+        final StringBuffer buffer = new StringBuffer();
+        for (int x = common; x < from.length; x ++) {
+            if (from[x].length() == 0) continue;
+            buffer.append("..").append(File.separatorChar);
+        }
+        for (int x = common; x < to.length; x ++) {
+            buffer.append(to[x]);
+            if (x < to.length - 1) buffer.append(File.separatorChar);
+        }
+        return buffer.toString();
+    }
+
+    /* ====================================================================== */
+    /* COPIES                                                                 */
+    /* ====================================================================== */
+
+    /**
+     * <p>Copy the content of a {@link File} to another one, overwriting it.</p>
+     * 
+     * @return the number of bytes copied.
+     * @throws IOException if an I/O error occurred copying the file.
+     */
+    public static long copy(File source, File target)
+    throws IOException {
+        final FileInputStream input = new FileInputStream(source);
+        final FileOutputStream output;
+        try {
+            output = new FileOutputStream(target);
+        } catch (IOException exception) {
+            input.close();
+            throw exception;
+        }
+        try {
+            return StreamTools.copy(input, output, false);
+        } finally {
+            try {
+                input.close();
+            } finally {
+                output.close();
+            }
+        }
+    }
+
+    /* ====================================================================== */
+    /* PRIVATE METHODS                                                        */
+    /* ====================================================================== */
+
+    /**
+     * <p>Convert a {@link File} into a <code>java.nio.file.Path</code>.</p>
+     */
+    private static Object path(File file) {
+        try {
+            return TO_PATH.invoke(file, new Object[0]);
+        } catch (IllegalAccessException exception) {
+            throw new IllegalStateException("Can't access File.toPath()");
+        } catch (InvocationTargetException exception) {
+            final Throwable cause = exception.getCause();
+            throw (IllegalStateException)
+                  new IllegalStateException("Invalid path " + file).initCause(cause);
+        }
+    }
+
+    /**
+     * <p>Return the <code>java.nio.file.FileStore</code> holding the specified
+     * {@link File}, or <b>null</b> if it can not be determined.</p>
+     */
+    private static Object store(File file) {
+        if (GET_FILE_STORE == null) return null;
+        try {
+            return GET_FILE_STORE.invoke(null, new Object[] { path(file) });
+        } catch (Exception exception) {
+            return null;
+        }
+    }
+
+    /**
+     * <p>Invoke a static method returning whether it completed normally.</p>
+     */
+    private static boolean invoke(Method method, Object arguments[]) {
+        try {
+            method.invoke(null, arguments);
+            return true;
+        } catch (IllegalAccessException exception) {
+            return false;
+        } catch (InvocationTargetException exception) {
+            return false;
+        }
+    }
+
+    /**
+     * <p>Execute a command returning whether it completed successfully.</p>
+     */
+    private static boolean exec(String command[]) {
+        if (File.separatorChar != '/') return false;
+        try {
+            final Process process = Runtime.getRuntime().exec(command);
+            process.getOutputStream().close();
+            process.getInputStream().close();
+            process.getErrorStream().close();
+            return process.waitFor() == 0;
+        } catch (IOException exception) {
+            return false;
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+}
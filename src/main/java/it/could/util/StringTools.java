@@ -33,12 +33,9 @@ package it.could.util;
 
 import it.could.util.encoding.Encodable;
 
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
-import java.util.Locale;
 import java.util.TimeZone;
 
 /**
@@ -52,14 +49,21 @@ import java.util.TimeZone;
  */
 public final class StringTools {
 
-    /** <p>The {@link SimpleDateFormat} RFC-822 date format.</p> */
-    private static final String FORMAT_822 = "EEE, dd MMM yyyy HH:mm:ss 'GMT'";
-    /** <p>The {@link SimpleDateFormat} RFC-822 date format.</p> */
-    private static final String FORMAT_ISO = "yyyy-MM-dd'T'HH:mm:ss'Z'";
-    /** <p>The {@link TimeZone} to use for dates.</p> */
-    private static final TimeZone TIMEZONE = TimeZone.getTimeZone("GMT");
-    /** <p>The {@link Locale} to use for dates.</p> */
-    private static final Locale LOCALE = Locale.US;
+    /** <p>The default {@link TimeZone}, for local dates.</p> */
+    private static final TimeZone LOCAL = TimeZone.getDefault();
+    /** <p>The number of milliseconds in a day.</p> */
+    private static final long DAY = 86400000L;
+    /** <p>The abbreviated names of week days, starting from 1970/01/01.</p> */
+    private static final String DAYS[] = {
+        "Thu", "Fri", "Sat", "Sun", "Mon", "Tue", "Wed" };
+    /** <p>The abbreviated names of months.</p> */
+    private static final String MONTHS[] = {
+        "Jan", "Feb", "Mar", "Apr", "May", "Jun",
+        "Jul", "Aug", "Sep", "Oct", "Nov", "Dec" };
+    /** <p>Powers of ten used when padding numbers.</p> */
+    private static final long POWERS[] = { 1, 10, 100, 1000 };
+    /** <p>The lower case hexadecimal digits.</p> */
+    private static final char HEX[] = "0123456789abcdef".toCharArray();
 
     /** <p>Deny construction.</p> */
     private StringTools() { }
@@ -104,9 +108,7 @@ public final class StringTools {
      */
     public static String formatHttpDate(Date date) {
         if (date == null) return null;
-        SimpleDateFormat formatter = new SimpleDateFormat(FORMAT_822, LOCALE);
-        formatter.setTimeZone(TIMEZONE);
-        return formatter.format(date);
+        return appendHttpDate(new StringBuffer(29), date).toString();
     }
 
     /**
@@ -117,9 +119,106 @@ public final class StringTools {
      */
     public static String formatIsoDate(Date date) {
         if (date == null) return null;
-        SimpleDateFormat formatter = new SimpleDateFormat(FORMAT_ISO, LOCALE);
-        formatter.setTimeZone(TIMEZONE);
-        return formatter.format(date);
+        return appendIsoDate(new StringBuffer(20), date).toString();
+    }
+
+    /**
+     * <p>Format a {@link Date} as a path (<code>2000/12/31</code>) in the
+     * default time zone.</p>
+     * 
+     * @param date the {@link Date} to format.
+     * @return a {@link String} instance or <b>null</b> if the date was null.
+     */
+    public static String formatPathDate(Date date) {
+        if (date == null) return null;
+        return appendPathDate(new StringBuffer(10), date, "/").toString();
+    }
+
+    /**
+     * <p>Append a {@link Date} formatted according to the HTTP/1.1 RFC
+     * (<code>Sun, 31 Dec 2000 11:59:00 GMT</code>) to a buffer.</p>
+     * 
+     * <p>This method (like all other date formatting and parsing methods of
+     * this class) is thread safe, and does not allocate any object.</p>
+     * 
+     * @return the specified {@link StringBuffer}.
+     */
+    public static StringBuffer appendHttpDate(StringBuffer buffer, Date date) {
+        final long millis = date.getTime();
+        final long days = floor(millis, DAY);
+        final long civil = civil(days);
+        buffer.append(DAYS[(int) ((days % 7 + 7) % 7)]).append(", ");
+        pad(buffer, civil % 100, 2).append(' ');
+        buffer.append(MONTHS[(int) (civil / 100 % 100) - 1]).append(' ');
+        pad(buffer, civil / 10000, 4).append(' ');
+        return appendTime(buffer, millis - days * DAY, ":").append(" GMT");
+    }
+
+    /**
+     * <p>Append a {@link Date} formatted according to the ISO 8601
+     * specification (<code>2000-12-31T11:59:00Z</code>) to a buffer.</p>
+     * 
+     * @return the specified {@link StringBuffer}.
+     */
+    public static StringBuffer appendIsoDate(StringBuffer buffer, Date date) {
+        final long millis = date.getTime();
+        final long days = floor(millis, DAY);
+        appendDate(buffer, days, "-").append('T');
+        return appendTime(buffer, millis - days * DAY, ":").append('Z');
+    }
+
+    /**
+     * <p>Append a {@link Date} formatted according to the basic format of
+     * the ISO 8601 specification (<code>20001231T115900Z</code>) to a
+     * buffer.</p>
+     * 
+     * @return the specified {@link StringBuffer}.
+     */
+    public static StringBuffer appendBasicIsoDate(StringBuffer buffer, Date date) {
+        final long millis = date.getTime();
+        final long days = floor(millis, DAY);
+        appendDate(buffer, days, "").append('T');
+        return appendTime(buffer, millis - days * DAY, "").append('Z');
+    }
+
+    /**
+     * <p>Append the day of a {@link Date} in the default time zone to a
+     * buffer, separating year, month and day with the specified
+     * {@link String} (<code>2000/12/31</code>).</p>
+     * 
+     * @return the specified {@link StringBuffer}.
+     */
+    public static StringBuffer appendPathDate(StringBuffer buffer, Date date,
+                                              String separator) {
+        final long millis = date.getTime();
+        return appendDate(buffer, floor(millis + LOCAL.getOffset(millis), DAY),
+                          separator);
+    }
+
+    /**
+     * <p>Append a {@link Date} in the default time zone formatted as a
+     * compact timestamp (<code>20001231-115900</code>) to a buffer.</p>
+     * 
+     * @return the specified {@link StringBuffer}.
+     */
+    public static StringBuffer appendTimestamp(StringBuffer buffer, Date date) {
+        final long millis = date.getTime() + LOCAL.getOffset(date.getTime());
+        final long days = floor(millis, DAY);
+        appendDate(buffer, days, "").append('-');
+        return appendTime(buffer, millis - days * DAY, "");
+    }
+
+    /**
+     * <p>Append a {@link Date} in the default time zone formatted for humans
+     * (<code>2000-12-31 11:59:00</code>) to a buffer.</p>
+     * 
+     * @return the specified {@link StringBuffer}.
+     */
+    public static StringBuffer appendDateTime(StringBuffer buffer, Date date) {
+        final long millis = date.getTime() + LOCAL.getOffset(date.getTime());
+        final long days = floor(millis, DAY);
+        appendDate(buffer, days, "-").append(' ');
+        return appendTime(buffer, millis - days * DAY, ":");
     }
 
     /**
@@ -132,32 +231,204 @@ public final class StringTools {
      */
     public static Date parseHttpDate(String string) {
         if (string == null) return null;
-        SimpleDateFormat formatter = new SimpleDateFormat(FORMAT_822, LOCALE);
-        formatter.setTimeZone(TIMEZONE);
-        try {
-            return formatter.parse(string);
-        } catch (ParseException exception) {
-            return null;
+        final int x = string.indexOf(", ") + 2;
+        if ((x < 2) || (string.length() < x + 24)) return null;
+        if (! string.startsWith(" GMT", x + 20)) return null;
+
+        int month = -1;
+        for (int m = 0; m < MONTHS.length; m ++) {
+            if (string.startsWith(MONTHS[m], x + 3)) month = m + 1;
         }
+        final int day = digits(string, x, 2);
+        final int year = digits(string, x + 7, 4);
+        final long time = time(string, x + 12);
+        if ((month < 0) || (day < 0) || (year < 0) || (time < 0)) return null;
+        if ((string.charAt(x + 2) != ' ') || (string.charAt(x + 6) != ' ')
+            || (string.charAt(x + 11) != ' ')) return null;
+        return new Date(days(year, month, day) * DAY + time);
     }
 
     /**
      * <p>Parse a {@link String} into a {@link Date} according to the ISO 8601
      * specification (<code>2000-12-31T11:59:00Z</code>).</p>
      * 
+     * <p>Fractions of seconds (<code>2000-12-31T11:59:00.000Z</code>) are
+     * accepted and ignored.</p>
+     * 
      * @param string the {@link String} to parse.
      * @return a {@link Date} instance or <b>null</b> if the date was null or
      *         if there was an error parsing the specified {@link String}.
      */
     public static Date parseIsoDate(String string) {
+        if ((string == null) || (string.length() < 20)) return null;
+        final int year = digits(string, 0, 4);
+        final int month = digits(string, 5, 2);
+        final int day = digits(string, 8, 2);
+        final long time = time(string, 11);
+        if ((year < 0) || (month < 1) || (month > 12) || (day < 0)) return null;
+        if ((time < 0) || (string.charAt(4) != '-') || (string.charAt(7) != '-')
+            || (string.charAt(10) != 'T')) return null;
+
+        int x = 19;
+        if (string.charAt(x) == '.') {
+            while ((++ x < string.length()) && Character.isDigit(string.charAt(x)));
+        }
+        if ((x >= string.length()) || (string.charAt(x) != 'Z')) return null;
+        return new Date(days(year, month, day) * DAY + time);
+    }
+
+    /**
+     * <p>Parse a {@link String} into a {@link Date} representing the
+     * beginning of a day (<code>2000/12/31</code>) in the default time
+     * zone.</p>
+     * 
+     * @param string the {@link String} to parse.
+     * @return a {@link Date} instance or <b>null</b> if the date was null or
+     *         if there was an error parsing the specified {@link String}.
+     */
+    public static Date parsePathDate(String string) {
         if (string == null) return null;
-        SimpleDateFormat formatter = new SimpleDateFormat(FORMAT_ISO, LOCALE);
-        formatter.setTimeZone(TIMEZONE);
-        try {
-            return formatter.parse(string);
-        } catch (ParseException exception) {
-            return null;
+        final int first = string.indexOf('/');
+        final int second = string.indexOf('/', first + 1);
+        if ((first < 1) || (second < first + 2)) return null;
+        final int year = digits(string, 0, first);
+        final int month = digits(string, first + 1, second - first - 1);
+        final int day = digits(string, second + 1, string.length() - second - 1);
+        if ((year < 0) || (month < 1) || (month > 12) || (day < 1)) return null;
+
+        /* Midnight in the default time zone, offsets depend on the instant */
+        final long local = days(year, month, day) * DAY;
+        final long guess = local - LOCAL.getOffset(local);
+        final long midnight = local - LOCAL.getOffset(guess);
+        if (midnight + LOCAL.getOffset(midnight) >= local) return new Date(midnight);
+
+        /* Midnight skipped by daylight saving, use the first instant after */
+        return new Date(local - LOCAL.getOffset(midnight));
+    }
+
+    /**
+     * <p>Append the year, month and day of the specified number of days
+     * since the epoch to a buffer.</p>
+     */
+    private static StringBuffer appendDate(StringBuffer buffer, long days,
+                                           String separator) {
+        final long civil = civil(days);
+        pad(buffer, civil / 10000, 4).append(separator);
+        pad(buffer, civil / 100 % 100, 2).append(separator);
+        return pad(buffer, civil % 100, 2);
+    }
+
+    /**
+     * <p>Append the hours, minutes and seconds of the specified number of
+     * milliseconds since midnight to a buffer.</p>
+     */
+    private static StringBuffer appendTime(StringBuffer buffer, long millis,
+                                           String separator) {
+        final long seconds = millis / 1000;
+        pad(buffer, seconds / 3600, 2).append(separator);
+        pad(buffer, seconds / 60 % 60, 2).append(separator);
+        return pad(buffer, seconds % 60, 2);
+    }
+
+    /**
+     * <p>Append a number to a buffer, padding it with zeroes.</p>
+     */
+    private static StringBuffer pad(StringBuffer buffer, long number, int width) {
+        for (long x = POWERS[width - 1]; (x > 1) && (number < x); x /= 10) {
+            buffer.append('0');
+        }
+        return buffer.append(number);
+    }
+
+    /**
+     * <p>Return the year, month and day (as <code>yyyyMMdd</code>) of the
+     * specified number of days since the epoch in the Gregorian calendar.</p>
+     */
+    private static long civil(long days) {
+        final long z = days + 719468;
+        final long era = floor(z, 146097);
+        final long doe = z - era * 146097;
+        final long yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+        final long doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+        final long mp = (5 * doy + 2) / 153;
+        final long day = doy - (153 * mp + 2) / 5 + 1;
+        final long month = mp < 10 ? mp + 3 : mp - 9;
+        final long year = yoe + era * 400 + (month <= 2 ? 1 : 0);
+        return year * 10000 + month * 100 + day;
+    }
+
+    /**
+     * <p>Return the number of days since the epoch of the specified day in
+     * the Gregorian calendar.</p>
+     */
+    private static long days(long year, long month, long day) {
+        final long y = month <= 2 ? year - 1 : year;
+        final long era = floor(y, 400);
+        final long yoe = y - era * 400;
+        final long doy = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+        final long doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+        return era * 146097 + doe - 719468;
+    }
+
+    /**
+     * <p>Divide rounding towards negative infinity.</p>
+     */
+    private static long floor(long dividend, long divisor) {
+        final long quotient = dividend / divisor;
+        return (dividend % divisor < 0) ? quotient - 1 : quotient;
+    }
+
+    /**
+     * <p>Parse <code>HH:mm:ss</code> at the specified offset into the number
+     * of milliseconds since midnight, or return -1.</p>
+     */
+    private static long time(String string, int offset) {
+        if (string.length() < offset + 8) return -1;
+        if ((string.charAt(offset + 2) != ':') || (string.charAt(offset + 5) != ':')) return -1;
+        final int hours = digits(string, offset, 2);
+        final int minutes = digits(string, offset + 3, 2);
+        final int seconds = digits(string, offset + 6, 2);
+        if ((hours < 0) || (hours > 23) || (minutes < 0) || (minutes > 59)
+            || (seconds < 0) || (seconds > 60)) return -1;
+        return ((hours * 60L + minutes) * 60 + seconds) * 1000;
+    }
+
+    /**
+     * <p>Parse a number of decimal digits at the specified offset, or
+     * return -1.</p>
+     */
+    private static int digits(String string, int offset, int length) {
+        if ((length < 1) || (length > 9)) return -1;
+        if ((offset < 0) || (offset + length > string.length())) return -1;
+        int number = 0;
+        for (int x = offset; x < offset + length; x ++) {
+            final char c = string.charAt(x);
+            if ((c < '0') || (c > '9')) return -1;
+            number = number * 10 + (c - '0');
+        }
+        return number;
+    }
+
+    /* ====================================================================== */
+    /* HEXADECIMAL ENCODING                                                   */
+    /* ====================================================================== */
+
+    /**
+     * <p>Return the lower case hexadecimal representation of the specified
+     * bytes, such as a message digest.</p>
+     * 
+     * @param bytes the bytes to encode.
+     * @return a {@link String} twice as long as the array or <b>null</b> if
+     *         the array was <b>null</b>.
+     */
+    public static String toHex(byte bytes[]) {
+        if (bytes == null) return null;
+        final char chars[] = new char[bytes.length * 2];
+        for (int x = 0; x < bytes.length; x ++) {
+            chars[x * 2] = HEX[(bytes[x] >> 4) & 0x0f];
+            chars[x * 2 + 1] = HEX[bytes[x] & 0x0f];
         }
+        return new String(chars);
     }
 
     /* ====================================================================== */
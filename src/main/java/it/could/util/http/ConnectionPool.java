@@ -0,0 +1,357 @@
+/* ========================================================================== *
+ *   Copyright (c) 2006, Pier Paolo Fumagalli <mailto:pier@betaversion.org>   *
+ *                            All rights reserved.                            *
+ * ========================================================================== *
+ *                                                                            * 
+ * Redistribution and use in source and binary forms, with or without modifi- *
+ * cation, are permitted provided that the following conditions are met:      *
+ *                                                                            * 
+ *  - Redistributions of source code must retain the  above copyright notice, *
+ *    this list of conditions and the following disclaimer.                   *
+ *                                                                            * 
+ *  - Redistributions  in binary  form  must  reproduce the  above  copyright *
+ *    notice,  this list of conditions  and the following  disclaimer  in the *
+ *    documentation and/or other materials provided with the distribution.    *
+ *                                                                            * 
+ *  - Neither the name of Pier Fumagalli, nor the names of other contributors *
+ *    may be used to endorse  or promote products derived  from this software *
+ *    without specific prior written permission.                              *
+ *                                                                            * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS "AS IS" *
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES,  INCLUDING, BUT NOT LIMITED TO, THE *
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE *
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER  OR CONTRIBUTORS BE *
+ * LIABLE  FOR ANY  DIRECT,  INDIRECT,  INCIDENTAL,  SPECIAL,  EXEMPLARY,  OR *
+ * CONSEQUENTIAL  DAMAGES  (INCLUDING,  BUT  NOT LIMITED  TO,  PROCUREMENT OF *
+ * SUBSTITUTE GOODS OR SERVICES;  LOSS OF USE, DATA, OR PROFITS;  OR BUSINESS *
+ * INTERRUPTION)  HOWEVER CAUSED AND ON  ANY THEORY OF LIABILITY,  WHETHER IN *
+ * CONTRACT,  STRICT LIABILITY,  OR TORT  (INCLUDING NEGLIGENCE OR OTHERWISE) *
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE *
+ * POSSIBILITY OF SUCH DAMAGE.                                                *
+ * ========================================================================== */
+package it.could.util.http;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+
+/**
+ * <p>A {@link ConnectionPool} keeps HTTP/1.1 persistent connections open
+ * after use, so that subsequent requests to the same host can be sent over
+ * them without paying for a new TCP handshake.</p>
+ * 
+ * <p>Connections are keyed by scheme, host and port. At most a configurable
+ * number of idle connections is retained for each of them, and connections
+ * left idle longer than a configurable timeout are closed. Before being
+ * reused, every idle connection is checked for staleness (the server might
+ * have closed it in the meantime).</p>
+ * 
+ * <p>Instances of this class are thread safe and can be shared by any number
+ * of {@link HttpClient}s.</p>
+ *
+ * @author <a href="http://could.it/">Pier Fumagalli</a>
+ */
+public class ConnectionPool {
+
+    /** <p>The default maximum number of idle connections per host.</p> */
+    public static final int DEFAULT_MAX_PER_HOST = 8;
+    /** <p>The default time in milliseconds idle connections are kept.</p> */
+    public static final long DEFAULT_IDLE_TIMEOUT = 15000;
+
+    /** <p>The size of the buffers used by each connection.</p> */
+    private static final int BUFFER_SIZE = 8192;
+
+    /** <p>A {@link Map} of keys to {@link LinkedList}s of connections.</p> */
+    private final Map idle = new HashMap();
+    /** <p>The maximum number of idle connections kept for each host.</p> */
+    private final int maxPerHost;
+    /** <p>The time in milliseconds after which idle connections are closed.</p> */
+    private final long idleTimeout;
+
+    /** <p>The number of connections opened by this pool.</p> */
+    private long created = 0;
+    /** <p>The number of times an idle connection was reused.</p> */
+    private long reused = 0;
+    /** <p>The number of idle connections found to be stale.</p> */
+    private long stale = 0;
+    /** <p>The number of idle connections closed by this pool.</p> */
+    private long evicted = 0;
+
+    /**
+     * <p>Create a new {@link ConnectionPool} with the
+     * {@link #DEFAULT_MAX_PER_HOST default maximum number of idle connections
+     * per host} and {@link #DEFAULT_IDLE_TIMEOUT default idle timeout}.</p>
+     */
+    public ConnectionPool() {
+        this(DEFAULT_MAX_PER_HOST, DEFAULT_IDLE_TIMEOUT);
+    }
+
+    /**
+     * <p>Create a new {@link ConnectionPool} keeping at most the specified
+     * number of idle connections per host for at most the specified number
+     * of milliseconds.</p>
+     */
+    public ConnectionPool(int maxPerHost, long idleTimeout) {
+        if (maxPerHost < 0) throw new IllegalArgumentException("Negative max");
+        if (idleTimeout < 0) throw new IllegalArgumentException("Negative timeout");
+        this.maxPerHost = maxPerHost;
+        this.idleTimeout = idleTimeout;
+    }
+
+    /* ====================================================================== */
+    /* STATISTICS                                                             */
+    /* ====================================================================== */
+
+    /**
+     * <p>Return the number of new connections opened by this pool.</p>
+     */
+    public synchronized long getCreatedConnections() {
+        return this.created;
+    }
+
+    /**
+     * <p>Return the number of times an idle connection was reused.</p>
+     */
+    public synchronized long getReusedConnections() {
+        return this.reused;
+    }
+
+    /**
+     * <p>Return the number of idle connections which were found to be closed
+     * by the remote server when trying to reuse them.</p>
+     */
+    public synchronized long getStaleConnections() {
+        return this.stale;
+    }
+
+    /**
+     * <p>Return the number of idle connections closed because they exceeded
+     * the idle timeout or the maximum number of connections per host.</p>
+     */
+    public synchronized long getEvictedConnections() {
+        return this.evicted;
+    }
+
+    /**
+     * <p>Return the number of connections currently idle in this pool.</p>
+     */
+    public synchronized int getIdleConnections() {
+        int count = 0;
+        final Iterator iterator = this.idle.values().iterator();
+        while (iterator.hasNext()) count += ((LinkedList) iterator.next()).size();
+        return count;
+    }
+
+    /**
+     * <p>Return a human readable summary of the statistics of this pool.</p>
+     */
+    public synchronized String toString() {
+        return "ConnectionPool[created=" + this.created + ",reused="
+               + this.reused + ",stale=" + this.stale + ",evicted="
+               + this.evicted + ",idle=" + this.getIdleConnections() + "]";
+    }
+
+    /* ====================================================================== */
+    /* POOL MANAGEMENT                                                        */
+    /* ====================================================================== */
+
+    /**
+     * <p>Close all idle connections held by this pool.</p>
+     */
+    public void close() {
+        final LinkedList connections = new LinkedList();
+        synchronized (this) {
+            final Iterator iterator = this.idle.values().iterator();
+            while (iterator.hasNext()) connections.addAll((LinkedList) iterator.next());
+            this.idle.clear();
+        }
+        while (! connections.isEmpty())
+            ((Connection) connections.removeFirst()).close();
+    }
+
+    /**
+     * <p>Return an open {@link Connection} to the specified host and port,
+     * reusing an idle one if possible.</p>
+     */
+    Connection acquire(String scheme, String host, int port,
+                       HttpClient.SocketFactory factory)
+    throws IOException {
+        final String key = scheme + "://" + host + ":" + port;
+        final long now = System.currentTimeMillis();
+        final LinkedList expired = new LinkedList();
+
+        /* Look for the most recently used idle connection */
+        while (true) {
+            final Connection connection;
+            synchronized (this) {
+                this.expire(now, expired);
+                final LinkedList connections = (LinkedList) this.idle.get(key);
+                if ((connections == null) || connections.isEmpty()) break;
+                connection = (Connection) connections.removeLast();
+            }
+
+            /* Verify staleness outside of the lock, it can take a while */
+            if (connection.isStale()) {
+                synchronized (this) {
+                    this.stale ++;
+                }
+                connection.close();
+                continue;
+            }
+
+            synchronized (this) {
+                this.reused ++;
+            }
+            connection.reused = true;
+            close(expired);
+            return connection;
+        }
+
+        /* Nothing was available, open a brand new connection */
+        close(expired);
+        final Connection connection = new Connection(this, key, factory.open(host, port));
+        synchronized (this) {
+            this.created ++;
+        }
+        return connection;
+    }
+
+    /**
+     * <p>Return a {@link Connection} whose response was fully read to this
+     * pool, making it available for reuse.</p>
+     */
+    void release(Connection connection) {
+        final LinkedList expired = new LinkedList();
+        connection.lastUsed = System.currentTimeMillis();
+        synchronized (this) {
+            LinkedList connections = (LinkedList) this.idle.get(connection.key);
+            if (connections == null) {
+                connections = new LinkedList();
+                this.idle.put(connection.key, connections);
+            }
+            connections.addLast(connection);
+            while (connections.size() > this.maxPerHost) {
+                expired.add(connections.removeFirst());
+                this.evicted ++;
+            }
+            this.expire(connection.lastUsed, expired);
+        }
+        close(expired);
+    }
+
+    /**
+     * <p>Move all connections idle for longer than the idle timeout to the
+     * specified list (must be called while holding the lock).</p>
+     */
+    private void expire(long now, LinkedList expired) {
+        final Iterator iterator = this.idle.values().iterator();
+        while (iterator.hasNext()) {
+            final LinkedList connections = (LinkedList) iterator.next();
+            while (! connections.isEmpty()) {
+                final Connection connection = (Connection) connections.getFirst();
+                if (now - connection.lastUsed <= this.idleTimeout) break;
+                expired.add(connections.removeFirst());
+                this.evicted ++;
+            }
+            if (connections.isEmpty()) iterator.remove();
+        }
+    }
+
+    /**
+     * <p>Close all {@link Connection}s in the specified list.</p>
+     */
+    private static void close(LinkedList connections) {
+        while (! connections.isEmpty())
+            ((Connection) connections.removeFirst()).close();
+    }
+
+    /* ====================================================================== */
+    /* CONNECTIONS                                                            */
+    /* ====================================================================== */
+
+    /**
+     * <p>A simple class wrapping a {@link Socket} and its buffered streams.</p>
+     */
+    static final class Connection {
+
+        /** <p>The {@link ConnectionPool} or <b>null</b> if not pooled.</p> */
+        final ConnectionPool pool;
+        /** <p>The key identifying the remote endpoint.</p> */
+        final String key;
+        /** <p>The {@link Socket} wrapped by this instance.</p> */
+        final Socket socket;
+        /** <p>The buffered {@link ResponseInput} of the socket.</p> */
+        final ResponseInput input;
+        /** <p>The buffered {@link OutputStream} of the socket.</p> */
+        final OutputStream output;
+        /** <p>Whether this connection was already used once.</p> */
+        boolean reused = false;
+        /** <p>The time this connection was last returned to the pool.</p> */
+        long lastUsed = 0;
+
+        /**
+         * <p>Create a new {@link Connection} instance, which will be closed
+         * after use if the {@link ConnectionPool} is <b>null</b>.</p>
+         */
+        Connection(ConnectionPool pool, String key, Socket socket)
+        throws IOException {
+            this.pool = pool;
+            this.key = key;
+            this.socket = socket;
+            /* We buffer ourselves, don't let Nagle delay small requests */
+            socket.setTcpNoDelay(true);
+            this.input = new ResponseInput(socket.getInputStream(), BUFFER_SIZE);
+            this.output = new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE);
+        }
+
+        /**
+         * <p>Return this connection to its pool, or close it if not pooled.</p>
+         */
+        void release() {
+            if (this.pool == null) this.close();
+            else this.pool.release(this);
+        }
+
+        /**
+         * <p>Close this connection, ignoring any error.</p>
+         */
+        void close() {
+            try {
+                this.socket.close();
+            } catch (IOException exception) {
+                /* Nothing we can do about it */
+            }
+        }
+
+        /**
+         * <p>Check whether the remote end closed this idle connection (or
+         * sent unsolicited data, which equally makes it unusable).</p>
+         */
+        private boolean isStale() {
+            if (this.socket.isClosed() || this.socket.isInputShutdown() ||
+                this.socket.isOutputShutdown()) return true;
+            try {
+                if (this.input.available() > 0) return true;
+                final int timeout = this.socket.getSoTimeout();
+                this.socket.setSoTimeout(1);
+                try {
+                    /* Any byte (or EOF) read here means the connection is gone */
+                    this.socket.getInputStream().read();
+                    return true;
+                } catch (SocketTimeoutException exception) {
+                    return false;
+                } finally {
+                    this.socket.setSoTimeout(timeout);
+                }
+            } catch (IOException exception) {
+                return true;
+            }
+        }
+    }
+}
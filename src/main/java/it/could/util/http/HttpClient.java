@@ -34,6 +34,7 @@ package it.could.util.http;
 import it.could.util.encoding.EncodingTools;
 import it.could.util.location.Authority;
 import it.could.util.location.Location;
+import it.could.util.location.Parameters;
 
 import java.io.IOException;
 import java.io.InputStream;
@@ -47,10 +48,18 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import javax.net.ssl.SSLSocketFactory;
 
 /**
  * <p>A class implementing an extremely simple HTTP 1.0 connector with
  * basic authentication support.</p>
+ * 
+ * <p>When constructed with a {@link ConnectionPool}, this class will issue
+ * HTTP/1.1 requests instead, returning connections to the pool once the
+ * response has been fully read, so that subsequent requests to the same host
+ * can reuse them.</p>
  *
  * @author <a href="http://could.it/">Pier Fumagalli</a>
  */
@@ -58,18 +67,58 @@ public class HttpClient {
 
     /** <p>The default HTTP method to use.</p> */
     public static final String DEFAULT_METHOD = "GET";
+    /**
+     * <p>The content length to specify when connecting to stream a request
+     * body of unknown length with the <code>chunked</code> encoding.</p>
+     */
+    public static final long CHUNKED = -1;
 
     /* ====================================================================== */
 
     /** <p>The byte sequence CR LF (the end of the request).</p> */
     private static final byte CRLF[] = { 0x0d, 0x0a };
+    /** <p>The byte sequence "0\r\n\r\n" (the end of a chunked request).</p> */
+    private static final byte LAST_CHUNK[] = { 0x30, 0x0d, 0x0a, 0x0d, 0x0a };
     /** <p>The byte sequence for " HTTP/1.0\r\n" (the request signature).</p> */
     private static final byte HTTP[] = { 0x20, 0x48, 0x54, 0x54, 0x50, 0x2f,
                                          0x31, 0x2e, 0x30, 0x0d, 0x0a };
+    /** <p>The byte sequence for " HTTP/1.1\r\n" (the pooled request signature).</p> */
+    private static final byte HTTP11[] = { 0x20, 0x48, 0x54, 0x54, 0x50, 0x2f,
+                                           0x31, 0x2e, 0x31, 0x0d, 0x0a };
+    /** <p>The maximum number of unread response bytes skipped to reuse a connection.</p> */
+    private static final long MAX_DRAIN = 65536;
+    /** <p>The protocol of HTTP/1.0 responses.</p> */
+    private static final String HTTP_10 = "HTTP/1.0";
+    /** <p>The protocol of HTTP/1.1 responses.</p> */
+    private static final String HTTP_11 = "HTTP/1.1";
+    /** <p>The methods sent again when a reused connection fails.</p> */
+    private static final String RETRIABLE[] = new String[] {
+            "GET", "HEAD", "OPTIONS", "PUT", "PROPFIND" };
+
+    /** <p>The names of well-known response headers, parsed without copies.</p> */
+    private static final String KNOWN_HEADERS[] = new String[] {
+        "Content-Length", "Content-Type", "Transfer-Encoding", "Connection",
+        "Keep-Alive", "Date", "Server", "ETag", "Last-Modified", "Location",
+        "DAV", "Allow", "MS-Author-Via", "Content-Encoding", "Content-Location",
+        "Cache-Control", "Expires", "Pragma", "Vary", "Accept-Ranges", "Age",
+        "Set-Cookie", "WWW-Authenticate" };
+    /** <p>The lower case keys of the {@link #KNOWN_HEADERS}.</p> */
+    private static final String KNOWN_KEYS[] = new String[KNOWN_HEADERS.length];
+    /** <p>The lower case bytes of the {@link #KNOWN_HEADERS}.</p> */
+    private static final byte KNOWN_BYTES[][] = new byte[KNOWN_HEADERS.length][];
+    static {
+        for (int x = 0; x < KNOWN_HEADERS.length; x ++) {
+            KNOWN_KEYS[x] = KNOWN_HEADERS[x].toLowerCase();
+            final byte bytes[] = new byte[KNOWN_KEYS[x].length()];
+            for (int y = 0; y < bytes.length; y ++)
+                bytes[y] = (byte) KNOWN_KEYS[x].charAt(y);
+            KNOWN_BYTES[x] = bytes;
+        }
+    }
 
     /* ====================================================================== */
 
-    /** <p>The buffer used to parse lines in the response.</p> */
+    /** <p>The buffer used to skip unread response bodies.</p> */
     private final byte buffer[] = new byte[4096]; 
     /** <p>The map of the current request headers.</p> */
     private final Map requestHeaders = new HashMap();
@@ -77,6 +126,8 @@ public class HttpClient {
     private final Map responseHeaders = new HashMap();
     /** <p>The socket factory instance used by this.</p> */
     private final SocketFactory socketFactory;
+    /** <p>The connection pool used by this or <b>null</b>.</p> */
+    private final ConnectionPool connectionPool;
 
     /* ====================================================================== */
 
@@ -86,6 +137,12 @@ public class HttpClient {
     private Status status = null;
     /** <p>An array of acceptable statuses to verify upon connection.</p> */
     private int acceptable[] = null;
+    /** <p>The method of the current request.</p> */
+    private String method = null;
+    /** <p>Whether the connection can be reused after the response.</p> */
+    private boolean keepAlive = false;
+    /** <p>Whether compressed responses are requested and decoded.</p> */
+    private boolean compression = false;
 
     /* ====================================================================== */
 
@@ -93,8 +150,10 @@ public class HttpClient {
     private Input xinput = null;
     /** <p>The limited output stream associated with this request.</p> */
     private Output xoutput = null;
-    /** <p>The socket associated with this request.</p> */
-    private Socket xsocket = null;
+    /** <p>The connection associated with this request.</p> */
+    private ConnectionPool.Connection xconnection = null;
+    /** <p>The stream decoding a compressed response, if any.</p> */
+    private InputStream xdecoded = null;
 
     /* ====================================================================== */
 
@@ -106,7 +165,7 @@ public class HttpClient {
      */
     public HttpClient(String location)
     throws MalformedURLException {
-        this(Location.parse(location), null);
+        this(Location.parse(location), null, null);
     }
 
     /**
@@ -128,7 +187,7 @@ public class HttpClient {
      */
     public HttpClient(String location, String encoding)
     throws MalformedURLException, UnsupportedEncodingException {
-        this(Location.parse(location, encoding), null);
+        this(Location.parse(location, encoding), null, null);
     }
 
     /**
@@ -147,7 +206,7 @@ public class HttpClient {
      * specified {@link Location}.</p>
      */
     public HttpClient(Location location) {
-        this(location, null);
+        this(location, null, null);
     }
 
     /**
@@ -155,13 +214,38 @@ public class HttpClient {
      * specified {@link Location}.</p>
      */
     public HttpClient(Location location, SocketFactory factory) {
-        if (factory == null) factory = new PlainSocketFactory();
+        this(location, factory, null);
+    }
+
+    /**
+     * <p>Create a new {@link HttpClient} instance associated with the
+     * specified {@link Location} issuing HTTP/1.1 requests over connections
+     * obtained from the specified {@link ConnectionPool}.</p>
+     */
+    public HttpClient(Location location, ConnectionPool pool) {
+        this(location, null, pool);
+    }
+
+    /**
+     * <p>Create a new {@link HttpClient} instance associated with the
+     * specified {@link Location} issuing HTTP/1.1 requests over connections
+     * obtained from the specified {@link ConnectionPool}.</p>
+     * 
+     * <p>If the {@link ConnectionPool} is <b>null</b> HTTP/1.0 requests will
+     * be issued, and connections will be closed after each request.</p>
+     */
+    public HttpClient(Location location, SocketFactory factory,
+                      ConnectionPool pool) {
         if (location == null) throw new NullPointerException("Null location");
+        if (factory == null) factory = "https".equals(location.getScheme()) ?
+                                       (SocketFactory) new SecureSocketFactory() :
+                                       (SocketFactory) new PlainSocketFactory();
         if (! location.isAbsolute()) 
             throw new IllegalArgumentException("Relative location supplied");
         
         this.location = location;
         this.socketFactory = factory;
+        this.connectionPool = pool;
     }
 
     /* ====================================================================== */
@@ -196,6 +280,21 @@ public class HttpClient {
         return this;
     }
 
+    /**
+     * <p>Specify whether responses compressed with the <code>gzip</code>
+     * content encoding should be requested from the server.</p>
+     * 
+     * <p>When enabled, the <code>Accept-Encoding</code> header is sent with
+     * requests and compressed responses are decoded transparently by the
+     * stream returned by {@link #getResponseStream()}. Response headers (for
+     * example <code>Content-Length</code>) still describe the compressed
+     * response as it was sent by the server.</p>
+     */
+    public HttpClient setCompression(boolean compression) {
+        this.compression = compression;
+        return this;
+    }
+
     /* ====================================================================== */
     /* CONNECTION METHODS                                                     */
     /* ====================================================================== */
@@ -219,6 +318,9 @@ public class HttpClient {
      * default method <code>GET</code> allowing for a specified amount of
      * content to be written into the request.</p>
      * 
+     * <p>If the content length is {@link #CHUNKED} the request body will be
+     * streamed with the <code>chunked</code> transfer encoding.</p>
+     * 
      * @return this {@link HttpClient} instance.
      * @throws IOException if an I/O or a network error occurred.
      */
@@ -259,6 +361,12 @@ public class HttpClient {
      * specified method allowing for a specified amount of content to be
      * written into the request.</p>
      * 
+     * <p>If the content length is {@link #CHUNKED} the request body will be
+     * streamed with the <code>chunked</code> transfer encoding: whatever is
+     * written to the {@link #getRequestStream() request stream} is sent in
+     * chunks whenever its buffer fills up or it is flushed, and the request
+     * is completed when the stream is closed.</p>
+     * 
      * @return this {@link HttpClient} instance.
      * @throws IOException if an I/O or a network error occurred.
      */
@@ -303,26 +411,34 @@ public class HttpClient {
      */
     public HttpClient disconnect(boolean reset)
     throws IOException {
-        final Socket socket = this.xsocket;
-        if (socket != null) try {
-            /* Make sure that we mark this instance as being closed */ 
-            this.xsocket = null;
-            
-            /* Close the input stream if necessary */
-            if (this.xinput != null) {
-                if (! this.xinput.closed) this.xinput.close();
-                this.xinput = null;
-            }
+        final ConnectionPool.Connection connection = this.xconnection;
+        if (connection != null) {
+            boolean reusable = false;
+            try {
+                /* Make sure that we mark this instance as being closed */ 
+                this.xconnection = null;
 
-            /* Close the output stream if necessary */
-            if (this.xoutput != null) {
-                if (! this.xoutput.closed) this.xoutput.close();
-                this.xoutput = null;
-            }
+                /* Close the output stream if necessary (reads the response) */
+                if (this.xoutput != null) {
+                    if (! this.xoutput.closed) this.xoutput.close();
+                    this.xoutput = null;
+                }
+
+                /* Skip what's left of the response to reuse the connection */
+                if (this.xinput != null) {
+                    reusable = this.keepAlive && this.xinput.drain(MAX_DRAIN);
+                    this.xinput.closed = true;
+                    this.xinput = null;
+                }
 
-        } finally {
-            /* Ensure that the socket is closed */
-            socket.close();
+                /* The decoder can still return what it buffered until closed */
+                this.xdecoded = null;
+
+            } finally {
+                /* Ensure that the connection is either pooled or closed */
+                if (reusable) connection.release();
+                else connection.close();
+            }
         }
 
         if (reset) {
@@ -344,22 +460,35 @@ public class HttpClient {
     private HttpClient connect(String method, boolean redirect, long length)
     throws IOException {
         /* Check if (by any chance) we have been connected already */
-        if (this.xsocket != null)
+        if (this.xconnection != null)
             throw new IllegalStateException("Already connected");
 
         /* Check for both follow redirects and content length */
-        if (length < 0) throw new IOException("Negative length");
-        if ((length > 0) && redirect)
+        if (length < CHUNKED) throw new IOException("Negative length");
+        if ((length != 0) && redirect)
             throw new InternalError("Can't follow redirects and write request");
+        final boolean chunked = length == CHUNKED;
 
         /* All methods in HTTP are upper case */
         method = method.toUpperCase();
+        this.method = method;
+
+        /* Without a pool, make sure we close the connection at the end */
+        if (this.connectionPool == null)
+            this.addRequestHeader("Connection", "close", false);
 
-        /* Make sure we close the connection at the end of the request */
-        this.addRequestHeader("Connection", "close", false);
+        /* Ask for compressed responses, decoded by getResponseStream() */
+        if (this.compression)
+            this.addRequestHeader("Accept-Encoding", "gzip", false);
         
         /* The content length of the request is forced to be valid */
-        this.addRequestHeader("Content-Length", Long.toString(length), false);
+        if (chunked) {
+            this.removeRequestHeader("Content-Length");
+            this.addRequestHeader("Transfer-Encoding", "chunked", false);
+        } else {
+            this.removeRequestHeader("Transfer-Encoding");
+            this.addRequestHeader("Content-Length", Long.toString(length), false);
+        }
 
         /* Enter in a loop for redirections */
         int redirs = 20;
@@ -385,51 +514,28 @@ public class HttpClient {
                              Authority.getPort(location.getScheme()) :
                              auth.getPort();
             this.addRequestHeader("Host", host + ":" + port, false);
-    
-            /* Connect to the remote endpoint */
-            final Socket sock = this.socketFactory.open(auth.getHost(), port);
-            final InputStream in = sock.getInputStream();
-            final OutputStream out = sock.getOutputStream();
-
-            /* Write the request line */
-            out.write((method + " ").getBytes("US-ASCII"));
-            out.write(this.location.getPath().toString().getBytes("US-ASCII"));
-            out.write(HTTP); /* SPACE HTTP/1.0 CR LF */
-
-            /* Write all the headers */
-            final Iterator headers = this.requestHeaders.values().iterator();
-            while (headers.hasNext()) {
-                final RequestHeader header = (RequestHeader) headers.next();
-                final Iterator values = header.values.iterator();
-                while (values.hasNext()) {
-                    out.write(header.name);
-                    out.write((byte []) values.next());
-                }
-            }
 
-            /* Write the final CRLF, read the status and the headers */
-            out.write(CRLF);
-            out.flush();
+            /* Send the request (and read the response if there's no body) */
+            final ConnectionPool.Connection connection =
+                          this.send(method, host, port, length != 0, chunked);
+            this.xconnection = connection;
 
             /* Return now if we have to write content */
-            if (length > 0) {
-                this.xsocket = sock; 
-                this.xoutput = new Output(this, in, out, length);
+            if (length != 0) {
+                this.xoutput = new Output(this, connection, length);
                 this.xinput = null;
                 return this;
             }
 
-            this.readStatusLine(in);
-            this.readHeaders(in);
+            /* Prepare the response body, so that it can be skipped */
+            this.readBody(connection.input);
 
             /* If we have to follow redirects, let's inspect the response */
             final int code = this.status.status;
             if (redirect && ((code == 301) || (code == 302) || (code == 307))) {
                 final String location = this.getResponseHeader("Location");
                 if (location != null) {
-                    in.close();
-                    out.close();
-                    sock.close();
+                    this.disconnect();
                     this.location = this.location.resolve(location);
                     continue;
                 }
@@ -437,22 +543,145 @@ public class HttpClient {
 
             /* No further redirections, so verify if the status code is ok */
             this.verify();
+            return this;
+        }
+    }
+
+    /**
+     * <p>Obtain a connection and write the request line and headers to it,
+     * reading the response status and headers unless a request body has to
+     * be written.</p>
+     * 
+     * <p>If a connection reused from the pool fails before a response could
+     * be read (the server might have closed it while idle), idempotent
+     * requests are sent again once over a new connection. Other requests
+     * (like <code>MOVE</code> or <code>POST</code>) might have been processed
+     * already, and the failure is reported instead.</p>
+     */
+    private ConnectionPool.Connection send(String method, String host,
+                                           int port, boolean body,
+                                           boolean chunked)
+    throws IOException {
+        for (int attempt = 0; ; attempt ++) {
+            final ConnectionPool.Connection connection;
+            if (this.connectionPool == null) {
+                final Socket socket = this.socketFactory.open(host, port);
+                connection = new ConnectionPool.Connection(null, null, socket);
+            } else {
+                connection = this.connectionPool.acquire(this.location.getScheme(),
+                                           host, port, this.socketFactory);
+            }
+
+            try {
+                final OutputStream out = connection.output;
+
+                /* Write the request line */
+                out.write((method + " ").getBytes("US-ASCII"));
+                out.write(this.location.getPath().toString().getBytes("US-ASCII"));
+                final Parameters parameters = this.location.getParameters();
+                if (parameters != null)
+                    out.write(('?' + parameters.toString()).getBytes("US-ASCII"));
+                /* Chunked requests are only valid for HTTP/1.1 */
+                out.write((this.connectionPool == null) && (! chunked) ?
+                          HTTP : HTTP11);
+
+                /* Write all the headers */
+                final Iterator headers = this.requestHeaders.values().iterator();
+                while (headers.hasNext()) {
+                    final RequestHeader header = (RequestHeader) headers.next();
+                    final Iterator values = header.values.iterator();
+                    while (values.hasNext()) {
+                        out.write(header.name);
+                        out.write((byte []) values.next());
+                    }
+                }
+
+                /* Write the final CRLF, with a body it will be sent later */
+                out.write(CRLF);
+                if (body) return connection;
 
-            /* Evaluate the content length specified by the server */
-            final String len = this.getResponseHeader("Content-Length");
-            long bytesLength = -1;
-            if (len != null) try {
-                bytesLength = Long.parseLong(len);
-            } catch (NumberFormatException exception) {
-                /* Swallow this, be liberal in what we accept */
+                /* Send the request, read the status and the headers */
+                out.flush();
+                this.readHead(connection.input);
+                return connection;
+
+            } catch (IOException exception) {
+                connection.close();
+                if (connection.reused && (attempt == 0) && (! body)
+                    && retriable(method)) continue;
+                throw exception;
             }
+        }
+    }
 
-            /* Return an output stream if the content length was not zero */
-            this.xsocket = sock; 
-            this.xoutput = null;
-            this.xinput = new Input(this, in, bytesLength);
-            return this;
+    /**
+     * <p>Check whether a failed request with the specified method can be
+     * safely sent again.</p>
+     */
+    private static boolean retriable(String method) {
+        for (int x = 0; x < RETRIABLE.length; x ++) {
+            if (RETRIABLE[x].equals(method)) return true;
         }
+        return false;
+    }
+
+    /**
+     * <p>Read the status line and the headers of the response, skipping
+     * any interim (1xx) response, and figure out whether the connection can
+     * be reused once the response has been read.</p>
+     */
+    private void readHead(ResponseInput input)
+    throws IOException {
+        do {
+            this.readStatusLine(input);
+            this.readHeaders(input);
+        } while ((this.status.status < 200) && (this.status.status != 101));
+
+        final String connection = this.getResponseHeader("Connection");
+        if (this.connectionPool == null) {
+            this.keepAlive = false;
+        } else if (HTTP_11 == this.status.protocol) {
+            this.keepAlive = ! contains(connection, "close");
+        } else {
+            this.keepAlive = contains(connection, "keep-alive");
+        }
+    }
+
+    /**
+     * <p>Prepare the {@link Input} stream reading the response body according
+     * to the method, status and headers of the response.</p>
+     */
+    private void readBody(ResponseInput input) {
+        final int code = this.status.status;
+        long length = -1;
+        InputStream source = input;
+
+        if ("HEAD".equals(this.method) || (code == 204) || (code == 304) ||
+            (code < 200)) {
+            /* These responses never have a body */
+            length = 0;
+
+        } else {
+            final String encoding = this.getResponseHeader("Transfer-Encoding");
+            if (contains(encoding, "chunked")) {
+                source = new ChunkedInput(input);
+
+            } else {
+                /* Evaluate the content length specified by the server */
+                final String len = this.getResponseHeader("Content-Length");
+                if (len != null) try {
+                    length = Long.parseLong(len);
+                } catch (NumberFormatException exception) {
+                    /* Swallow this, be liberal in what we accept */
+                }
+
+                /* Responses delimited by the end of the connection */
+                if (length < 0) this.keepAlive = false;
+            }
+        }
+
+        this.xoutput = null;
+        this.xinput = new Input(this, source, length, source != input);
     }
 
     private void verify()
@@ -483,15 +712,24 @@ public class HttpClient {
      * <p>Return an {@link InputStream} where the content of the HTTP response
      * can be read from.</p>
      * 
+     * <p>If {@link #setCompression(boolean) compression} was enabled and the
+     * server compressed the response, the returned stream will decode it.</p>
+     * 
      * @throws IllegalStateException if this instance is not connected yet, or
      *                               the request body was not fully written yet.
      */
     public InputStream getResponseStream()
     throws IllegalStateException {
-        if (this.xsocket == null)
+        if (this.xconnection == null)
             throw new IllegalStateException("Connection not available");
-        if ((this.xoutput != null) && (this.xoutput.remaining != 0))
+        if ((this.xoutput != null) && (! this.xoutput.closed))
             throw new IllegalStateException("Request body not fully written");
+        if (this.xdecoded != null) return this.xdecoded;
+        if (this.compression && (! this.xinput.complete) &&
+            contains(this.getResponseHeader("Content-Encoding"), "gzip")) {
+            this.xdecoded = new GzipInput(this.xinput);
+            return this.xdecoded;
+        }
         return this.xinput;
     }
 
@@ -505,7 +743,7 @@ public class HttpClient {
      */
     public OutputStream getRequestStream()
     throws IllegalStateException {
-        if (this.xsocket == null)
+        if (this.xconnection == null)
             throw new IllegalStateException("Connection not available");
         if (this.xoutput == null) 
             throw new IllegalStateException("No request body to write to");
@@ -606,10 +844,10 @@ public class HttpClient {
      * @return a {@link String} or <b>null</b> if no such header exists.
      */
     public String getResponseHeader(String name) {
-        final String key = name.toLowerCase();
+        final String key = key(name);
         ResponseHeader header = (ResponseHeader) this.responseHeaders.get(key);
         if (header == null) return null;
-        return (String) header.values.get(0);
+        return header.value;
     }
 
     /**
@@ -619,9 +857,10 @@ public class HttpClient {
      * @return a {@link List} or <b>null</b> if no such header exists.
      */
     public List getResponseHeaderValues(String name) {
-        final String key = name.toLowerCase();
+        final String key = key(name);
         ResponseHeader header = (ResponseHeader) this.responseHeaders.get(key);
         if (header == null) return null;
+        if (header.values == null) return Collections.singletonList(header.value);
         return Collections.unmodifiableList(header.values);
     }
 
@@ -683,109 +922,175 @@ public class HttpClient {
     /* ====================================================================== */
 
     /**
-     * <p>Read a single line of the HTTP response from the specified
-     * {@link InputStream} into a byte array (trailing CRLF are removed).</p>
+     * <p>Read the status line from the specified {@link ResponseInput} and
+     * setup the {@link #status} field, parsing it in place.</p>
      */
-    private byte[] readLine(InputStream input)
+    private void readStatusLine(ResponseInput input)
     throws IOException {
-        int x = 0;
-        while (true) {
-            int b = input.read();
-            if (b == -1) break;
-            if (b == 0x0A) break;
-            if (x == this.buffer.length) break;
-            this.buffer[x ++] = (byte) b;
+        if (! input.readLine())
+            throw new IOException("Connection closed by remote server");
+        final byte line[] = input.buffer;
+        final int end = input.lineEnd;
+
+        /* Split the protocol, status and message components */
+        int protocolStart = input.lineStart;
+        while ((protocolStart < end) && (line[protocolStart] <= 0x20)) protocolStart ++;
+        int protocolEnd = protocolStart;
+        while ((protocolEnd < end) && (line[protocolEnd] > 0x20)) protocolEnd ++;
+        int statusStart = protocolEnd;
+        while ((statusStart < end) && (line[statusStart] <= 0x20)) statusStart ++;
+        int statusEnd = statusStart;
+        while ((statusEnd < end) && (line[statusEnd] > 0x20)) statusEnd ++;
+        int messageStart = statusEnd;
+        while ((messageStart < end) && (line[messageStart] <= 0x20)) messageStart ++;
+
+        /* Verify the protocol */
+        final String protocol;
+        if (matches(line, protocolStart, protocolEnd, HTTP_11)) {
+            protocol = HTTP_11;
+        } else if (matches(line, protocolStart, protocolEnd, HTTP_10)) {
+            protocol = HTTP_10;
+        } else {
+            final String string = new String(line, protocolStart,
+                                       protocolEnd - protocolStart, "US-ASCII");
+            throw new IOException("Unknown protocol \"" + string + "\"");
         }
-        if ((x > 0) && (this.buffer[x - 1] == 0x0D)) x--;
-        final byte array[] = new byte[x];
-        System.arraycopy(this.buffer, 0, array, 0, x);
-        return array;
-    }
 
-    /**
-     * <p>Read the status line from the specified {@link InputStream} and
-     * setup the {@link #status} field.</p>
-     */
-    private void readStatusLine(InputStream input)
-    throws IOException {
-        /* Prepare the different buffers required for parsing */
-        final byte line[] = this.readLine(input);
-        final byte buff[] = new byte[line.length];
-        final String comp[] = new String[3];
-        int lpos = 0;
-        int bpos = 0;
-        int cpos = 0;
-        boolean spc = true;
-
-        /* Iterate every single byte in the line, splitting up components */
-        while (lpos < line.length) {
-            final byte b = line[lpos ++];
-            if (spc) {
-                if ((b == 0x09) || (b == 0x20)) continue;
-                buff[bpos ++] = b;
-                if (cpos == 2) break;
-                else spc = false;
-            } else {
-                if ((b == 0x09) || (b == 0x20)) {
-                    comp[cpos ++] = new String(buff, 0, bpos, "US-ASCII");
-                    bpos = 0;
-                    spc = true;
-                    continue;
-                }
-                buff[bpos ++] = b;
+        /* Verify the status */
+        int status = 0;
+        for (int x = statusStart; x < statusEnd; x ++) {
+            final int digit = line[x] - 0x30;
+            if ((digit < 0) || (digit > 9) || (status > 599)) {
+                status = -1;
+                break;
             }
-            
+            status = status * 10 + digit;
         }
-        /*
-         * Copy remaining bytes out of the line buffer and ensure all
-         * components in the status line are not null;
-         */
-        while (lpos < line.length) buff[bpos ++] = line[lpos++];
-        if (bpos > 0) comp[cpos++] = new String(buff, 0, bpos, "US-ASCII");
-        for (int x = cpos; x < 3; x++) comp[x] = "";
+        if ((status < 100) || (status > 599)) {
+            final String string = new String(line, statusStart,
+                                       statusEnd - statusStart, "US-ASCII");
+            throw new IOException("Invalid status \"" + string + "\"");
+        }
+
+        /* Decode the message */
+        final String message;
+        if (messageStart == end) message = "No message";
+        else message = EncodingTools.urlDecode(new String(line, messageStart,
+                                 end - messageStart, "ISO-8859-1"), "ISO-8859-1");
 
         /* Create the status object */
-        this.status = new Status(comp[0], comp[1], comp[2]);
+        this.status = new Status(protocol, status, message);
     }
 
     /**
-     * <p>Read all the response headers from the specified {@link InputStream}
+     * <p>Read all the response headers from the specified {@link ResponseInput}
      * and setup the {@link #responseHeaders} field.</p>
+     * 
+     * <p>Headers are tokenized in place in the buffer of the
+     * {@link ResponseInput}, and names of well-known headers are matched
+     * against a table, so that only header values are copied.</p>
      */
-    private void readHeaders(InputStream input)
+    private void readHeaders(ResponseInput input)
     throws IOException {
         /* Clear out any previous header */
         this.responseHeaders.clear();
+        final byte line[] = input.buffer;
 
         /* Process the input stream until we find an empty line */
-        while (true) {
-            final byte array[] = this.readLine(input);
-            if (array.length == 0) break;
+        while (input.readLine()) {
+            final int start = input.lineStart;
+            final int end = input.lineEnd;
+            if (start == end) break;
 
             /* Identify where the colon is in the header */
-            int pos = -1;
-            while (pos < array.length) if (array[++ pos] == 0x03A) break;
-            if (pos == 0) continue;
-            if (pos == array.length - 1) continue;
-
-            /* Prepare strings for name and value */
-            final int o = pos + 1;
-            final int l = array.length - o;
-            final String name = new String(array, 0, pos, "US-ASCII").trim();
-            final String value = new String(array, o, l, "ISO-8859-1").trim();
-            if ((name.length() == 0) || (value.length() == 0)) continue;
-
-            /* Store the header value in a list for now */
-            final String key = name.toLowerCase();
-            ResponseHeader hdr = (ResponseHeader) this.responseHeaders.get(key);
+            int colon = start;
+            while ((colon < end) && (line[colon] != 0x03A)) colon ++;
+            if (colon == end) continue;
+
+            /* Trim white space around name and value */
+            int nameStart = start;
+            while ((nameStart < colon) && (line[nameStart] <= 0x20)) nameStart ++;
+            int nameEnd = colon;
+            while ((nameEnd > nameStart) && (line[nameEnd - 1] <= 0x20)) nameEnd --;
+            int valueStart = colon + 1;
+            while ((valueStart < end) && (line[valueStart] <= 0x20)) valueStart ++;
+            int valueEnd = end;
+            while ((valueEnd > valueStart) && (line[valueEnd - 1] <= 0x20)) valueEnd --;
+            if ((nameStart == nameEnd) || (valueStart == valueEnd)) continue;
+
+            /* Look up well-known header names, or copy the name */
+            final String name;
+            final String key;
+            final int known = known(line, nameStart, nameEnd);
+            if (known >= 0) {
+                name = KNOWN_HEADERS[known];
+                key = KNOWN_KEYS[known];
+            } else {
+                name = new String(line, nameStart, nameEnd - nameStart, "US-ASCII");
+                key = name.toLowerCase();
+            }
+            final String value = new String(line, valueStart,
+                                            valueEnd - valueStart, "ISO-8859-1");
+
+            /* Store the header value */
+            final ResponseHeader hdr = (ResponseHeader) this.responseHeaders.get(key);
             if (hdr == null) {
-                hdr = new ResponseHeader(name);
-                this.responseHeaders.put(key, hdr);
+                this.responseHeaders.put(key, new ResponseHeader(name, value));
+            } else {
+                hdr.add(value);
             }
-            hdr.values.add(value);
         }
     }
 
+    /**
+     * <p>Return the index in {@link #KNOWN_HEADERS} of the header name
+     * contained in the specified bytes (ignoring case) or -1.</p>
+     */
+    private static int known(byte line[], int start, int end) {
+        final int length = end - start;
+        for (int x = 0; x < KNOWN_BYTES.length; x ++) {
+            final byte known[] = KNOWN_BYTES[x];
+            if (known.length != length) continue;
+            int y = 0;
+            /* Setting bit 0x20 lowercases letters, and leaves '-' unchanged */
+            while ((y < length) && ((line[start + y] | 0x20) == known[y])) y ++;
+            if (y == length) return x;
+        }
+        return -1;
+    }
+
+    /**
+     * <p>Check if the specified bytes match the specified ASCII string.</p>
+     */
+    private static boolean matches(byte line[], int start, int end, String string) {
+        if (end - start != string.length()) return false;
+        for (int x = start; x < end; x ++)
+            if (line[x] != string.charAt(x - start)) return false;
+        return true;
+    }
+
+    /**
+     * <p>Return the key in {@link #responseHeaders} of the specified
+     * header name.</p>
+     */
+    private static String key(String name) {
+        for (int x = 0; x < KNOWN_HEADERS.length; x ++)
+            if (KNOWN_HEADERS[x].equalsIgnoreCase(name)) return KNOWN_KEYS[x];
+        return name.toLowerCase();
+    }
+
+    /**
+     * <p>Check if the specified header value contains the specified lower
+     * case token, ignoring case.</p>
+     */
+    private static boolean contains(String value, String token) {
+        if (value == null) return false;
+        final int last = value.length() - token.length();
+        for (int x = 0; x <= last; x ++)
+            if (value.regionMatches(true, x, token, 0, token.length())) return true;
+        return false;
+    }
+
     /* ====================================================================== */
     /* INTERNAL CLASS REPRESENTNG THE STATUS LINE AND AN ENCODED HEADER       */
     /* ====================================================================== */
@@ -803,35 +1108,13 @@ public class HttpClient {
         private final String message;
 
         /**
-         * <p>Create a new {@link Status} verifying the supplied parameters.</p>
-         * 
-         * @throws IOException if an error occurred verifying the parameters.
+         * <p>Create a new {@link Status} with the supplied (verified)
+         * parameters.</p>
          */
-        private Status(String protocol, String status, String message)
-        throws IOException {
-
-            /* Verify the protocol */
-            if ("HTTP/1.0".equals(protocol) || "HTTP/1.1".equals(protocol)) {
-                this.protocol = protocol; 
-            } else {
-                throw new IOException("Unknown protocol \"" + protocol + "\"");
-            }
-
-            /* Verify the status */
-            try {
-                this.status = Integer.parseInt(status);
-                if ((this.status < 100) || (this.status > 599)) {
-                    throw new IOException("Invalid status \"" + status + "\"");
-                }
-            } catch (RuntimeException exception) {
-                final String error = "Can't parse status \"" + status + "\"";
-                IOException throwable = new IOException(error);
-                throw (IOException) throwable.initCause(exception);
-            }
-            
-            /* Decode the message */
-            if ("".equals(message)) this.message = "No message";
-            else this.message = EncodingTools.urlDecode(message, "ISO-8859-1");
+        private Status(String protocol, int status, String message) {
+            this.protocol = protocol;
+            this.status = status;
+            this.message = message;
         }
     }
 
@@ -860,14 +1143,24 @@ public class HttpClient {
 
         /** <p>The real name of the response header.</p> */
         private final String name;
-        /** <p>A {@link List} of all the header's values.</p> */
-        private final List values;
+        /** <p>The first value of the response header.</p> */
+        private final String value;
+        /** <p>A {@link List} of all values, only if more than one.</p> */
+        private List values = null;
 
         /** <p>Create a new {@link ResponseHeader} instance.</p> */
-        private ResponseHeader(String name)
-        throws UnsupportedEncodingException {
+        private ResponseHeader(String name, String value) {
             this.name = name;
-            this.values = new ArrayList();
+            this.value = value;
+        }
+
+        /** <p>Add another value to this {@link ResponseHeader}.</p> */
+        private void add(String value) {
+            if (this.values == null) {
+                this.values = new ArrayList();
+                this.values.add(this.value);
+            }
+            this.values.add(value);
         }
     }
 
@@ -890,22 +1183,38 @@ public class HttpClient {
         }
     }
 
+    private static final class SecureSocketFactory implements SocketFactory {
+
+        public Socket open(String host, int port)
+        throws IOException {
+            return SSLSocketFactory.getDefault().createSocket(host, port);
+        }
+    }
+
     /* ====================================================================== */
     /* LIMITED STREAMS                                                        */
     /* ====================================================================== */
 
     /**
      * <p>A simple {@link OutputStream} writing at most the number of bytes
-     * specified at construction.</p>
+     * specified at construction, or an unlimited number of bytes using the
+     * <code>chunked</code> transfer encoding.</p>
      */
     private static final class Output extends OutputStream {
 
+        /** <p>The size of the buffer used to collect chunks.</p> */
+        private static final int CHUNK_SIZE = 8192;
+
+        /** <p>The connection written to by this instance.</p> */
+        private final ConnectionPool.Connection connection;
         /** <p>The {@link OutputStream} wrapped by this instance.</p> */
         private final OutputStream output;
-        /** <p>The {@link InputStream} wrapped by this instance.</p> */
-        private final InputStream input;
         /** <p>The {@link HttpClient} wrapped by this instance.</p> */
         private final HttpClient client;
+        /** <p>The buffer collecting the current chunk or <b>null</b>.</p> */
+        private final byte chunk[];
+        /** <p>The number of bytes in the current chunk.</p> */
+        private int count;
         /** <p>The number of bytes yet to write.</p> */
         private long remaining;
         /** <p>A flag indicating whether this instance was closed.</p> */
@@ -915,18 +1224,24 @@ public class HttpClient {
          * <p>Create a new {@link Output} instance with the specified limit
          * of bytes to write.</p>
          * 
-         * @param output the {@link OutputStream} to wrap.
-         * @param remainig the maximum number of bytes to write.
+         * @param connection the connection to write to.
+         * @param remainig the maximum number of bytes to write or
+         *                 {@link HttpClient#CHUNKED} for chunked encoding.
          */
-        private Output(HttpClient client, InputStream input,
-                       OutputStream output, long remaining) {
-            if (input == null) throw new NullPointerException();
-            if (output == null) throw new NullPointerException();
+        private Output(HttpClient client, ConnectionPool.Connection connection,
+                       long remaining) {
+            if (connection == null) throw new NullPointerException();
             if (client == null) throw new NullPointerException();
-            this.remaining = remaining;
             this.client = client;
-            this.output = output;
-            this.input = input;
+            this.connection = connection;
+            this.output = connection.output;
+            if (remaining == CHUNKED) {
+                this.remaining = Long.MAX_VALUE;
+                this.chunk = new byte[CHUNK_SIZE];
+            } else {
+                this.remaining = remaining;
+                this.chunk = null;
+            }
         }
 
         public void write(byte buf[])
@@ -936,7 +1251,19 @@ public class HttpClient {
 
         public void write(byte buf[], int off, int len)
         throws IOException {
-            if (len > this.remaining) {
+            if (this.closed) {
+                throw new IOException("Request already written");
+            } else if (this.chunk != null) {
+                /* Big writes become chunks of their own */
+                if (len >= this.chunk.length) {
+                    this.writeChunk();
+                    this.writeChunk(buf, off, len);
+                    return;
+                }
+                if (this.count + len > this.chunk.length) this.writeChunk();
+                System.arraycopy(buf, off, this.chunk, this.count, len);
+                this.count += len;
+            } else if (len > this.remaining) {
                 throw new IOException("Too much data to write");
             } else try {
                 this.output.write(buf, off, len);
@@ -948,7 +1275,12 @@ public class HttpClient {
 
         public void write(int b)
         throws IOException {
-            if (this.remaining < 1) {
+            if (this.closed) {
+                throw new IOException("Request already written");
+            } else if (this.chunk != null) {
+                if (this.count == this.chunk.length) this.writeChunk();
+                this.chunk[this.count ++] = (byte) b;
+            } else if (this.remaining < 1) {
                 throw new IOException("Too much data to write");
             } else try {
                 this.output.write(b);
@@ -960,40 +1292,55 @@ public class HttpClient {
 
         public void flush()
         throws IOException {
+            if (this.chunk != null) this.writeChunk();
             this.output.flush();
         }
 
         public void close()
         throws IOException {
             if (this.closed) return;
-            if (this.remaining > 0)
-                throw new IOException(this.remaining + " bytes left to write");
+            if (this.remaining > 0) {
+                if (this.chunk == null)
+                    throw new IOException(this.remaining + " bytes left to write");
+
+                /* Write the last chunk and the (empty) trailers */
+                this.writeChunk();
+                this.output.write(LAST_CHUNK);
+            }
             this.closed = true;
             this.output.flush();
 
             /* Read the status and headers from the connection and verify */ 
-            this.client.readStatusLine(this.input);
-            this.client.readHeaders(this.input);
+            this.client.readHead(this.connection.input);
+            this.client.readBody(this.connection.input);
             this.client.verify();
+        }
 
-            /* Evaluate the content length specified by the server */
-            final String slen = this.client.getResponseHeader("Content-Length");
-            long blen = -1;
-            if (slen != null) try {
-                blen = Long.parseLong(slen);
-            } catch (NumberFormatException exception) {
-                /* Swallow this, be liberal in what we accept */
-            }
+        /**
+         * <p>Write the buffered bytes (if any) as a chunk.</p>
+         */
+        private void writeChunk()
+        throws IOException {
+            if (this.count == 0) return;
+            this.writeChunk(this.chunk, 0, this.count);
+            this.count = 0;
+        }
 
-            /* Return an output stream if the content length was not zero */
-            this.client.xoutput = null;
-            this.client.xinput = new Input(this.client, this.input, blen);
+        /**
+         * <p>Write the specified bytes as a chunk.</p>
+         */
+        private void writeChunk(byte buf[], int off, int len)
+        throws IOException {
+            this.output.write(Integer.toHexString(len).getBytes("US-ASCII"));
+            this.output.write(CRLF);
+            this.output.write(buf, off, len);
+            this.output.write(CRLF);
         }
 
         protected void finalize()
         throws Throwable {
             try {
-                this.close();
+                if (this.client.xoutput == this) this.close();
             } finally {
                 super.finalize();                
             }
@@ -1003,6 +1350,10 @@ public class HttpClient {
     /**
      * <p>A simple {@link InputStream} reading at most the number of bytes
      * specified at construction.</p>
+     * 
+     * <p>Once the whole response has been read (or when this instance is
+     * closed) the {@link HttpClient} is disconnected, and its connection is
+     * either returned to the pool or closed.</p>
      */
     private static final class Input extends InputStream {
 
@@ -1010,8 +1361,12 @@ public class HttpClient {
         private final InputStream input;
         /** <p>The {@link HttpClient} wrapped by this instance.</p> */
         private final HttpClient client;
-        /** <p>The number of bytes yet to write or -1 if unknown.</p> */
+        /** <p>Whether the end of the wrapped stream ends the response.</p> */
+        private final boolean delimited;
+        /** <p>The number of bytes yet to read or -1 if unknown.</p> */
         private long remaining;
+        /** <p>A flag indicating whether the whole response was read.</p> */
+        private boolean complete;
         /** <p>A flag indicating whether this instance was closed.</p> */
         private boolean closed;
         
@@ -1021,25 +1376,26 @@ public class HttpClient {
          * 
          * @param input the {@link InputStream} to wrap.
          * @param remainig the maximum number of bytes to read or -1 if unknown.
+         * @param delimited whether the wrapped stream ends with the response.
          */
-        private Input(HttpClient client, InputStream input, long remaining) {
+        private Input(HttpClient client, InputStream input, long remaining,
+                      boolean delimited) {
             if (input == null) throw new NullPointerException();
             if (client == null) throw new NullPointerException();
             this.remaining = remaining < 0 ? Long.MAX_VALUE : remaining;
+            this.complete = this.remaining == 0;
+            this.delimited = delimited;
             this.client = client;
             this.input = input;
         }
 
         public int read()
         throws IOException {
-            if (this.remaining < 1) {
-                return -1;
-            } else try {
-                return this.input.read();
-            } finally {
-                this.remaining -= 1;
-                if (this.remaining < 1) this.close();
-            }
+            if (this.complete || this.closed) return -1;
+            final int b = this.input.read();
+            if (b < 0) this.end();
+            else if ((-- this.remaining) < 1) this.end();
+            return b;
         }
 
         public int read(byte buf[])
@@ -1049,34 +1405,26 @@ public class HttpClient {
 
         public int read(byte buf[], int off, int len)
         throws IOException {
-            if (this.remaining <= 0) return -1;
+            if (this.complete || this.closed) return -1;
             if (len > this.remaining) len = (int) this.remaining;
-            int count = 0;
-            try {
-                count = this.input.read(buf, off, len);
-            } finally {
-                this.remaining -= count;
-                if (this.remaining < 1) this.close();
-            }
+            final int count = this.input.read(buf, off, len);
+            if (count < 0) this.end();
+            else if ((this.remaining -= count) < 1) this.end();
             return count;
         }
 
         public long skip(long n)
         throws IOException {
-            if (this.remaining <= 0) return -1;
+            if (this.complete || this.closed) return 0;
             if (n > this.remaining) n = this.remaining;
-            long count = 0;
-            try {
-                count = this.input.skip(n);
-            } finally {
-                this.remaining -= count;
-                if (this.remaining < 1) this.close();
-            }
+            final long count = this.input.skip(n);
+            if ((this.remaining -= count) < 1) this.end();
             return count;
         }
 
         public int available()
         throws IOException {
+            if (this.complete || this.closed) return 0;
             int count = this.input.available();
             if (count < this.remaining) return count;
             return (int) this.remaining;
@@ -1085,25 +1433,39 @@ public class HttpClient {
         public void close()
         throws IOException {
             if (this.closed) return;
+            if (this.client.xinput == this) this.client.disconnect();
             this.closed = true;
-            try {
-                this.input.close();
-            } finally {
-                this.client.disconnect();
-            }
-        }
-
-        public void mark(int readlimit) {
-            this.input.mark(readlimit);
         }
 
-        public void reset()
+        /**
+         * <p>Mark the end of the response, disconnecting the client.</p>
+         */
+        private void end()
         throws IOException {
-            this.input.reset();
+            /* Premature ends of length-delimited responses don't count */
+            if (this.delimited || (this.remaining < 1)) this.complete = true;
+            this.close();
         }
 
-        public boolean markSupported() {
-            return this.input.markSupported();
+        /**
+         * <p>Skip at most the specified number of bytes of the response,
+         * returning <b>true</b> if the whole response was read.</p>
+         */
+        private boolean drain(long limit)
+        throws IOException {
+            final byte buffer[] = this.client.buffer;
+            while ((! this.complete) && (limit > 0)) {
+                long len = Math.min(limit, this.remaining);
+                if (len > buffer.length) len = buffer.length;
+                final int count = this.input.read(buffer, 0, (int) len);
+                if (count < 0) {
+                    if (this.delimited) this.complete = true;
+                    break;
+                }
+                limit -= count;
+                if ((this.remaining -= count) < 1) this.complete = true;
+            }
+            return this.complete;
         }
 
         protected void finalize()
@@ -1116,6 +1478,167 @@ public class HttpClient {
         }
     }
 
+    /**
+     * <p>An {@link InputStream} decoding a response body compressed with the
+     * <code>gzip</code> content encoding.</p>
+     * 
+     * <p>The decoder is created when the first byte is read, as it needs to
+     * read the <code>gzip</code> header from the response.</p>
+     */
+    private static final class GzipInput extends InputStream {
+
+        /** <p>The {@link Input} wrapped by this instance.</p> */
+        private final Input input;
+        /** <p>The {@link GZIPInputStream} decoding the response.</p> */
+        private GZIPInputStream decoder = null;
+
+        /** <p>Create a new {@link GzipInput} instance.</p> */
+        private GzipInput(Input input) {
+            this.input = input;
+        }
+
+        /** <p>Return the decoder, creating it if necessary.</p> */
+        private InputStream decoder()
+        throws IOException {
+            if (this.decoder == null)
+                this.decoder = new GZIPInputStream(this.input, 4096);
+            return this.decoder;
+        }
+
+        public int read()
+        throws IOException {
+            return this.decoder().read();
+        }
+
+        public int read(byte buf[], int off, int len)
+        throws IOException {
+            return this.decoder().read(buf, off, len);
+        }
+
+        public int available()
+        throws IOException {
+            return this.decoder == null ? 0 : this.decoder.available();
+        }
+
+        public void close()
+        throws IOException {
+            /* Closing the decoder also closes the input */
+            if (this.decoder != null) this.decoder.close();
+            else this.input.close();
+        }
+    }
+
+    /**
+     * <p>An {@link InputStream} decoding a response body sent with the
+     * <code>chunked</code> transfer encoding.</p>
+     * 
+     * <p>This stream returns end-of-file only after the last chunk and all
+     * trailers have been read, and never closes the wrapped stream.</p>
+     */
+    private static final class ChunkedInput extends InputStream {
+
+        /** <p>The {@link ResponseInput} wrapped by this instance.</p> */
+        private final ResponseInput input;
+        /** <p>The number of bytes left in the current chunk.</p> */
+        private long chunk = 0;
+        /** <p>Whether the first chunk size was read.</p> */
+        private boolean started = false;
+        /** <p>Whether the last chunk was read.</p> */
+        private boolean finished = false;
+
+        /** <p>Create a new {@link ChunkedInput} instance.</p> */
+        private ChunkedInput(ResponseInput input) {
+            this.input = input;
+        }
+
+        public int read()
+        throws IOException {
+            if (! this.next()) return -1;
+            final int b = this.input.read();
+            if (b < 0) throw new IOException("Premature end of chunked body");
+            this.chunk --;
+            return b;
+        }
+
+        public int read(byte buf[], int off, int len)
+        throws IOException {
+            if (len == 0) return 0;
+            if (! this.next()) return -1;
+            if (len > this.chunk) len = (int) this.chunk;
+            final int count = this.input.read(buf, off, len);
+            if (count < 0) throw new IOException("Premature end of chunked body");
+            this.chunk -= count;
+            return count;
+        }
+
+        public int available()
+        throws IOException {
+            if (this.finished) return 0;
+            final int count = this.input.available();
+            return count < this.chunk ? count : (int) this.chunk;
+        }
+
+        public void close() {
+            /* Never close the connection's stream */
+        }
+
+        /**
+         * <p>Make sure that the current chunk has bytes to read, reading the
+         * next chunk header if required.</p>
+         * 
+         * @return <b>false</b> if the last chunk was read.
+         */
+        private boolean next()
+        throws IOException {
+            if (this.finished) return false;
+            if (this.chunk > 0) return true;
+
+            /* Every chunk's data is terminated by a CRLF */
+            if (this.started) this.readLine();
+            this.started = true;
+
+            /* Parse the chunk size in place, ignoring any extension */
+            this.readLine();
+            final byte line[] = this.input.buffer;
+            final int end = this.input.lineEnd;
+            int position = this.input.lineStart;
+            while ((position < end) && (line[position] <= 0x20)) position ++;
+            final int start = position;
+            long chunk = 0;
+            for (; position < end; position ++) {
+                final int digit = Character.digit((char) line[position], 16);
+                if (digit < 0) break;
+                if (chunk > (Long.MAX_VALUE >> 4))
+                    throw new IOException("Chunk size too big");
+                chunk = (chunk << 4) + digit;
+            }
+            while ((position < end) && (line[position] <= 0x20)) position ++;
+            if ((position == start) || ((position < end) && (line[position] != ';'))) {
+                final String string = new String(line, this.input.lineStart,
+                                  end - this.input.lineStart, "ISO-8859-1");
+                throw new IOException("Invalid chunk size \"" + string + "\"");
+            }
+            this.chunk = chunk;
+            if (this.chunk > 0) return true;
+
+            /* The last chunk is followed by trailers and an empty line */
+            while (this.readLine() > 0);
+            this.finished = true;
+            return false;
+        }
+
+        /**
+         * <p>Read a line in place from the wrapped stream, returning its
+         * length (without the trailing CRLF).</p>
+         */
+        private int readLine()
+        throws IOException {
+            if (! this.input.readLine())
+                throw new IOException("Premature end of chunked body");
+            return this.input.lineEnd - this.input.lineStart;
+        }
+    }
+
     /* ====================================================================== */
     /* UTILITY FETCHER                                                        */
     /* ====================================================================== */
@@ -0,0 +1,186 @@
+/* ========================================================================== *
+ *   Copyright (c) 2006, Pier Paolo Fumagalli <mailto:pier@betaversion.org>   *
+ *                            All rights reserved.                            *
+ * ========================================================================== *
+ *                                                                            * 
+ * Redistribution and use in source and binary forms, with or without modifi- *
+ * cation, are permitted provided that the following conditions are met:      *
+ *                                                                            * 
+ *  - Redistributions of source code must retain the  above copyright notice, *
+ *    this list of conditions and the following disclaimer.                   *
+ *                                                                            * 
+ *  - Redistributions  in binary  form  must  reproduce the  above  copyright *
+ *    notice,  this list of conditions  and the following  disclaimer  in the *
+ *    documentation and/or other materials provided with the distribution.    *
+ *                                                                            * 
+ *  - Neither the name of Pier Fumagalli, nor the names of other contributors *
+ *    may be used to endorse  or promote products derived  from this software *
+ *    without specific prior written permission.                              *
+ *                                                                            * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS "AS IS" *
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES,  INCLUDING, BUT NOT LIMITED TO, THE *
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE *
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER  OR CONTRIBUTORS BE *
+ * LIABLE  FOR ANY  DIRECT,  INDIRECT,  INCIDENTAL,  SPECIAL,  EXEMPLARY,  OR *
+ * CONSEQUENTIAL  DAMAGES  (INCLUDING,  BUT  NOT LIMITED  TO,  PROCUREMENT OF *
+ * SUBSTITUTE GOODS OR SERVICES;  LOSS OF USE, DATA, OR PROFITS;  OR BUSINESS *
+ * INTERRUPTION)  HOWEVER CAUSED AND ON  ANY THEORY OF LIABILITY,  WHETHER IN *
+ * CONTRACT,  STRICT LIABILITY,  OR TORT  (INCLUDING NEGLIGENCE OR OTHERWISE) *
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE *
+ * POSSIBILITY OF SUCH DAMAGE.                                                *
+ * ========================================================================== */
+package it.could.util.http;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * <p>A buffered {@link InputStream} reading HTTP responses, able to return
+ * lines of the response head <i>in place</i>, without copying them out of
+ * its buffer.</p>
+ * 
+ * <p>Bytes buffered after the response head are simply returned by the
+ * normal {@link #read(byte[], int, int)} methods, so that the same instance
+ * can be used to read the response body right after the head was parsed.</p>
+ * 
+ * <p>Instances of this class are not thread safe, and are meant to be used by
+ * a single {@link HttpClient} at a time.</p>
+ *
+ * @author <a href="http://could.it/">Pier Fumagalli</a>
+ */
+final class ResponseInput extends InputStream {
+
+    /** <p>The {@link InputStream} wrapped by this instance.</p> */
+    private final InputStream input;
+    /** <p>The buffer holding data read from the wrapped stream.</p> */
+    final byte buffer[];
+    /** <p>The position of the next byte to read in the {@link #buffer}.</p> */
+    private int position = 0;
+    /** <p>The number of valid bytes in the {@link #buffer}.</p> */
+    private int limit = 0;
+    /** <p>The offset in the {@link #buffer} of the last line read.</p> */
+    int lineStart = 0;
+    /** <p>The offset in the {@link #buffer} after the last line read.</p> */
+    int lineEnd = 0;
+
+    /**
+     * <p>Create a new {@link ResponseInput} instance wrapping the specified
+     * {@link InputStream} with a buffer of the specified size, which also
+     * limits the length of lines to read.</p>
+     */
+    ResponseInput(InputStream input, int size) {
+        if (input == null) throw new NullPointerException("Null input");
+        this.input = input;
+        this.buffer = new byte[size];
+    }
+
+    /**
+     * <p>Read a line (terminated by LF or CRLF) leaving it in the
+     * {@link #buffer} between {@link #lineStart} (inclusive) and
+     * {@link #lineEnd} (exclusive), without the line terminator.</p>
+     * 
+     * <p>The line is valid only until the next operation on this stream.</p>
+     * 
+     * @return <b>false</b> if the end of the stream was reached before
+     *         any byte could be read.
+     * @throws IOException if an I/O error occurred or if the line did not
+     *                     fit into the buffer.
+     */
+    boolean readLine()
+    throws IOException {
+        int scan = this.position;
+        while (true) {
+            /* Look for the LF in what's already buffered */
+            for (; scan < this.limit; scan ++) {
+                if (this.buffer[scan] != 0x0A) continue;
+                this.lineStart = this.position;
+                this.lineEnd = scan;
+                if ((scan > this.position) && (this.buffer[scan - 1] == 0x0D))
+                    this.lineEnd --;
+                this.position = scan + 1;
+                return true;
+            }
+
+            /* Shift the partial line to the start of the buffer and refill */
+            if (this.position > 0) {
+                final int length = this.limit - this.position;
+                System.arraycopy(this.buffer, this.position, this.buffer, 0, length);
+                scan -= this.position;
+                this.limit = length;
+                this.position = 0;
+            }
+            if (this.limit == this.buffer.length)
+                throw new IOException("Response line too long");
+            final int count = this.input.read(this.buffer, this.limit,
+                                              this.buffer.length - this.limit);
+            if (count < 0) {
+                if (this.limit == 0) return false;
+                /* Return whatever was left as the last line */
+                this.lineStart = 0;
+                this.lineEnd = this.limit;
+                this.position = this.limit;
+                return true;
+            }
+            this.limit += count;
+        }
+    }
+
+    public int read()
+    throws IOException {
+        if (this.position == this.limit) {
+            this.position = 0;
+            this.limit = 0;
+            final int count = this.input.read(this.buffer, 0, this.buffer.length);
+            if (count < 0) return -1;
+            this.limit = count;
+        }
+        return this.buffer[this.position ++] & 0x0ff;
+    }
+
+    public int read(byte buf[], int off, int len)
+    throws IOException {
+        if (len == 0) return 0;
+        final int buffered = this.limit - this.position;
+        if (buffered > 0) {
+            if (len > buffered) len = buffered;
+            System.arraycopy(this.buffer, this.position, buf, off, len);
+            this.position += len;
+            return len;
+        }
+
+        /* Large reads bypass the buffer altogether */
+        if (len >= this.buffer.length) return this.input.read(buf, off, len);
+
+        this.position = 0;
+        this.limit = 0;
+        final int count = this.input.read(this.buffer, 0, this.buffer.length);
+        if (count < 0) return -1;
+        this.limit = count;
+        if (len > count) len = count;
+        System.arraycopy(this.buffer, 0, buf, off, len);
+        this.position = len;
+        return len;
+    }
+
+    public long skip(long n)
+    throws IOException {
+        if (n <= 0) return 0;
+        final int buffered = this.limit - this.position;
+        if (buffered > 0) {
+            if (n > buffered) n = buffered;
+            this.position += (int) n;
+            return n;
+        }
+        return this.input.skip(n);
+    }
+
+    public int available()
+    throws IOException {
+        return (this.limit - this.position) + this.input.available();
+    }
+
+    public void close()
+    throws IOException {
+        this.input.close();
+    }
+}
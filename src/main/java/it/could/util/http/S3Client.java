@@ -0,0 +1,704 @@
+/* ========================================================================== *
+ *   Copyright (c) 2006, Pier Paolo Fumagalli <mailto:pier@betaversion.org>   *
+ *                            All rights reserved.                            *
+ * ========================================================================== *
+ *                                                                            * 
+ * Redistribution and use in source and binary forms, with or without modifi- *
+ * cation, are permitted provided that the following conditions are met:      *
+ *                                                                            * 
+ *  - Redistributions of source code must retain the  above copyright notice, *
+ *    this list of conditions and the following disclaimer.                   *
+ *                                                                            * 
+ *  - Redistributions  in binary  form  must  reproduce the  above  copyright *
+ *    notice,  this list of conditions  and the following  disclaimer  in the *
+ *    documentation and/or other materials provided with the distribution.    *
+ *                                                                            * 
+ *  - Neither the name of Pier Fumagalli, nor the names of other contributors *
+ *    may be used to endorse  or promote products derived  from this software *
+ *    without specific prior written permission.                              *
+ *                                                                            * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS "AS IS" *
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES,  INCLUDING, BUT NOT LIMITED TO, THE *
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE *
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER  OR CONTRIBUTORS BE *
+ * LIABLE  FOR ANY  DIRECT,  INDIRECT,  INCIDENTAL,  SPECIAL,  EXEMPLARY,  OR *
+ * CONSEQUENTIAL  DAMAGES  (INCLUDING,  BUT  NOT LIMITED  TO,  PROCUREMENT OF *
+ * SUBSTITUTE GOODS OR SERVICES;  LOSS OF USE, DATA, OR PROFITS;  OR BUSINESS *
+ * INTERRUPTION)  HOWEVER CAUSED AND ON  ANY THEORY OF LIABILITY,  WHETHER IN *
+ * CONTRACT,  STRICT LIABILITY,  OR TORT  (INCLUDING NEGLIGENCE OR OTHERWISE) *
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE *
+ * POSSIBILITY OF SUCH DAMAGE.                                                *
+ * ========================================================================== */
+package it.could.util.http;
+
+import it.could.util.StringTools;
+import it.could.util.encoding.EncodingTools;
+import it.could.util.encoding.URICharacters;
+import it.could.util.location.Authority;
+import it.could.util.location.Location;
+import it.could.util.location.PathElement;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * <p>A minimal client for object storage services compatible with the
+ * Amazon S3 REST interface, built on top of {@link HttpClient}.</p>
+ * 
+ * <p>Requests are authenticated with version 4 of the AWS signature and
+ * address buckets by path (as in <code>http://host:port/bucket/key</code>),
+ * which is supported by most compatible services. Keys are plain (not
+ * URL-encoded) strings, relative to the prefix specified at
+ * construction.</p>
+ * 
+ * <p>Instances of this class are thread safe.</p>
+ *
+ * @author <a href="http://could.it/">Pier Fumagalli</a>
+ */
+public class S3Client {
+
+    /** <p>The minimum size of all parts of a multipart upload but the last.</p> */
+    public static final int MIN_PART_SIZE = 5 * 1024 * 1024;
+    /** <p>The maximum number of keys deleted by a single request.</p> */
+    public static final int MAX_DELETE = 1000;
+
+    /** <p>The maximum number of keys listed by a single request.</p> */
+    private static final int MAX_KEYS = 1000;
+    /** <p>The status of successful responses.</p> */
+    private static final int OK[] = new int[] { 200 };
+    /** <p>The statuses of responses to deletions.</p> */
+    private static final int DELETED[] = new int[] { 200, 204, 404 };
+    /** <p>The algorithm of version 4 signatures.</p> */
+    private static final String ALGORITHM = "AWS4-HMAC-SHA256";
+    /** <p>The characters not encoded in paths and query strings.</p> */
+    private static final char UNRESERVED[] = new StringBuffer()
+                                 .append(URICharacters.CLASS_ALPHANUMERIC)
+                                 .append("-_.~").toString().toCharArray();
+    /** <p>The {@link SAXParserFactory} creating response parsers.</p> */
+    private static final SAXParserFactory PARSER_FACTORY;
+    static {
+        PARSER_FACTORY = SAXParserFactory.newInstance();
+        PARSER_FACTORY.setValidating(false);
+        PARSER_FACTORY.setNamespaceAware(true);
+    }
+
+    /** <p>The scheme, host and port requests are sent to.</p> */
+    private final String endpoint;
+    /** <p>The value of the <code>Host</code> header sent with requests.</p> */
+    private final String host;
+    /** <p>The encoded path of the bucket (with a trailing slash).</p> */
+    private final String bucket;
+    /** <p>The prefix of all keys.</p> */
+    private final String prefix;
+    /** <p>The access key identifying the account.</p> */
+    private final String accessKey;
+    /** <p>The secret key signing requests.</p> */
+    private final String secretKey;
+    /** <p>The region of the service.</p> */
+    private final String region;
+    /** <p>The {@link ConnectionPool} used by this instance.</p> */
+    private final ConnectionPool pool;
+
+    /**
+     * <p>Create a new {@link S3Client} instance.</p>
+     * 
+     * <p>The path of the {@link Location} specifies the bucket, optionally
+     * followed by a prefix for all keys (as in
+     * <code>http://host:port/bucket/prefix/</code>).</p>
+     * 
+     * @param location the HTTP {@link Location} of the bucket.
+     * @param accessKey the access key identifying the account.
+     * @param secretKey the secret key signing requests.
+     * @param region the region of the service (<code>us-east-1</code> if
+     *               <b>null</b>).
+     * @param pool the {@link ConnectionPool} to use or <b>null</b>.
+     * @throws NullPointerException if the location or keys were <b>null</b>.
+     * @throws IllegalArgumentException if the location did not specify a
+     *                                  host or bucket.
+     */
+    public S3Client(Location location, String accessKey, String secretKey,
+                    String region, ConnectionPool pool) {
+        if (location == null) throw new NullPointerException("Null location");
+        if (accessKey == null) throw new NullPointerException("Null access key");
+        if (secretKey == null) throw new NullPointerException("Null secret key");
+        final Authority authority = location.getAuthority();
+        if (authority == null) throw new IllegalArgumentException("No host");
+
+        /* HttpClient always sends the port in the host header */
+        final int port = authority.getPort() == Authority.UNSPECIFIED_PORT ?
+                         Authority.getPort(location.getScheme()) :
+                         authority.getPort();
+        this.host = authority.getHost() + ":" + port;
+        this.endpoint = location.getScheme() + "://" + this.host;
+
+        /* The first path element is the bucket, the rest the prefix */
+        final StringBuffer prefix = new StringBuffer();
+        String bucket = null;
+        for (Iterator iterator = location.getPath().iterator(); iterator.hasNext(); ) {
+            final String name = ((PathElement) iterator.next()).getName();
+            if ((name.length() == 0) || ".".equals(name)) continue;
+            if (bucket == null) bucket = "/" + encode(name) + "/";
+            else prefix.append(name).append('/');
+        }
+        if (bucket == null) throw new IllegalArgumentException("No bucket");
+        this.bucket = bucket;
+        this.prefix = prefix.toString();
+
+        this.accessKey = accessKey;
+        this.secretKey = secretKey;
+        this.region = region == null ? "us-east-1" : region;
+        this.pool = pool;
+    }
+
+    /* ====================================================================== */
+    /* OBJECT METHODS                                                         */
+    /* ====================================================================== */
+
+    /**
+     * <p>Store the specified bytes as the object with the specified key.</p>
+     * 
+     * @return the entity tag of the stored object.
+     * @throws IOException if an I/O or network error occurred.
+     */
+    public String putObject(String key, byte data[], int offset, int length,
+                            String contentType)
+    throws IOException {
+        final HttpClient client = this.execute("PUT", key, null, data, offset,
+                                               length, headers("content-type",
+                                               contentType), OK);
+        client.disconnect();
+        return client.getResponseHeader("ETag");
+    }
+
+    /**
+     * <p>Copy the object with the specified source key to the specified
+     * destination key on the server.</p>
+     * 
+     * @throws IOException if an I/O or network error occurred.
+     */
+    public void copyObject(String source, String destination)
+    throws IOException {
+        final String copy = this.bucket + encode(this.prefix + source);
+        final HttpClient client = this.execute("PUT", destination, null, null,
+                                               0, 0, headers("x-amz-copy-source",
+                                               copy), OK);
+
+        /* Copies can fail after the response status was sent */
+        final Response response = this.parse(client);
+        if ("Error".equals(response.root))
+            throw new IOException("Unable to copy \"" + source + "\" to \""
+                                  + destination + "\": " + response.error());
+    }
+
+    /**
+     * <p>Delete the object with the specified key (deleting a non-existing
+     * object is not an error).</p>
+     * 
+     * @throws IOException if an I/O or network error occurred.
+     */
+    public void deleteObject(String key)
+    throws IOException {
+        this.execute("DELETE", key, null, null, 0, 0, null, DELETED).disconnect();
+    }
+
+    /**
+     * <p>Delete all the objects with the specified keys, issuing one request
+     * for every {@link #MAX_DELETE} keys.</p>
+     * 
+     * @throws IOException if an I/O or network error occurred, or if any of
+     *                     the objects could not be deleted.
+     */
+    public void deleteObjects(List keys)
+    throws IOException {
+        for (int start = 0; start < keys.size(); start += MAX_DELETE) {
+            final int end = Math.min(keys.size(), start + MAX_DELETE);
+            final StringBuffer buffer = new StringBuffer();
+            buffer.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
+            buffer.append("<Delete><Quiet>true</Quiet>");
+            for (int x = start; x < end; x ++) {
+                buffer.append("<Object><Key>");
+                escape(buffer, this.prefix + keys.get(x));
+                buffer.append("</Key></Object>");
+            }
+            buffer.append("</Delete>");
+
+            final byte data[] = buffer.toString().getBytes("UTF-8");
+            /* The MD5 digest is required, bytes are mapped to characters */
+            final String md5 = new String(digest("MD5", data, 0, data.length),
+                                          "ISO-8859-1");
+            final SortedMap headers = headers("content-type", "application/xml");
+            headers.put("content-md5", EncodingTools.base64Encode(md5, "ISO-8859-1"));
+            final HttpClient client = this.execute("POST", null, "delete=", data,
+                                                   0, data.length, headers, OK);
+
+            /* Quiet responses only list the keys which failed */
+            final Response response = this.parse(client);
+            if (response.values("Code").size() > 0)
+                throw new IOException("Unable to delete objects: "
+                                      + response.error());
+        }
+    }
+
+    /**
+     * <p>List all objects whose keys start with the specified prefix.</p>
+     * 
+     * @return a {@link SortedMap} of keys to {@link Entry} instances.
+     * @throws IOException if an I/O or network error occurred.
+     */
+    public SortedMap listObjects(String prefix)
+    throws IOException {
+        final SortedMap objects = new TreeMap();
+        String token = null;
+        do {
+            /* Query parameters must be sorted, and are signed as sent */
+            final StringBuffer query = new StringBuffer();
+            if (token != null)
+                query.append("continuation-token=").append(parameter(token)).append('&');
+            query.append("list-type=2&max-keys=").append(MAX_KEYS);
+            query.append("&prefix=").append(parameter(this.prefix + prefix));
+
+            final HttpClient client = this.execute("GET", null, query.toString(),
+                                                   null, 0, 0, null, OK);
+            final Response response = this.parse(client);
+
+            final List keys = response.values("Key");
+            final List sizes = response.values("Size");
+            final List etags = response.values("ETag");
+            final List dates = response.values("LastModified");
+            for (int x = 0; x < keys.size(); x ++) {
+                final String key = (String) keys.get(x);
+                if (! key.startsWith(this.prefix)) continue;
+                final Date modified = StringTools.parseIsoDate((String) dates.get(x));
+                if (modified == null) {
+                    throw new IOException("Invalid date for \"" + key + "\"");
+                }
+                objects.put(key.substring(this.prefix.length()),
+                            new Entry(Long.parseLong((String) sizes.get(x)),
+                                      (String) etags.get(x), modified));
+            }
+
+            token = "true".equals(response.value("IsTruncated")) ?
+                    response.value("NextContinuationToken") : null;
+        } while (token != null);
+        return objects;
+    }
+
+    /* ====================================================================== */
+    /* MULTIPART UPLOAD METHODS                                               */
+    /* ====================================================================== */
+
+    /**
+     * <p>Start a multipart upload of the object with the specified key.</p>
+     * 
+     * @return the identifier of the upload.
+     * @throws IOException if an I/O or network error occurred.
+     */
+    public String createMultipartUpload(String key, String contentType)
+    throws IOException {
+        final HttpClient client = this.execute("POST", key, "uploads=", null,
+                                               0, 0, headers("content-type",
+                                               contentType), OK);
+        final String upload = this.parse(client).value("UploadId");
+        if (upload != null) return upload;
+        throw new IOException("No upload identifier for \"" + key + "\"");
+    }
+
+    /**
+     * <p>Upload a part (numbered from one) of a multipart upload.</p>
+     * 
+     * @return the entity tag of the part.
+     * @throws IOException if an I/O or network error occurred.
+     */
+    public String uploadPart(String key, String upload, int part, byte data[],
+                             int offset, int length)
+    throws IOException {
+        final String query = "partNumber=" + part + "&uploadId=" + parameter(upload);
+        final HttpClient client = this.execute("PUT", key, query, data, offset,
+                                               length, null, OK);
+        client.disconnect();
+        final String etag = client.getResponseHeader("ETag");
+        if (etag != null) return etag;
+        throw new IOException("No entity tag for part " + part + " of \""
+                              + key + "\"");
+    }
+
+    /**
+     * <p>Complete a multipart upload, given the {@link List} of the entity
+     * tags of all its parts (in order).</p>
+     * 
+     * @throws IOException if an I/O or network error occurred.
+     */
+    public void completeMultipartUpload(String key, String upload, List etags)
+    throws IOException {
+        final StringBuffer buffer = new StringBuffer();
+        buffer.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
+        buffer.append("<CompleteMultipartUpload>");
+        for (int x = 0; x < etags.size(); x ++) {
+            buffer.append("<Part><PartNumber>").append(x + 1);
+            buffer.append("</PartNumber><ETag>");
+            escape(buffer, (String) etags.get(x));
+            buffer.append("</ETag></Part>");
+        }
+        buffer.append("</CompleteMultipartUpload>");
+
+        final byte data[] = buffer.toString().getBytes("UTF-8");
+        final String query = "uploadId=" + parameter(upload);
+        final HttpClient client = this.execute("POST", key, query, data, 0,
+                                               data.length, headers("content-type",
+                                               "application/xml"), OK);
+
+        /* Completion can fail after the response status was sent */
+        final Response response = this.parse(client);
+        if ("Error".equals(response.root))
+            throw new IOException("Unable to complete upload of \"" + key
+                                  + "\": " + response.error());
+    }
+
+    /**
+     * <p>Abort a multipart upload, discarding all its parts.</p>
+     * 
+     * @throws IOException if an I/O or network error occurred.
+     */
+    public void abortMultipartUpload(String key, String upload)
+    throws IOException {
+        final String query = "uploadId=" + parameter(upload);
+        this.execute("DELETE", key, query, null, 0, 0, null, DELETED).disconnect();
+    }
+
+    /* ====================================================================== */
+    /* PRIVATE METHODS                                                        */
+    /* ====================================================================== */
+
+    /**
+     * <p>Send a request signed with version 4 of the AWS signature, writing
+     * the specified data as its body, and verify its response status.</p>
+     * 
+     * <p>Requests with a <b>null</b> key are sent to the bucket. The query
+     * string must be encoded, and its parameters sorted by name, as it is
+     * signed as it is. The names of the additional headers must be lower
+     * case.</p>
+     * 
+     * @return the connected {@link HttpClient}.
+     */
+    private HttpClient execute(String method, String key, String query,
+                               byte data[], int offset, int length,
+                               SortedMap headers, int statuses[])
+    throws IOException {
+        final String path = key == null ? this.bucket :
+                            this.bucket + encode(this.prefix + key);
+        final String location = this.endpoint + path
+                                + (query == null ? "" : "?" + query);
+        final HttpClient client = new HttpClient(Location.parse(location),
+                                                 this.pool);
+
+        final String date = StringTools.appendBasicIsoDate(new StringBuffer(16),
+                                                           new Date()).toString();
+        final String day = date.substring(0, 8);
+        final String scope = day + "/" + this.region + "/s3/aws4_request";
+        final String hash = StringTools.toHex(digest("SHA-256",
+                            data == null ? new byte[0] : data, offset, length));
+
+        /* All headers (lower case, sorted) but the length are signed */
+        if (headers == null) headers = new TreeMap();
+        headers.put("host", this.host);
+        headers.put("x-amz-content-sha256", hash);
+        headers.put("x-amz-date", date);
+
+        for (Iterator iterator = headers.entrySet().iterator(); iterator.hasNext(); ) {
+            final Map.Entry entry = (Map.Entry) iterator.next();
+            final String name = (String) entry.getKey();
+            if (! "host".equals(name))
+                client.addRequestHeader(name, (String) entry.getValue());
+        }
+
+        final String canonical = canonicalRequest(method, path, query, headers, hash);
+        client.addRequestHeader("Authorization", ALGORITHM + " Credential="
+                                + this.accessKey + "/" + scope
+                                + ", SignedHeaders=" + signedHeaders(headers)
+                                + ", Signature=" + signature(this.secretKey,
+                                              date, this.region, canonical));
+
+        client.setAcceptableStatuses(statuses);
+        if (length == 0) return client.connect(method, false);
+        try {
+            client.connect(method, length);
+            final OutputStream output = client.getRequestStream();
+            output.write(data, offset, length);
+            output.close();
+            return client;
+        } catch (IOException exception) {
+            client.disconnect();
+            throw exception;
+        }
+    }
+
+    /**
+     * <p>Return the canonical request signed by version 4 signatures for the
+     * specified method, encoded path and query, headers (lower case and
+     * sorted) and hexadecimal SHA-256 digest of the payload.</p>
+     */
+    static String canonicalRequest(String method, String path, String query,
+                                   SortedMap headers, String hash) {
+        final StringBuffer buffer = new StringBuffer();
+        buffer.append(method).append('\n');
+        buffer.append(path).append('\n');
+        buffer.append(query == null ? "" : query).append('\n');
+        for (Iterator iterator = headers.entrySet().iterator(); iterator.hasNext(); ) {
+            final Map.Entry entry = (Map.Entry) iterator.next();
+            buffer.append(entry.getKey()).append(':').append(entry.getValue()).append('\n');
+        }
+        buffer.append('\n').append(signedHeaders(headers)).append('\n').append(hash);
+        return buffer.toString();
+    }
+
+    /**
+     * <p>Return the names of the specified headers (lower case and sorted)
+     * separated by semicolons.</p>
+     */
+    static String signedHeaders(SortedMap headers) {
+        final StringBuffer signed = new StringBuffer();
+        for (Iterator iterator = headers.keySet().iterator(); iterator.hasNext(); ) {
+            if (signed.length() > 0) signed.append(';');
+            signed.append(iterator.next());
+        }
+        return signed.toString();
+    }
+
+    /**
+     * <p>Return the hexadecimal version 4 signature of a canonical request
+     * for the S3 service, at the specified date (in basic ISO format) in the
+     * specified region.</p>
+     */
+    static String signature(String secretKey, String date, String region,
+                            String canonical)
+    throws IOException {
+        final String day = date.substring(0, 8);
+        final String scope = day + "/" + region + "/s3/aws4_request";
+        final byte bytes[] = canonical.getBytes("UTF-8");
+        final String sign = ALGORITHM + "\n" + date + "\n" + scope + "\n"
+                            + StringTools.toHex(digest("SHA-256", bytes, 0, bytes.length));
+        byte signing[] = hmac(("AWS4" + secretKey).getBytes("UTF-8"), day);
+        signing = hmac(signing, region);
+        signing = hmac(signing, "s3");
+        signing = hmac(signing, "aws4_request");
+        return StringTools.toHex(hmac(signing, sign));
+    }
+
+    /**
+     * <p>Return a new {@link SortedMap} of headers, containing the specified
+     * header if its value is not <b>null</b>.</p>
+     */
+    private static SortedMap headers(String name, String value) {
+        final SortedMap headers = new TreeMap();
+        if (value != null) headers.put(name, value);
+        return headers;
+    }
+
+    /**
+     * <p>Parse the XML body of a response, disconnecting the client.</p>
+     */
+    private Response parse(HttpClient client)
+    throws IOException {
+        final Response response = new Response();
+        try {
+            final SAXParser parser;
+            synchronized (PARSER_FACTORY) {
+                parser = PARSER_FACTORY.newSAXParser();
+            }
+            parser.parse(new InputSource(client.getResponseStream()), response);
+            return response;
+        } catch (ParserConfigurationException exception) {
+            Exception throwable = new IOException("Error creating XML parser");
+            throw (IOException) throwable.initCause(exception);
+        } catch (SAXException exception) {
+            Exception throwable = new IOException("Error parsing response");
+            throw (IOException) throwable.initCause(exception);
+        } finally {
+            client.disconnect();
+        }
+    }
+
+    /**
+     * <p>Encode a query parameter value as required by the signature.</p>
+     */
+    private static String parameter(String string) {
+        return EncodingTools.uriEncode(string, UNRESERVED);
+    }
+
+    /**
+     * <p>Encode a key as required by the signature, leaving slashes
+     * alone.</p>
+     */
+    static String encode(String string) {
+        final StringBuffer buffer = new StringBuffer();
+        int start = 0;
+        for (int index = string.indexOf('/'); index >= 0;
+             index = string.indexOf('/', start)) {
+            buffer.append(EncodingTools.uriEncode(string.substring(start, index),
+                                                  UNRESERVED)).append('/');
+            start = index + 1;
+        }
+        buffer.append(EncodingTools.uriEncode(string.substring(start), UNRESERVED));
+        return buffer.toString();
+    }
+
+    /**
+     * <p>Append the specified {@link String} escaped as XML text.</p>
+     */
+    private static void escape(StringBuffer buffer, String string) {
+        for (int x = 0; x < string.length(); x ++) {
+            final char c = string.charAt(x);
+            if (c == '<') buffer.append("&lt;");
+            else if (c == '>') buffer.append("&gt;");
+            else if (c == '&') buffer.append("&amp;");
+            else if (c == '"') buffer.append("&quot;");
+            else buffer.append(c);
+        }
+    }
+
+    /**
+     * <p>Calculate the digest of some bytes with the specified algorithm.</p>
+     */
+    private static byte[] digest(String algorithm, byte data[], int offset,
+                                 int length)
+    throws IOException {
+        try {
+            final MessageDigest digest = MessageDigest.getInstance(algorithm);
+            digest.update(data, offset, length);
+            return digest.digest();
+        } catch (GeneralSecurityException exception) {
+            final Exception throwable = new IOException(algorithm + " not available");
+            throw (IOException) throwable.initCause(exception);
+        }
+    }
+
+    /**
+     * <p>Calculate the SHA-256 HMAC of a {@link String} with a key.</p>
+     */
+    private static byte[] hmac(byte key[], String string)
+    throws IOException {
+        try {
+            final Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(key, "HmacSHA256"));
+            return mac.doFinal(string.getBytes("UTF-8"));
+        } catch (GeneralSecurityException exception) {
+            final Exception throwable = new IOException("HmacSHA256 not available");
+            throw (IOException) throwable.initCause(exception);
+        }
+    }
+
+    /* ====================================================================== */
+    /* INTERNAL CLASSES                                                       */
+    /* ====================================================================== */
+
+    /**
+     * <p>A simple immutable class describing a stored object.</p>
+     */
+    public static final class Entry {
+
+        /** <p>The size of the object in bytes.</p> */
+        private final long size;
+        /** <p>The entity tag of the object.</p> */
+        private final String etag;
+        /** <p>The last modification date of the object.</p> */
+        private final Date lastModified;
+
+        /** <p>Create a new {@link Entry} instance.</p> */
+        private Entry(long size, String etag, Date lastModified) {
+            this.size = size;
+            this.etag = etag;
+            this.lastModified = lastModified;
+        }
+
+        /** <p>Return the size of the object in bytes.</p> */
+        public long getSize() {
+            return this.size;
+        }
+
+        /** <p>Return the entity tag of the object.</p> */
+        public String getETag() {
+            return this.etag;
+        }
+
+        /** <p>Return the last modification date of the object.</p> */
+        public Date getLastModified() {
+            return new Date(this.lastModified.getTime());
+        }
+    }
+
+    /**
+     * <p>A SAX handler collecting the text of all leaf elements of a
+     * response, in document order.</p>
+     */
+    private static final class Response extends DefaultHandler {
+
+        /** <p>The name of the root element.</p> */
+        private String root = null;
+        /** <p>The names of all leaf elements.</p> */
+        private final List names = new ArrayList();
+        /** <p>The text of all leaf elements.</p> */
+        private final List values = new ArrayList();
+        /** <p>The text of the current element.</p> */
+        private final StringBuffer buffer = new StringBuffer();
+        /** <p>Whether the current element has no children so far.</p> */
+        private boolean leaf = false;
+
+        /** <p>Return the text of the first element with a name.</p> */
+        private String value(String name) {
+            final int index = this.names.indexOf(name);
+            return index < 0 ? null : (String) this.values.get(index);
+        }
+
+        /** <p>Return the text of all elements with a name.</p> */
+        private List values(String name) {
+            final List values = new ArrayList();
+            for (int x = 0; x < this.names.size(); x ++)
+                if (name.equals(this.names.get(x))) values.add(this.values.get(x));
+            return values;
+        }
+
+        /** <p>Describe the error contained in this response.</p> */
+        private String error() {
+            return this.value("Code") + " (" + this.value("Message") + ")";
+        }
+
+        public void startElement(String uri, String name, String qName,
+                                 Attributes attributes) {
+            if (this.root == null) this.root = name;
+            this.buffer.setLength(0);
+            this.leaf = true;
+        }
+
+        public void endElement(String uri, String name, String qName) {
+            /* Ending a child means that the parent is not a leaf */
+            if (! this.leaf) return;
+            this.names.add(name);
+            this.values.add(this.buffer.toString());
+            this.leaf = false;
+        }
+
+        public void characters(char chars[], int start, int length) {
+            this.buffer.append(chars, start, length);
+        }
+    }
+}
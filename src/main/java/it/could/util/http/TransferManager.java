@@ -0,0 +1,558 @@
+/* ========================================================================== *
+ *   Copyright (c) 2006, Pier Paolo Fumagalli <mailto:pier@betaversion.org>   *
+ *                            All rights reserved.                            *
+ * ========================================================================== *
+ *                                                                            * 
+ * Redistribution and use in source and binary forms, with or without modifi- *
+ * cation, are permitted provided that the following conditions are met:      *
+ *                                                                            * 
+ *  - Redistributions of source code must retain the  above copyright notice, *
+ *    this list of conditions and the following disclaimer.                   *
+ *                                                                            * 
+ *  - Redistributions  in binary  form  must  reproduce the  above  copyright *
+ *    notice,  this list of conditions  and the following  disclaimer  in the *
+ *    documentation and/or other materials provided with the distribution.    *
+ *                                                                            * 
+ *  - Neither the name of Pier Fumagalli, nor the names of other contributors *
+ *    may be used to endorse  or promote products derived  from this software *
+ *    without specific prior written permission.                              *
+ *                                                                            * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS "AS IS" *
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES,  INCLUDING, BUT NOT LIMITED TO, THE *
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE *
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER  OR CONTRIBUTORS BE *
+ * LIABLE  FOR ANY  DIRECT,  INDIRECT,  INCIDENTAL,  SPECIAL,  EXEMPLARY,  OR *
+ * CONSEQUENTIAL  DAMAGES  (INCLUDING,  BUT  NOT LIMITED  TO,  PROCUREMENT OF *
+ * SUBSTITUTE GOODS OR SERVICES;  LOSS OF USE, DATA, OR PROFITS;  OR BUSINESS *
+ * INTERRUPTION)  HOWEVER CAUSED AND ON  ANY THEORY OF LIABILITY,  WHETHER IN *
+ * CONTRACT,  STRICT LIABILITY,  OR TORT  (INCLUDING NEGLIGENCE OR OTHERWISE) *
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE *
+ * POSSIBILITY OF SUCH DAMAGE.                                                *
+ * ========================================================================== */
+package it.could.util.http;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>A {@link TransferManager} executes batches of uploads, deletions and
+ * creations of collections against the collection represented by a
+ * {@link WebDavClient}, in parallel over a bounded number of
+ * connections.</p>
+ * 
+ * <p>Operations added to a {@link Batch} are executed in parallel unless
+ * their paths overlap: an operation is started only once all operations
+ * added before it on the same path, on any collection containing it, or
+ * (for collections) on any resource it contains are complete. Collections
+ * must therefore be added to a batch before the resources they contain,
+ * exactly as if the operations were executed one by one. A failed operation
+ * does not prevent the ones depending on it from being attempted.</p>
+ * 
+ * <p>Each {@link Transfer} records its duration and the number of bytes it
+ * transferred, and each {@link Batch} the totals for all of them.</p>
+ * 
+ * <p>As each thread uses one connection at a time, the number of
+ * connections should not exceed the number of idle connections kept by the
+ * {@link ConnectionPool} of the {@link WebDavClient}.</p>
+ *
+ * @author <a href="http://could.it/">Pier Fumagalli</a>
+ */
+public class TransferManager {
+
+    /** <p>The {@link WebDavClient} executing all transfers.</p> */
+    private final WebDavClient client;
+    /** <p>The {@link ThreadPoolExecutor} running all transfers.</p> */
+    private final ThreadPoolExecutor executor;
+    /** <p>The number of {@link Batch}es currently being executed.</p> */
+    private int running = 0;
+    /** <p>Whether {@link #shutdown()} was called or not.</p> */
+    private boolean shutdown = false;
+
+    /**
+     * <p>Create a new {@link TransferManager} executing transfers with the
+     * specified {@link WebDavClient} over at most the specified number of
+     * concurrent connections.</p>
+     * 
+     * @throws NullPointerException if the client was <b>null</b>.
+     * @throws IllegalArgumentException if the number of connections was
+     *                                  less than one.
+     */
+    public TransferManager(WebDavClient client, int connections) {
+        if (client == null) throw new NullPointerException("Null client");
+        if (connections < 1)
+            throw new IllegalArgumentException("Invalid connections");
+        this.client = client;
+
+        final String name = "WebDAV Transfer [" + client.getLocation() + "]";
+        this.executor = new ThreadPoolExecutor(connections, connections, 60,
+                                               TimeUnit.SECONDS,
+                                               new LinkedBlockingQueue(),
+                                               new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                final Thread thread = new Thread(runnable, name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /* ====================================================================== */
+    /* PUBLIC METHODS                                                         */
+    /* ====================================================================== */
+
+    /**
+     * <p>Return the {@link WebDavClient} executing all transfers.</p>
+     */
+    public WebDavClient getClient() {
+        return this.client;
+    }
+
+    /**
+     * <p>Create a new empty {@link Batch} of transfers.</p>
+     */
+    public Batch createBatch() {
+        return new Batch();
+    }
+
+    /**
+     * <p>Stop the threads of this instance once all the batches being
+     * executed are complete.</p>
+     * 
+     * <p>This method returns immediately, and the transfers of batches
+     * executed afterwards will fail.</p>
+     */
+    public synchronized void shutdown() {
+        this.shutdown = true;
+        if (this.running == 0) this.executor.shutdown();
+    }
+
+    /**
+     * <p>Record the end of the execution of a {@link Batch}, stopping the
+     * threads if this instance was shut down in the meantime.</p>
+     */
+    private synchronized void finished() {
+        if ((-- this.running == 0) && this.shutdown) this.executor.shutdown();
+    }
+
+    /* ====================================================================== */
+    /* INTERNAL CLASSES                                                       */
+    /* ====================================================================== */
+
+    /**
+     * <p>A {@link Batch} of {@link Transfer}s executed together.</p>
+     * 
+     * <p>Paths are relative to the collection represented by the
+     * {@link WebDavClient} of the {@link TransferManager}, and the paths of
+     * collections (to create or delete) must end with a slash.</p>
+     */
+    public final class Batch {
+
+        /** <p>The {@link List} of all {@link Transfer}s in this batch.</p> */
+        private final List transfers = new ArrayList();
+        /** <p>A map of paths to the last {@link Transfer} added for them.</p> */
+        private final SortedMap last = new TreeMap();
+        /** <p>The number of {@link Transfer}s not yet completed.</p> */
+        private int remaining = 0;
+        /** <p>The time when this batch was executed.</p> */
+        private long started = 0;
+        /** <p>The time when all {@link Transfer}s were completed.</p> */
+        private long completed = 0;
+        /** <p>Whether this batch was executed or not.</p> */
+        private boolean executed = false;
+
+        /** <p>Create a new {@link Batch} instance.</p> */
+        private Batch() {
+            super();
+        }
+
+        /**
+         * <p>Add the upload of the specified {@link File} to the specified
+         * path to this batch.</p>
+         */
+        public Transfer put(String path, File file) {
+            if (path == null) throw new NullPointerException("Null path");
+            if (file == null) throw new NullPointerException("Null file");
+            return this.add(new Transfer(this, "PUT", path, file));
+        }
+
+        /**
+         * <p>Add the deletion of the resource (or collection, if the path
+         * ends with a slash) at the specified path to this batch.</p>
+         */
+        public Transfer delete(String path) {
+            if (path == null) throw new NullPointerException("Null path");
+            return this.add(new Transfer(this, "DELETE", path, null));
+        }
+
+        /**
+         * <p>Add the creation of the collection at the specified path to this
+         * batch.</p>
+         */
+        public Transfer mkcol(String path) {
+            if (path == null) throw new NullPointerException("Null path");
+            if (! path.endsWith("/")) path += "/";
+            return this.add(new Transfer(this, "MKCOL", path, null));
+        }
+
+        /**
+         * <p>Execute all {@link Transfer}s in this batch, waiting for all of
+         * them to complete.</p>
+         * 
+         * @return this {@link Batch} instance.
+         * @throws InterruptedIOException if the calling thread was interrupted
+         *                                (the transfers will still complete).
+         * @throws IllegalStateException if this batch was already executed.
+         */
+        public synchronized Batch execute()
+        throws InterruptedIOException, IllegalStateException {
+            if (this.executed)
+                throw new IllegalStateException("Batch already executed");
+            this.executed = true;
+            this.last.clear();
+            this.remaining = this.transfers.size();
+            this.started = System.currentTimeMillis();
+            this.completed = this.started;
+
+            synchronized (TransferManager.this) {
+                TransferManager.this.running ++;
+            }
+            try {
+                final List transfers = new ArrayList(this.transfers);
+                for (Iterator iterator = transfers.iterator(); iterator.hasNext(); ) {
+                    final Transfer transfer = (Transfer) iterator.next();
+                    if (transfer.waiting == 0) this.start(transfer);
+                }
+
+                while (this.remaining > 0) try {
+                    this.wait();
+                } catch (InterruptedException exception) {
+                    throw new InterruptedIOException("Interrupted executing batch");
+                }
+                return this;
+            } finally {
+                TransferManager.this.finished();
+            }
+        }
+
+        /**
+         * <p>Return an unmodifiable {@link List} of all {@link Transfer}s in
+         * this batch, in the order they were added.</p>
+         */
+        public List getTransfers() {
+            return Collections.unmodifiableList(this.transfers);
+        }
+
+        /**
+         * <p>Return the number of {@link Transfer}s which failed.</p>
+         */
+        public synchronized int getFailures() {
+            int failures = 0;
+            for (Iterator iterator = this.transfers.iterator(); iterator.hasNext(); )
+                if (((Transfer) iterator.next()).failure != null) failures ++;
+            return failures;
+        }
+
+        /**
+         * <p>Return the total number of bytes uploaded.</p>
+         */
+        public synchronized long getBytes() {
+            long bytes = 0;
+            for (Iterator iterator = this.transfers.iterator(); iterator.hasNext(); )
+                bytes += ((Transfer) iterator.next()).bytes;
+            return bytes;
+        }
+
+        /**
+         * <p>Return the number of milliseconds elapsed between the time this
+         * batch was executed and the time its last {@link Transfer}
+         * completed.</p>
+         */
+        public synchronized long getElapsed() {
+            return this.completed - this.started;
+        }
+
+        /**
+         * <p>Return the overall number of bytes uploaded per second.</p>
+         */
+        public synchronized long getThroughput() {
+            final long elapsed = this.completed - this.started;
+            return this.getBytes() * 1000 / (elapsed < 1 ? 1 : elapsed);
+        }
+
+        /**
+         * <p>Return a {@link String} summarizing the statistics of this
+         * batch.</p>
+         */
+        public synchronized String toString() {
+            return "Batch[transfers=" + this.transfers.size()
+                   + ",failures=" + this.getFailures()
+                   + ",bytes=" + this.getBytes()
+                   + ",elapsed=" + this.getElapsed()
+                   + "ms,throughput=" + this.getThroughput() + "B/s]";
+        }
+
+        /* ================================================================== */
+
+        /**
+         * <p>Add a {@link Transfer} to this batch, making it wait for all the
+         * previous ones on overlapping paths.</p>
+         */
+        private synchronized Transfer add(Transfer transfer) {
+            if (this.executed)
+                throw new IllegalStateException("Batch already executed");
+            final String path = transfer.path;
+
+            /* Wait for the collections containing the path */
+            for (int index = path.indexOf('/');
+                 (index >= 0) && (index < path.length() - 1);
+                 index = path.indexOf('/', index + 1))
+                transfer.after((Transfer) this.last.get(path.substring(0, index + 1)));
+
+            /* Wait for the path itself, as a resource or a collection */
+            if (path.endsWith("/")) {
+                final String name = path.substring(0, path.length() - 1);
+                transfer.after((Transfer) this.last.get(name));
+
+                /* Later transfers within the collection will wait for us */
+                final Iterator iterator = this.last.subMap(path, path + '\uffff')
+                                                   .values().iterator();
+                while (iterator.hasNext()) {
+                    transfer.after((Transfer) iterator.next());
+                    iterator.remove();
+                }
+            } else {
+                transfer.after((Transfer) this.last.get(path));
+                transfer.after((Transfer) this.last.get(path + "/"));
+            }
+
+            this.last.put(path, transfer);
+            this.transfers.add(transfer);
+            return transfer;
+        }
+
+        /**
+         * <p>Record the completion of a {@link Transfer}, starting all those
+         * which were waiting only for it.</p>
+         */
+        private synchronized void done(Transfer transfer) {
+            try {
+                final List dependents = new ArrayList(transfer.dependents);
+                transfer.dependents.clear();
+                for (Iterator iterator = dependents.iterator(); iterator.hasNext(); ) {
+                    final Transfer dependent = (Transfer) iterator.next();
+                    if (-- dependent.waiting == 0) this.start(dependent);
+                }
+            } finally {
+                this.completed = System.currentTimeMillis();
+                if (-- this.remaining == 0) this.notifyAll();
+            }
+        }
+
+        /**
+         * <p>Start a {@link Transfer}, marking it (and in turn all those
+         * waiting for it) as failed if it could not be started.</p>
+         */
+        private synchronized void start(Transfer transfer) {
+            try {
+                TransferManager.this.executor.execute(transfer);
+            } catch (RejectedExecutionException exception) {
+                transfer.complete = true;
+                transfer.failure = exception;
+                this.done(transfer);
+            }
+        }
+    }
+
+    /**
+     * <p>A single operation in a {@link Batch}, and its statistics once
+     * completed.</p>
+     */
+    public final class Transfer implements Runnable {
+
+        /** <p>The {@link Batch} this instance belongs to.</p> */
+        private final Batch batch;
+        /** <p>The HTTP method of this transfer.</p> */
+        private final String method;
+        /** <p>The path relative to the remote collection.</p> */
+        private final String path;
+        /** <p>The {@link File} to upload, if any.</p> */
+        private final File file;
+        /** <p>The {@link Transfer}s waiting for this one to complete.</p> */
+        private final List dependents = new ArrayList();
+        /** <p>The number of {@link Transfer}s this one is waiting for.</p> */
+        private int waiting = 0;
+        /** <p>Whether this transfer completed or not.</p> */
+        private boolean complete = false;
+        /** <p>Whether this transfer changed anything remotely.</p> */
+        private boolean changed = false;
+        /** <p>The failure of this transfer, if any.</p> */
+        private Throwable failure = null;
+        /** <p>The number of bytes uploaded.</p> */
+        private long bytes = 0;
+        /** <p>The duration of this transfer in nanoseconds.</p> */
+        private long duration = 0;
+
+        /** <p>Create a new {@link Transfer} instance.</p> */
+        private Transfer(Batch batch, String method, String path, File file) {
+            this.batch = batch;
+            this.method = method;
+            this.path = path;
+            this.file = file;
+        }
+
+        /**
+         * <p>Return the HTTP method of this transfer (<code>PUT</code>,
+         * <code>DELETE</code> or <code>MKCOL</code>).</p>
+         */
+        public String getMethod() {
+            return this.method;
+        }
+
+        /**
+         * <p>Return the path of this transfer relative to the remote
+         * collection.</p>
+         */
+        public String getPath() {
+            return this.path;
+        }
+
+        /**
+         * <p>Return the {@link File} uploaded by this transfer, if any.</p>
+         */
+        public File getFile() {
+            return this.file;
+        }
+
+        /**
+         * <p>Checks whether this transfer completed (successfully or
+         * not).</p>
+         */
+        public boolean isComplete() {
+            synchronized (this.batch) {
+                return this.complete;
+            }
+        }
+
+        /**
+         * <p>Checks whether this transfer completed without failure and
+         * changed the remote collection (<b>false</b> if the collection to
+         * create or the resource to delete already existed or not).</p>
+         */
+        public boolean isChanged() {
+            synchronized (this.batch) {
+                return this.changed;
+            }
+        }
+
+        /**
+         * <p>Return the reason why this transfer failed, or <b>null</b> if
+         * it did not fail (or did not complete yet).</p>
+         */
+        public Throwable getFailure() {
+            synchronized (this.batch) {
+                return this.failure;
+            }
+        }
+
+        /**
+         * <p>Return the number of bytes uploaded by this transfer.</p>
+         */
+        public long getBytes() {
+            synchronized (this.batch) {
+                return this.bytes;
+            }
+        }
+
+        /**
+         * <p>Return the number of milliseconds elapsed between the request
+         * being sent and the response being received.</p>
+         */
+        public long getDuration() {
+            synchronized (this.batch) {
+                return this.duration / 1000000;
+            }
+        }
+
+        /**
+         * <p>Return the number of bytes uploaded per second.</p>
+         */
+        public long getThroughput() {
+            synchronized (this.batch) {
+                final long duration = this.duration < 1 ? 1 : this.duration;
+                return (long) (this.bytes * 1000000000.0 / duration);
+            }
+        }
+
+        /**
+         * <p>Return a {@link String} describing this transfer.</p>
+         */
+        public String toString() {
+            synchronized (this.batch) {
+                return this.method + " " + this.path + " (" + this.bytes
+                       + " bytes in " + (this.duration / 1000000) + "ms"
+                       + (this.failure == null ? ")" : ", failed)");
+            }
+        }
+
+        /**
+         * <p>Execute this transfer, notifying the {@link Batch} when done.</p>
+         */
+        public void run() {
+            final WebDavClient client = TransferManager.this.client;
+            final long start = System.nanoTime();
+            boolean changed = false;
+            long bytes = 0;
+            Throwable failure = null;
+            try {
+                if ("PUT".equals(this.method)) {
+                    final long length = this.file.length();
+                    final InputStream input = new FileInputStream(this.file);
+                    try {
+                        changed = client.putPath(this.path, input, length, null);
+                    } finally {
+                        input.close();
+                    }
+                    bytes = length;
+                } else if ("DELETE".equals(this.method)) {
+                    changed = client.deletePath(this.path);
+                } else {
+                    changed = client.mkcolPath(this.path);
+                }
+            } catch (Throwable throwable) {
+                failure = throwable;
+            } finally {
+                synchronized (this.batch) {
+                    this.duration = System.nanoTime() - start;
+                    this.complete = true;
+                    this.changed = changed;
+                    this.bytes = bytes;
+                    this.failure = failure;
+                }
+                this.batch.done(this);
+            }
+        }
+
+        /**
+         * <p>Make this transfer wait for the specified one, if any.</p>
+         */
+        private void after(Transfer transfer) {
+            if ((transfer == null) || (transfer == this)) return;
+            transfer.dependents.add(this);
+            this.waiting ++;
+        }
+    }
+}
@@ -38,26 +38,28 @@ import it.could.util.location.Path;
 import it.could.util.location.PathElement;
 
 import java.io.BufferedOutputStream;
-import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.io.PrintStream;
-import java.text.SimpleDateFormat;
-import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.Stack;
 import java.util.StringTokenizer;
+import java.util.zip.GZIPOutputStream;
 
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.parsers.SAXParser;
@@ -80,10 +82,45 @@ import org.xml.sax.helpers.DefaultHandler;
  */
 public class WebDavClient {
 
+    /** <p>The {@link ConnectionPool} shared by default by all instances.</p> */
+    private static final ConnectionPool DEFAULT_POOL = new ConnectionPool();
+    /** <p>The number of threads crawling a tree one level at a time.</p> */
+    private static final int CRAWL_THREADS = 4;
+    /** <p>The smallest resource worth compressing when stored.</p> */
+    private static final int MIN_COMPRESSED = 1024;
+    /** <p>The largest resource compressed (in memory) when stored.</p> */
+    private static final int MAX_COMPRESSED = 1024 * 1024;
+    /** <p>The extensions of resources compressed when stored.</p> */
+    private static final String COMPRESSIBLE[] = {
+        ".html", ".htm", ".css", ".js", ".xml", ".txt", ".svg", ".json" };
+    /** <p>The server was not tested for compressed requests yet.</p> */
+    private static final int GZIP_UNKNOWN = 0;
+    /** <p>The server decodes compressed requests.</p> */
+    private static final int GZIP_SUPPORTED = 1;
+    /** <p>The server does not decode compressed requests.</p> */
+    private static final int GZIP_UNSUPPORTED = 2;
+    /** <p>The {@link SAXParserFactory} creating PROPFIND parsers.</p> */
+    private static final SAXParserFactory PARSER_FACTORY;
+    static {
+        PARSER_FACTORY = SAXParserFactory.newInstance();
+        PARSER_FACTORY.setValidating(false);
+        PARSER_FACTORY.setNamespaceAware(true);
+    }
+
+    /** <p>The {@link ConnectionPool} used by this instance.</p> */
+    private final ConnectionPool pool;
     /** <p>The WebDAV resource asociated with this instance.</p> */
     private Resource resource;
     /** <p>A map of children resources of this instance.</p> */
     private Map children;
+    /** <p>The cached {@link WebDavTree} of this collection, if any.</p> */
+    private WebDavTree tree = null;
+    /** <p>A map of paths to the last {@link Validators} seen for them.</p> */
+    private final Map validators = Collections.synchronizedMap(new HashMap());
+    /** <p>Whether requests and responses should be compressed.</p> */
+    private boolean compression = false;
+    /** <p>Whether the server was seen decoding compressed requests.</p> */
+    private volatile int gzip = GZIP_UNKNOWN;
 
     /**
      * <p>Create a new {@link WebDavClient} instance opening the collection
@@ -96,8 +133,29 @@ public class WebDavClient {
      * @throws NullPointerException if the {@link Location} was <b>null</b>.
      */
     public WebDavClient(Location location)
+    throws NullPointerException, IOException {
+        this(location, DEFAULT_POOL);
+    }
+
+    /**
+     * <p>Create a new {@link WebDavClient} instance opening the collection
+     * identified by the specified {@link Location} and issuing all requests
+     * over persistent connections from the specified {@link ConnectionPool}.</p>
+     * 
+     * <p>If the {@link ConnectionPool} is <b>null</b>, a new connection will
+     * be opened (and closed) for each request.</p>
+     * 
+     * @param location the {@link Location} of the WebDAV collection to open.
+     * @param pool the {@link ConnectionPool} to use or <b>null</b>.
+     * @throws IOException if an I/O or network error occurred, or if the
+     *                     {@link Location} specified does not point to a
+     *                     WebDAV collection.
+     * @throws NullPointerException if the {@link Location} was <b>null</b>.
+     */
+    public WebDavClient(Location location, ConnectionPool pool)
     throws NullPointerException, IOException {
         if (location == null) throw new NullPointerException("Null location");
+        this.pool = pool;
         this.reload(location);
     }
 
@@ -132,7 +190,8 @@ public class WebDavClient {
         if (child == null) throw new NullPointerException("Null child");
         if (! this.isCollection(child)) {
             final Location location = this.getLocation(child);
-            final HttpClient client = new HttpClient(location);
+            final HttpClient client = new HttpClient(location, this.pool);
+            client.setCompression(this.compression);
             client.setAcceptableStatus(200).connect("GET");
             return client.getResponseStream();
         }
@@ -151,7 +210,7 @@ public class WebDavClient {
     public WebDavClient delete(String child)
     throws NullPointerException, IOException {
         if (child == null) throw new NullPointerException("Null child");
-        final HttpClient client = new HttpClient(this.getLocation(child));
+        final HttpClient client = new HttpClient(this.getLocation(child), this.pool);
         client.setAcceptableStatus(204).connect("DELETE").disconnect();
         return this.refresh();
     }
@@ -175,7 +234,7 @@ public class WebDavClient {
         if (this.hasChild(child))
             throw new IOException("Child \"" + child + "\" already exists");
         final Location location = this.resource.location.resolve(child);
-        final HttpClient client = new HttpClient(location);
+        final HttpClient client = new HttpClient(location, this.pool);
         client.setAcceptableStatus(201).connect("MKCOL").disconnect();
         return this.refresh();
     }
@@ -185,44 +244,22 @@ public class WebDavClient {
      * represented by this {@link WebDavClient} instance.</p>
      * 
      * <p>This method will behave exactly like the {@link #put(String, long)}
-     * method, but the data written to the returned {@link OutputStream} will
-     * be <i>buffered in memory</i> and will be transmitted to the remote
-     * server only when the {@link OutputStream#close()} method is called.</p>
-     * 
-     * <p>If the returned {@link OutputStream} is garbage collected before the
-     * {@link OutputStream#close() close()} method is called, the entire
-     * transaction will be aborted and no connection to the remote server will
-     * be established.</p>
+     * method, but as the length of the data is not known in advance, it will
+     * be streamed to the remote server using the <code>chunked</code>
+     * transfer encoding, in constant memory. The request will be completed
+     * when the {@link OutputStream#close()} method is called.</p>
      * 
-     * <p>Use this method in extreme cases. In normal circumstances always rely
-     * on the {@link #put(String, long)} method.</p>
+     * <p>Note that some WebDAV servers do not support chunked requests: in
+     * that case rely on the {@link #put(String, long)} method.</p>
      * 
      * @see #put(String, long)
      * @return a <b>non-null</b> {@link OutputStream} instance.
      * @throws NullPointerException if the child was <b>null</b>.
+     * @throws IOException if an I/O or network error occurred.
      */
     public OutputStream put(final String child)
-    throws NullPointerException {
-        if (child == null) throw new NullPointerException("Null child");
-        final WebDavClient client = this;
-        return new ByteArrayOutputStream() {
-            private boolean closed = false;
-            public void close()
-            throws IOException {
-                if (this.closed) return;
-                this.flush();
-                OutputStream output = client.put(child, this.buf.length);
-                output.write(this.buf);
-                output.flush();
-                output.close();
-            }
-
-            protected void finalize()
-            throws Throwable {
-                this.closed = true;
-                super.finalize();
-            }
-        };
+    throws NullPointerException, IOException {
+        return this.put(child, HttpClient.CHUNKED);
     }
 
     /**
@@ -233,6 +270,9 @@ public class WebDavClient {
      * the remote server, it will be {@link #delete(String) deleted} before
      * writing.</p>
      * 
+     * <p>If the length is {@link HttpClient#CHUNKED} the data will be
+     * streamed with the <code>chunked</code> transfer encoding.</p>
+     * 
      * @return a <b>non-null</b> {@link OutputStream} instance.
      * @throws NullPointerException if the child was <b>null</b>.
      * @throws IOException if an I/O or network error occurred, or if the
@@ -243,7 +283,7 @@ public class WebDavClient {
         if (child == null) throw new NullPointerException("Null child");
         if (this.hasChild(child)) this.delete(child);
         final Location location = this.resource.location.resolve(child);
-        final HttpClient client = new HttpClient(location);
+        final HttpClient client = new HttpClient(location, this.pool);
         client.setAcceptableStatuses(new int[] { 201, 204 });
         client.connect("PUT", length);
         
@@ -255,6 +295,7 @@ public class WebDavClient {
                 if (this.closed) return;
                 try {
                     super.close();
+                    client.disconnect();
                 } finally {
                     this.closed = true;
                     webdav.refresh();
@@ -294,7 +335,7 @@ public class WebDavClient {
         if ("..".equals(child)) return this.parent();
         if (resource.collection) {
             Location loc = this.getLocation().resolve(this.getLocation(child));
-            return new WebDavClient(loc);
+            return new WebDavClient(loc, this.pool);
         }
         throw new IOException("Child \"" + child + "\" is not a collection");
     }
@@ -310,7 +351,356 @@ public class WebDavClient {
     public WebDavClient parent()
     throws IOException {
         final Location location = this.resource.location.resolve("..");
-        return new WebDavClient(location);
+        return new WebDavClient(location, this.pool);
+    }
+
+    /* ====================================================================== */
+    /* PATH-BASED ACTIONS                                                     */
+    /* ====================================================================== */
+
+    /**
+     * <p>Create a new collection at the specified path, relative to the
+     * collection represented by this {@link WebDavClient} instance.</p>
+     * 
+     * <p>Unlike {@link #mkcol(String)} the path can span over several levels
+     * of collections (but all parents must already exist), and this instance
+     * will <b>not</b> be {@link #refresh() refreshed} afterwards, making this
+     * method suitable for uploading large numbers of resources.</p>
+     * 
+     * @return <b>true</b> if the collection was created, <b>false</b> if a
+     *         resource already existed at the specified path.
+     * @throws IOException if an I/O or network error occurred.
+     * @throws NullPointerException if the path was <b>null</b>.
+     */
+    public boolean mkcolPath(String path)
+    throws NullPointerException, IOException {
+        if (path == null) throw new NullPointerException("Null path");
+        final HttpClient client = new HttpClient(this.resolvePath(path), this.pool);
+        client.setAcceptableStatuses(new int[] { 201, 405 });
+        client.connect("MKCOL").disconnect();
+        if (client.getResponseStatus() != 201) return false;
+        return this.updated(path, true, -1, client);
+    }
+
+    /**
+     * <p>Create a new (or update the contents of a) resource at the
+     * specified path, relative to the collection represented by this
+     * {@link WebDavClient} instance, copying exactly the specified number of
+     * bytes from an {@link InputStream}.</p>
+     * 
+     * <p>The parent collection of the resource must already exist, and this
+     * instance will <b>not</b> be {@link #refresh() refreshed} afterwards.</p>
+     * 
+     * @return this {@link WebDavClient} instance.
+     * @throws IOException if an I/O or network error occurred, or if the
+     *                     {@link InputStream} ended prematurely.
+     * @throws NullPointerException if the path or input were <b>null</b>.
+     */
+    public WebDavClient putPath(String path, InputStream input, long length)
+    throws NullPointerException, IOException {
+        this.putPath(path, input, length, null);
+        return this;
+    }
+
+    /**
+     * <p>Create a new (or update the contents of a) resource at the
+     * specified path, relative to the collection represented by this
+     * {@link WebDavClient} instance, copying exactly the specified number of
+     * bytes from an {@link InputStream}, but only if the entity tag of the
+     * remote resource matches the one specified.</p>
+     * 
+     * <p>The entity tag is sent in an <code>If-Match</code> header (and it
+     * can be &quot;<code>*</code>&quot; to match any existing resource): if
+     * the remote resource was modified since its entity tag was seen (for
+     * example with {@link #getETag(String)}), the server will refuse the
+     * request and this method will return <b>false</b>. If the entity tag is
+     * <b>null</b>, the request is unconditional.</p>
+     * 
+     * @return <b>true</b> if the resource was stored, <b>false</b> if the
+     *         precondition failed.
+     * @throws IOException if an I/O or network error occurred, or if the
+     *                     {@link InputStream} ended prematurely.
+     * @throws NullPointerException if the path or input were <b>null</b>.
+     */
+    public boolean putPath(String path, InputStream input, long length,
+                           String etag)
+    throws NullPointerException, IOException {
+        if (path == null) throw new NullPointerException("Null path");
+        if (input == null) throw new NullPointerException("Null input");
+
+        /* Small text resources are compressed if the server supports it */
+        if (this.compression && (this.gzip != GZIP_UNSUPPORTED) &&
+            (length >= MIN_COMPRESSED) && (length <= MAX_COMPRESSED) &&
+            compressible(path)) {
+            final byte data[] = new byte[(int) length];
+            int offset = 0;
+            while (offset < data.length) {
+                final int read = input.read(data, offset, data.length - offset);
+                if (read < 0) throw new IOException("Premature end of input "
+                                                    + "for \"" + path + "\"");
+                offset += read;
+            }
+            return this.putCompressed(path, data, etag);
+        }
+
+        final HttpClient client = new HttpClient(this.resolvePath(path), this.pool);
+        client.setAcceptableStatuses(new int[] { 200, 201, 204, 412 });
+        if (etag != null) client.addRequestHeader("If-Match", etag);
+
+        /* Zero-length resources have no request body to write */
+        if (length == 0) {
+            client.connect("PUT", false).disconnect();
+            return this.updated(path, false, 0, client);
+        }
+
+        try {
+            client.connect("PUT", length);
+            final OutputStream output = client.getRequestStream();
+            final byte buffer[] = new byte[4096];
+            long remaining = length;
+            while (remaining > 0) {
+                final int size = remaining > buffer.length ?
+                                 buffer.length : (int) remaining;
+                final int read = input.read(buffer, 0, size);
+                if (read < 0) throw new IOException("Premature end of input "
+                                                    + "for \"" + path + "\"");
+                output.write(buffer, 0, read);
+                remaining -= read;
+            }
+            output.close();
+        } finally {
+            client.disconnect();
+        }
+        return this.updated(path, false, length, client);
+    }
+
+    /**
+     * <p>Create a new (or update the contents of a) resource at the
+     * specified path, relative to the collection represented by this
+     * {@link WebDavClient} instance, streaming the data written to the
+     * returned {@link OutputStream} with the <code>chunked</code> transfer
+     * encoding.</p>
+     * 
+     * <p>Data is sent to the remote server as it is written (in chunks of a
+     * few kilobytes), and the request is completed when the returned stream
+     * is {@link OutputStream#close() closed}. The parent collection of the
+     * resource must already exist, and this instance will <b>not</b> be
+     * {@link #refresh() refreshed} afterwards.</p>
+     * 
+     * @return a <b>non-null</b> {@link OutputStream} instance.
+     * @throws IOException if an I/O or network error occurred.
+     * @throws NullPointerException if the path was <b>null</b>.
+     */
+    public OutputStream putPath(final String path)
+    throws NullPointerException, IOException {
+        if (path == null) throw new NullPointerException("Null path");
+        final HttpClient client = new HttpClient(this.resolvePath(path), this.pool);
+        client.setAcceptableStatuses(new int[] { 200, 201, 204 });
+        client.connect("PUT", HttpClient.CHUNKED);
+
+        final WebDavClient webdav = this;
+        return new FilterOutputStream(client.getRequestStream()) {
+            private long length = 0;
+            public void write(int b)
+            throws IOException {
+                this.out.write(b);
+                this.length ++;
+            }
+            public void write(byte buf[], int off, int len)
+            throws IOException {
+                this.out.write(buf, off, len);
+                this.length += len;
+            }
+            public void close()
+            throws IOException {
+                try {
+                    this.out.close();
+                } finally {
+                    client.disconnect();
+                }
+                webdav.updated(path, false, this.length, client);
+            }
+        };
+    }
+
+    /**
+     * <p>Fetch the contents of the resource at the specified path, relative
+     * to the collection represented by this {@link WebDavClient} instance,
+     * unless it was not modified since it was last seen.</p>
+     * 
+     * <p>If the entity tag or last modified date of the resource are known
+     * (because they were returned by a previous request, or are part of the
+     * {@link #getTree() cached tree}) the request will be sent with the
+     * <code>If-None-Match</code> and <code>If-Modified-Since</code> headers,
+     * and if the server responds that the resource was not modified this
+     * method will return <b>null</b> without transferring its contents.</p>
+     * 
+     * @return an {@link InputStream} or <b>null</b> if the resource was not
+     *         modified since it was last seen.
+     * @throws IOException if an I/O or network error occurred.
+     * @throws NullPointerException if the path was <b>null</b>.
+     */
+    public InputStream getPath(String path)
+    throws NullPointerException, IOException {
+        if (path == null) throw new NullPointerException("Null path");
+        final HttpClient client = new HttpClient(this.resolvePath(path), this.pool);
+        client.setCompression(this.compression);
+        final Validators validators = this.getValidators(path);
+        if (validators != null) {
+            if (validators.etag != null)
+                client.addRequestHeader("If-None-Match", validators.etag);
+            if (validators.lastModified != null)
+                client.addRequestHeader("If-Modified-Since", validators.lastModified);
+        }
+
+        client.setAcceptableStatuses(new int[] { 200, 304 }).connect("GET");
+        if (client.getResponseStatus() == 304) {
+            client.disconnect();
+            return null;
+        }
+        this.remember(path, client);
+        return client.getResponseStream();
+    }
+
+    /**
+     * <p>Return the last entity tag seen for the resource at the specified
+     * path, relative to the collection represented by this
+     * {@link WebDavClient} instance, or <b>null</b> if unknown.</p>
+     * 
+     * <p>Entity tags are remembered from responses to requests issued by
+     * the path-based methods of this instance, and from the
+     * {@link #getTree() cached tree}.</p>
+     */
+    public String getETag(String path) {
+        if (path == null) throw new NullPointerException("Null path");
+        final Validators validators = this.getValidators(path);
+        return validators == null ? null : validators.etag;
+    }
+
+    /**
+     * <p>Delete the resource (or collection) at the specified path, relative
+     * to the collection represented by this {@link WebDavClient}
+     * instance, without {@link #refresh() refreshing} it.</p>
+     * 
+     * @return <b>true</b> if the resource was deleted, <b>false</b> if it
+     *         did not exist.
+     * @throws IOException if an I/O or network error occurred.
+     * @throws NullPointerException if the path was <b>null</b>.
+     */
+    public boolean deletePath(String path)
+    throws NullPointerException, IOException {
+        if (path == null) throw new NullPointerException("Null path");
+        final HttpClient client = new HttpClient(this.resolvePath(path), this.pool);
+        client.setAcceptableStatuses(new int[] { 200, 204, 404 });
+        client.connect("DELETE").disconnect();
+        final WebDavTree tree = this.tree;
+        if (tree != null) tree.remove(path);
+        this.forget(path);
+        return client.getResponseStatus() != 404;
+    }
+
+    /**
+     * <p>Copy the resource (or collection) at the specified source path to
+     * the specified destination path, both relative to the collection
+     * represented by this {@link WebDavClient}, without transferring any
+     * content over the network.</p>
+     * 
+     * <p>Collections are copied with all their descendants when the
+     * <code>recursive</code> flag is <b>true</b>, otherwise only the
+     * collection itself (without members) is copied. The parent collection
+     * of the destination must already exist.</p>
+     * 
+     * @return <b>true</b> if the resource was copied, <b>false</b> if the
+     *         destination exists and could not be overwritten.
+     * @throws IOException if an I/O or network error occurred, or if the
+     *                     source does not exist or could not be copied.
+     * @throws NullPointerException if any of the paths was <b>null</b>.
+     */
+    public boolean copyPath(String source, String destination,
+                            boolean overwrite, boolean recursive)
+    throws NullPointerException, IOException {
+        return this.transfer("COPY", source, destination, overwrite,
+                             recursive ? "infinity" : "0");
+    }
+
+    /**
+     * <p>Move the resource (or collection, with all its descendants) at the
+     * specified source path to the specified destination path, both relative
+     * to the collection represented by this {@link WebDavClient}.</p>
+     * 
+     * <p>The operation happens entirely on the server, and when the
+     * destination is overwritten it is replaced in one step: content can be
+     * uploaded to a staging collection and then moved into place, so that
+     * it is never seen partially updated. The parent collection of the
+     * destination must already exist.</p>
+     * 
+     * @return <b>true</b> if the resource was moved, <b>false</b> if the
+     *         destination exists and could not be overwritten.
+     * @throws IOException if an I/O or network error occurred, or if the
+     *                     source does not exist or could not be moved.
+     * @throws NullPointerException if any of the paths was <b>null</b>.
+     */
+    public boolean movePath(String source, String destination, boolean overwrite)
+    throws NullPointerException, IOException {
+        return this.transfer("MOVE", source, destination, overwrite, "infinity");
+    }
+
+    /* ====================================================================== */
+    /* TREE SYNCHRONIZATION                                                   */
+    /* ====================================================================== */
+
+    /**
+     * <p>Return the {@link WebDavTree} describing all resources contained (at
+     * any depth) in the collection represented by this {@link WebDavClient}
+     * instance, {@link #refreshTree() fetching} it if it was never fetched
+     * before.</p>
+     * 
+     * <p>The returned {@link WebDavTree} is cached and kept up to date by the
+     * {@link #mkcolPath(String)}, {@link #putPath(String, InputStream, long)},
+     * {@link #putPath(String)} and {@link #deletePath(String)} methods, so
+     * that local and remote trees can be compared without contacting the
+     * remote server again.</p>
+     * 
+     * @return a <b>non-null</b> {@link WebDavTree} instance.
+     * @throws IOException if an I/O or network error occurred.
+     */
+    public WebDavTree getTree()
+    throws IOException {
+        final WebDavTree tree = this.tree;
+        if (tree != null) return tree;
+        return this.refreshTree();
+    }
+
+    /**
+     * <p>Fetch from the remote server the {@link WebDavTree} describing all
+     * resources contained (at any depth) in the collection represented by
+     * this {@link WebDavClient} instance.</p>
+     * 
+     * <p>The whole tree is requested with a single <code>Depth: infinity</code>
+     * PROPFIND; if the server refuses it (as many do by default) the tree
+     * is crawled one level at a time, issuing <code>Depth: 1</code> requests
+     * for several collections in parallel.</p>
+     * 
+     * @return a <b>non-null</b> {@link WebDavTree} instance.
+     * @throws IOException if an I/O or network error occurred.
+     */
+    public WebDavTree refreshTree()
+    throws IOException {
+        final Location location = this.resource.location;
+        final WebDavTree tree = new WebDavTree();
+        final Callback callback = new Callback() {
+            public void resource(Resource resource) {
+                final String path = resource.location.toString();
+                if (path.startsWith("../")) return;
+                tree.put(path, resource.collection, resource.contentLength,
+                         resource.lastModified, resource.etag);
+            }
+        };
+        if (! this.propfind(location, "infinity", location, callback)) {
+            this.crawl(tree);
+        }
+        this.tree = tree;
+        return tree;
     }
 
     /* ====================================================================== */
@@ -333,6 +723,35 @@ public class WebDavClient {
         return this.children.containsKey(child);
     }
 
+    /**
+     * <p>Specify whether this {@link WebDavClient} should compress the data
+     * it exchanges with the server using the <code>gzip</code> encoding.</p>
+     * 
+     * <p>When enabled, compressed responses are requested for
+     * <code>GET</code> and <code>PROPFIND</code> requests (and decoded
+     * transparently), and text resources of moderate size stored with
+     * {@link #putPath(String, InputStream, long, String)} are sent with the
+     * <code>gzip</code> content encoding. The first compressed resource
+     * stored is read back to verify the server decoded it: if it did not, it
+     * is stored again uncompressed and compression of requests is disabled
+     * for this instance.</p>
+     * 
+     * @return this {@link WebDavClient} instance.
+     */
+    public WebDavClient setCompression(boolean compression) {
+        this.compression = compression;
+        return this;
+    }
+
+    /**
+     * <p>Return the {@link ConnectionPool} used by this {@link WebDavClient}
+     * (and by all instances opened from it), which also gives access to
+     * connection reuse statistics.</p>
+     */
+    public ConnectionPool getConnectionPool() {
+        return this.pool;
+    }
+
     /**
      * <p>Return the {@link Location} associated with the collection
      * represented by this {@link WebDavClient}.</p>
@@ -464,6 +883,207 @@ public class WebDavClient {
         return resource;
     }
 
+    /**
+     * <p>Resolve the specified path against the {@link Location} of the
+     * collection represented by this instance.</p>
+     */
+    private Location resolvePath(String path) {
+        while (path.startsWith("/")) path = path.substring(1);
+        return this.resource.location.resolve(path);
+    }
+
+    /**
+     * <p>Check whether the resource at the specified path is worth
+     * compressing by looking at its extension.</p>
+     */
+    private static boolean compressible(String path) {
+        for (int x = 0; x < COMPRESSIBLE.length; x ++) {
+            final String extension = COMPRESSIBLE[x];
+            if (path.regionMatches(true, path.length() - extension.length(),
+                                   extension, 0, extension.length()))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * <p>Store the specified data at the specified path compressed with the
+     * <code>gzip</code> content encoding, falling back to an uncompressed
+     * request if the server does not support it.</p>
+     */
+    private boolean putCompressed(String path, byte data[], String etag)
+    throws IOException {
+        final ByteArrayOutputStream buffer;
+        buffer = new ByteArrayOutputStream(data.length / 4 + 64);
+        final GZIPOutputStream gzip = new GZIPOutputStream(buffer);
+        gzip.write(data);
+        gzip.close();
+        final byte body[] = buffer.toByteArray();
+
+        final HttpClient client = new HttpClient(this.resolvePath(path), this.pool);
+        client.setAcceptableStatuses(new int[] { 200, 201, 204, 400, 412,
+                                                 415, 501 });
+        client.addRequestHeader("Content-Encoding", "gzip");
+        if (etag != null) client.addRequestHeader("If-Match", etag);
+        try {
+            client.connect("PUT", body.length);
+            final OutputStream output = client.getRequestStream();
+            output.write(body);
+            output.close();
+        } finally {
+            client.disconnect();
+        }
+
+        /* Refused or stored verbatim: store again (our own update) in clear */
+        final int status = client.getResponseStatus();
+        if (status == 412) return false;
+        if ((status >= 400) || (! this.decoded(path, data.length))) {
+            this.gzip = GZIP_UNSUPPORTED;
+            if (status < 400) etag = client.getResponseHeader("ETag");
+            return this.putPath(path, new ByteArrayInputStream(data),
+                                data.length, etag);
+        }
+        return this.updated(path, false, data.length, client);
+    }
+
+    /**
+     * <p>Verify (once) that the server decoded a compressed resource by
+     * comparing the length it reports with the specified length.</p>
+     */
+    private boolean decoded(String path, long length)
+    throws IOException {
+        if (this.gzip == GZIP_SUPPORTED) return true;
+        final HttpClient client = new HttpClient(this.resolvePath(path), this.pool);
+        client.setAcceptableStatus(200).connect("HEAD", false).disconnect();
+        final String header = client.getResponseHeader("Content-Length");
+        if (! Long.toString(length).equals(header)) return false;
+        this.gzip = GZIP_SUPPORTED;
+        return true;
+    }
+
+    /**
+     * <p>Perform a <code>COPY</code> or <code>MOVE</code> request.</p>
+     */
+    private boolean transfer(String method, String source, String destination,
+                             boolean overwrite, String depth)
+    throws NullPointerException, IOException {
+        if (source == null) throw new NullPointerException("Null source");
+        if (destination == null) throw new NullPointerException("Null destination");
+        final Location target = this.resolvePath(destination);
+        final HttpClient client = new HttpClient(this.resolvePath(source), this.pool);
+        client.addRequestHeader("Destination", target.toString());
+        client.addRequestHeader("Overwrite", overwrite ? "T" : "F");
+        client.addRequestHeader("Depth", depth);
+        client.setAcceptableStatuses(new int[] { 201, 204, 207, 412 });
+        client.connect(method, false).disconnect();
+
+        /* A multi-status response means some resources failed */
+        final int status = client.getResponseStatus();
+        if (status == 207) throw new IOException(method + " from \"" + source
+                                                 + "\" to \"" + destination
+                                                 + "\" partially failed");
+        if (status == 412) return false;
+
+        /* Server side copies may have different entity tags */
+        final boolean move = "MOVE".equals(method);
+        this.forget(destination);
+        if (move) this.forget(source);
+        final WebDavTree tree = this.tree;
+        if (tree != null) tree.copy(source, destination, move, "0".equals(depth));
+        return true;
+    }
+
+    /**
+     * <p>Record the validators and (in the cached {@link WebDavTree}, if any)
+     * the properties of the resource just stored at the specified path by the
+     * given {@link HttpClient}.</p>
+     * 
+     * @return <b>false</b> if the request failed a precondition.
+     */
+    private boolean updated(String path, boolean collection, long length,
+                            HttpClient client) {
+        if (client.getResponseStatus() == 412) return false;
+        this.remember(path, client);
+
+        final WebDavTree tree = this.tree;
+        if (tree == null) return true;
+        final String modified = client.getResponseHeader("Last-Modified");
+        tree.put(path, collection, length, StringTools.parseHttpDate(modified),
+                 client.getResponseHeader("ETag"));
+        return true;
+    }
+
+    /**
+     * <p>Remember the validators (entity tag and last modified date) returned
+     * by the specified {@link HttpClient} for the specified path.</p>
+     */
+    private void remember(String path, HttpClient client) {
+        final String key = WebDavTree.normalize(path);
+        final String etag = client.getResponseHeader("ETag");
+        final String modified = client.getResponseHeader("Last-Modified");
+        if ((etag == null) && (modified == null)) {
+            this.validators.remove(key);
+        } else {
+            this.validators.put(key, new Validators(etag, modified));
+        }
+    }
+
+    /**
+     * <p>Forget the validators for the specified path and, if it is a
+     * collection, all of its descendants.</p>
+     */
+    private void forget(String path) {
+        final String key = WebDavTree.normalize(path);
+        synchronized (this.validators) {
+            final Iterator iterator = this.validators.keySet().iterator();
+            while (iterator.hasNext()) {
+                final String current = (String) iterator.next();
+                if (current.equals(key) || (key.endsWith("/") &&
+                                            current.startsWith(key)))
+                    iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * <p>Return the {@link Validators} last seen for the specified path,
+     * looking them up in the cached {@link WebDavTree} if not remembered.</p>
+     */
+    private Validators getValidators(String path) {
+        final String key = WebDavTree.normalize(path);
+        final Validators validators = (Validators) this.validators.get(key);
+        if (validators != null) return validators;
+
+        final WebDavTree tree = this.tree;
+        if ((tree == null) || (! tree.contains(key))) return null;
+        final String etag = tree.getETag(key);
+        final String modified = StringTools.formatHttpDate(tree.getLastModified(key));
+        if ((etag == null) && (modified == null)) return null;
+        return new Validators(etag, modified);
+    }
+
+    /**
+     * <p>Populate the specified {@link WebDavTree} crawling the collection
+     * represented by this instance one level at a time.</p>
+     */
+    private void crawl(WebDavTree tree)
+    throws IOException {
+        final Crawler crawler = new Crawler(tree);
+        final Thread threads[] = new Thread[CRAWL_THREADS];
+        for (int x = 0; x < threads.length; x ++) {
+            threads[x] = new Thread(crawler, "WebDAV Crawler [" + this.resource.location + "]");
+            threads[x].setDaemon(true);
+            threads[x].start();
+        }
+        try {
+            for (int x = 0; x < threads.length; x ++) threads[x].join();
+        } catch (InterruptedException exception) {
+            crawler.fail(new InterruptedIOException("Interrupted crawling"));
+            throw crawler.failure;
+        }
+        if (crawler.failure != null) throw crawler.failure;
+    }
+
     /**
      * <p>Contact the remote WebDAV server and fetch all properties.</p>
      */
@@ -474,24 +1094,27 @@ public class WebDavClient {
         location = this.options(location);
 
         /* Do a PROPFIND to figure out the properties and the children */
-        final Iterator iterator = this.propfind(location).iterator();
+        final Location base = location;
         final Map children = new HashMap();
-        while (iterator.hasNext()) {
-            final Resource resource = (Resource) iterator.next();
-            final Path path = resource.location.getPath();
-            if (path.size() == 0) {
-                resource.location = location.resolve(resource.location);
-                this.resource = resource;
-            } else if (path.size() == 1) {
-                final PathElement element = (PathElement) path.get(0);
-                if ("..".equals(element.getName())) continue;
-                children.put(element.toString(), resource);
+        final Resource current[] = new Resource[1];
+        this.propfind(location, "1", location, new Callback() {
+            public void resource(Resource resource) {
+                final Path path = resource.location.getPath();
+                if (path.size() == 0) {
+                    resource.location = base.resolve(resource.location);
+                    current[0] = resource;
+                } else if (path.size() == 1) {
+                    final PathElement element = (PathElement) path.get(0);
+                    if ("..".equals(element.getName())) return;
+                    children.put(element.toString(), resource);
+                }
             }
-        }
+        });
         
         /* Check if the current resource was discovered */
-        if (this.resource == null)
-            throw new IOException("Current resource not returned in PROOPFIND");
+        if (current[0] == null)
+            throw new IOException("Current resource not returned in PROPFIND");
+        this.resource = current[0];
 
         /* Don't actually allow resources to be modified */ 
         this.children = Collections.unmodifiableMap(children);
@@ -503,7 +1126,7 @@ public class WebDavClient {
     private Location options(Location location)
     throws IOException {
         /* Create the new HttpClient instance associated with the location */
-        final HttpClient client = new HttpClient(location);
+        final HttpClient client = new HttpClient(location, this.pool);
         client.setAcceptableStatus(200).connect("OPTIONS", true).disconnect();
 
         /* Check that the remote server returned the "Dav" header */
@@ -531,28 +1154,42 @@ public class WebDavClient {
     }
     
     /**
-     * <p>Contact the remote WebDAV server and do a PROPFIND lookup, returning
-     * a {@link List} of all scavenged resources.</p>
+     * <p>Contact the remote WebDAV server and do a PROPFIND lookup, passing
+     * all scavenged resources (whose locations will be relative to the
+     * specified base {@link Location}) to the specified {@link Callback}
+     * while the response is being read.</p>
+     * 
+     * <p>When the depth is <code>infinity</code> this method will return
+     * <b>false</b> if the server refused to process the request.</p>
      */
-    private List propfind(Location location)
+    private boolean propfind(Location location, String depth, Location base,
+                             Callback callback)
     throws IOException {
         /* Create the new HttpClient instance associated with the location */
-        final HttpClient client = new HttpClient(location);
-        client.addRequestHeader("Depth", "1");
-        client.setAcceptableStatus(207).connect("PROPFIND", true);
+        final HttpClient client = new HttpClient(location, this.pool);
+        client.setCompression(this.compression);
+        final boolean infinity = "infinity".equals(depth);
+        client.addRequestHeader("Depth", depth);
+        if (infinity) client.setAcceptableStatuses(null);
+        else client.setAcceptableStatus(207);
+        client.connect("PROPFIND", true);
+        if (client.getResponseStatus() != 207) {
+            client.disconnect();
+            return false;
+        }
 
         /* Get the XML SAX Parser and parse the output of the PROPFIND */
         try {
-            final SAXParserFactory factory = SAXParserFactory.newInstance();
-            factory.setValidating(false);
-            factory.setNamespaceAware(true);
-            final SAXParser parser = factory.newSAXParser();
+            final SAXParser parser;
+            synchronized (PARSER_FACTORY) {
+                parser = PARSER_FACTORY.newSAXParser();
+            }
             final String systemId = location.toString();
             final InputSource source = new InputSource(systemId);
-            final Handler handler = new Handler(location);
+            final Handler handler = new Handler(base, callback);
             source.setByteStream(client.getResponseStream());
             parser.parse(source, handler);
-            return handler.list;
+            return true;
 
         } catch (ParserConfigurationException exception) {
             Exception throwable = new IOException("Error creating XML parser");
@@ -569,75 +1206,99 @@ public class WebDavClient {
     /* INTERNAL CLASSES                                                       */
     /* ====================================================================== */
 
+    /**
+     * <p>A callback receiving each resource as soon as it is parsed out of a
+     * PROPFIND response.</p>
+     */
+    private interface Callback {
+
+        /**
+         * <p>Receive a resource, whose location is relative to the base
+         * {@link Location} of the PROPFIND request.</p>
+         */
+        public void resource(Resource resource)
+        throws SAXException;
+    }
+
     /**
      * <p>An internal XML {@link DefaultHandler} used to parse out the various
      * details of a PROPFIND response.</p> 
+     * 
+     * <p>This handler is a simple state machine: each state matches exactly
+     * one element at a given depth, and elements not matching any transition
+     * from the current state are skipped (with all their descendants) by
+     * counting their depth. Element names are compared by identity first (as
+     * most parsers intern them), and each resource is passed to the
+     * {@link Callback} as soon as its <code>response</code> element is
+     * closed, so that responses of any size are parsed in constant memory.</p>
      */
     private static final class Handler extends DefaultHandler {
-        
+
+        /* ================================================================== */
+        /* PARSER STATES (AND THE ELEMENT EACH ONE MATCHES)                   */
+        /* ================================================================== */
+        private static final int DOCUMENT = 0;     /* (root) */
+        private static final int MULTISTATUS = 1;  /* multistatus */
+        private static final int RESPONSE = 2;     /* .../response */
+        private static final int HREF = 3;         /* .../response/href */
+        private static final int PROPSTAT = 4;     /* .../response/propstat */
+        private static final int PROP = 5;         /* .../propstat/prop */
+        private static final int RESOURCETYPE = 6; /* .../prop/resourcetype */
+        private static final int COLLECTION = 7;   /* .../resourcetype/collection */
+        private static final int PROPERTY = 8;     /* .../prop/get... */
+        /** <p>The state to return to when closing each state's element.</p> */
+        private static final int PARENTS[] = new int[] {
+            DOCUMENT, DOCUMENT, MULTISTATUS, RESPONSE, RESPONSE,
+            PROPSTAT, PROP, RESOURCETYPE, PROP };
+
         /* ================================================================== */
-        /* PSEUDO-XPATH LOCATIONS FOR QUICK-AND-DIRTY LOCATION LOOKUP         */
+        /* PROPERTIES PARSED IN THE "PROPERTY" STATE                          */
         /* ================================================================== */
-        private static final String RESPONSE_PATH = "/multistatus/response";
-        private static final String HREF_PATH = "/multistatus/response/href";
-        private static final String COLLECTION_PATH = 
-            "/multistatus/response/propstat/prop/resourcetype/collection";
-        private static final String GETCONTENTTYPE_PATH = 
-            "/multistatus/response/propstat/prop/getcontenttype";
-        private static final String GETLASTMODIFIED_PATH = 
-            "/multistatus/response/propstat/prop/getlastmodified";
-        private static final String GETCONTENTLENGTH_PATH = 
-            "/multistatus/response/propstat/prop/getcontentlength";
-        private static final String CREATIONDATE_PATH = 
-            "/multistatus/response/propstat/prop/creationdate";
+        private static final int GETCONTENTTYPE = 0;
+        private static final int GETLASTMODIFIED = 1;
+        private static final int GETCONTENTLENGTH = 2;
+        private static final int CREATIONDATE = 3;
+        private static final int GETETAG = 4;
+        /** <p>The names of all properties, indexed by their constant.</p> */
+        private static final String PROPERTIES[] = new String[] {
+            "getcontenttype", "getlastmodified", "getcontentlength",
+            "creationdate", "getetag" };
 
         /** <p>The {@link Location} for resolving all other links.</p> */
         private final Location base;
-        /** <p>The {@link List} of all scavenged resources.</p> */
-        private final List list = new ArrayList();
+        /** <p>The {@link Callback} receiving all scavenged resources.</p> */
+        private final Callback callback;
+        /** <p>A {@link StringBuffer} holding character data, reused.</p> */
+        private final StringBuffer buff = new StringBuffer();
+        /** <p>The last HTTP date string parsed (often repeated).</p> */
+        private String lastModifiedString = null;
+        /** <p>The {@link Date} parsed from {@link #lastModifiedString}.</p> */
+        private Date lastModified = null;
         /** <p>The resource currently being processed.</p> */
         private Resource rsrc = null;
-        /** <p>A {@link StringBuffer} holding character data.</p> */
-        private StringBuffer buff = null;
-        /** <p>A {@link Stack} for quick-and-dirty pseudo XPath lookups.</p> */
-        private Stack stack = new Stack();
+        /** <p>The current state of this parser.</p> */
+        private int state = DOCUMENT;
+        /** <p>The property being parsed in the {@link #PROPERTY} state.</p> */
+        private int property = -1;
+        /** <p>The depth of the element being skipped, or zero.</p> */
+        private int skip = 0;
+        /** <p>Whether character data is being collected or not.</p> */
+        private boolean collect = false;
 
         /**
-         * <p>Create a new instance specifying the base {@link Location}.</p>
+         * <p>Create a new instance specifying the base {@link Location} and
+         * the {@link Callback} receiving all resources.</p>
          */
-        private Handler(Location location) {
+        private Handler(Location location, Callback callback) {
             this.base = location;
+            this.callback = callback;
         }
 
         /**
-         * <p>Push an element name in the stack for pseudo-XPath lookups.</p>
-         * 
-         * @return a {@link String} like <code>/element/element/element</code>.
-         */
-        private String pushPath(String path) {
-            this.stack.push(path.toLowerCase());
-            final StringBuffer buffer = new StringBuffer();
-            for (int x = 0; x < this.stack.size(); x ++)
-                buffer.append('/').append(this.stack.get(x));
-            return buffer.toString();
-        }
-
-        /**
-         * <p>Pop the last element name from the pseudo-XPath lookup stack.</p>
-         * 
-         * @return a {@link String} like <code>/element/element/element</code>.
+         * <p>Check if the specified name matches a (literal) constant.</p>
          */
-        private String popPath(String path)
-        throws SAXException {
-            final StringBuffer buffer = new StringBuffer();
-            final String last = (String) this.stack.pop();
-            if (path.toLowerCase().equals(last)) {
-                for (int x = 0; x < this.stack.size(); x ++)
-                    buffer.append('/').append(this.stack.get(x));
-                return buffer.append('/').append(last).toString();
-            }
-            throw new SAXException("Tag <" + path + "/> unbalanced at path \""
-                                   + pushPath(last) + "\"");
+        private static boolean matches(String name, String constant) {
+            return (name == constant) || constant.equalsIgnoreCase(name);
         }
 
         /**
@@ -645,21 +1306,56 @@ public class WebDavClient {
          */
         public void startElement(String uri, String l, String q, Attributes a)
         throws SAXException {
-            if (! "DAV:".equals(uri.toUpperCase())) return;
-            final String path = this.pushPath(l);
+            if (this.skip > 0) {
+                this.skip ++;
+                return;
+            }
 
-            if (RESPONSE_PATH.equals(path)) {
-                this.rsrc = new Resource();
-    
-            } else if (COLLECTION_PATH.equals(path)) {
-                if (this.rsrc != null) this.rsrc.collection = true;
-
-            } else if (GETCONTENTTYPE_PATH.equals(path) ||
-                       GETLASTMODIFIED_PATH.equals(path) ||
-                       GETCONTENTLENGTH_PATH.equals(path) ||
-                       CREATIONDATE_PATH.equals(path) ||
-                       HREF_PATH.equals(path)) {  
-                this.buff = new StringBuffer();
+            final int next;
+            if (! matches(uri, "DAV:")) {
+                next = -1;
+            } else switch (this.state) {
+                case DOCUMENT:
+                    next = matches(l, "multistatus") ? MULTISTATUS : -1;
+                    break;
+                case MULTISTATUS:
+                    next = matches(l, "response") ? RESPONSE : -1;
+                    if (next == RESPONSE) this.rsrc = new Resource();
+                    break;
+                case RESPONSE:
+                    next = matches(l, "href") ? HREF :
+                           matches(l, "propstat") ? PROPSTAT : -1;
+                    break;
+                case PROPSTAT:
+                    next = matches(l, "prop") ? PROP : -1;
+                    break;
+                case PROP:
+                    if (matches(l, "resourcetype")) {
+                        next = RESOURCETYPE;
+                        break;
+                    }
+                    this.property = -1;
+                    for (int x = 0; x < PROPERTIES.length; x ++) {
+                        if (! matches(l, PROPERTIES[x])) continue;
+                        this.property = x;
+                        break;
+                    }
+                    next = this.property < 0 ? -1 : PROPERTY;
+                    break;
+                case RESOURCETYPE:
+                    next = matches(l, "collection") ? COLLECTION : -1;
+                    if (next == COLLECTION) this.rsrc.collection = true;
+                    break;
+                default:
+                    next = -1;
+            }
+
+            if (next < 0) {
+                this.skip = 1;
+            } else {
+                this.state = next;
+                this.collect = (next == HREF) || (next == PROPERTY);
+                this.buff.setLength(0);
             }
         }
 
@@ -668,74 +1364,84 @@ public class WebDavClient {
          */
         public void endElement(String uri, String l, String q)
         throws SAXException {
-            if (! "DAV:".equals(uri.toUpperCase())) return;
-            final String path = this.popPath(l);
-            final String data = this.resetBuffer();
-
-            if (RESPONSE_PATH.equals(path)) {
-                if (this.rsrc != null) {
-                    if (this.rsrc.location != null) {
-                        if (this.rsrc.location.isAbsolute()) {
-                            final String z = this.rsrc.location.toString();
-                            throw new SAXException("Unresolved location " + z);
-                        } else {
-                            this.list.add(this.rsrc);
-                        }
-                    } else {
+            if (this.skip > 0) {
+                this.skip --;
+                return;
+            }
+
+            final String data = this.collect ? this.resetBuffer() : null;
+            switch (this.state) {
+                case RESPONSE:
+                    if (this.rsrc.location == null)
                         throw new SAXException("Null location for resource");
-                    }
-                }
-    
-            } else if (HREF_PATH.equals(path)) {
-                if (this.rsrc != null) {
+                    this.callback.resource(this.rsrc);
+                    this.rsrc = null;
+                    break;
+                case HREF:
+                    if (data == null) break;
                     final Location resolved = this.base.resolve(data);
                     this.rsrc.location = this.base.relativize(resolved);
                     if (! this.rsrc.location.isRelative()) {
                         throw new SAXException("Unable to relativize location "
                                                + this.rsrc.location);
                     }
-                }
-
-            } else if (CREATIONDATE_PATH.equals(path)) {
-                if (this.rsrc != null)
-                    this.rsrc.creationDate = StringTools.parseIsoDate(data);
-
-            } else if (GETCONTENTTYPE_PATH.equals(path)) {
-                if (this.rsrc != null) this.rsrc.contentType = data;
-    
-            } else if (GETLASTMODIFIED_PATH.equals(path)) {
-                if (this.rsrc != null)
-                    this.rsrc.lastModified = StringTools.parseHttpDate(data);
-    
-            } else if (GETCONTENTLENGTH_PATH.equals(path)) {
-                if (this.rsrc != null) {
-                    Long length = StringTools.parseNumber(data);
-                    if (length != null) {
-                        this.rsrc.contentLength = length.longValue();
-                    }
-                }
+                    break;
+                case PROPERTY:
+                    this.property(data);
+                    break;
             }
+            this.state = PARENTS[this.state];
+            this.collect = false;
         }
-    
+
         /**
          * <p>Handle SAX characters notification.</p>
          */
         public void characters(char buffer[], int offset, int length) {
-            if (this.buff != null) this.buff.append(buffer, offset, length);
+            if (this.collect) this.buff.append(buffer, offset, length);
         }
-        
+
+        /**
+         * <p>Record the value of the property just parsed.</p>
+         */
+        private void property(String data) {
+            if (data == null) return;
+            switch (this.property) {
+                case GETCONTENTTYPE:
+                    this.rsrc.contentType = data;
+                    break;
+                case GETLASTMODIFIED:
+                    if (! data.equals(this.lastModifiedString)) {
+                        this.lastModified = StringTools.parseHttpDate(data);
+                        this.lastModifiedString = data;
+                    }
+                    if (this.lastModified != null) this.rsrc.lastModified =
+                        new Date(this.lastModified.getTime());
+                    break;
+                case GETCONTENTLENGTH:
+                    final Long length = StringTools.parseNumber(data);
+                    if (length != null) this.rsrc.contentLength = length.longValue();
+                    break;
+                case CREATIONDATE:
+                    this.rsrc.creationDate = StringTools.parseIsoDate(data);
+                    break;
+                case GETETAG:
+                    this.rsrc.etag = data;
+                    break;
+            }
+        }
+
         /**
          * <p>Reset the current characters buffer and return it as a
-         * {@link String}.</p>
+         * (trimmed) {@link String}.</p>
          */
         private String resetBuffer() {
-            if (this.buff == null) return null;
-            if (this.buff.length() == 0) {
-                this.buff = null;
-                return null;
-            }
-            final String value = this.buff.toString();
-            this.buff = null;
+            int start = 0;
+            int end = this.buff.length();
+            while ((start < end) && (this.buff.charAt(start) <= ' ')) start ++;
+            while ((end > start) && (this.buff.charAt(end - 1) <= ' ')) end --;
+            final String value = start == end ? null : this.buff.substring(start, end);
+            this.buff.setLength(0);
             return value;
         }
     }
@@ -750,6 +1456,102 @@ public class WebDavClient {
         private String contentType = null;
         private Date lastModified = null;
         private Date creationDate = null;
+        private String etag = null;
+    }
+
+    /**
+     * <p>A simple immutable class holding the validators of a resource, as
+     * they were returned in the <code>ETag</code> and
+     * <code>Last-Modified</code> headers.</p>
+     */
+    private static final class Validators {
+        private final String etag;
+        private final String lastModified;
+
+        private Validators(String etag, String lastModified) {
+            this.etag = etag;
+            this.lastModified = lastModified;
+        }
+    }
+
+    /**
+     * <p>A {@link Runnable} crawling a tree of collections with
+     * <code>Depth: 1</code> PROPFIND requests, sharing a queue of collections
+     * still to be visited among several threads.</p>
+     */
+    private final class Crawler implements Runnable {
+
+        /** <p>The {@link WebDavTree} to populate.</p> */
+        private final WebDavTree tree;
+        /** <p>The paths of the collections still to be visited.</p> */
+        private final LinkedList queue = new LinkedList();
+        /** <p>The number of collections currently being visited.</p> */
+        private int active = 0;
+        /** <p>The first {@link IOException} encountered, if any.</p> */
+        private IOException failure = null;
+
+        private Crawler(WebDavTree tree) {
+            this.tree = tree;
+            this.queue.add("");
+        }
+
+        /**
+         * <p>Record a resource found in the collection with the specified
+         * path, queuing it for a visit if it is a collection itself.</p>
+         */
+        private void resource(String path, Resource resource) {
+            String child = resource.location.toString();
+            if (child.startsWith("../")) return;
+            if (resource.collection && (child.length() > 0)
+                && (! child.endsWith("/"))) child += "/";
+            this.tree.put(child, resource.collection, resource.contentLength,
+                          resource.lastModified, resource.etag);
+            if ((! resource.collection) || child.equals(path)) return;
+            synchronized (this) {
+                this.queue.add(child);
+                this.notify();
+            }
+        }
+
+        /** <p>Record a failure, stopping all threads.</p> */
+        private synchronized void fail(IOException exception) {
+            if (this.failure == null) this.failure = exception;
+            this.notifyAll();
+        }
+
+        public void run() {
+            final Location root = WebDavClient.this.resource.location;
+            while (true) {
+                final String path;
+                synchronized (this) {
+                    while (this.queue.isEmpty() && (this.active > 0)
+                           && (this.failure == null)) try {
+                        this.wait();
+                    } catch (InterruptedException exception) {
+                        this.fail(new InterruptedIOException("Interrupted crawling"));
+                    }
+                    if (this.queue.isEmpty() || (this.failure != null)) return;
+                    path = (String) this.queue.removeFirst();
+                    this.active ++;
+                }
+
+                try {
+                    final Location location = root.resolve(path);
+                    WebDavClient.this.propfind(location, "1", root, new Callback() {
+                        public void resource(Resource resource) {
+                            Crawler.this.resource(path, resource);
+                        }
+                    });
+                } catch (IOException exception) {
+                    this.fail(exception);
+                } finally {
+                    synchronized (this) {
+                        this.active --;
+                        this.notifyAll();
+                    }
+                }
+            }
+        }
     }
 
     /* ====================================================================== */
@@ -903,8 +1705,7 @@ public class WebDavClient {
         if (obj == null) {
             string = ("[null]");
         } else if (obj instanceof Date) {
-            SimpleDateFormat f = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-            string = f.format((Date) obj);
+            string = StringTools.appendDateTime(new StringBuffer(19), (Date) obj).toString();
         } else {
             string = obj.toString();
         }
@@ -0,0 +1,237 @@
+/* ========================================================================== *
+ *   Copyright (c) 2006, Pier Paolo Fumagalli <mailto:pier@betaversion.org>   *
+ *                            All rights reserved.                            *
+ * ========================================================================== *
+ *                                                                            * 
+ * Redistribution and use in source and binary forms, with or without modifi- *
+ * cation, are permitted provided that the following conditions are met:      *
+ *                                                                            * 
+ *  - Redistributions of source code must retain the  above copyright notice, *
+ *    this list of conditions and the following disclaimer.                   *
+ *                                                                            * 
+ *  - Redistributions  in binary  form  must  reproduce the  above  copyright *
+ *    notice,  this list of conditions  and the following  disclaimer  in the *
+ *    documentation and/or other materials provided with the distribution.    *
+ *                                                                            * 
+ *  - Neither the name of Pier Fumagalli, nor the names of other contributors *
+ *    may be used to endorse  or promote products derived  from this software *
+ *    without specific prior written permission.                              *
+ *                                                                            * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS "AS IS" *
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES,  INCLUDING, BUT NOT LIMITED TO, THE *
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE *
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER  OR CONTRIBUTORS BE *
+ * LIABLE  FOR ANY  DIRECT,  INDIRECT,  INCIDENTAL,  SPECIAL,  EXEMPLARY,  OR *
+ * CONSEQUENTIAL  DAMAGES  (INCLUDING,  BUT  NOT LIMITED  TO,  PROCUREMENT OF *
+ * SUBSTITUTE GOODS OR SERVICES;  LOSS OF USE, DATA, OR PROFITS;  OR BUSINESS *
+ * INTERRUPTION)  HOWEVER CAUSED AND ON  ANY THEORY OF LIABILITY,  WHETHER IN *
+ * CONTRACT,  STRICT LIABILITY,  OR TORT  (INCLUDING NEGLIGENCE OR OTHERWISE) *
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE *
+ * POSSIBILITY OF SUCH DAMAGE.                                                *
+ * ========================================================================== */
+package it.could.util.http;
+
+import it.could.util.location.Path;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * <p>A {@link WebDavTree} holds the properties of all resources contained
+ * (at any depth) in a WebDAV collection, as returned by
+ * {@link WebDavClient#getTree()}.</p>
+ * 
+ * <p>Resources are identified by their URL-encoded path relative to the
+ * collection: paths of collections always end with a slash, and the
+ * collection itself is identified by the empty string.</p>
+ * 
+ * <p>Instances of this class are kept up to date by the
+ * {@link WebDavClient} which created them when resources are created or
+ * deleted through its path-based methods, and are thread safe.</p>
+ *
+ * @author <a href="http://could.it/">Pier Fumagalli</a>
+ */
+public class WebDavTree {
+
+    /** <p>A sorted map of relative paths to {@link Entry} instances.</p> */
+    private final SortedMap entries = new TreeMap();
+
+    /** <p>Create a new empty {@link WebDavTree} instance.</p> */
+    WebDavTree() {
+        super();
+    }
+
+    /* ====================================================================== */
+    /* ACCESSOR METHODS                                                       */
+    /* ====================================================================== */
+
+    /**
+     * <p>Return the number of resources in this tree.</p>
+     */
+    public synchronized int size() {
+        return this.entries.size();
+    }
+
+    /**
+     * <p>Return a sorted {@link List} of the paths of all resources in this
+     * tree, taken when this method was called.</p>
+     */
+    public synchronized List getPaths() {
+        return new ArrayList(this.entries.keySet());
+    }
+
+    /**
+     * <p>Checks if this tree contains a resource with the specified path.</p>
+     */
+    public synchronized boolean contains(String path) {
+        return this.entries.containsKey(normalize(path));
+    }
+
+    /**
+     * <p>Checks if the resource with the specified path is a collection.</p>
+     */
+    public synchronized boolean isCollection(String path) {
+        final Entry entry = (Entry) this.entries.get(normalize(path));
+        return (entry != null) && entry.collection;
+    }
+
+    /**
+     * <p>Return the content length of the resource with the specified path
+     * or -1 if unknown.</p>
+     */
+    public synchronized long getContentLength(String path) {
+        final Entry entry = (Entry) this.entries.get(normalize(path));
+        return entry == null ? -1 : entry.contentLength;
+    }
+
+    /**
+     * <p>Return the last modified {@link Date} of the resource with the
+     * specified path or <b>null</b> if unknown.</p>
+     */
+    public synchronized Date getLastModified(String path) {
+        final Entry entry = (Entry) this.entries.get(normalize(path));
+        return entry == null ? null : entry.lastModified;
+    }
+
+    /**
+     * <p>Return the entity tag of the resource with the specified path or
+     * <b>null</b> if unknown.</p>
+     */
+    public synchronized String getETag(String path) {
+        final Entry entry = (Entry) this.entries.get(normalize(path));
+        return entry == null ? null : entry.etag;
+    }
+
+    /* ====================================================================== */
+    /* MODIFICATION METHODS                                                   */
+    /* ====================================================================== */
+
+    /**
+     * <p>Record the properties of the resource with the specified path.</p>
+     */
+    synchronized void put(String path, boolean collection, long contentLength,
+                          Date lastModified, String etag) {
+        path = normalize(path);
+        if (collection && (path.length() > 0) && (! path.endsWith("/")))
+            path += "/";
+        this.entries.put(path, new Entry(collection, contentLength,
+                                         lastModified, etag));
+    }
+
+    /**
+     * <p>Forget the resource with the specified path and, if it is a
+     * collection, all of its descendants.</p>
+     */
+    synchronized void remove(String path) {
+        path = normalize(path);
+        this.entries.remove(path);
+        if (! path.endsWith("/")) path += "/";
+        final Iterator iterator = this.entries.tailMap(path).keySet().iterator();
+        while (iterator.hasNext()) {
+            if (! ((String) iterator.next()).startsWith(path)) break;
+            iterator.remove();
+        }
+    }
+
+    /**
+     * <p>Record the copy (or move) of the resource with the specified source
+     * path and, unless <code>shallow</code>, all of its descendants to the
+     * specified destination path, replacing whatever was there.</p>
+     * 
+     * <p>Entity tags of copies are forgotten, as servers can assign new ones
+     * to them.</p>
+     */
+    synchronized void copy(String source, String destination, boolean move,
+                           boolean shallow) {
+        source = normalize(source);
+        destination = normalize(destination);
+        if ((! this.entries.containsKey(source)) && (! source.endsWith("/")))
+            source += "/";
+        final Entry entry = (Entry) this.entries.get(source);
+        if ((entry != null) && entry.collection && (! destination.endsWith("/")))
+            destination += "/";
+        final String prefix = source.endsWith("/") ? source : source + "/";
+        final SortedMap copies = new TreeMap();
+        if (entry != null) copies.put(destination, entry);
+        if (! shallow) {
+            final String target = destination.endsWith("/") ?
+                                  destination : destination + "/";
+            final Iterator iterator = this.entries.tailMap(prefix).entrySet().iterator();
+            while (iterator.hasNext()) {
+                final Map.Entry current = (Map.Entry) iterator.next();
+                final String path = (String) current.getKey();
+                if (! path.startsWith(prefix)) break;
+                copies.put(target + path.substring(prefix.length()),
+                           current.getValue());
+            }
+        }
+
+        if (move) this.remove(source);
+        this.remove(destination);
+        final Iterator iterator = copies.entrySet().iterator();
+        while (iterator.hasNext()) {
+            final Map.Entry current = (Map.Entry) iterator.next();
+            final Entry copied = (Entry) current.getValue();
+            this.entries.put(current.getKey(), move ? copied :
+                             new Entry(copied.collection, copied.contentLength,
+                                       copied.lastModified, null));
+        }
+    }
+
+    /**
+     * <p>Normalize the specified path stripping any leading slash and
+     * re-encoding it in the same way of paths returned by the server.</p>
+     */
+    static String normalize(String path) {
+        while (path.startsWith("/")) path = path.substring(1);
+        if (path.length() == 0) return path;
+        return Path.parse(path).toString();
+    }
+
+    /* ====================================================================== */
+    /* INTERNAL CLASSES                                                       */
+    /* ====================================================================== */
+
+    /**
+     * <p>A simple immutable class holding the properties of a resource.</p>
+     */
+    private static final class Entry {
+        private final boolean collection;
+        private final long contentLength;
+        private final Date lastModified;
+        private final String etag;
+
+        private Entry(boolean collection, long contentLength,
+                      Date lastModified, String etag) {
+            this.collection = collection;
+            this.contentLength = contentLength;
+            this.lastModified = lastModified;
+            this.etag = etag;
+        }
+    }
+}
@@ -0,0 +1,412 @@
+/* ========================================================================== *
+ *   Copyright (c) 2006, Pier Paolo Fumagalli <mailto:pier@betaversion.org>   *
+ *                            All rights reserved.                            *
+ * ========================================================================== *
+ *                                                                            * 
+ * Redistribution and use in source and binary forms, with or without modifi- *
+ * cation, are permitted provided that the following conditions are met:      *
+ *                                                                            * 
+ *  - Redistributions of source code must retain the  above copyright notice, *
+ *    this list of conditions and the following disclaimer.                   *
+ *                                                                            * 
+ *  - Redistributions  in binary  form  must  reproduce the  above  copyright *
+ *    notice,  this list of conditions  and the following  disclaimer  in the *
+ *    documentation and/or other materials provided with the distribution.    *
+ *                                                                            * 
+ *  - Neither the name of Pier Fumagalli, nor the names of other contributors *
+ *    may be used to endorse  or promote products derived  from this software *
+ *    without specific prior written permission.                              *
+ *                                                                            * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS "AS IS" *
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES,  INCLUDING, BUT NOT LIMITED TO, THE *
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE *
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER  OR CONTRIBUTORS BE *
+ * LIABLE  FOR ANY  DIRECT,  INDIRECT,  INCIDENTAL,  SPECIAL,  EXEMPLARY,  OR *
+ * CONSEQUENTIAL  DAMAGES  (INCLUDING,  BUT  NOT LIMITED  TO,  PROCUREMENT OF *
+ * SUBSTITUTE GOODS OR SERVICES;  LOSS OF USE, DATA, OR PROFITS;  OR BUSINESS *
+ * INTERRUPTION)  HOWEVER CAUSED AND ON  ANY THEORY OF LIABILITY,  WHETHER IN *
+ * CONTRACT,  STRICT LIABILITY,  OR TORT  (INCLUDING NEGLIGENCE OR OTHERWISE) *
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE *
+ * POSSIBILITY OF SUCH DAMAGE.                                                *
+ * ========================================================================== */
+package it.could.confluence.autoexport.engine;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+import junit.framework.TestCase;
+
+/**
+ * <p>Test the {@link ArchiveSink} writing small <code>zip</code> and
+ * <code>tar</code> archives and reading them back.</p>
+ */
+public class ArchiveSinkTest extends TestCase {
+
+    /** <p>A name longer than 100 bytes which can be split on a slash.</p> */
+    private static final String SPLIT = repeat("directory/", 12) + "page.html";
+    /** <p>A name longer than 100 bytes without a slash to split on.</p> */
+    private static final String LONG = "space/" + repeat("x", 120) + ".html";
+    /** <p>A name whose extended header record is 101 bytes long.</p> */
+    private static final String BOUNDARY = repeat("y", 80) + "-café.html";
+    /** <p>A short name holding non-ASCII characters.</p> */
+    private static final String NON_ASCII = "space/café-über.html";
+
+    /* ====================================================================== */
+    /* ZIP ARCHIVES                                                           */
+    /* ====================================================================== */
+
+    /**
+     * <p>Check that compressed files are stored with their size and CRC,
+     * and everything else is deflated.</p>
+     */
+    public void testZipStoresCompressedFiles()
+    throws Exception {
+        final byte image[] = content(1000, 7);
+        final byte large[] = content(300 * 1024, 13);
+        final byte page[] = "<html>page</html>".getBytes("US-ASCII");
+
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        final ArchiveSink sink = new ArchiveSink(output, ArchiveSink.ZIP);
+        write(sink, "space/image.PNG", image);
+        write(sink, "space/large.jpg", large);
+        write(sink, "space/page.html", page);
+        sink.commit();
+
+        final File file = File.createTempFile("autoexport-", ".zip");
+        try {
+            final OutputStream stream = new FileOutputStream(file);
+            stream.write(output.toByteArray());
+            stream.close();
+
+            final ZipFile zip = new ZipFile(file);
+            try {
+                assertStored(zip.getEntry("space/image.PNG"), image);
+                assertStored(zip.getEntry("space/large.jpg"), large);
+                final ZipEntry entry = zip.getEntry("space/page.html");
+                assertEquals(ZipEntry.DEFLATED, entry.getMethod());
+                assertEquals(crc(page), entry.getCrc());
+            } finally {
+                zip.close();
+            }
+        } finally {
+            file.delete();
+        }
+
+        final Map entries = readZip(output.toByteArray());
+        assertEquals(3, entries.size());
+        assertContent(image, entries.get("space/image.PNG"));
+        assertContent(large, entries.get("space/large.jpg"));
+        assertContent(page, entries.get("space/page.html"));
+    }
+
+    /**
+     * <p>Check that long and non-ASCII names survive a <code>zip</code>
+     * archive, decoded from their URL-encoded paths.</p>
+     */
+    public void testZipNames()
+    throws Exception {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        final ArchiveSink sink = new ArchiveSink(output, ArchiveSink.ZIP);
+        write(sink, SPLIT, "split".getBytes("US-ASCII"));
+        write(sink, LONG, "long".getBytes("US-ASCII"));
+        write(sink, "space/caf%C3%A9-%C3%BCber.html", "utf".getBytes("US-ASCII"));
+        sink.commit();
+
+        final Map entries = readZip(output.toByteArray());
+        assertEquals(Arrays.asList(new String[] { SPLIT, LONG, NON_ASCII }),
+                     Arrays.asList(entries.keySet().toArray()));
+        assertContent("utf".getBytes("US-ASCII"), entries.get(NON_ASCII));
+    }
+
+    /* ====================================================================== */
+    /* TAR ARCHIVES                                                           */
+    /* ====================================================================== */
+
+    /**
+     * <p>Check the fields of a plain <code>ustar</code> header, and the
+     * padding of the archive to blocks and records.</p>
+     */
+    public void testTarHeader()
+    throws Exception {
+        final byte page[] = "<html>page</html>".getBytes("US-ASCII");
+        final long before = System.currentTimeMillis() / 1000;
+
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        final ArchiveSink sink = new ArchiveSink(output, ArchiveSink.TAR);
+        write(sink, "space/page.html", page);
+        sink.commit();
+
+        final byte archive[] = output.toByteArray();
+        assertEquals(10240, archive.length);
+
+        assertEquals("space/page.html", string(archive, 0, 100));
+        assertEquals("0000644\0", field(archive, 100, 8));
+        assertEquals("0000000\0", field(archive, 108, 8));
+        assertEquals("0000000\0", field(archive, 116, 8));
+        assertEquals("00000000021\0", field(archive, 124, 12));
+        assertEquals('0', archive[156]);
+        assertEquals("ustar\00000", field(archive, 257, 8));
+        assertEquals("", string(archive, 345, 155));
+
+        final long time = Long.parseLong(string(archive, 136, 12), 8);
+        assertTrue(time >= before);
+        assertTrue(time <= System.currentTimeMillis() / 1000);
+
+        assertEquals(0, archive[154]);
+        assertEquals(' ', archive[155]);
+        assertEquals(checksum(archive, 0), Long.parseLong(string(archive, 148, 6), 8));
+
+        assertContent(page, copy(archive, 512, page.length));
+        for (int x = 512 + page.length; x < archive.length; x ++)
+            assertEquals("Byte " + x, 0, archive[x]);
+    }
+
+    /**
+     * <p>Check that long ASCII names are split between the prefix and name
+     * fields of the header whenever possible.</p>
+     */
+    public void testTarSplitsLongNames()
+    throws Exception {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        final ArchiveSink sink = new ArchiveSink(output, ArchiveSink.TAR);
+        write(sink, SPLIT, "split".getBytes("US-ASCII"));
+        sink.commit();
+
+        final byte archive[] = output.toByteArray();
+        final int slash = SPLIT.lastIndexOf('/');
+        assertEquals('0', archive[156]);
+        assertEquals(SPLIT.substring(slash + 1), string(archive, 0, 100));
+        assertEquals(SPLIT.substring(0, slash), string(archive, 345, 155));
+
+        final Map entries = readTar(archive);
+        assertEquals(1, entries.size());
+        assertContent("split".getBytes("US-ASCII"), entries.get(SPLIT));
+    }
+
+    /**
+     * <p>Check that names which can not be split, or are not ASCII, are
+     * written in POSIX extended headers with correctly sized records.</p>
+     */
+    public void testTarExtendedHeaders()
+    throws Exception {
+        assertEquals(101 - " path=\n".length() - 3, BOUNDARY.getBytes("UTF-8").length);
+
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        final ArchiveSink sink = new ArchiveSink(output, ArchiveSink.TAR);
+        write(sink, LONG, "long".getBytes("US-ASCII"));
+        write(sink, "space/caf%C3%A9-%C3%BCber.html", "utf".getBytes("US-ASCII"));
+        write(sink, BOUNDARY, "boundary".getBytes("US-ASCII"));
+        write(sink, "space/page.html", "page".getBytes("US-ASCII"));
+        sink.commit();
+
+        final byte archive[] = output.toByteArray();
+        assertEquals('x', archive[156]);
+        final String record = string(archive, 512, 512);
+        assertEquals(" path=" + LONG + "\n", record.substring(record.indexOf(' ')));
+
+        final Map entries = readTar(archive);
+        assertEquals(Arrays.asList(new String[] {
+                         LONG, NON_ASCII, BOUNDARY, "space/page.html" }),
+                     Arrays.asList(entries.keySet().toArray()));
+        assertContent("long".getBytes("US-ASCII"), entries.get(LONG));
+        assertContent("utf".getBytes("US-ASCII"), entries.get(NON_ASCII));
+        assertContent("boundary".getBytes("US-ASCII"), entries.get(BOUNDARY));
+        assertContent("page".getBytes("US-ASCII"), entries.get("space/page.html"));
+    }
+
+    /* ====================================================================== */
+    /* HELPER METHODS                                                         */
+    /* ====================================================================== */
+
+    /**
+     * <p>Archive the specified content at the specified path.</p>
+     */
+    private static void write(ArchiveSink sink, String path, byte data[])
+    throws IOException {
+        final OutputStream output = sink.open(path);
+        output.write(data);
+        output.close();
+    }
+
+    /**
+     * <p>Read all entries of a <code>zip</code> archive, by name.</p>
+     */
+    private static Map readZip(byte archive[])
+    throws IOException {
+        final Map entries = new LinkedHashMap();
+        final ZipInputStream input = new ZipInputStream(new ByteArrayInputStream(archive));
+        ZipEntry entry = null;
+        while ((entry = input.getNextEntry()) != null) {
+            entries.put(entry.getName(), read(input));
+        }
+        input.close();
+        return entries;
+    }
+
+    /**
+     * <p>Read all entries of a <code>tar</code> archive, by name, applying
+     * the path from POSIX extended headers and verifying checksums.</p>
+     */
+    private static Map readTar(byte archive[])
+    throws IOException {
+        assertEquals(0, archive.length % 10240);
+        final Map entries = new LinkedHashMap();
+        String path = null;
+        int offset = 0;
+        while (archive[offset] != 0) {
+            assertEquals("ustar\00000", field(archive, offset + 257, 8));
+            assertEquals(checksum(archive, offset),
+                         Long.parseLong(string(archive, offset + 148, 7), 8));
+
+            final int size = Integer.parseInt(string(archive, offset + 124, 12), 8);
+            final byte data[] = copy(archive, offset + 512, size);
+            final char type = (char) archive[offset + 156];
+            if (type == 'x') {
+                path = (String) records(data).get("path");
+            } else {
+                assertEquals('0', type);
+                final String prefix = string(archive, offset + 345, 155);
+                final String name = string(archive, offset, 100);
+                if (path == null) path = prefix.length() == 0 ? name : prefix + "/" + name;
+                entries.put(path, data);
+                path = null;
+            }
+            offset += 512 + (size + 511) / 512 * 512;
+        }
+        assertNull(path);
+        for (int x = offset; x < archive.length; x ++) assertEquals(0, archive[x]);
+        return entries;
+    }
+
+    /**
+     * <p>Parse the records of a POSIX extended header, verifying that each
+     * one is prefixed by its own length in bytes.</p>
+     */
+    private static Map records(byte data[])
+    throws IOException {
+        final Map records = new LinkedHashMap();
+        int offset = 0;
+        while (offset < data.length) {
+            int space = offset;
+            while (data[space] != ' ') space ++;
+            final int length = Integer.parseInt(new String(data, offset, space - offset, "US-ASCII"));
+            assertEquals('\n', data[offset + length - 1]);
+            final String record = new String(data, space + 1, offset + length - space - 2, "UTF-8");
+            final int equals = record.indexOf('=');
+            records.put(record.substring(0, equals), record.substring(equals + 1));
+            offset += length;
+        }
+        return records;
+    }
+
+    /**
+     * <p>Calculate the checksum of the header at the specified offset, with
+     * its checksum field filled by spaces.</p>
+     */
+    private static long checksum(byte archive[], int offset) {
+        long checksum = 0;
+        for (int x = 0; x < 512; x ++) {
+            checksum += (x >= 148) && (x < 156) ? ' ' : archive[offset + x] & 0x0ff;
+        }
+        return checksum;
+    }
+
+    /**
+     * <p>Return the NUL-terminated UTF-8 string in a header field.</p>
+     */
+    private static String string(byte archive[], int offset, int length)
+    throws IOException {
+        int end = offset;
+        while ((end < offset + length) && (archive[end] != 0)) end ++;
+        return new String(archive, offset, end - offset, "UTF-8");
+    }
+
+    /**
+     * <p>Return all the bytes of a header field as a string.</p>
+     */
+    private static String field(byte archive[], int offset, int length)
+    throws IOException {
+        return new String(archive, offset, length, "US-ASCII");
+    }
+
+    /**
+     * <p>Return a copy of the specified range of bytes.</p>
+     */
+    private static byte[] copy(byte archive[], int offset, int length) {
+        final byte data[] = new byte[length];
+        System.arraycopy(archive, offset, data, 0, length);
+        return data;
+    }
+
+    /**
+     * <p>Read the specified {@link InputStream} up to its end.</p>
+     */
+    private static byte[] read(InputStream input)
+    throws IOException {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        final byte buffer[] = new byte[8192];
+        int read = -1;
+        while ((read = input.read(buffer)) >= 0) output.write(buffer, 0, read);
+        return output.toByteArray();
+    }
+
+    /**
+     * <p>Return some deterministic content of the specified size.</p>
+     */
+    private static byte[] content(int size, int seed) {
+        final byte data[] = new byte[size];
+        for (int x = 0; x < size; x ++) data[x] = (byte) (x * seed + x / 251);
+        return data;
+    }
+
+    /**
+     * <p>Return the CRC-32 of the specified content.</p>
+     */
+    private static long crc(byte data[]) {
+        final CRC32 crc = new CRC32();
+        crc.update(data);
+        return crc.getValue();
+    }
+
+    /**
+     * <p>Repeat the specified string a number of times.</p>
+     */
+    private static String repeat(String string, int times) {
+        final StringBuffer buffer = new StringBuffer();
+        for (int x = 0; x < times; x ++) buffer.append(string);
+        return buffer.toString();
+    }
+
+    /**
+     * <p>Assert that the specified {@link ZipEntry} was stored uncompressed
+     * with the size and CRC of the specified content.</p>
+     */
+    private static void assertStored(ZipEntry entry, byte data[]) {
+        assertNotNull(entry);
+        assertEquals(ZipEntry.STORED, entry.getMethod());
+        assertEquals(data.length, entry.getSize());
+        assertEquals(data.length, entry.getCompressedSize());
+        assertEquals(crc(data), entry.getCrc());
+    }
+
+    /**
+     * <p>Assert that the specified archived content equals the expected.</p>
+     */
+    private static void assertContent(byte expected[], Object actual) {
+        assertNotNull(actual);
+        assertTrue(Arrays.equals(expected, (byte []) actual));
+    }
+}
@@ -0,0 +1,279 @@
+/* ========================================================================== *
+ *   Copyright (c) 2006, Pier Paolo Fumagalli <mailto:pier@betaversion.org>   *
+ *                            All rights reserved.                            *
+ * ========================================================================== *
+ *                                                                            * 
+ * Redistribution and use in source and binary forms, with or without modifi- *
+ * cation, are permitted provided that the following conditions are met:      *
+ *                                                                            * 
+ *  - Redistributions of source code must retain the  above copyright notice, *
+ *    this list of conditions and the following disclaimer.                   *
+ *                                                                            * 
+ *  - Redistributions  in binary  form  must  reproduce the  above  copyright *
+ *    notice,  this list of conditions  and the following  disclaimer  in the *
+ *    documentation and/or other materials provided with the distribution.    *
+ *                                                                            * 
+ *  - Neither the name of Pier Fumagalli, nor the names of other contributors *
+ *    may be used to endorse  or promote products derived  from this software *
+ *    without specific prior written permission.                              *
+ *                                                                            * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS "AS IS" *
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES,  INCLUDING, BUT NOT LIMITED TO, THE *
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE *
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER  OR CONTRIBUTORS BE *
+ * LIABLE  FOR ANY  DIRECT,  INDIRECT,  INCIDENTAL,  SPECIAL,  EXEMPLARY,  OR *
+ * CONSEQUENTIAL  DAMAGES  (INCLUDING,  BUT  NOT LIMITED  TO,  PROCUREMENT OF *
+ * SUBSTITUTE GOODS OR SERVICES;  LOSS OF USE, DATA, OR PROFITS;  OR BUSINESS *
+ * INTERRUPTION)  HOWEVER CAUSED AND ON  ANY THEORY OF LIABILITY,  WHETHER IN *
+ * CONTRACT,  STRICT LIABILITY,  OR TORT  (INCLUDING NEGLIGENCE OR OTHERWISE) *
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE *
+ * POSSIBILITY OF SUCH DAMAGE.                                                *
+ * ========================================================================== */
+package it.could.confluence.autoexport.engine;
+
+import it.could.util.http.HttpTestServer;
+import it.could.util.http.HttpTestServer.Request;
+import it.could.util.http.HttpTestServer.Response;
+import it.could.util.location.Location;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+/**
+ * <p>Test the {@link WebDavPublisher} against an in-process WebDAV
+ * server.</p>
+ */
+public class WebDavPublisherTest extends TestCase {
+
+    /** <p>How long to wait for background operations, in milliseconds.</p> */
+    private static final long TIMEOUT = 15000;
+    /** <p>The methods of requests modifying the remote collection.</p> */
+    private static final String WRITES[] = new String[] { "MKCOL", "PUT", "DELETE" };
+
+    /** <p>The paths of the collections on the server.</p> */
+    private final Set collections = new HashSet();
+    /** <p>The contents of the resources on the server, by path.</p> */
+    private final Map resources = new HashMap();
+    /** <p>The number of <code>PUT</code> requests still to be failed.</p> */
+    private int failures = 0;
+    /** <p>How long each <code>PUT</code> request takes, in milliseconds.</p> */
+    private long delay = 0;
+
+    /** <p>The {@link HttpTestServer} serving the collection.</p> */
+    private HttpTestServer server;
+    /** <p>The {@link WebDavPublisher} being tested.</p> */
+    private WebDavPublisher publisher;
+    /** <p>The temporary files written by the test.</p> */
+    private final List files = new ArrayList();
+
+    protected void setUp()
+    throws Exception {
+        this.collections.add("/dav/");
+        this.server = new HttpTestServer(new HttpTestServer.Handler() {
+            public Response handle(Request request)
+            throws IOException {
+                return WebDavPublisherTest.this.handle(request);
+            }
+        });
+        final Location location = Location.parse(this.server.getUrl() + "dav/");
+        this.publisher = new WebDavPublisher(location, 1);
+    }
+
+    protected void tearDown() {
+        this.publisher.shutdown();
+        this.server.close();
+        for (int x = 0; x < this.files.size(); x ++) ((File) this.files.get(x)).delete();
+    }
+
+    /* ====================================================================== */
+    /* TESTS                                                                  */
+    /* ====================================================================== */
+
+    public void testCreatesParentCollectionsOnce()
+    throws Exception {
+        this.publisher.publish("one/two/first.bin", this.file("first"));
+        this.publisher.publish("one/two/second.bin", this.file("second"));
+        this.await("/dav/one/two/second.bin", "second");
+
+        assertEquals(Arrays.asList(new String[] { "MKCOL /dav/one/",
+                                                  "MKCOL /dav/one/two/",
+                                                  "PUT /dav/one/two/first.bin",
+                                                  "PUT /dav/one/two/second.bin" }),
+                     this.server.getRequestLines(WRITES));
+        assertEquals("first", this.content("/dav/one/two/first.bin"));
+    }
+
+    public void testCoalescesQueuedOperations()
+    throws Exception {
+        this.delay = 500;
+        this.publisher.publish("page.bin", this.file("first"));
+        this.awaitRequests(1);
+
+        /* The first upload is in flight, the others are queued as one */
+        this.publisher.publish("page.bin", this.file("second"));
+        this.publisher.publish("page.bin", this.file("third"));
+        this.publisher.remove("page.bin");
+        this.publisher.publish("page.bin", this.file("fourth"));
+        this.await("/dav/page.bin", "fourth");
+
+        assertEquals(Arrays.asList(new String[] { "PUT /dav/page.bin",
+                                                  "PUT /dav/page.bin" }),
+                     this.server.getRequestLines(WRITES));
+    }
+
+    public void testRetriesFailedOperations()
+    throws Exception {
+        this.failures = 2;
+        this.publisher.publish("dir/page.bin", this.file("content"));
+        this.await("/dav/dir/page.bin", "content");
+
+        /* Parent collections are checked again before each retry */
+        assertEquals(Arrays.asList(new String[] { "MKCOL /dav/dir/",
+                                                  "PUT /dav/dir/page.bin",
+                                                  "MKCOL /dav/dir/",
+                                                  "PUT /dav/dir/page.bin",
+                                                  "MKCOL /dav/dir/",
+                                                  "PUT /dav/dir/page.bin" }),
+                     this.server.getRequestLines(WRITES));
+    }
+
+    public void testSkipsUnchangedContent()
+    throws Exception {
+        this.publisher.publish("page.bin", this.file("content"));
+        this.await("/dav/page.bin", "content");
+        this.publisher.publish("page.bin", this.file("content"));
+        this.publisher.publish("other.bin", this.file("other"));
+        this.await("/dav/other.bin", "other");
+
+        assertEquals(Arrays.asList(new String[] { "PUT /dav/page.bin",
+                                                  "PUT /dav/other.bin" }),
+                     this.server.getRequestLines(WRITES));
+    }
+
+    /* ====================================================================== */
+    /* HELPER METHODS                                                         */
+    /* ====================================================================== */
+
+    /**
+     * <p>Handle a request to the server, keeping track of collections and
+     * resources.</p>
+     */
+    private Response handle(Request request)
+    throws IOException {
+        final String path = request.path;
+        final String parent = path.substring(0, path.lastIndexOf('/',
+                                             path.length() - 2) + 1);
+
+        if ("OPTIONS".equals(request.method)) {
+            return new Response(200).header("DAV", "1,2");
+
+        } else if ("PROPFIND".equals(request.method)) {
+            synchronized (this) {
+                if (! this.collections.contains(path)) return new Response(404);
+            }
+            final String body = "<?xml version=\"1.0\"?>"
+                              + "<D:multistatus xmlns:D=\"DAV:\"><D:response>"
+                              + "<D:href>" + path + "</D:href><D:propstat>"
+                              + "<D:prop><D:resourcetype><D:collection/>"
+                              + "</D:resourcetype></D:prop></D:propstat>"
+                              + "</D:response></D:multistatus>";
+            return new Response(207, body.getBytes("UTF-8"))
+                             .header("Content-Type", "text/xml; charset=UTF-8");
+
+        } else if ("MKCOL".equals(request.method)) {
+            synchronized (this) {
+                if (this.collections.contains(path)) return new Response(405);
+                if (! this.collections.contains(parent)) return new Response(409);
+                this.collections.add(path);
+            }
+            return new Response(201);
+
+        } else if ("PUT".equals(request.method)) {
+            if (this.delay > 0) try {
+                Thread.sleep(this.delay);
+            } catch (InterruptedException exception) {
+                throw new IOException("Interrupted");
+            }
+            synchronized (this) {
+                if (this.failures > 0) {
+                    this.failures --;
+                    return new Response(500);
+                }
+                if (! this.collections.contains(parent)) return new Response(409);
+                final boolean created = this.resources.put(path, request.body) == null;
+                this.notifyAll();
+                return new Response(created ? 201 : 204)
+                                .header("ETag", "\"" + new String(request.body) + "\"");
+            }
+
+        } else if ("DELETE".equals(request.method)) {
+            synchronized (this) {
+                if (this.resources.remove(path) != null) return new Response(204);
+            }
+            return new Response(404);
+        }
+        return new Response(405);
+    }
+
+    /**
+     * <p>Write a new temporary {@link File} with the specified content.</p>
+     */
+    private File file(String content)
+    throws IOException {
+        final File file = File.createTempFile("publisher-", ".bin");
+        this.files.add(file);
+        final FileOutputStream output = new FileOutputStream(file);
+        try {
+            output.write(content.getBytes("UTF-8"));
+        } finally {
+            output.close();
+        }
+        return file;
+    }
+
+    /**
+     * <p>Return the content of the resource at the specified path.</p>
+     */
+    private synchronized String content(String path)
+    throws IOException {
+        final byte content[] = (byte []) this.resources.get(path);
+        return content == null ? null : new String(content, "UTF-8");
+    }
+
+    /**
+     * <p>Wait until the resource at the specified path has the specified
+     * content, and then a little more for stray requests to arrive.</p>
+     */
+    private synchronized void await(String path, String content)
+    throws Exception {
+        final long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (! content.equals(this.content(path))) {
+            final long timeout = deadline - System.currentTimeMillis();
+            if (timeout <= 0) fail("Timed out waiting for " + path);
+            this.wait(timeout);
+        }
+        this.wait(this.delay + 200);
+    }
+
+    /**
+     * <p>Wait until the specified number of write requests was received.</p>
+     */
+    private void awaitRequests(int count)
+    throws Exception {
+        final long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (this.server.getRequestLines(WRITES).size() < count) {
+            if (System.currentTimeMillis() > deadline) fail("Timed out");
+            Thread.sleep(10);
+        }
+    }
+}
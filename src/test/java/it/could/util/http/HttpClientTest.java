@@ -0,0 +1,176 @@
+/* ========================================================================== *
+ *   Copyright (c) 2006, Pier Paolo Fumagalli <mailto:pier@betaversion.org>   *
+ *                            All rights reserved.                            *
+ * ========================================================================== *
+ *                                                                            * 
+ * Redistribution and use in source and binary forms, with or without modifi- *
+ * cation, are permitted provided that the following conditions are met:      *
+ *                                                                            * 
+ *  - Redistributions of source code must retain the  above copyright notice, *
+ *    this list of conditions and the following disclaimer.                   *
+ *                                                                            * 
+ *  - Redistributions  in binary  form  must  reproduce the  above  copyright *
+ *    notice,  this list of conditions  and the following  disclaimer  in the *
+ *    documentation and/or other materials provided with the distribution.    *
+ *                                                                            * 
+ *  - Neither the name of Pier Fumagalli, nor the names of other contributors *
+ *    may be used to endorse  or promote products derived  from this software *
+ *    without specific prior written permission.                              *
+ *                                                                            * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS "AS IS" *
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES,  INCLUDING, BUT NOT LIMITED TO, THE *
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE *
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER  OR CONTRIBUTORS BE *
+ * LIABLE  FOR ANY  DIRECT,  INDIRECT,  INCIDENTAL,  SPECIAL,  EXEMPLARY,  OR *
+ * CONSEQUENTIAL  DAMAGES  (INCLUDING,  BUT  NOT LIMITED  TO,  PROCUREMENT OF *
+ * SUBSTITUTE GOODS OR SERVICES;  LOSS OF USE, DATA, OR PROFITS;  OR BUSINESS *
+ * INTERRUPTION)  HOWEVER CAUSED AND ON  ANY THEORY OF LIABILITY,  WHETHER IN *
+ * CONTRACT,  STRICT LIABILITY,  OR TORT  (INCLUDING NEGLIGENCE OR OTHERWISE) *
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE *
+ * POSSIBILITY OF SUCH DAMAGE.                                                *
+ * ========================================================================== */
+package it.could.util.http;
+
+import it.could.util.http.HttpTestServer.Request;
+import it.could.util.http.HttpTestServer.Response;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * <p>Test the request bodies written by the {@link HttpClient} against an
+ * in-process server.</p>
+ */
+public class HttpClientTest extends TestCase {
+
+    /** <p>The {@link HttpTestServer} receiving all requests.</p> */
+    private HttpTestServer server;
+
+    protected void setUp()
+    throws Exception {
+        this.server = new HttpTestServer(new HttpTestServer.Handler() {
+            public Response handle(Request request) {
+                return new Response(201);
+            }
+        });
+    }
+
+    protected void tearDown() {
+        this.server.close();
+    }
+
+    /* ====================================================================== */
+    /* TESTS                                                                  */
+    /* ====================================================================== */
+
+    /**
+     * <p>Check that small writes are collected into chunks of at most eight
+     * kilobytes, terminated by the last (empty) chunk.</p>
+     */
+    public void testChunksSmallWrites()
+    throws Exception {
+        final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        final OutputStream output = this.put("small.bin");
+        for (int x = 0; x < 20; x ++) {
+            final byte data[] = content(1000, x);
+            output.write(data);
+            expected.write(data);
+        }
+        output.write('!');
+        expected.write('!');
+        output.close();
+
+        final Request request = this.request();
+        assertEquals("chunked", request.getHeader("Transfer-Encoding"));
+        assertNull(request.getHeader("Content-Length"));
+        assertEquals(sizes(new int[] { 8000, 8000, 4001, 0 }), request.chunks);
+        assertTrue(Arrays.equals(expected.toByteArray(), request.body));
+    }
+
+    /**
+     * <p>Check that writes larger than the buffer become chunks of their own,
+     * after whatever was buffered before them, and that flushing writes the
+     * buffered data as a chunk.</p>
+     */
+    public void testChunksLargeWrites()
+    throws Exception {
+        final byte first[] = content(100, 1);
+        final byte large[] = content(20000, 2);
+        final byte last[] = content(10, 3);
+
+        final OutputStream output = this.put("large.bin");
+        output.write(first);
+        output.write(large);
+        output.write(last);
+        output.flush();
+        output.write(new byte[0]);
+        output.close();
+
+        final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        expected.write(first);
+        expected.write(large);
+        expected.write(last);
+
+        final Request request = this.request();
+        assertEquals(sizes(new int[] { 100, 20000, 10, 0 }), request.chunks);
+        assertTrue(Arrays.equals(expected.toByteArray(), request.body));
+    }
+
+    /**
+     * <p>Check that an empty chunked body is made of the last chunk only.</p>
+     */
+    public void testChunksEmptyBody()
+    throws Exception {
+        this.put("empty.bin").close();
+
+        final Request request = this.request();
+        assertEquals(sizes(new int[] { 0 }), request.chunks);
+        assertEquals(0, request.body.length);
+    }
+
+    /* ====================================================================== */
+    /* HELPER METHODS                                                         */
+    /* ====================================================================== */
+
+    /**
+     * <p>Start a chunked <code>PUT</code> request for the specified path,
+     * returning the stream writing its body.</p>
+     */
+    private OutputStream put(String path)
+    throws IOException {
+        final HttpClient client = new HttpClient(this.server.getUrl() + path);
+        return client.connect("PUT", HttpClient.CHUNKED).getRequestStream();
+    }
+
+    /**
+     * <p>Return the only request received by the server.</p>
+     */
+    private Request request() {
+        final List requests = this.server.getRequests();
+        assertEquals(1, requests.size());
+        return (Request) requests.get(0);
+    }
+
+    /**
+     * <p>Return a {@link List} of chunk sizes as {@link Integer}s.</p>
+     */
+    private static List sizes(int sizes[]) {
+        final Integer list[] = new Integer[sizes.length];
+        for (int x = 0; x < sizes.length; x ++) list[x] = new Integer(sizes[x]);
+        return Arrays.asList(list);
+    }
+
+    /**
+     * <p>Return some deterministic content of the specified size.</p>
+     */
+    private static byte[] content(int size, int seed) {
+        final byte data[] = new byte[size];
+        for (int x = 0; x < size; x ++) data[x] = (byte) (x * 31 + seed);
+        return data;
+    }
+}
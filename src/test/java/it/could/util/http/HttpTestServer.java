@@ -0,0 +1,341 @@
+/* ========================================================================== *
+ *   Copyright (c) 2006, Pier Paolo Fumagalli <mailto:pier@betaversion.org>   *
+ *                            All rights reserved.                            *
+ * ========================================================================== *
+ *                                                                            * 
+ * Redistribution and use in source and binary forms, with or without modifi- *
+ * cation, are permitted provided that the following conditions are met:      *
+ *                                                                            * 
+ *  - Redistributions of source code must retain the  above copyright notice, *
+ *    this list of conditions and the following disclaimer.                   *
+ *                                                                            * 
+ *  - Redistributions  in binary  form  must  reproduce the  above  copyright *
+ *    notice,  this list of conditions  and the following  disclaimer  in the *
+ *    documentation and/or other materials provided with the distribution.    *
+ *                                                                            * 
+ *  - Neither the name of Pier Fumagalli, nor the names of other contributors *
+ *    may be used to endorse  or promote products derived  from this software *
+ *    without specific prior written permission.                              *
+ *                                                                            * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS "AS IS" *
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES,  INCLUDING, BUT NOT LIMITED TO, THE *
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE *
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER  OR CONTRIBUTORS BE *
+ * LIABLE  FOR ANY  DIRECT,  INDIRECT,  INCIDENTAL,  SPECIAL,  EXEMPLARY,  OR *
+ * CONSEQUENTIAL  DAMAGES  (INCLUDING,  BUT  NOT LIMITED  TO,  PROCUREMENT OF *
+ * SUBSTITUTE GOODS OR SERVICES;  LOSS OF USE, DATA, OR PROFITS;  OR BUSINESS *
+ * INTERRUPTION)  HOWEVER CAUSED AND ON  ANY THEORY OF LIABILITY,  WHETHER IN *
+ * CONTRACT,  STRICT LIABILITY,  OR TORT  (INCLUDING NEGLIGENCE OR OTHERWISE) *
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE *
+ * POSSIBILITY OF SUCH DAMAGE.                                                *
+ * ========================================================================== */
+package it.could.util.http;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>A minimal in-process HTTP/1.1 server for unit tests, handing every
+ * request received to a {@link Handler}.</p>
+ * 
+ * <p>Connections are kept alive until the client closes them, request
+ * bodies are read whole (decoding the <code>chunked</code> transfer
+ * encoding, and remembering the size of each chunk), and all requests
+ * received are recorded in order.</p>
+ */
+public class HttpTestServer implements Runnable {
+
+    /** <p>The {@link ServerSocket} accepting connections.</p> */
+    private final ServerSocket socket;
+    /** <p>The {@link Handler} producing responses.</p> */
+    private final Handler handler;
+    /** <p>The {@link List} of all {@link Request}s received.</p> */
+    private final List requests = Collections.synchronizedList(new ArrayList());
+
+    /**
+     * <p>Create a new {@link HttpTestServer} listening on an ephemeral port
+     * of the loopback interface, and start accepting connections.</p>
+     */
+    public HttpTestServer(Handler handler)
+    throws IOException {
+        this.socket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        this.handler = handler;
+        final Thread thread = new Thread(this, "HttpTestServer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * <p>Return the base URL of this server, ending with a slash.</p>
+     */
+    public String getUrl() {
+        return "http://127.0.0.1:" + this.socket.getLocalPort() + "/";
+    }
+
+    /**
+     * <p>Return a copy of the {@link List} of all {@link Request}s received
+     * up to now.</p>
+     */
+    public List getRequests() {
+        synchronized (this.requests) {
+            return new ArrayList(this.requests);
+        }
+    }
+
+    /**
+     * <p>Return the <code>METHOD path</code> lines of all {@link Request}s
+     * received up to now with one of the specified methods.</p>
+     */
+    public List getRequestLines(String methods[]) {
+        final List lines = new ArrayList();
+        for (Iterator iterator = this.getRequests().iterator(); iterator.hasNext(); ) {
+            final Request request = (Request) iterator.next();
+            for (int x = 0; x < methods.length; x ++) {
+                if (! methods[x].equals(request.method)) continue;
+                lines.add(request.method + " " + request.path);
+            }
+        }
+        return lines;
+    }
+
+    /**
+     * <p>Stop accepting new connections.</p>
+     */
+    public void close() {
+        try {
+            this.socket.close();
+        } catch (IOException exception) {
+            /* Ignore */
+        }
+    }
+
+    /**
+     * <p>Accept connections, serving each one in its own thread.</p>
+     */
+    public void run() {
+        while (! this.socket.isClosed()) try {
+            final Socket connection = this.socket.accept();
+            final Thread thread = new Thread(new Runnable() {
+                public void run() {
+                    HttpTestServer.this.serve(connection);
+                }
+            }, "HttpTestServer Connection");
+            thread.setDaemon(true);
+            thread.start();
+        } catch (IOException exception) {
+            return;
+        }
+    }
+
+    /* ====================================================================== */
+    /* PRIVATE METHODS                                                        */
+    /* ====================================================================== */
+
+    /**
+     * <p>Serve all requests received on a connection.</p>
+     */
+    private void serve(Socket connection) {
+        try {
+            final InputStream input = new BufferedInputStream(connection.getInputStream());
+            final OutputStream output = connection.getOutputStream();
+            while (true) {
+                final Request request = read(input);
+                if (request == null) break;
+                this.requests.add(request);
+                final Response response = this.handler.handle(request);
+                write(output, request, response);
+                if (request.isClose()) break;
+            }
+        } catch (IOException exception) {
+            /* The client went away */
+        } finally {
+            try {
+                connection.close();
+            } catch (IOException exception) {
+                /* Ignore */
+            }
+        }
+    }
+
+    /**
+     * <p>Read a whole {@link Request}, or return <b>null</b> if the
+     * connection was closed before one started.</p>
+     */
+    private static Request read(InputStream input)
+    throws IOException {
+        String line = line(input);
+        if (line == null) return null;
+        if (line.length() == 0) line = line(input);
+        if (line == null) return null;
+
+        final String parts[] = line.split(" ");
+        final Request request = new Request(parts[0], parts[1]);
+        for (line = line(input); (line != null) && (line.length() > 0); line = line(input)) {
+            final int colon = line.indexOf(':');
+            request.headers.put(line.substring(0, colon).trim().toLowerCase(),
+                                line.substring(colon + 1).trim());
+        }
+
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        if ("chunked".equalsIgnoreCase(request.getHeader("transfer-encoding"))) {
+            while (true) {
+                final String size = line(input);
+                if (size == null) throw new IOException("Premature end of chunks");
+                final int length = Integer.parseInt(size.trim(), 16);
+                request.chunks.add(new Integer(length));
+                copy(input, body, length);
+                line(input);
+                if (length == 0) break;
+            }
+        } else if (request.getHeader("content-length") != null) {
+            copy(input, body, Integer.parseInt(request.getHeader("content-length")));
+        }
+        request.body = body.toByteArray();
+        return request;
+    }
+
+    /**
+     * <p>Write a {@link Response} to the specified {@link Request}.</p>
+     */
+    private static void write(OutputStream output, Request request,
+                              Response response)
+    throws IOException {
+        final StringBuffer buffer = new StringBuffer("HTTP/1.1 ");
+        buffer.append(response.status).append(" Status\r\n");
+        for (Iterator iterator = response.headers.entrySet().iterator(); iterator.hasNext(); ) {
+            final Map.Entry entry = (Map.Entry) iterator.next();
+            buffer.append(entry.getKey()).append(": ").append(entry.getValue()).append("\r\n");
+        }
+        final boolean head = "HEAD".equals(request.method);
+        buffer.append("Content-Length: ").append(response.body.length).append("\r\n");
+        if (request.isClose()) buffer.append("Connection: close\r\n");
+        buffer.append("\r\n");
+        output.write(buffer.toString().getBytes("ISO-8859-1"));
+        if (! head) output.write(response.body);
+        output.flush();
+    }
+
+    /**
+     * <p>Read a CRLF-terminated line, or <b>null</b> at the end of input.</p>
+     */
+    private static String line(InputStream input)
+    throws IOException {
+        final StringBuffer buffer = new StringBuffer();
+        for (int read = input.read(); read >= 0; read = input.read()) {
+            if (read == '\n') {
+                final int length = buffer.length();
+                if ((length > 0) && (buffer.charAt(length - 1) == '\r'))
+                    buffer.setLength(length - 1);
+                return buffer.toString();
+            }
+            buffer.append((char) read);
+        }
+        return buffer.length() == 0 ? null : buffer.toString();
+    }
+
+    /**
+     * <p>Copy exactly the specified number of bytes.</p>
+     */
+    private static void copy(InputStream input, OutputStream output, int length)
+    throws IOException {
+        final byte buffer[] = new byte[4096];
+        while (length > 0) {
+            final int read = input.read(buffer, 0, Math.min(length, buffer.length));
+            if (read < 0) throw new IOException("Premature end of body");
+            output.write(buffer, 0, read);
+            length -= read;
+        }
+    }
+
+    /* ====================================================================== */
+    /* INTERNAL CLASSES                                                       */
+    /* ====================================================================== */
+
+    /**
+     * <p>Produce the {@link Response} to a {@link Request}.</p>
+     */
+    public interface Handler {
+
+        /**
+         * <p>Return the {@link Response} to the specified {@link Request}.</p>
+         */
+        public Response handle(Request request)
+        throws IOException;
+
+    }
+
+    /**
+     * <p>A request received by the server.</p>
+     */
+    public static final class Request {
+
+        /** <p>The request method.</p> */
+        public final String method;
+        /** <p>The raw request path.</p> */
+        public final String path;
+        /** <p>The request headers, keyed by lower case name.</p> */
+        public final Map headers = new HashMap();
+        /** <p>The sizes of all chunks of a chunked body, as {@link Integer}s.</p> */
+        public final List chunks = new ArrayList();
+        /** <p>The (decoded) request body.</p> */
+        public byte body[] = new byte[0];
+
+        private Request(String method, String path) {
+            this.method = method;
+            this.path = path;
+        }
+
+        /** <p>Return the value of the header with the specified name.</p> */
+        public String getHeader(String name) {
+            return (String) this.headers.get(name.toLowerCase());
+        }
+
+        /** <p>Check whether the client asked to close the connection.</p> */
+        private boolean isClose() {
+            final String connection = this.getHeader("connection");
+            return (connection != null) && (connection.toLowerCase().indexOf("close") >= 0);
+        }
+    }
+
+    /**
+     * <p>A response returned by a {@link Handler}.</p>
+     */
+    public static final class Response {
+
+        /** <p>The response status.</p> */
+        public final int status;
+        /** <p>The response headers.</p> */
+        public final Map headers = new HashMap();
+        /** <p>The response body.</p> */
+        public final byte body[];
+
+        /** <p>Create a new {@link Response} with an empty body.</p> */
+        public Response(int status) {
+            this(status, new byte[0]);
+        }
+
+        /** <p>Create a new {@link Response} with the specified body.</p> */
+        public Response(int status, byte body[]) {
+            this.status = status;
+            this.body = body;
+        }
+
+        /** <p>Add a header to this {@link Response}, returning it.</p> */
+        public Response header(String name, String value) {
+            this.headers.put(name, value);
+            return this;
+        }
+    }
+}
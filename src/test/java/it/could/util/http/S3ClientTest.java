@@ -0,0 +1,117 @@
+/* ========================================================================== *
+ *   Copyright (c) 2006, Pier Paolo Fumagalli <mailto:pier@betaversion.org>   *
+ *                            All rights reserved.                            *
+ * ========================================================================== *
+ *                                                                            * 
+ * Redistribution and use in source and binary forms, with or without modifi- *
+ * cation, are permitted provided that the following conditions are met:      *
+ *                                                                            * 
+ *  - Redistributions of source code must retain the  above copyright notice, *
+ *    this list of conditions and the following disclaimer.                   *
+ *                                                                            * 
+ *  - Redistributions  in binary  form  must  reproduce the  above  copyright *
+ *    notice,  this list of conditions  and the following  disclaimer  in the *
+ *    documentation and/or other materials provided with the distribution.    *
+ *                                                                            * 
+ *  - Neither the name of Pier Fumagalli, nor the names of other contributors *
+ *    may be used to endorse  or promote products derived  from this software *
+ *    without specific prior written permission.                              *
+ *                                                                            * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS "AS IS" *
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES,  INCLUDING, BUT NOT LIMITED TO, THE *
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE *
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER  OR CONTRIBUTORS BE *
+ * LIABLE  FOR ANY  DIRECT,  INDIRECT,  INCIDENTAL,  SPECIAL,  EXEMPLARY,  OR *
+ * CONSEQUENTIAL  DAMAGES  (INCLUDING,  BUT  NOT LIMITED  TO,  PROCUREMENT OF *
+ * SUBSTITUTE GOODS OR SERVICES;  LOSS OF USE, DATA, OR PROFITS;  OR BUSINESS *
+ * INTERRUPTION)  HOWEVER CAUSED AND ON  ANY THEORY OF LIABILITY,  WHETHER IN *
+ * CONTRACT,  STRICT LIABILITY,  OR TORT  (INCLUDING NEGLIGENCE OR OTHERWISE) *
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE *
+ * POSSIBILITY OF SUCH DAMAGE.                                                *
+ * ========================================================================== */
+package it.could.util.http;
+
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import junit.framework.TestCase;
+
+/**
+ * <p>Test the version 4 signatures of the {@link S3Client} against the
+ * examples published by Amazon for the S3 service.</p>
+ */
+public class S3ClientTest extends TestCase {
+
+    /** <p>The secret key of all examples.</p> */
+    private static final String SECRET = "wJalrXUtnFEMI/K7MDENG/bPxRfiCYEXAMPLEKEY";
+    /** <p>The date of all examples.</p> */
+    private static final String DATE = "20130524T000000Z";
+    /** <p>The host of all examples.</p> */
+    private static final String HOST = "examplebucket.s3.amazonaws.com";
+    /** <p>The SHA-256 digest of an empty payload.</p> */
+    private static final String EMPTY =
+                "e3b0c44298fc1c149afbf4c8996fb92427ae41e4649b934ca495991b7852b855";
+
+    public void testGetObject()
+    throws Exception {
+        final SortedMap headers = headers(EMPTY);
+        headers.put("range", "bytes=0-9");
+        final String canonical = S3Client.canonicalRequest("GET", "/test.txt",
+                                                           null, headers, EMPTY);
+
+        assertEquals("GET\n/test.txt\n\n"
+                     + "host:examplebucket.s3.amazonaws.com\n"
+                     + "range:bytes=0-9\n"
+                     + "x-amz-content-sha256:" + EMPTY + "\n"
+                     + "x-amz-date:20130524T000000Z\n\n"
+                     + "host;range;x-amz-content-sha256;x-amz-date\n"
+                     + EMPTY, canonical);
+        assertEquals("f0e8bdb87c964420e857bd35b5d6ed310bd44f0170aba48dd91039c6036bdb41",
+                     S3Client.signature(SECRET, DATE, "us-east-1", canonical));
+    }
+
+    public void testPutObject()
+    throws Exception {
+        final String hash = "44ce7dd67c959e0d3524ffac1771dfbba87d2b6b4b4e99e42034a8b803f8b072";
+        final SortedMap headers = headers(hash);
+        headers.put("date", "Fri, 24 May 2013 00:00:00 GMT");
+        headers.put("x-amz-storage-class", "REDUCED_REDUNDANCY");
+        final String path = "/" + S3Client.encode("test$file.text");
+        final String canonical = S3Client.canonicalRequest("PUT", path, null,
+                                                           headers, hash);
+
+        assertEquals("/test%24file.text", path);
+        assertEquals("date;host;x-amz-content-sha256;x-amz-date;x-amz-storage-class",
+                     S3Client.signedHeaders(headers));
+        assertEquals("98ad721746da40c64f1a55b78f14c238d841ea1380cd77a1b5971af0ece108bd",
+                     S3Client.signature(SECRET, DATE, "us-east-1", canonical));
+    }
+
+    public void testGetBucketLifecycle()
+    throws Exception {
+        final String canonical = S3Client.canonicalRequest("GET", "/", "lifecycle=",
+                                                           headers(EMPTY), EMPTY);
+        assertEquals("fea454ca298b7da1c68078a5d1bdbfbbe0d65c699e0f91ac7a200a0136783543",
+                     S3Client.signature(SECRET, DATE, "us-east-1", canonical));
+    }
+
+    public void testListObjects()
+    throws Exception {
+        final String canonical = S3Client.canonicalRequest("GET", "/",
+                                                           "max-keys=2&prefix=J",
+                                                           headers(EMPTY), EMPTY);
+        assertEquals("34b48302e7b5fa45bde8084f4b7868a86f0a534bc59db6670ed5711ef69dc6f7",
+                     S3Client.signature(SECRET, DATE, "us-east-1", canonical));
+    }
+
+    /**
+     * <p>Return the headers signed in all examples.</p>
+     */
+    private static SortedMap headers(String hash) {
+        final SortedMap headers = new TreeMap();
+        headers.put("host", HOST);
+        headers.put("x-amz-content-sha256", hash);
+        headers.put("x-amz-date", DATE);
+        return headers;
+    }
+}
@@ -0,0 +1,294 @@
+/* ========================================================================== *
+ *   Copyright (c) 2006, Pier Paolo Fumagalli <mailto:pier@betaversion.org>   *
+ *                            All rights reserved.                            *
+ * ========================================================================== *
+ *                                                                            * 
+ * Redistribution and use in source and binary forms, with or without modifi- *
+ * cation, are permitted provided that the following conditions are met:      *
+ *                                                                            * 
+ *  - Redistributions of source code must retain the  above copyright notice, *
+ *    this list of conditions and the following disclaimer.                   *
+ *                                                                            * 
+ *  - Redistributions  in binary  form  must  reproduce the  above  copyright *
+ *    notice,  this list of conditions  and the following  disclaimer  in the *
+ *    documentation and/or other materials provided with the distribution.    *
+ *                                                                            * 
+ *  - Neither the name of Pier Fumagalli, nor the names of other contributors *
+ *    may be used to endorse  or promote products derived  from this software *
+ *    without specific prior written permission.                              *
+ *                                                                            * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS "AS IS" *
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES,  INCLUDING, BUT NOT LIMITED TO, THE *
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE *
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER  OR CONTRIBUTORS BE *
+ * LIABLE  FOR ANY  DIRECT,  INDIRECT,  INCIDENTAL,  SPECIAL,  EXEMPLARY,  OR *
+ * CONSEQUENTIAL  DAMAGES  (INCLUDING,  BUT  NOT LIMITED  TO,  PROCUREMENT OF *
+ * SUBSTITUTE GOODS OR SERVICES;  LOSS OF USE, DATA, OR PROFITS;  OR BUSINESS *
+ * INTERRUPTION)  HOWEVER CAUSED AND ON  ANY THEORY OF LIABILITY,  WHETHER IN *
+ * CONTRACT,  STRICT LIABILITY,  OR TORT  (INCLUDING NEGLIGENCE OR OTHERWISE) *
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE *
+ * POSSIBILITY OF SUCH DAMAGE.                                                *
+ * ========================================================================== */
+package it.could.util.http;
+
+import it.could.util.http.HttpTestServer.Request;
+import it.could.util.http.HttpTestServer.Response;
+import it.could.util.http.TransferManager.Batch;
+import it.could.util.http.TransferManager.Transfer;
+import it.could.util.location.Location;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+
+import junit.framework.TestCase;
+
+/**
+ * <p>Test the ordering and the shutdown of the {@link TransferManager}
+ * against an in-process WebDAV server.</p>
+ */
+public class TransferManagerTest extends TestCase {
+
+    /** <p>How long to wait for batches to complete, in milliseconds.</p> */
+    private static final long TIMEOUT = 15000;
+
+    /** <p>The start and end events of all write requests, in order.</p> */
+    private final List events = new ArrayList();
+    /** <p>How long each write request takes, in milliseconds.</p> */
+    private long delay = 100;
+    /** <p>The number of write requests being handled.</p> */
+    private int active = 0;
+    /** <p>The maximum number of write requests handled concurrently.</p> */
+    private int concurrent = 0;
+
+    /** <p>The {@link HttpTestServer} serving the collection.</p> */
+    private HttpTestServer server;
+    /** <p>The {@link TransferManager} being tested.</p> */
+    private TransferManager manager;
+    /** <p>The temporary file uploaded by all transfers.</p> */
+    private File file;
+
+    protected void setUp()
+    throws Exception {
+        this.server = new HttpTestServer(new HttpTestServer.Handler() {
+            public Response handle(Request request)
+            throws IOException {
+                return TransferManagerTest.this.handle(request);
+            }
+        });
+        final Location location = Location.parse(this.server.getUrl() + "dav/");
+        this.manager = new TransferManager(new WebDavClient(location), 4);
+
+        this.file = File.createTempFile("autoexport-", ".bin");
+        final FileOutputStream output = new FileOutputStream(this.file);
+        output.write("content".getBytes("US-ASCII"));
+        output.close();
+    }
+
+    protected void tearDown() {
+        this.manager.shutdown();
+        this.server.close();
+        this.file.delete();
+    }
+
+    /* ====================================================================== */
+    /* TESTS                                                                  */
+    /* ====================================================================== */
+
+    /**
+     * <p>Check that resources wait for their parent collections, collections
+     * wait for what they contain, and operations on the same path keep the
+     * order they were added in.</p>
+     */
+    public void testOrdersOverlappingPaths()
+    throws Exception {
+        final Batch batch = this.manager.createBatch();
+        batch.mkcol("a/");
+        batch.mkcol("a/b/");
+        batch.put("a/one.bin", this.file);
+        batch.put("a/b/two.bin", this.file);
+        batch.put("other.bin", this.file);
+        batch.delete("a/");
+        batch.put("a/three.bin", this.file);
+        batch.put("other.bin", this.file);
+        this.execute(batch);
+
+        assertEquals(0, batch.getFailures());
+        assertEquals(8, batch.getTransfers().size());
+        assertEquals(16, this.events.size());
+
+        this.assertBefore("MKCOL /dav/a/", "MKCOL /dav/a/b/");
+        this.assertBefore("MKCOL /dav/a/", "PUT /dav/a/one.bin");
+        this.assertBefore("MKCOL /dav/a/b/", "PUT /dav/a/b/two.bin");
+        this.assertBefore("PUT /dav/a/one.bin", "DELETE /dav/a/");
+        this.assertBefore("PUT /dav/a/b/two.bin", "DELETE /dav/a/");
+        this.assertBefore("DELETE /dav/a/", "PUT /dav/a/three.bin");
+        assertTrue(this.events.indexOf("end PUT /dav/other.bin")
+                   < this.events.lastIndexOf("start PUT /dav/other.bin"));
+    }
+
+    /**
+     * <p>Check that transfers on unrelated paths run concurrently.</p>
+     */
+    public void testRunsUnrelatedTransfersConcurrently()
+    throws Exception {
+        this.delay = 300;
+        final Batch batch = this.manager.createBatch();
+        for (int x = 0; x < 4; x ++) batch.put("page" + x + ".bin", this.file);
+        this.execute(batch);
+
+        assertEquals(0, batch.getFailures());
+        assertTrue("Concurrent transfers: " + this.concurrent, this.concurrent > 1);
+    }
+
+    /**
+     * <p>Check that a batch being executed when the manager is shut down
+     * still starts and completes all of its transfers.</p>
+     */
+    public void testShutdownWaitsForExecutingBatch()
+    throws Exception {
+        this.delay = 300;
+        final Batch batch = this.manager.createBatch();
+        batch.mkcol("a/");
+        batch.put("a/one.bin", this.file);
+        batch.put("a/two.bin", this.file);
+
+        final Thread thread = this.start(batch);
+        this.awaitEvents(1);
+        this.manager.shutdown();
+        thread.join(TIMEOUT);
+
+        assertFalse("Batch did not complete", thread.isAlive());
+        assertEquals(0, batch.getFailures());
+        assertEquals(6, this.events.size());
+    }
+
+    /**
+     * <p>Check that a batch executed after the manager was shut down fails
+     * all its transfers (including those waiting for others) instead of
+     * hanging forever.</p>
+     */
+    public void testFailsBatchesAfterShutdown()
+    throws Exception {
+        this.manager.shutdown();
+        final Batch batch = this.manager.createBatch();
+        batch.mkcol("a/");
+        batch.put("a/one.bin", this.file);
+        batch.delete("a/");
+        batch.put("other.bin", this.file);
+
+        final Thread thread = this.start(batch);
+        thread.join(TIMEOUT);
+        assertFalse("Batch did not complete", thread.isAlive());
+
+        assertEquals(4, batch.getFailures());
+        for (Iterator iterator = batch.getTransfers().iterator(); iterator.hasNext(); ) {
+            final Transfer transfer = (Transfer) iterator.next();
+            assertTrue(transfer.isComplete());
+            assertFalse(transfer.isChanged());
+            assertTrue(transfer.getFailure() instanceof RejectedExecutionException);
+        }
+        assertEquals(0, this.events.size());
+    }
+
+    /* ====================================================================== */
+    /* HELPER METHODS                                                         */
+    /* ====================================================================== */
+
+    /**
+     * <p>Handle a request to the server, recording when write requests start
+     * and end.</p>
+     */
+    private Response handle(Request request)
+    throws IOException {
+        if ("OPTIONS".equals(request.method)) {
+            return new Response(200).header("DAV", "1,2");
+
+        } else if ("PROPFIND".equals(request.method)) {
+            final String body = "<?xml version=\"1.0\"?>"
+                              + "<D:multistatus xmlns:D=\"DAV:\"><D:response>"
+                              + "<D:href>" + request.path + "</D:href><D:propstat>"
+                              + "<D:prop><D:resourcetype><D:collection/>"
+                              + "</D:resourcetype></D:prop></D:propstat>"
+                              + "</D:response></D:multistatus>";
+            return new Response(207, body.getBytes("UTF-8"))
+                             .header("Content-Type", "text/xml; charset=UTF-8");
+        }
+
+        final String line = request.method + " " + request.path;
+        synchronized (this) {
+            this.events.add("start " + line);
+            if (++ this.active > this.concurrent) this.concurrent = this.active;
+            this.notifyAll();
+        }
+        try {
+            Thread.sleep(this.delay);
+        } catch (InterruptedException exception) {
+            throw new InterruptedIOException("Interrupted handling " + line);
+        }
+        synchronized (this) {
+            this.events.add("end " + line);
+            this.active --;
+            this.notifyAll();
+        }
+        return new Response("DELETE".equals(request.method) ? 204 : 201);
+    }
+
+    /**
+     * <p>Execute the specified {@link Batch} failing if it does not complete
+     * in time.</p>
+     */
+    private void execute(Batch batch)
+    throws InterruptedException {
+        final Thread thread = this.start(batch);
+        thread.join(TIMEOUT);
+        assertFalse("Batch did not complete", thread.isAlive());
+    }
+
+    /**
+     * <p>Execute the specified {@link Batch} in a new {@link Thread}.</p>
+     */
+    private Thread start(final Batch batch) {
+        final Thread thread = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    batch.execute();
+                } catch (InterruptedIOException exception) {
+                    /* The test will fail checking the transfers */
+                }
+            }
+        }, "TransferManagerTest");
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * <p>Wait until the specified number of events was recorded.</p>
+     */
+    private synchronized void awaitEvents(int count)
+    throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (this.events.size() < count) {
+            final long wait = deadline - System.currentTimeMillis();
+            if (wait <= 0) fail("Only " + this.events.size() + " events recorded");
+            this.wait(wait);
+        }
+    }
+
+    /**
+     * <p>Assert that the first request ended before the second started.</p>
+     */
+    private synchronized void assertBefore(String first, String second) {
+        final int end = this.events.indexOf("end " + first);
+        final int start = this.events.indexOf("start " + second);
+        assertTrue("No request " + first, end >= 0);
+        assertTrue("No request " + second, start >= 0);
+        assertTrue(first + " ended after " + second + " started", end < start);
+    }
+}